@@ -16,13 +16,10 @@
 
 package com.android.settings;
 
-import java.text.Collator;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 import com.android.settings.applications.AppViewHolder;
+import com.android.settings.util.AppCatalog;
 
 import android.app.ActivityManagerNative;
 import android.app.ListActivity;
@@ -40,18 +37,31 @@ import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
 
-public class AppPicker extends ListActivity {
+public class AppPicker extends ListActivity implements AppCatalog.Callback {
+    private AppCatalog mCatalog;
     private AppListAdapter mAdapter;
 
     @Override
     protected void onCreate(Bundle icicle) {
         super.onCreate(icicle);
 
+        mCatalog = AppCatalog.get(this);
         mAdapter = new AppListAdapter(this);
-        if (mAdapter.getCount() <= 0) {
-            finish();
-        } else {
-            setListAdapter(mAdapter);
+        setListAdapter(mAdapter);
+        mCatalog.getApps(this);
+    }
+
+    @Override
+    protected void onDestroy() {
+        mCatalog.cancel(this);
+        mCatalog.cancelIcons(mAdapter);
+        super.onDestroy();
+    }
+
+    @Override
+    public void onAppsLoaded(List<AppCatalog.App> apps) {
+        if (!isDestroyed()) {
+            mAdapter.setApps(apps);
         }
     }
 
@@ -75,20 +85,31 @@ public class AppPicker extends ListActivity {
     }
 
     class MyApplicationInfo {
+        AppCatalog.App app;
         ApplicationInfo info;
         CharSequence label;
     }
 
-    public class AppListAdapter extends ArrayAdapter<MyApplicationInfo> {
-        private final List<MyApplicationInfo> mPackageInfoList = new ArrayList<MyApplicationInfo>();
+    public class AppListAdapter extends ArrayAdapter<MyApplicationInfo>
+            implements AppCatalog.IconCallback {
         private final LayoutInflater mInflater;
 
         public AppListAdapter(Context context) {
             super(context, 0);
             mInflater = (LayoutInflater)context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-            List<ApplicationInfo> pkgs = context.getPackageManager().getInstalledApplications(0);
-            for (int i=0; i<pkgs.size(); i++) {
-                ApplicationInfo ai = pkgs.get(i);
+            MyApplicationInfo info = new MyApplicationInfo();
+            info.label = context.getText(R.string.no_application);
+            add(info);
+        }
+
+        void setApps(List<AppCatalog.App> apps) {
+            setNotifyOnChange(false);
+            MyApplicationInfo none = getItem(0);
+            clear();
+            add(none);
+            for (int i=0; i<apps.size(); i++) {
+                AppCatalog.App app = apps.get(i);
+                ApplicationInfo ai = app.info;
                 if (ai.uid == Process.SYSTEM_UID) {
                     continue;
                 }
@@ -100,15 +121,12 @@ public class AppPicker extends ListActivity {
                     continue;
                 }
                 MyApplicationInfo info = new MyApplicationInfo();
+                info.app = app;
                 info.info = ai;
-                info.label = info.info.loadLabel(getPackageManager()).toString();
-                mPackageInfoList.add(info);
+                info.label = app.label;
+                add(info);
             }
-            Collections.sort(mPackageInfoList, sDisplayNameComparator);
-            MyApplicationInfo info = new MyApplicationInfo();
-            info.label = context.getText(R.string.no_application);
-            mPackageInfoList.add(0, info);
-            addAll(mPackageInfoList);
+            notifyDataSetChanged();
         }
 
         @Override
@@ -120,7 +138,7 @@ public class AppPicker extends ListActivity {
             MyApplicationInfo info = getItem(position);
             holder.appName.setText(info.label);
             if (info.info != null) {
-                holder.appIcon.setImageDrawable(info.info.loadIcon(getPackageManager()));
+                holder.appIcon.setImageDrawable(mCatalog.getIcon(info.app, this));
                 holder.appSize.setText(info.info.packageName);
             } else {
                 holder.appIcon.setImageDrawable(null);
@@ -130,15 +148,10 @@ public class AppPicker extends ListActivity {
             holder.checkBox.setVisibility(View.GONE);
             return convertView;
         }
-    }
 
-    private final static Comparator<MyApplicationInfo> sDisplayNameComparator
-            = new Comparator<MyApplicationInfo>() {
-        public final int
-        compare(MyApplicationInfo a, MyApplicationInfo b) {
-            return collator.compare(a.label, b.label);
+        @Override
+        public void onIconLoaded(AppCatalog.App app) {
+            notifyDataSetChanged();
         }
-
-        private final Collator collator = Collator.getInstance();
-    };
+    }
 }
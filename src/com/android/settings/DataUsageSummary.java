@@ -79,6 +79,7 @@ import android.net.NetworkTemplate;
 import android.net.TrafficStats;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.INetworkManagementService;
 import android.os.Parcel;
 import android.os.Parcelable;
@@ -95,8 +96,8 @@ import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.text.format.Time;
 import android.util.Log;
-import android.util.SparseArray;
 import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -132,6 +133,7 @@ import com.android.settings.drawable.InsetBoundsDrawable;
 import com.android.settings.net.ChartData;
 import com.android.settings.net.ChartDataLoader;
 import com.android.settings.net.DataUsageMeteredSettings;
+import com.android.settings.net.NetworkHistoryCache;
 import com.android.settings.net.NetworkPolicyEditor;
 import com.android.settings.net.SummaryForAllUidLoader;
 import com.android.settings.net.UidDetail;
@@ -142,7 +144,7 @@ import com.android.settings.widget.PieChartView;
 import com.google.android.collect.Lists;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 
@@ -190,6 +192,7 @@ public class DataUsageSummary extends Fragment {
     private ConnectivityManager mConnService;
 
     private INetworkStatsSession mStatsSession;
+    private NetworkHistoryCache mHistoryCache;
 
     private static final String PREF_FILE = "data_usage";
     private static final String PREF_SHOW_WIFI = "show_wifi";
@@ -258,6 +261,8 @@ public class DataUsageSummary extends Fragment {
     private boolean mBinding;
 
     private UidDetailProvider mUidDetailProvider;
+    // Resolves the app clicked in the list before showing its details
+    private UidDetailLoader mPendingClick;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -276,8 +281,11 @@ public class DataUsageSummary extends Fragment {
         mPolicyEditor = new NetworkPolicyEditor(mPolicyManager);
         mPolicyEditor.read();
 
+        mUidDetailProvider = new UidDetailProvider(context);
+
         try {
             mStatsSession = mStatsService.openSession();
+            mHistoryCache = new NetworkHistoryCache(mStatsSession);
         } catch (RemoteException e) {
             throw new RuntimeException(e);
         }
@@ -301,8 +309,6 @@ public class DataUsageSummary extends Fragment {
         final Context context = inflater.getContext();
         final View view = inflater.inflate(R.layout.data_usage_summary, container, false);
 
-        mUidDetailProvider = new UidDetailProvider(context);
-
         mTabHost = (TabHost) view.findViewById(android.R.id.tabhost);
         mTabsContainer = (ViewGroup) view.findViewById(R.id.tabs_container);
         mTabWidget = (TabWidget) view.findViewById(android.R.id.tabs);
@@ -432,6 +438,8 @@ public class DataUsageSummary extends Fragment {
             @Override
             protected void onPostExecute(Void result) {
                 if (isAdded()) {
+                    // history now has newer buckets
+                    mHistoryCache.invalidate();
                     updateBody();
                 }
             }
@@ -565,7 +573,7 @@ public class DataUsageSummary extends Fragment {
         mDataEnabledView = null;
         mDisableAtLimitView = null;
 
-        mUidDetailProvider.clearCache();
+        mUidDetailProvider.release();
         mUidDetailProvider = null;
 
         TrafficStats.closeQuietly(mStatsSession);
@@ -578,6 +586,15 @@ public class DataUsageSummary extends Fragment {
         super.onDestroy();
     }
 
+    @Override
+    public void onDetach() {
+        if (mPendingClick != null) {
+            mPendingClick.cancel(false);
+            mPendingClick = null;
+        }
+        super.onDetach();
+    }
+
     /**
      * Build and assign {@link LayoutTransition} to various containers. Should
      * only be assigned after initial layout is complete.
@@ -753,6 +770,20 @@ public class DataUsageSummary extends Fragment {
         return mCurrentApp != null;
     }
 
+    private void bindAppTitles(UidDetail detail) {
+        final LayoutInflater inflater = getActivity().getLayoutInflater();
+        mAppIcon.setImageDrawable(detail.icon);
+
+        mAppTitles.removeAllViews();
+        if (detail.detailLabels != null) {
+            for (CharSequence label : detail.detailLabels) {
+                mAppTitles.addView(inflateAppTitle(inflater, mAppTitles, label));
+            }
+        } else {
+            mAppTitles.addView(inflateAppTitle(inflater, mAppTitles, detail.label));
+        }
+    }
+
     /**
      * Update UID details panels to match {@link #mCurrentApp}, showing or
      * hiding them depending on {@link #isAppDetailMode()}.
@@ -760,7 +791,6 @@ public class DataUsageSummary extends Fragment {
     private void updateAppDetail() {
         final Context context = getActivity();
         final PackageManager pm = context.getPackageManager();
-        final LayoutInflater inflater = getActivity().getLayoutInflater();
 
         if (isAppDetailMode()) {
             mAppDetail.setVisibility(View.VISIBLE);
@@ -777,18 +807,22 @@ public class DataUsageSummary extends Fragment {
         // remove warning/limit sweeps while in detail mode
         mChart.bindNetworkPolicy(null);
 
-        // show icon and all labels appearing under this app
+        // show icon and all labels appearing under this app, once resolved
         final int uid = mCurrentApp.key;
-        final UidDetail detail = mUidDetailProvider.getUidDetail(uid, true);
-        mAppIcon.setImageDrawable(detail.icon);
-
-        mAppTitles.removeAllViews();
-        if (detail.detailLabels != null) {
-            for (CharSequence label : detail.detailLabels) {
-                mAppTitles.addView(inflateAppTitle(inflater, mAppTitles, label));
-            }
+        final UidDetail detail = mUidDetailProvider.getUidDetail(uid, false);
+        if (detail != null) {
+            bindAppTitles(detail);
         } else {
-            mAppTitles.addView(inflateAppTitle(inflater, mAppTitles, detail.label));
+            mAppIcon.setImageDrawable(pm.getDefaultActivityIcon());
+            mAppTitles.removeAllViews();
+            new UidDetailLoader(mUidDetailProvider, uid) {
+                @Override
+                protected void onPostExecute(UidDetail result) {
+                    if (isAdded() && isAppDetailMode() && mCurrentApp.key == uid) {
+                        bindAppTitles(result);
+                    }
+                }
+            }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
         }
 
         // enable settings button when package provides it
@@ -1092,8 +1126,28 @@ public class DataUsageSummary extends Fragment {
             // TODO: sigh, remove this hack once we understand 6450986
             if (mUidDetailProvider == null || app == null) return;
 
-            final UidDetail detail = mUidDetailProvider.getUidDetail(app.key, true);
-            AppDetailsFragment.show(DataUsageSummary.this, app, detail.label);
+            // a newer click replaces one still being resolved
+            if (mPendingClick != null) {
+                mPendingClick.cancel(false);
+                mPendingClick = null;
+            }
+
+            final UidDetail detail = mUidDetailProvider.getUidDetail(app.key, false);
+            if (detail != null) {
+                AppDetailsFragment.show(DataUsageSummary.this, app, detail.label);
+                return;
+            }
+            mPendingClick = new UidDetailLoader(mUidDetailProvider, app.key) {
+                @Override
+                protected void onPostExecute(UidDetail result) {
+                    if (mPendingClick != this) return;
+                    mPendingClick = null;
+                    if (isAdded()) {
+                        AppDetailsFragment.show(DataUsageSummary.this, app, result.label);
+                    }
+                }
+            };
+            mPendingClick.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
         }
     };
 
@@ -1200,7 +1254,7 @@ public class DataUsageSummary extends Fragment {
             ChartData>() {
         @Override
         public Loader<ChartData> onCreateLoader(int id, Bundle args) {
-            return new ChartDataLoader(getActivity(), mStatsSession, args);
+            return new ChartDataLoader(getActivity(), mHistoryCache, args);
         }
 
         @Override
@@ -1470,30 +1524,85 @@ public class DataUsageSummary extends Fragment {
     }
 
     /**
-     * Adapter of applications, sorted by total usage descending.
+     * Adapter of applications, sorted by total usage descending.  Totals are
+     * collected into reused arrays, and only the rows that have been shown
+     * are ordered, so rebinding while dragging the inspection range stays
+     * cheap.  Every bind creates its own {@link AppItem}s, since the item
+     * shown in detail mode is held on to across binds.
      */
     public static class DataUsageAdapter extends BaseAdapter {
+        /** Number of rows ordered at a time, as the list is scrolled. */
+        private static final int SORT_CHUNK = 32;
+
         private final UidDetailProvider mProvider;
         private final int mInsetSide;
 
-        private ArrayList<AppItem> mItems = Lists.newArrayList();
+        /** Position of each collapse key in {@link #mItems} for the current bind. */
+        private final SparseIntArray mSlots = new SparseIntArray();
+        private AppItem[] mItems = new AppItem[SORT_CHUNK];
+        private long[] mTotals = new long[SORT_CHUNK];
+        private int mCount;
+        private int mSortedCount;
         private long mLargest;
+        private NetworkStats.Entry mEntry;
+
+        private final Handler mHandler = new Handler();
+        private final SparseBooleanArray mPendingKeys = new SparseBooleanArray();
+        private UidDetailTask mDetailTask;
 
         public DataUsageAdapter(UidDetailProvider provider, int insetSide) {
             mProvider = checkNotNull(provider);
             mInsetSide = insetSide;
         }
 
+        /**
+         * Queue details for the given key, resolved together with every other
+         * row bound during the same layout pass.
+         */
+        private void requestUidDetail(int key) {
+            if (mPendingKeys.size() == 0 && mDetailTask == null) {
+                mHandler.post(mStartDetailTask);
+            }
+            mPendingKeys.put(key, true);
+        }
+
+        private final Runnable mStartDetailTask = new Runnable() {
+            @Override
+            public void run() {
+                final int size = mPendingKeys.size();
+                if (mDetailTask != null || size == 0) return;
+
+                final int[] keys = new int[size];
+                for (int i = 0; i < size; i++) {
+                    keys[i] = mPendingKeys.keyAt(i);
+                }
+                mPendingKeys.clear();
+                mDetailTask = new UidDetailTask(mProvider, keys, DataUsageAdapter.this);
+                mDetailTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            }
+        };
+
+        private void onUidDetailsLoaded() {
+            mDetailTask = null;
+            notifyDataSetChanged();
+            if (mPendingKeys.size() > 0) {
+                mHandler.post(mStartDetailTask);
+            }
+        }
+
         /**
          * Bind the given {@link NetworkStats}, or {@code null} to clear list.
          */
         public void bindStats(NetworkStats stats, int[] restrictedUids) {
-            mItems.clear();
+            // Let go of the items of the previous bind
+            Arrays.fill(mItems, 0, mCount, null);
+            mSlots.clear();
+            mCount = 0;
+            mSortedCount = 0;
 
             final int currentUserId = ActivityManager.getCurrentUser();
-            final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
 
-            NetworkStats.Entry entry = null;
+            NetworkStats.Entry entry = mEntry;
             final int size = stats != null ? stats.size() : 0;
             for (int i = 0; i < size; i++) {
                 entry = stats.getValues(i, entry);
@@ -1513,48 +1622,144 @@ public class DataUsageSummary extends Fragment {
                     collapseKey = android.os.Process.SYSTEM_UID;
                 }
 
-                AppItem item = knownItems.get(collapseKey);
-                if (item == null) {
-                    item = new AppItem(collapseKey);
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
-                }
-                item.addUid(uid);
-                item.total += entry.rxBytes + entry.txBytes;
+                final int slot = obtainSlot(collapseKey);
+                mItems[slot].addUid(uid);
+                mTotals[slot] += entry.rxBytes + entry.txBytes;
             }
+            mEntry = entry;
 
             for (int uid : restrictedUids) {
                 // Only splice in restricted state for current user
                 if (UserHandle.getUserId(uid) != currentUserId) continue;
 
-                AppItem item = knownItems.get(uid);
-                if (item == null) {
-                    item = new AppItem(uid);
-                    item.total = -1;
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
+                int slot = mSlots.get(uid, -1);
+                if (slot < 0) {
+                    slot = obtainSlot(uid);
+                    mTotals[slot] = -1;
                 }
-                item.restricted = true;
+                mItems[slot].restricted = true;
+            }
+
+            mLargest = mCount > 0 ? Long.MIN_VALUE : 0;
+            for (int i = 0; i < mCount; i++) {
+                mItems[i].total = mTotals[i];
+                mLargest = Math.max(mLargest, mTotals[i]);
             }
 
-            Collections.sort(mItems);
-            mLargest = (mItems.size() > 0) ? mItems.get(0).total : 0;
+            ensureSorted(SORT_CHUNK);
             notifyDataSetChanged();
         }
 
+        /**
+         * Return the position of the given collapse key in this bind, adding
+         * a new {@link AppItem} for it if needed.
+         */
+        private int obtainSlot(int key) {
+            int slot = mSlots.get(key, -1);
+            if (slot >= 0) return slot;
+
+            final AppItem item = new AppItem(key);
+            slot = mCount++;
+            if (slot == mItems.length) {
+                final AppItem[] items = new AppItem[slot * 2];
+                System.arraycopy(mItems, 0, items, 0, slot);
+                mItems = items;
+                final long[] totals = new long[slot * 2];
+                System.arraycopy(mTotals, 0, totals, 0, slot);
+                mTotals = totals;
+            }
+            mItems[slot] = item;
+            mTotals[slot] = 0;
+            mSlots.put(key, slot);
+            return slot;
+        }
+
+        /**
+         * Make sure at least the first {@code count} items are in their final
+         * order, selecting the largest of the remaining items a chunk at a
+         * time instead of sorting everything up front.
+         */
+        private void ensureSorted(int count) {
+            if (count <= mSortedCount || mSortedCount == mCount) return;
+            count = Math.min(mCount, Math.max(count, mSortedCount + SORT_CHUNK));
+
+            int left = mSortedCount;
+            int right = mCount - 1;
+            while (right > left) {
+                final int pivot = partition(left, right, (left + right) >>> 1);
+                if (pivot == count) {
+                    break;
+                } else if (pivot < count) {
+                    left = pivot + 1;
+                } else {
+                    right = pivot - 1;
+                }
+            }
+            sort(mSortedCount, count - 1);
+            mSortedCount = count;
+        }
+
+        private void sort(int left, int right) {
+            while (right - left > 8) {
+                final int pivot = partition(left, right, (left + right) >>> 1);
+                sort(left, pivot - 1);
+                left = pivot + 1;
+            }
+            for (int i = left + 1; i <= right; i++) {
+                final AppItem item = mItems[i];
+                int j = i - 1;
+                while (j >= left && comesBefore(item, mItems[j])) {
+                    mItems[j + 1] = mItems[j];
+                    j--;
+                }
+                mItems[j + 1] = item;
+            }
+        }
+
+        private int partition(int left, int right, int pivotIndex) {
+            final AppItem pivot = mItems[pivotIndex];
+            swap(pivotIndex, right);
+            int store = left;
+            for (int i = left; i < right; i++) {
+                if (comesBefore(mItems[i], pivot)) {
+                    swap(i, store++);
+                }
+            }
+            swap(store, right);
+            return store;
+        }
+
+        private void swap(int i, int j) {
+            final AppItem item = mItems[i];
+            mItems[i] = mItems[j];
+            mItems[j] = item;
+        }
+
+        private static boolean comesBefore(AppItem a, AppItem b) {
+            return a.total > b.total || (a.total == b.total && a.key < b.key);
+        }
+
+        private AppItem getAppItem(int position) {
+            if (position >= mCount) {
+                throw new IndexOutOfBoundsException();
+            }
+            ensureSorted(position + 1);
+            return mItems[position];
+        }
+
         @Override
         public int getCount() {
-            return mItems.size();
+            return mCount;
         }
 
         @Override
         public Object getItem(int position) {
-            return mItems.get(position);
+            return getAppItem(position);
         }
 
         @Override
         public long getItemId(int position) {
-            return mItems.get(position).key;
+            return getAppItem(position).key;
         }
 
         @Override
@@ -1574,9 +1779,13 @@ public class DataUsageSummary extends Fragment {
             final ProgressBar progress = (ProgressBar) convertView.findViewById(
                     android.R.id.progress);
 
-            // kick off async load of app details
-            final AppItem item = mItems.get(position);
-            UidDetailTask.bindView(mProvider, item, convertView);
+            // bind cached app details, or queue them for the next batch
+            final AppItem item = getAppItem(position);
+            final UidDetail detail = mProvider.getUidDetail(item.key, false);
+            UidDetailTask.bindView(detail, convertView);
+            if (detail == null) {
+                requestUidDetail(item.key);
+            }
 
             if (item.restricted && item.total <= 0) {
                 text1.setText(R.string.data_usage_app_restricted);
@@ -2135,34 +2344,18 @@ public class DataUsageSummary extends Fragment {
     }
 
     /**
-     * Background task that loads {@link UidDetail}, binding to
-     * {@link DataUsageAdapter} row item when finished.
+     * Background task that loads {@link UidDetail} for a batch of rows in a
+     * single pass, rebinding {@link DataUsageAdapter} when finished.
      */
-    private static class UidDetailTask extends AsyncTask<Void, Void, UidDetail> {
+    private static class UidDetailTask extends AsyncTask<Void, Void, Void> {
         private final UidDetailProvider mProvider;
-        private final AppItem mItem;
-        private final View mTarget;
+        private final int[] mKeys;
+        private final DataUsageAdapter mAdapter;
 
-        private UidDetailTask(UidDetailProvider provider, AppItem item, View target) {
+        private UidDetailTask(UidDetailProvider provider, int[] keys, DataUsageAdapter adapter) {
             mProvider = checkNotNull(provider);
-            mItem = checkNotNull(item);
-            mTarget = checkNotNull(target);
-        }
-
-        public static void bindView(
-                UidDetailProvider provider, AppItem item, View target) {
-            final UidDetailTask existing = (UidDetailTask) target.getTag();
-            if (existing != null) {
-                existing.cancel(false);
-            }
-
-            final UidDetail cachedDetail = provider.getUidDetail(item.key, false);
-            if (cachedDetail != null) {
-                bindView(cachedDetail, target);
-            } else {
-                target.setTag(new UidDetailTask(provider, item, target).executeOnExecutor(
-                        AsyncTask.THREAD_POOL_EXECUTOR));
-            }
+            mKeys = checkNotNull(keys);
+            mAdapter = checkNotNull(adapter);
         }
 
         private static void bindView(UidDetail detail, View target) {
@@ -2179,18 +2372,33 @@ public class DataUsageSummary extends Fragment {
         }
 
         @Override
-        protected void onPreExecute() {
-            bindView(null, mTarget);
+        protected Void doInBackground(Void... params) {
+            mProvider.getUidDetails(mKeys);
+            return null;
         }
 
         @Override
-        protected UidDetail doInBackground(Void... params) {
-            return mProvider.getUidDetail(mItem.key, true);
+        protected void onPostExecute(Void result) {
+            mAdapter.onUidDetailsLoaded();
+        }
+    }
+
+    /**
+     * Background task that resolves the {@link UidDetail} of a single UID,
+     * which may have to wait for a batch being resolved for the list.
+     */
+    private static class UidDetailLoader extends AsyncTask<Void, Void, UidDetail> {
+        private final UidDetailProvider mProvider;
+        private final int mKey;
+
+        private UidDetailLoader(UidDetailProvider provider, int key) {
+            mProvider = checkNotNull(provider);
+            mKey = key;
         }
 
         @Override
-        protected void onPostExecute(UidDetail result) {
-            bindView(result, mTarget);
+        protected UidDetail doInBackground(Void... params) {
+            return mProvider.getUidDetail(mKey, true);
         }
     }
 
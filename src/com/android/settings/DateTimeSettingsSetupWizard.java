@@ -44,7 +44,6 @@ import android.widget.CompoundButton.OnCheckedChangeListener;
 import android.widget.DatePicker;
 import android.widget.LinearLayout;
 import android.widget.ListPopupWindow;
-import android.widget.SimpleAdapter;
 import android.widget.TextView;
 import android.widget.TimePicker;
 
@@ -71,7 +70,9 @@ public class DateTimeSettingsSetupWizard extends Activity
 
     private Button mTimeZoneButton;
     private ListPopupWindow mTimeZonePopup;
-    private SimpleAdapter mTimeZoneAdapter;
+    private ZonePicker.ZoneAdapter mTimeZoneAdapter;
+    // the picker asked for while the zones were still loading
+    private int mPendingPickerAnchor;
     private TimeZone mSelectedTimeZone;
 
     private TimePicker mTimePicker;
@@ -92,8 +93,17 @@ public class DateTimeSettingsSetupWizard extends Activity
         } else {
             findViewById(R.id.next_button).setOnClickListener(this);
         }
-        mTimeZoneAdapter = ZonePicker.constructTimezoneAdapter(this, false,
-            R.layout.date_time_setup_custom_list_item_2);
+        ZonePicker.constructTimezoneAdapter(this, false,
+            R.layout.date_time_setup_custom_list_item_2, new ZonePicker.AdapterCallback() {
+                @Override
+                public void onAdapterReady(ZonePicker.ZoneAdapter adapter) {
+                    mTimeZoneAdapter = adapter;
+                    if (mPendingPickerAnchor != 0 && !isFinishing()) {
+                        showTimezonePicker(mPendingPickerAnchor);
+                    }
+                    mPendingPickerAnchor = 0;
+                }
+            });
 
         // For the normal view, disable Back since changes stick immediately
         // and can't be canceled, and we already have a Next button. For xLarge,
@@ -285,6 +295,10 @@ public class DateTimeSettingsSetupWizard extends Activity
             Log.e(TAG, "Unable to find zone picker anchor view " + anchorViewId);
             return;
         }
+        if (mTimeZoneAdapter == null) {
+            mPendingPickerAnchor = anchorViewId;
+            return;
+        }
         mTimeZonePopup = new ListPopupWindow(this, null);
         mTimeZonePopup.setWidth(anchorView.getWidth());
         mTimeZonePopup.setAnchorView(anchorView);
@@ -27,21 +27,25 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
+import android.graphics.drawable.Drawable.ConstantState;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.UserHandle;
 import android.util.Log;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.ArrayAdapter;
 import android.widget.DateTimeView;
 import android.widget.ImageView;
@@ -49,8 +53,11 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class NotificationStation extends SettingsPreferenceFragment {
     private static final String TAG = NotificationStation.class.getSimpleName();
@@ -58,43 +65,89 @@ public class NotificationStation extends SettingsPreferenceFragment {
     private static final String PACKAGE_SCHEME = "package";
     private static final boolean SHOW_HISTORICAL_NOTIFICATIONS = true;
 
+    // Dismissed notifications are fetched a page at a time, as the list is
+    // scrolled to its end, up to the size of the system's archive.
+    private static final int HISTORY_PAGE_SIZE = 50;
+    private static final int MAX_HISTORY_SIZE = 250;
+
+    // Bursts of posted or removed notifications are shown in one update
+    private static final int UPDATE_DELAY = 100;
+
+    // Shared by all packages, and kept across visits to the screen.  As
+    // package broadcasts are only seen while the screen is shown, the
+    // packages are checked against their update time when it is resumed.
+    private static final int ICON_CACHE_SIZE = 64;
+    private static final LruCache<String, ConstantState> sIconCache =
+            new LruCache<String, ConstantState>(ICON_CACHE_SIZE);
+    private static final LruCache<String, CharSequence> sLabelCache =
+            new LruCache<String, CharSequence>(ICON_CACHE_SIZE);
+    private static final HashMap<String, Long> sUpdateTimes = new HashMap<String, Long>();
+
     private final PackageReceiver mPackageReceiver = new PackageReceiver();
     private PackageManager mPm;
     private INotificationManager mNoMan;
 
-    private Runnable mRefreshListRunnable = new Runnable() {
+    private final Handler mHandler = new Handler();
+
+    // The list shown, newest first.  Changes are made here and pushed to
+    // the adapter as a whole, so the adapter only changes together with its
+    // notification.
+    private final ArrayList<HistoricalNotificationInfo> mItems =
+            new ArrayList<HistoricalNotificationInfo>();
+    // Active notifications by key, to find the entry an update or removal is for
+    private final HashMap<String, HistoricalNotificationInfo> mActive =
+            new HashMap<String, HistoricalNotificationInfo>();
+    private int mInactiveCount;
+    private int mHistorySize = HISTORY_PAGE_SIZE;
+    private boolean mHistoryComplete;
+
+    // Notifications are read in the background; postings and removals seen
+    // meanwhile are applied once the result is in.
+    private LoadTask mLoadTask;
+    private final ArrayList<Runnable> mDeferredEvents = new ArrayList<Runnable>();
+
+    private Runnable mUpdateListRunnable = new Runnable() {
         @Override
         public void run() {
-            refreshList();
+            pushItems();
         }
     };
 
     private INotificationListener.Stub mListener = new INotificationListener.Stub() {
         @Override
-        public void onNotificationPosted(StatusBarNotification notification) throws RemoteException {
+        public void onNotificationPosted(final StatusBarNotification notification)
+                throws RemoteException {
             Log.v(TAG, "onNotificationPosted: " + notification);
-            final Handler h = getListView().getHandler();
-            h.removeCallbacks(mRefreshListRunnable);
-            h.postDelayed(mRefreshListRunnable, 100);
+            postEvent(new Runnable() {
+                @Override
+                public void run() {
+                    onPosted(notification);
+                }
+            });
         }
 
         @Override
-        public void onNotificationRemoved(StatusBarNotification notification) throws RemoteException {
-            final Handler h = getListView().getHandler();
-            h.removeCallbacks(mRefreshListRunnable);
-            h.postDelayed(mRefreshListRunnable, 100);
+        public void onNotificationRemoved(final StatusBarNotification notification)
+                throws RemoteException {
+            postEvent(new Runnable() {
+                @Override
+                public void run() {
+                    onRemoved(notification);
+                }
+            });
         }
     };
 
     private NotificationHistoryAdapter mAdapter;
     private Context mContext;
 
-    private final Comparator<HistoricalNotificationInfo> mNotificationSorter
+    private static final Comparator<HistoricalNotificationInfo> sNotificationSorter
             = new Comparator<HistoricalNotificationInfo>() {
                 @Override
                 public int compare(HistoricalNotificationInfo lhs,
                                    HistoricalNotificationInfo rhs) {
-                    return (int)(rhs.timestamp - lhs.timestamp);
+                    return lhs.timestamp < rhs.timestamp ? 1
+                            : lhs.timestamp > rhs.timestamp ? -1 : 0;
                 }
             };
 
@@ -116,6 +169,22 @@ public class NotificationStation extends SettingsPreferenceFragment {
         }
     }
 
+    @Override
+    public void onDetach() {
+        super.onDetach();
+        try {
+            mNoMan.unregisterListener(mListener, ActivityManager.getCurrentUser());
+        } catch (RemoteException e) {
+            // nothing to stop then
+        }
+        mHandler.removeCallbacksAndMessages(null);
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+            mLoadTask = null;
+        }
+        mDeferredEvents.clear();
+    }
+
     @Override
     public void onCreate(Bundle icicle) {
         logd("onCreate(%s)", icicle);
@@ -141,6 +210,19 @@ public class NotificationStation extends SettingsPreferenceFragment {
 
         mAdapter = new NotificationHistoryAdapter(mContext);
         listView.setAdapter(mAdapter);
+        listView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                if (totalItemCount > 0 && firstVisibleItem + visibleItemCount >= totalItemCount) {
+                    loadMoreHistory();
+                }
+            }
+        });
     }
 
     @Override
@@ -166,14 +248,195 @@ public class NotificationStation extends SettingsPreferenceFragment {
         mContext.registerReceiver(mPackageReceiver , filter);
     }
 
+    private void postEvent(final Runnable event) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mLoadTask != null) {
+                    mDeferredEvents.add(event);
+                } else {
+                    event.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Replaces the list with the active notifications and the most recent
+     * page or pages of dismissed ones, read in the background.
+     */
     private void refreshList() {
-        List<HistoricalNotificationInfo> infos = loadNotifications();
-        if (infos != null) {
-            logd("adding %d infos", infos.size());
-            mAdapter.clear();
-            mAdapter.addAll(infos);
-            mAdapter.sort(mNotificationSorter);
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+        }
+        mLoadTask = new LoadTask(mHistorySize, false);
+        mLoadTask.execute();
+    }
+
+    private void loadMoreHistory() {
+        if (mLoadTask != null || mHistoryComplete || mHistorySize >= MAX_HISTORY_SIZE) {
+            return;
+        }
+        mLoadTask = new LoadTask(Math.min(mHistorySize + HISTORY_PAGE_SIZE, MAX_HISTORY_SIZE),
+                true);
+        mLoadTask.execute();
+    }
+
+    /**
+     * Reads the notifications off the main thread.  A full refresh first
+     * drops cached labels and icons of packages updated since they were
+     * loaded.  A page of more history is merged in as the new tail only.
+     */
+    private class LoadTask extends AsyncTask<Void, Void, List<HistoricalNotificationInfo>> {
+        private final int mSize;
+        private final boolean mMore;
+        private boolean mComplete;
+
+        LoadTask(int size, boolean more) {
+            mSize = size;
+            mMore = more;
+        }
+
+        @Override
+        protected List<HistoricalNotificationInfo> doInBackground(Void... params) {
+            if (!mMore) {
+                validatePackageCaches();
+            }
+            final StatusBarNotification[][] results = loadNotifications(mSize);
+            if (results == null) {
+                return null;
+            }
+            mComplete = results[1].length < mSize;
+            final List<HistoricalNotificationInfo> infos = createInfos(results);
+            Collections.sort(infos, sNotificationSorter);
+            return infos;
+        }
+
+        @Override
+        protected void onPostExecute(List<HistoricalNotificationInfo> infos) {
+            if (mLoadTask != this) {
+                return;
+            }
+            mLoadTask = null;
+            if (infos != null) {
+                mHistorySize = mSize;
+                mHistoryComplete = mComplete;
+                if (mMore) {
+                    appendHistory(infos);
+                } else {
+                    replaceItems(infos);
+                }
+            }
+            for (Runnable event : mDeferredEvents) {
+                event.run();
+            }
+            mDeferredEvents.clear();
+            pushItems();
+        }
+    }
+
+    private void replaceItems(List<HistoricalNotificationInfo> infos) {
+        logd("adding %d infos", infos.size());
+        mItems.clear();
+        mItems.addAll(infos);
+        mActive.clear();
+        mInactiveCount = 0;
+        for (HistoricalNotificationInfo info : infos) {
+            if (info.active) {
+                mActive.put(info.key, info);
+            } else {
+                mInactiveCount++;
+            }
+        }
+    }
+
+    /**
+     * Adds the dismissed notifications older than the oldest one shown,
+     * leaving what is shown as it is.
+     */
+    private void appendHistory(List<HistoricalNotificationInfo> infos) {
+        long oldest = Long.MAX_VALUE;
+        for (int i = mItems.size() - 1; i >= 0; i--) {
+            if (!mItems.get(i).active) {
+                oldest = mItems.get(i).timestamp;
+                break;
+            }
+        }
+        for (HistoricalNotificationInfo info : infos) {
+            if (!info.active && info.timestamp < oldest) {
+                mItems.add(findPosition(info), info);
+                mInactiveCount++;
+            }
+        }
+    }
+
+    /** Shows the current list, in the same turn as the adapter changes. */
+    private void pushItems() {
+        mHandler.removeCallbacks(mUpdateListRunnable);
+        if (mAdapter == null) return;
+        mAdapter.setNotifyOnChange(false);
+        mAdapter.clear();
+        mAdapter.addAll(mItems);
+        mAdapter.notifyDataSetChanged();
+    }
+
+    private void onPosted(StatusBarNotification sbn) {
+        if (mAdapter == null) return;
+        final HistoricalNotificationInfo info = createInfo(sbn, true,
+                ActivityManager.getCurrentUser());
+        if (info == null) return;
+
+        // An update takes the place of the posting it updates
+        final HistoricalNotificationInfo old = mActive.put(info.key, info);
+        if (old != null) {
+            mItems.remove(old);
+        }
+        mItems.add(findPosition(info), info);
+        scheduleListUpdate();
+    }
+
+    private void onRemoved(StatusBarNotification sbn) {
+        if (mAdapter == null) return;
+        final HistoricalNotificationInfo info = mActive.remove(getKey(sbn));
+        if (info == null) return;
+
+        // It stays where it is, now as part of the history
+        info.active = false;
+        mInactiveCount++;
+        while (mInactiveCount > mHistorySize) {
+            removeOldestInactive();
+        }
+        scheduleListUpdate();
+    }
+
+    private int findPosition(HistoricalNotificationInfo info) {
+        int lo = 0;
+        int hi = mItems.size() - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (sNotificationSorter.compare(mItems.get(mid), info) <= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    private void removeOldestInactive() {
+        for (int i = mItems.size() - 1; i >= 0; i--) {
+            if (!mItems.get(i).active) {
+                mItems.remove(i);
+                mInactiveCount--;
+                return;
+            }
         }
+        mInactiveCount = 0;
+    }
+
+    private void scheduleListUpdate() {
+        mHandler.removeCallbacks(mUpdateListRunnable);
+        mHandler.postDelayed(mUpdateListRunnable, UPDATE_DELAY);
     }
 
     private static void logd(String msg, Object... args) {
@@ -182,10 +445,10 @@ public class NotificationStation extends SettingsPreferenceFragment {
     }
 
     private static class HistoricalNotificationInfo {
+        public String key;
         public String pkg;
-        public Drawable pkgicon;
         public CharSequence pkgname;
-        public Drawable icon;
+        public int iconId;
         public CharSequence title;
         public int priority;
         public int user;
@@ -193,57 +456,83 @@ public class NotificationStation extends SettingsPreferenceFragment {
         public boolean active;
     }
 
-    private List<HistoricalNotificationInfo> loadNotifications() {
-        final int currentUserId = ActivityManager.getCurrentUser();
+    private static String getKey(StatusBarNotification sbn) {
+        return sbn.getUserId() + "|" + sbn.getPackageName() + "|" + sbn.getId()
+                + "|" + sbn.getTag();
+    }
+
+    /**
+     * Returns the active notifications and up to the given number of
+     * dismissed ones, or null if they can't be read.
+     */
+    private StatusBarNotification[][] loadNotifications(int historySize) {
         try {
             StatusBarNotification[] active = mNoMan.getActiveNotifications(mContext.getPackageName());
-            StatusBarNotification[] dismissed = mNoMan.getHistoricalNotifications(mContext.getPackageName(), 50);
-
-            List<HistoricalNotificationInfo> list
-                    = new ArrayList<HistoricalNotificationInfo>(active.length + dismissed.length);
-
-            for (StatusBarNotification[] resultset
-                    : new StatusBarNotification[][] { active, dismissed }) {
-                for (StatusBarNotification sbn : resultset) {
-                    final HistoricalNotificationInfo info = new HistoricalNotificationInfo();
-                    info.pkg = sbn.getPackageName();
-                    info.user = sbn.getUserId();
-                    info.icon = loadIconDrawable(info.pkg, info.user, sbn.getNotification().icon);
-                    info.pkgicon = loadPackageIconDrawable(info.pkg, info.user);
-                    info.pkgname = loadPackageName(info.pkg);
-                    if (sbn.getNotification().extras != null) {
-                        info.title = sbn.getNotification().extras.getString(Notification.EXTRA_TITLE);
-                        if (info.title == null || "".equals(info.title)) {
-                            info.title = sbn.getNotification().extras.getString(Notification.EXTRA_TEXT);
-                        }
-                    }
-                    if (info.title == null || "".equals(info.title)) {
-                        info.title = sbn.getNotification().tickerText;
-                    }
-                    // still nothing? come on, give us something!
-                    if (info.title == null || "".equals(info.title)) {
-                        info.title = info.pkgname;
-                    }
-                    info.timestamp = sbn.getPostTime();
-                    info.priority = sbn.getNotification().priority;
-                    logd("   [%d] %s: %s", info.timestamp, info.pkg, info.title);
-
-                    info.active = (resultset == active);
-
-                    if (info.user == UserHandle.USER_ALL
-                            || info.user == currentUserId) {
-                        list.add(info);
-                    }
-                }
-            }
-
-            return list;
+            StatusBarNotification[] dismissed = mNoMan.getHistoricalNotifications(
+                    mContext.getPackageName(), historySize);
+            return new StatusBarNotification[][] { active, dismissed };
         } catch (RemoteException e) {
             e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
         }
         return null;
     }
 
+    private List<HistoricalNotificationInfo> createInfos(StatusBarNotification[][] results) {
+        final int currentUserId = ActivityManager.getCurrentUser();
+        final StatusBarNotification[] active = results[0];
+        List<HistoricalNotificationInfo> list = new ArrayList<HistoricalNotificationInfo>(
+                results[0].length + results[1].length);
+
+        for (StatusBarNotification[] resultset : results) {
+            for (StatusBarNotification sbn : resultset) {
+                final HistoricalNotificationInfo info = createInfo(sbn,
+                        resultset == active, currentUserId);
+                if (info != null) {
+                    list.add(info);
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns the entry for the notification, or null if it isn't shown to
+     * the current user.  Icons are left to be loaded when the row is shown.
+     */
+    private HistoricalNotificationInfo createInfo(StatusBarNotification sbn, boolean active,
+            int currentUserId) {
+        final int user = sbn.getUserId();
+        if (user != UserHandle.USER_ALL && user != currentUserId) {
+            return null;
+        }
+
+        final HistoricalNotificationInfo info = new HistoricalNotificationInfo();
+        info.key = getKey(sbn);
+        info.pkg = sbn.getPackageName();
+        info.user = user;
+        info.iconId = sbn.getNotification().icon;
+        info.pkgname = loadPackageName(info.pkg);
+        if (sbn.getNotification().extras != null) {
+            info.title = sbn.getNotification().extras.getString(Notification.EXTRA_TITLE);
+            if (info.title == null || "".equals(info.title)) {
+                info.title = sbn.getNotification().extras.getString(Notification.EXTRA_TEXT);
+            }
+        }
+        if (info.title == null || "".equals(info.title)) {
+            info.title = sbn.getNotification().tickerText;
+        }
+        // still nothing? come on, give us something!
+        if (info.title == null || "".equals(info.title)) {
+            info.title = info.pkgname;
+        }
+        info.timestamp = sbn.getPostTime();
+        info.priority = sbn.getNotification().priority;
+        logd("   [%d] %s: %s", info.timestamp, info.pkg, info.title);
+
+        info.active = active;
+        return info;
+    }
+
     private Resources getResourcesForUserPackage(String pkg, int userId) {
         Resources r = null;
 
@@ -264,34 +553,66 @@ public class NotificationStation extends SettingsPreferenceFragment {
     }
 
     private Drawable loadPackageIconDrawable(String pkg, int userId) {
+        final String cacheKey = pkg;
+        final ConstantState state = sIconCache.get(cacheKey);
+        if (state != null) {
+            return state.newDrawable();
+        }
+
         Drawable icon = null;
         try {
             icon = mPm.getApplicationIcon(pkg);
         } catch (PackageManager.NameNotFoundException e) {
         }
 
+        cacheIcon(cacheKey, icon);
         return icon;
     }
 
     private CharSequence loadPackageName(String pkg) {
+        CharSequence label = sLabelCache.get(pkg);
+        if (label != null) {
+            return label;
+        }
+
+        label = pkg;
+        long updateTime = -1;
         try {
-            ApplicationInfo info = mPm.getApplicationInfo(pkg,
+            PackageInfo info = mPm.getPackageInfo(pkg,
                     PackageManager.GET_UNINSTALLED_PACKAGES);
-            if (info != null) return mPm.getApplicationLabel(info);
+            if (info != null) {
+                label = mPm.getApplicationLabel(info.applicationInfo);
+                updateTime = info.lastUpdateTime;
+            }
         } catch (PackageManager.NameNotFoundException e) {
         }
-        return pkg;
+        synchronized (sUpdateTimes) {
+            sUpdateTimes.put(pkg, updateTime);
+        }
+        sLabelCache.put(pkg, label);
+        return label;
     }
 
     private Drawable loadIconDrawable(String pkg, int userId, int resId) {
-        Resources r = getResourcesForUserPackage(pkg, userId);
-
         if (resId == 0) {
             return null;
         }
 
+        final String cacheKey = pkg + "|" + userId + "|" + resId;
+        final ConstantState state = sIconCache.get(cacheKey);
+        if (state != null) {
+            return state.newDrawable();
+        }
+
+        Resources r = getResourcesForUserPackage(pkg, userId);
+        if (r == null) {
+            return null;
+        }
+
         try {
-            return r.getDrawable(resId);
+            final Drawable icon = r.getDrawable(resId);
+            cacheIcon(cacheKey, icon);
+            return icon;
         } catch (RuntimeException e) {
             Log.w(TAG, "Icon not found in "
                     + (pkg != null ? resId : "<system>")
@@ -301,6 +622,55 @@ public class NotificationStation extends SettingsPreferenceFragment {
         return null;
     }
 
+    private static void cacheIcon(String cacheKey, Drawable icon) {
+        final ConstantState state = icon != null ? icon.getConstantState() : null;
+        if (state != null) {
+            sIconCache.put(cacheKey, state);
+        }
+    }
+
+    /**
+     * Forgets the icons and labels of packages installed, updated or removed
+     * since they were loaded.
+     */
+    private void validatePackageCaches() {
+        final String[] pkgs;
+        synchronized (sUpdateTimes) {
+            pkgs = sUpdateTimes.keySet().toArray(new String[sUpdateTimes.size()]);
+        }
+        for (String pkg : pkgs) {
+            long updateTime = -1;
+            try {
+                updateTime = mPm.getPackageInfo(pkg,
+                        PackageManager.GET_UNINSTALLED_PACKAGES).lastUpdateTime;
+            } catch (PackageManager.NameNotFoundException e) {
+            }
+            final Long known;
+            synchronized (sUpdateTimes) {
+                known = sUpdateTimes.get(pkg);
+            }
+            if (known == null || known != updateTime) {
+                evictPackage(pkg);
+            }
+        }
+    }
+
+    /**
+     * Forgets the icons and label of the package, which may have changed.
+     */
+    private static void evictPackage(String pkg) {
+        synchronized (sUpdateTimes) {
+            sUpdateTimes.remove(pkg);
+        }
+        sLabelCache.remove(pkg);
+        for (Map.Entry<String, ConstantState> entry : sIconCache.snapshot().entrySet()) {
+            final String cacheKey = entry.getKey();
+            if (cacheKey.equals(pkg) || cacheKey.startsWith(pkg + "|")) {
+                sIconCache.remove(cacheKey);
+            }
+        }
+    }
+
     private class NotificationHistoryAdapter extends ArrayAdapter<HistoricalNotificationInfo> {
         private final LayoutInflater mInflater;
 
@@ -316,13 +686,11 @@ public class NotificationStation extends SettingsPreferenceFragment {
             final View row = convertView != null ? convertView : createRow(parent);
             row.setTag(info);
 
-            // bind icon
-            if (info.icon != null) {
-                ((ImageView) row.findViewById(android.R.id.icon)).setImageDrawable(info.icon);
-            }
-            if (info.pkgicon != null) {
-                ((ImageView) row.findViewById(R.id.pkgicon)).setImageDrawable(info.pkgicon);
-            }
+            // bind icon, resolved only now that the row is shown
+            ((ImageView) row.findViewById(android.R.id.icon)).setImageDrawable(
+                    loadIconDrawable(info.pkg, info.user, info.iconId));
+            ((ImageView) row.findViewById(R.id.pkgicon)).setImageDrawable(
+                    loadPackageIconDrawable(info.pkg, info.user));
 
             ((DateTimeView) row.findViewById(R.id.timestamp)).setTime(info.timestamp);
 
@@ -395,6 +763,10 @@ public class NotificationStation extends SettingsPreferenceFragment {
         @Override
         public void onReceive(Context context, Intent intent) {
             logd("PackageReceiver.onReceive");
+            final Uri data = intent.getData();
+            if (data != null) {
+                evictPackage(data.getSchemeSpecificPart());
+            }
             //refreshList();
         }
     }
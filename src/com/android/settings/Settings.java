@@ -45,6 +45,8 @@ import android.preference.PreferenceFragment;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
@@ -66,6 +68,7 @@ import com.android.settings.bluetooth.BluetoothSettings;
 import com.android.settings.profiles.AppGroupConfig;
 import com.android.settings.profiles.ProfileConfig;
 import com.android.settings.profiles.ProfilesSettings;
+import com.android.settings.search.SearchFragment;
 import com.android.settings.wfd.WifiDisplaySettings;
 import com.android.settings.wifi.WifiEnabler;
 import com.android.settings.wifi.WifiSettings;
@@ -99,6 +102,8 @@ public class Settings extends PreferenceActivity
     private static final String SAVE_KEY_CURRENT_HEADER = "com.android.settings.CURRENT_HEADER";
     private static final String SAVE_KEY_PARENT_HEADER = "com.android.settings.PARENT_HEADER";
 
+    private static final int MENU_SEARCH = Menu.FIRST;
+
     private String mFragmentClass;
     private int mTopLevelHeaderId;
     private Header mFirstHeader;
@@ -108,7 +113,7 @@ public class Settings extends PreferenceActivity
     private static Switch mTRDSSwitch;
 
     // Show only these settings for restricted users
-    private int[] SETTINGS_FOR_RESTRICTED = {
+    private static final int[] SETTINGS_FOR_RESTRICTED = {
             R.id.wireless_section,
             R.id.wifi_settings,
             R.id.bluetooth_settings,
@@ -257,6 +262,28 @@ public class Settings extends PreferenceActivity
         }
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        super.onCreateOptionsMenu(menu);
+        // Search from the header list only, not from screens launched directly
+        if (!onIsHidingHeaders()) {
+            menu.add(0, MENU_SEARCH, 0, R.string.search_settings_title)
+                    .setIcon(android.R.drawable.ic_menu_search)
+                    .setShowAsAction(MenuItem.SHOW_AS_ACTION_IF_ROOM);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == MENU_SEARCH) {
+            startPreferencePanel(SearchFragment.class.getName(), null,
+                    R.string.search_settings_title, null, null, 0);
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
     private void switchToHeaderLocal(Header header) {
         mInLocalHeaderSwitch = true;
         switchToHeader(header);
@@ -469,49 +496,9 @@ public class Settings extends PreferenceActivity
                 } else {
                     target.remove(header);
                 }
-            } else if (id == R.id.wifi_settings) {
-                // Remove WiFi Settings if WiFi service is not available.
-                if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_WIFI)) {
-                    target.remove(i);
-                }
-            } else if (id == R.id.bluetooth_settings) {
-                // Remove Bluetooth Settings if Bluetooth service is not available.
-                if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH)) {
-                    target.remove(i);
-                }
-            } else if (id == R.id.data_usage_settings) {
-                // Remove data usage when kernel module not enabled
-                final INetworkManagementService netManager = INetworkManagementService.Stub
-                        .asInterface(ServiceManager.getService(Context.NETWORKMANAGEMENT_SERVICE));
-                try {
-                    if (!netManager.isBandwidthControlEnabled()) {
-                        target.remove(i);
-                    }
-                } catch (RemoteException e) {
-                    // ignored
-                }
             } else if (id == R.id.account_settings) {
                 int headerIndex = i + 1;
                 i = insertAccountsHeaders(target, headerIndex);
-            } else if (id == R.id.user_settings) {
-                if (!UserHandle.MU_ENABLED
-                        || !UserManager.supportsMultipleUsers()
-                        || Utils.isMonkeyRunning()) {
-                    target.remove(i);
-                }
-            } else if (id == R.id.development_settings
-                    || id == R.id.performance_settings) {
-                if (!showDev) {
-                    target.remove(i);
-                }
-            } else if (id == R.id.superuser) {
-                if (!DevelopmentSettings.isRootForAppsEnabled()) {
-                    target.remove(i);
-                }
-            } else if (id == R.id.account_add) {
-                if (um.hasUserRestriction(UserManager.DISALLOW_MODIFY_ACCOUNTS)) {
-                    target.remove(i);
-                }
             } else if (id == R.id.display_settings) {
                 final Resources res = getResources();
                 boolean hasLed =
@@ -520,11 +507,12 @@ public class Settings extends PreferenceActivity
                 if (hasLed) {
                     header.titleRes = R.string.display_lights_settings_title;
                 }
+            } else if (!isHeaderAvailable(this, id, showDev, um)) {
+                target.remove(i);
             }
 
             if (i < target.size() && target.get(i) == header
-                    && UserHandle.MU_ENABLED && UserHandle.myUserId() != 0
-                    && !ArrayUtils.contains(SETTINGS_FOR_RESTRICTED, id)) {
+                    && !isHeaderAllowedForUser(id)) {
                 target.remove(i);
             }
 
@@ -541,6 +529,57 @@ public class Settings extends PreferenceActivity
         }
     }
 
+    /**
+     * Returns whether the header with the given id is shown at all, as far
+     * as the device, the developer options and the user restrictions go.
+     * Search goes through this too, so it never leads to a hidden screen.
+     */
+    public static boolean isHeaderShown(Context context, int id) {
+        final boolean showDev = context.getSharedPreferences(DevelopmentSettings.PREF_FILE,
+                Context.MODE_PRIVATE).getBoolean(DevelopmentSettings.PREF_SHOW,
+                android.os.Build.TYPE.equals("eng"));
+        final UserManager um = (UserManager) context.getSystemService(Context.USER_SERVICE);
+        return isHeaderAvailable(context, id, showDev, um) && isHeaderAllowedForUser(id);
+    }
+
+    private static boolean isHeaderAvailable(Context context, int id, boolean showDev,
+            UserManager um) {
+        if (id == R.id.wifi_settings) {
+            // Remove WiFi Settings if WiFi service is not available.
+            return context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_WIFI);
+        } else if (id == R.id.bluetooth_settings) {
+            // Remove Bluetooth Settings if Bluetooth service is not available.
+            return context.getPackageManager().hasSystemFeature(
+                    PackageManager.FEATURE_BLUETOOTH);
+        } else if (id == R.id.data_usage_settings) {
+            // Remove data usage when kernel module not enabled
+            final INetworkManagementService netManager = INetworkManagementService.Stub
+                    .asInterface(ServiceManager.getService(Context.NETWORKMANAGEMENT_SERVICE));
+            try {
+                return netManager.isBandwidthControlEnabled();
+            } catch (RemoteException e) {
+                // ignored
+            }
+        } else if (id == R.id.user_settings) {
+            return UserHandle.MU_ENABLED
+                    && UserManager.supportsMultipleUsers()
+                    && !Utils.isMonkeyRunning();
+        } else if (id == R.id.development_settings
+                || id == R.id.performance_settings) {
+            return showDev;
+        } else if (id == R.id.superuser) {
+            return DevelopmentSettings.isRootForAppsEnabled();
+        } else if (id == R.id.account_add) {
+            return !um.hasUserRestriction(UserManager.DISALLOW_MODIFY_ACCOUNTS);
+        }
+        return true;
+    }
+
+    private static boolean isHeaderAllowedForUser(int id) {
+        return !UserHandle.MU_ENABLED || UserHandle.myUserId() == 0
+                || ArrayUtils.contains(SETTINGS_FOR_RESTRICTED, id);
+    }
+
     private int insertAccountsHeaders(List<Header> target, int headerIndex) {
         String[] accountTypes = mAuthenticatorHelper.getEnabledAccountTypes();
         List<Header> accountHeaders = new ArrayList<Header>(accountTypes.length);
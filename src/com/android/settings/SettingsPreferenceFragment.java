@@ -39,6 +39,8 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.widget.Button;
+import android.widget.ListAdapter;
+import android.widget.ListView;
 
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -52,6 +54,9 @@ public class SettingsPreferenceFragment extends PreferenceFragment implements Di
 
     private static final int MENU_HELP = Menu.FIRST + 100;
 
+    /** Argument with the key of a preference to scroll to, as when opened from search. */
+    public static final String EXTRA_PREFERENCE_KEY = ":settings:preference_key";
+
     private SettingsDialogFragment mDialogFragment;
 
     private String mHelpUrl;
@@ -80,6 +85,36 @@ public class SettingsPreferenceFragment extends PreferenceFragment implements Di
         if (!TextUtils.isEmpty(mHelpUrl)) {
             setHasOptionsMenu(true);
         }
+
+        final Bundle args = getArguments();
+        if (savedInstanceState == null && args != null) {
+            final String key = args.getString(EXTRA_PREFERENCE_KEY);
+            if (key != null) {
+                scrollToPreference(key);
+            }
+        }
+    }
+
+    private void scrollToPreference(String key) {
+        final PreferenceScreen screen = getPreferenceScreen();
+        final Preference preference = findPreference(key);
+        if (screen == null || preference == null) {
+            return;
+        }
+        final ListAdapter adapter = screen.getRootAdapter();
+        for (int i = 0; i < adapter.getCount(); i++) {
+            if (adapter.getItem(i) == preference) {
+                final int position = i;
+                final ListView list = getListView();
+                list.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        list.setSelection(position);
+                    }
+                });
+                return;
+            }
+        }
     }
 
     protected void removePreference(String key) {
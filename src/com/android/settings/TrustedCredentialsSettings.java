@@ -19,6 +19,7 @@ package com.android.settings;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.Fragment;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.net.http.SslCertificate;
 import android.os.AsyncTask;
@@ -27,6 +28,8 @@ import android.os.RemoteException;
 import android.security.IKeyChainService;
 import android.security.KeyChain;
 import android.security.KeyChain.KeyChainConnection;
+import android.util.AtomicFile;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -39,12 +42,25 @@ import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.TabHost;
 import android.widget.TextView;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.harmony.xnet.provider.jsse.TrustedCertificateStore;
 
 public class TrustedCredentialsSettings extends Fragment {
@@ -88,6 +104,25 @@ public class TrustedCredentialsSettings extends Fragment {
             }
             throw new AssertionError();
         }
+        private boolean owns(String alias) {
+            switch (this) {
+                case SYSTEM:
+                    return TrustedCertificateStore.isSystem(alias);
+                case USER:
+                    return TrustedCertificateStore.isUser(alias);
+            }
+            throw new AssertionError();
+        }
+        private File getCertificateFile(String alias) {
+            final String name = alias.substring(alias.indexOf(':') + 1);
+            switch (this) {
+                case SYSTEM:
+                    return new File(CA_CERTS_DIR_SYSTEM, name);
+                case USER:
+                    return new File(CA_CERTS_DIR_ADDED, name);
+            }
+            throw new AssertionError();
+        }
         private boolean deleted(TrustedCertificateStore store, String alias) {
             switch (this) {
                 case SYSTEM:
@@ -136,6 +171,12 @@ public class TrustedCredentialsSettings extends Fragment {
         }
     }
 
+    // where TrustedCertificateStore keeps the certificates, to tell when one has changed
+    private static final File CA_CERTS_DIR_SYSTEM =
+            new File(System.getenv("ANDROID_ROOT") + "/etc/security/cacerts");
+    private static final File CA_CERTS_DIR_ADDED =
+            new File(System.getenv("ANDROID_DATA") + "/misc/keychain/cacerts-added");
+
     // be careful not to use this on the UI thread since it is does file operations
     private final TrustedCertificateStore mStore = new TrustedCertificateStore();
 
@@ -162,7 +203,13 @@ public class TrustedCredentialsSettings extends Fragment {
         lv.setAdapter(adapter);
         lv.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override public void onItemClick(AdapterView<?> parent, View view, int pos, long id) {
-                showCertDialog(adapter.getItem(pos));
+                CertHolder certHolder = adapter.getItem(pos);
+                if (certHolder.mX509Cert != null) {
+                    showCertDialog(certHolder);
+                } else {
+                    // only the subject was cached, read the certificate itself now
+                    new CertLoader(certHolder).execute();
+                }
             }
         });
     }
@@ -170,12 +217,17 @@ public class TrustedCredentialsSettings extends Fragment {
     private class TrustedCertificateAdapter extends BaseAdapter {
         private final List<CertHolder> mCertHolders = new ArrayList<CertHolder>();
         private final Tab mTab;
+        private AliasLoader mAliasLoader;
         private TrustedCertificateAdapter(Tab tab) {
             mTab = tab;
             load();
         }
         private void load() {
-            new AliasLoader().execute();
+            if (mAliasLoader != null) {
+                mAliasLoader.cancel(false);
+            }
+            mAliasLoader = new AliasLoader();
+            mAliasLoader.execute();
         }
         @Override public int getCount() {
             return mCertHolders.size();
@@ -211,49 +263,291 @@ public class TrustedCredentialsSettings extends Fragment {
             return view;
         };
 
-        private class AliasLoader extends AsyncTask<Void, Integer, List<CertHolder>> {
+        /**
+         * Lists the certificates of the tab.  Those whose subjects are cached
+         * are shown at once; the others are parsed on as many threads as
+         * there are cores, and added to the list as they are done.
+         */
+        private class AliasLoader extends AsyncTask<Void, CertHolder, Void> {
             ProgressBar mProgressBar;
             View mList;
+            Context mContext;
+            int mMax;
             @Override protected void onPreExecute() {
                 View content = mTabHost.getTabContentView();
                 mProgressBar = (ProgressBar) content.findViewById(mTab.mProgress);
                 mList = content.findViewById(mTab.mList);
+                mContext = getActivity().getApplicationContext();
                 mProgressBar.setVisibility(View.VISIBLE);
                 mList.setVisibility(View.GONE);
+                mCertHolders.clear();
+                notifyDataSetChanged();
             }
-            @Override protected List<CertHolder> doInBackground(Void... params) {
-                Set<String> aliases = mTab.getAliases(mStore);
-                int max = aliases.size();
-                int progress = 0;
-                List<CertHolder> certHolders = new ArrayList<CertHolder>(max);
+            @Override protected Void doInBackground(Void... params) {
+                final SubjectCache cache = SubjectCache.get(mContext);
+                final Set<String> aliases = mTab.getAliases(mStore);
+                mMax = aliases.size();
+
+                final List<CertHolder> cached = new ArrayList<CertHolder>();
+                final List<String> uncached = new ArrayList<String>();
+                final List<String> fingerprints = new ArrayList<String>();
                 for (String alias : aliases) {
-                    X509Certificate cert = (X509Certificate) mStore.getCertificate(alias, true);
-                    certHolders.add(new CertHolder(mStore,
-                                                   TrustedCertificateAdapter.this,
-                                                   mTab,
-                                                   alias,
-                                                   cert));
-                    publishProgress(++progress, max);
+                    String fingerprint = getFingerprint(mTab.getCertificateFile(alias));
+                    Subject subject = cache.get(alias, fingerprint);
+                    if (subject != null) {
+                        cached.add(new CertHolder(mStore, TrustedCertificateAdapter.this, mTab,
+                                                  alias, subject, null));
+                    } else {
+                        uncached.add(alias);
+                        fingerprints.add(fingerprint);
+                    }
                 }
-                Collections.sort(certHolders);
-                return certHolders;
-            }
-            @Override protected void onProgressUpdate(Integer... progressAndMax) {
-                int progress = progressAndMax[0];
-                int max = progressAndMax[1];
-                if (max != mProgressBar.getMax()) {
-                    mProgressBar.setMax(max);
+                publishProgress(cached.toArray(new CertHolder[cached.size()]));
+
+                final int count = uncached.size();
+                // each parsed alias gives its holder, or none if it has gone in the
+                // meantime or can't be parsed; every alias gives an entry, as the
+                // loop below waits for one per alias
+                final BlockingQueue<List<CertHolder>> parsed =
+                        new LinkedBlockingQueue<List<CertHolder>>();
+                final AtomicInteger next = new AtomicInteger();
+                final Runnable parser = new Runnable() {
+                    @Override public void run() {
+                        int i;
+                        while ((i = next.getAndIncrement()) < count) {
+                            String alias = uncached.get(i);
+                            List<CertHolder> result = Collections.<CertHolder>emptyList();
+                            try {
+                                X509Certificate cert =
+                                        (X509Certificate) mStore.getCertificate(alias, true);
+                                if (cert != null) {
+                                    Subject subject =
+                                            new Subject(alias, fingerprints.get(i), cert);
+                                    cache.put(subject);
+                                    result = Collections.singletonList(new CertHolder(mStore,
+                                            TrustedCertificateAdapter.this, mTab, alias,
+                                            subject, cert));
+                                }
+                            } catch (RuntimeException e) {
+                                Log.w(TAG, "Unable to parse certificate " + alias, e);
+                            } finally {
+                                parsed.add(result);
+                            }
+                        }
+                    }
+                };
+                // Parse on threads of our own: waiting here for work queued on
+                // the AsyncTask pool could hold up the other tasks of this screen.
+                final int threads = Math.min(count, Runtime.getRuntime().availableProcessors());
+                for (int i = 0; i < threads; i++) {
+                    new Thread(parser, "CertParser" + i).start();
                 }
-                mProgressBar.setProgress(progress);
+
+                final List<List<CertHolder>> results = new ArrayList<List<CertHolder>>();
+                final List<CertHolder> batch = new ArrayList<CertHolder>();
+                for (int done = 0; done < count && !isCancelled(); ) {
+                    try {
+                        results.add(parsed.take());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                    parsed.drainTo(results);
+                    done += results.size();
+                    for (List<CertHolder> result : results) {
+                        batch.addAll(result);
+                    }
+                    publishProgress(batch.toArray(new CertHolder[batch.size()]));
+                    results.clear();
+                    batch.clear();
+                }
+
+                cache.retain(mTab, aliases);
+                cache.write();
+                return null;
             }
-            @Override protected void onPostExecute(List<CertHolder> certHolders) {
-                mCertHolders.clear();
-                mCertHolders.addAll(certHolders);
+            @Override protected void onProgressUpdate(CertHolder... certHolders) {
+                if (isCancelled()) {
+                    return;
+                }
+                for (CertHolder certHolder : certHolders) {
+                    int index = Collections.binarySearch(mCertHolders, certHolder);
+                    mCertHolders.add(index < 0 ? -index - 1 : index, certHolder);
+                }
+                if (mMax != mProgressBar.getMax()) {
+                    mProgressBar.setMax(mMax);
+                }
+                mProgressBar.setProgress(mCertHolders.size());
+                if (!mCertHolders.isEmpty()) {
+                    showList();
+                }
                 notifyDataSetChanged();
-                View content = mTabHost.getTabContentView();
+            }
+            @Override protected void onPostExecute(Void result) {
+                showList();
+                mProgressBar.setProgress(0);
+            }
+            private void showList() {
                 mProgressBar.setVisibility(View.GONE);
                 mList.setVisibility(View.VISIBLE);
-                mProgressBar.setProgress(0);
+            }
+        }
+    }
+
+    private static String getFingerprint(File file) {
+        return file.length() + ":" + file.lastModified();
+    }
+
+    /**
+     * What the list shows of a certificate, for the certificate file it was
+     * parsed from.
+     */
+    private static class Subject {
+        private final String mAlias;
+        private final String mFingerprint;
+        private final String mPrimary;
+        private final String mSecondary;
+
+        private Subject(String alias, String fingerprint, String primary, String secondary) {
+            mAlias = alias;
+            mFingerprint = fingerprint;
+            mPrimary = primary;
+            mSecondary = secondary;
+        }
+
+        private Subject(String alias, String fingerprint, X509Certificate x509Cert) {
+            mAlias = alias;
+            mFingerprint = fingerprint;
+
+            SslCertificate sslCert = new SslCertificate(x509Cert);
+            String cn = sslCert.getIssuedTo().getCName();
+            String o = sslCert.getIssuedTo().getOName();
+            String ou = sslCert.getIssuedTo().getUName();
+            // if we have a O, use O as primary subject, secondary prefer CN over OU
+            // if we don't have an O, use CN as primary, empty secondary
+            // if we don't have O or CN, use DName as primary, empty secondary
+            if (!o.isEmpty()) {
+                if (!cn.isEmpty()) {
+                    mPrimary = o;
+                    mSecondary = cn;
+                } else {
+                    mPrimary = o;
+                    mSecondary = ou;
+                }
+            } else {
+                if (!cn.isEmpty()) {
+                    mPrimary = cn;
+                    mSecondary = "";
+                } else {
+                    mPrimary = sslCert.getIssuedTo().getDName();
+                    mSecondary = "";
+                }
+            }
+        }
+    }
+
+    /**
+     * The subjects of the certificates listed before, kept in memory and in a
+     * file so that the list shows right away on later visits.
+     */
+    private static class SubjectCache {
+        private static final String CACHE_FILE = "trusted_credentials";
+        private static final int CACHE_VERSION = 1;
+
+        private static SubjectCache sInstance;
+
+        private final AtomicFile mFile;
+        private final HashMap<String, Subject> mSubjects = new HashMap<String, Subject>();
+        private boolean mDirty;
+
+        private SubjectCache(Context context) {
+            mFile = new AtomicFile(new File(context.getFilesDir(), CACHE_FILE));
+            read();
+        }
+
+        // reads the file when first used, so not on the UI thread
+        private static synchronized SubjectCache get(Context context) {
+            if (sInstance == null) {
+                sInstance = new SubjectCache(context);
+            }
+            return sInstance;
+        }
+
+        private synchronized Subject get(String alias, String fingerprint) {
+            Subject subject = mSubjects.get(alias);
+            return subject != null && subject.mFingerprint.equals(fingerprint) ? subject : null;
+        }
+
+        private synchronized void put(Subject subject) {
+            mSubjects.put(subject.mAlias, subject);
+            mDirty = true;
+        }
+
+        /** Forgets the certificates of the tab which are no longer there. */
+        private synchronized void retain(Tab tab, Set<String> aliases) {
+            Iterator<String> it = mSubjects.keySet().iterator();
+            while (it.hasNext()) {
+                String alias = it.next();
+                if (tab.owns(alias) && !aliases.contains(alias)) {
+                    it.remove();
+                    mDirty = true;
+                }
+            }
+        }
+
+        private void read() {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+                if (in.readInt() != CACHE_VERSION) {
+                    return;
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    Subject subject = new Subject(in.readUTF(), in.readUTF(), in.readUTF(),
+                                                  in.readUTF());
+                    mSubjects.put(subject.mAlias, subject);
+                }
+            } catch (FileNotFoundException e) {
+                // nothing cached yet
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to read the certificate subjects", e);
+                mSubjects.clear();
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // ignored
+                    }
+                }
+            }
+        }
+
+        private synchronized void write() {
+            if (!mDirty) {
+                return;
+            }
+            FileOutputStream fos = null;
+            try {
+                fos = mFile.startWrite();
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                out.writeInt(CACHE_VERSION);
+                out.writeInt(mSubjects.size());
+                for (Subject subject : mSubjects.values()) {
+                    out.writeUTF(subject.mAlias);
+                    out.writeUTF(subject.mFingerprint);
+                    out.writeUTF(subject.mPrimary);
+                    out.writeUTF(subject.mSecondary);
+                }
+                out.flush();
+                mFile.finishWrite(fos);
+                mDirty = false;
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to write the certificate subjects", e);
+                if (fos != null) {
+                    mFile.failWrite(fos);
+                }
             }
         }
     }
@@ -263,9 +557,10 @@ public class TrustedCredentialsSettings extends Fragment {
         private final TrustedCertificateAdapter mAdapter;
         private final Tab mTab;
         private final String mAlias;
-        private final X509Certificate mX509Cert;
+        // null until needed when the subject came from the cache
+        private X509Certificate mX509Cert;
+        private SslCertificate mSslCert;
 
-        private final SslCertificate mSslCert;
         private final String mSubjectPrimary;
         private final String mSubjectSecondary;
         private boolean mDeleted;
@@ -274,40 +569,23 @@ public class TrustedCredentialsSettings extends Fragment {
                            TrustedCertificateAdapter adapter,
                            Tab tab,
                            String alias,
+                           Subject subject,
                            X509Certificate x509Cert) {
             mStore = store;
             mAdapter = adapter;
             mTab = tab;
             mAlias = alias;
             mX509Cert = x509Cert;
-
-            mSslCert = new SslCertificate(x509Cert);
-
-            String cn = mSslCert.getIssuedTo().getCName();
-            String o = mSslCert.getIssuedTo().getOName();
-            String ou = mSslCert.getIssuedTo().getUName();
-            // if we have a O, use O as primary subject, secondary prefer CN over OU
-            // if we don't have an O, use CN as primary, empty secondary
-            // if we don't have O or CN, use DName as primary, empty secondary
-            if (!o.isEmpty()) {
-                if (!cn.isEmpty()) {
-                    mSubjectPrimary = o;
-                    mSubjectSecondary = cn;
-                } else {
-                    mSubjectPrimary = o;
-                    mSubjectSecondary = ou;
-                }
-            } else {
-                if (!cn.isEmpty()) {
-                    mSubjectPrimary = cn;
-                    mSubjectSecondary = "";
-                } else {
-                    mSubjectPrimary = mSslCert.getIssuedTo().getDName();
-                    mSubjectSecondary = "";
-                }
-            }
+            mSubjectPrimary = subject.mPrimary;
+            mSubjectSecondary = subject.mSecondary;
             mDeleted = mTab.deleted(mStore, mAlias);
         }
+        private SslCertificate getSslCert() {
+            if (mSslCert == null) {
+                mSslCert = new SslCertificate(mX509Cert);
+            }
+            return mSslCert;
+        }
         @Override public int compareTo(CertHolder o) {
             int primary = this.mSubjectPrimary.compareToIgnoreCase(o.mSubjectPrimary);
             if (primary != 0) {
@@ -334,7 +612,7 @@ public class TrustedCredentialsSettings extends Fragment {
     }
 
     private void showCertDialog(final CertHolder certHolder) {
-        View view = certHolder.mSslCert.inflateCertificateView(getActivity());
+        View view = certHolder.getSslCert().inflateCertificateView(getActivity());
         AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
         builder.setTitle(com.android.internal.R.string.ssl_certificate);
         builder.setView(view);
@@ -378,6 +656,27 @@ public class TrustedCredentialsSettings extends Fragment {
         certDialog.show();
     }
 
+    private class CertLoader extends AsyncTask<Void, Void, X509Certificate> {
+        private final CertHolder mCertHolder;
+        private CertLoader(CertHolder certHolder) {
+            mCertHolder = certHolder;
+        }
+        @Override protected X509Certificate doInBackground(Void... params) {
+            return (X509Certificate) mStore.getCertificate(mCertHolder.mAlias, true);
+        }
+        @Override protected void onPostExecute(X509Certificate cert) {
+            if (cert == null) {
+                // gone since the list was loaded
+                mCertHolder.mAdapter.load();
+                return;
+            }
+            mCertHolder.mX509Cert = cert;
+            if (isResumed()) {
+                showCertDialog(mCertHolder);
+            }
+        }
+    }
+
     private class AliasOperation extends AsyncTask<Void, Void, Boolean> {
         private final CertHolder mCertHolder;
         private AliasOperation(CertHolder certHolder) {
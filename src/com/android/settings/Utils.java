@@ -69,11 +69,8 @@ import android.widget.ListView;
 import android.widget.TabWidget;
 
 import com.android.settings.users.ProfileUpdateReceiver;
+import com.android.settings.util.KernelTunables;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -504,40 +501,15 @@ public class Utils {
     }
 
     public static boolean fileExists(String filename) {
-        return new File(filename).exists();
+        return KernelTunables.exists(filename);
     }
 
     public static String fileReadOneLine(String fname) {
-        BufferedReader br;
-        String line = null;
-
-        try {
-            br = new BufferedReader(new FileReader(fname), 512);
-            try {
-                line = br.readLine();
-            } finally {
-                br.close();
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "IO Exception when reading /sys/ file", e);
-        }
-        return line;
+        return KernelTunables.readLine(fname);
     }
 
     public static boolean fileWriteOneLine(String fname, String value) {
-        try {
-            FileWriter fw = new FileWriter(fname);
-            try {
-                fw.write(value);
-            } finally {
-                fw.close();
-            }
-        } catch (IOException e) {
-            String Error = "Error writing to " + fname + ". Exception: ";
-            Log.e(TAG, Error, e);
-            return false;
-        }
-        return true;
+        return KernelTunables.writeLine(fname, value);
     }
 
     /* Used by UserSettings as well. Call this on a non-ui thread. */
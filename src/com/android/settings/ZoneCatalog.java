@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.XmlResourceParser;
+import android.os.AsyncTask;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import libcore.util.ZoneInfoDB;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.TimeZone;
+
+/**
+ * The time zones of timezones.xml with their names, current GMT offsets and
+ * both list orders, kept in memory and in a file so the pickers don't parse
+ * the xml and look up every zone each time they open.
+ *
+ * The offsets are only right until the next daylight saving transition of
+ * any of the zones, so the catalog is rebuilt after it, as well as for a new
+ * locale, a new version of the time zone data or of this package.
+ */
+final class ZoneCatalog {
+    private static final String TAG = "ZoneCatalog";
+
+    private static final String CATALOG_FILE = "timezones";
+    private static final int CATALOG_VERSION = 1;
+    private static final String XMLTAG_TIMEZONE = "timezone";
+
+    private static final int HOURS_1 = 60 * 60000;
+    private static final long DAY = 24L * HOURS_1;
+    private static final int LOOKAHEAD_DAYS = 366;
+
+    // read without the lock, so the main thread never waits on a build
+    private static volatile ZoneCatalog sCatalog;
+
+    interface Callback {
+        /** Called on the main thread once the catalog is ready. */
+        void onCatalogLoaded(ZoneCatalog catalog);
+    }
+
+    final String[] ids;
+    final String[] names;
+    final String[] gmtLabels;
+    final int[] offsets;
+    /** Indices of the zones ordered by offset, and by name. */
+    final int[] byOffset;
+    final int[] byName;
+
+    private final String mStamp;
+    private final long mValidFrom;
+    private final long mValidUntil;
+    private String[] mFilterKeys;
+
+    private ZoneCatalog(String stamp, long validFrom, long validUntil, String[] ids,
+            String[] names, String[] gmtLabels, int[] offsets, int[] byOffset, int[] byName) {
+        mStamp = stamp;
+        mValidFrom = validFrom;
+        mValidUntil = validUntil;
+        this.ids = ids;
+        this.names = names;
+        this.gmtLabels = gmtLabels;
+        this.offsets = offsets;
+        this.byOffset = byOffset;
+        this.byName = byName;
+    }
+
+    /**
+     * Hands the catalog to the callback, right away when the one in memory is
+     * still valid, or else once it is read or built in the background.
+     */
+    static void load(Context context, final Callback callback) {
+        final Context appContext = context.getApplicationContext();
+        final ZoneCatalog catalog = peek(appContext);
+        if (catalog != null) {
+            callback.onCatalogLoaded(catalog);
+            return;
+        }
+        new AsyncTask<Void, Void, ZoneCatalog>() {
+            @Override
+            protected ZoneCatalog doInBackground(Void... params) {
+                return get(appContext);
+            }
+
+            @Override
+            protected void onPostExecute(ZoneCatalog result) {
+                callback.onCatalogLoaded(result);
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private static ZoneCatalog peek(Context context) {
+        final ZoneCatalog catalog = sCatalog;
+        if (catalog != null
+                && catalog.isValid(getStamp(context), System.currentTimeMillis())) {
+            return catalog;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the catalog, reading or building it if needed, which involves
+     * parsing and disk access, so it must not be called on the main thread.
+     */
+    private static synchronized ZoneCatalog get(Context context) {
+        context = context.getApplicationContext();
+        final String stamp = getStamp(context);
+        final long now = System.currentTimeMillis();
+        if (sCatalog != null && sCatalog.isValid(stamp, now)) {
+            return sCatalog;
+        }
+
+        final AtomicFile file = new AtomicFile(new File(context.getFilesDir(), CATALOG_FILE));
+        ZoneCatalog catalog = read(file);
+        if (catalog == null || !catalog.isValid(stamp, now)) {
+            final long start = System.currentTimeMillis();
+            catalog = build(context, stamp, now);
+            write(file, catalog);
+            Log.i(TAG, "Built catalog of " + catalog.size() + " zones in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+        sCatalog = catalog;
+        return catalog;
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    int indexOf(String id) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i].equals(id)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the lower case name and id of the zone, which filtering
+     * matches against.
+     */
+    synchronized String getFilterKey(int index) {
+        if (mFilterKeys == null) {
+            mFilterKeys = new String[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                mFilterKeys[i] = (names[i] + '\n' + ids[i].replace('_', ' ')).toLowerCase();
+            }
+        }
+        return mFilterKeys[index];
+    }
+
+    private boolean isValid(String stamp, long now) {
+        return mStamp.equals(stamp) && now >= mValidFrom && now < mValidUntil;
+    }
+
+    private static String getStamp(Context context) {
+        final StringBuilder stamp = new StringBuilder();
+        stamp.append(context.getResources().getConfiguration().locale);
+        stamp.append(':').append(ZoneInfoDB.getVersion());
+        try {
+            PackageInfo pi = context.getPackageManager().getPackageInfo(
+                    context.getPackageName(), 0);
+            stamp.append(':').append(pi.versionCode).append(':').append(pi.lastUpdateTime);
+        } catch (NameNotFoundException e) {
+            // Can't happen for our own package
+        }
+        return stamp.toString();
+    }
+
+    private static ZoneCatalog build(Context context, String stamp, long now) {
+        final ArrayList<String> idList = new ArrayList<String>();
+        final ArrayList<String> nameList = new ArrayList<String>();
+        parseZones(context, idList, nameList);
+
+        final int count = idList.size();
+        final String[] ids = idList.toArray(new String[count]);
+        final String[] names = nameList.toArray(new String[count]);
+        final String[] gmtLabels = new String[count];
+        final int[] offsets = new int[count];
+        long validUntil = now + LOOKAHEAD_DAYS * DAY;
+        for (int i = 0; i < count; i++) {
+            final TimeZone tz = TimeZone.getTimeZone(ids[i]);
+            offsets[i] = tz.getOffset(now);
+            gmtLabels[i] = formatOffset(offsets[i]);
+            if (tz.useDaylightTime()) {
+                validUntil = Math.min(validUntil, findOffsetChange(tz, now, validUntil));
+            }
+        }
+
+        final int[] byOffset = sortedIndices(count, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                final int l = offsets[lhs];
+                final int r = offsets[rhs];
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        final int[] byName = sortedIndices(count, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return names[lhs].compareTo(names[rhs]);
+            }
+        });
+
+        return new ZoneCatalog(stamp, now, validUntil, ids, names, gmtLabels, offsets,
+                byOffset, byName);
+    }
+
+    private static void parseZones(Context context, ArrayList<String> ids,
+            ArrayList<String> names) {
+        try {
+            XmlResourceParser xrp = context.getResources().getXml(R.xml.timezones);
+            while (xrp.next() != XmlResourceParser.START_TAG)
+                continue;
+            xrp.next();
+            while (xrp.getEventType() != XmlResourceParser.END_TAG) {
+                while (xrp.getEventType() != XmlResourceParser.START_TAG) {
+                    if (xrp.getEventType() == XmlResourceParser.END_DOCUMENT) {
+                        return;
+                    }
+                    xrp.next();
+                }
+                if (xrp.getName().equals(XMLTAG_TIMEZONE)) {
+                    ids.add(xrp.getAttributeValue(0));
+                    names.add(xrp.nextText());
+                }
+                while (xrp.getEventType() != XmlResourceParser.END_TAG) {
+                    xrp.next();
+                }
+                xrp.next();
+            }
+            xrp.close();
+        } catch (XmlPullParserException xppe) {
+            Log.e(TAG, "Ill-formatted timezones.xml file");
+        } catch (java.io.IOException ioe) {
+            Log.e(TAG, "Unable to read timezones.xml file");
+        }
+    }
+
+    /**
+     * Returns when the offset of the zone first differs from the one at
+     * {@code now}, to the minute, or {@code limit} if that's not before it.
+     */
+    private static long findOffsetChange(TimeZone tz, long now, long limit) {
+        final int offset = tz.getOffset(now);
+        long before = now;
+        long after = -1;
+        for (long t = now + DAY; t < limit; t += DAY) {
+            if (tz.getOffset(t) != offset) {
+                after = t;
+                break;
+            }
+            before = t;
+        }
+        if (after < 0) {
+            return limit;
+        }
+        while (after - before > 60000) {
+            final long mid = before + (after - before) / 2;
+            if (tz.getOffset(mid) != offset) {
+                after = mid;
+            } else {
+                before = mid;
+            }
+        }
+        return after;
+    }
+
+    private static int[] sortedIndices(int count, Comparator<Integer> comparator) {
+        final Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        // Stable, so zones with the same key stay in the order of the xml
+        Arrays.sort(order, comparator);
+        final int[] indices = new int[count];
+        for (int i = 0; i < count; i++) {
+            indices[i] = order[i];
+        }
+        return indices;
+    }
+
+    private static String formatOffset(int offset) {
+        final int p = Math.abs(offset);
+        final StringBuilder name = new StringBuilder();
+        name.append("GMT");
+
+        if (offset < 0) {
+            name.append('-');
+        } else {
+            name.append('+');
+        }
+
+        name.append(p / (HOURS_1));
+        name.append(':');
+
+        int min = p / 60000;
+        min %= 60;
+
+        if (min < 10) {
+            name.append('0');
+        }
+        name.append(min);
+        return name.toString();
+    }
+
+    /**
+     * The file holds the format version, the stamp and period the catalog is
+     * valid for, then the zones and the two orders as indices.
+     */
+    private static ZoneCatalog read(AtomicFile file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(file.openRead()));
+            if (in.readInt() != CATALOG_VERSION) {
+                return null;
+            }
+            final String stamp = in.readUTF();
+            final long validFrom = in.readLong();
+            final long validUntil = in.readLong();
+            final int count = in.readInt();
+            final String[] ids = new String[count];
+            final String[] names = new String[count];
+            final String[] gmtLabels = new String[count];
+            final int[] offsets = new int[count];
+            for (int i = 0; i < count; i++) {
+                ids[i] = in.readUTF();
+                names[i] = in.readUTF();
+                offsets[i] = in.readInt();
+                gmtLabels[i] = formatOffset(offsets[i]);
+            }
+            final int[] byOffset = readIndices(in, count);
+            final int[] byName = readIndices(in, count);
+            return new ZoneCatalog(stamp, validFrom, validUntil, ids, names, gmtLabels,
+                    offsets, byOffset, byName);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read the time zone catalog", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+    }
+
+    private static int[] readIndices(DataInputStream in, int count) throws IOException {
+        final int[] indices = new int[count];
+        for (int i = 0; i < count; i++) {
+            indices[i] = in.readShort();
+            if (indices[i] < 0 || indices[i] >= count) {
+                throw new IOException("Zone index out of range: " + indices[i]);
+            }
+        }
+        return indices;
+    }
+
+    private static void write(AtomicFile file, ZoneCatalog catalog) {
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(CATALOG_VERSION);
+            out.writeUTF(catalog.mStamp);
+            out.writeLong(catalog.mValidFrom);
+            out.writeLong(catalog.mValidUntil);
+            out.writeInt(catalog.size());
+            for (int i = 0; i < catalog.size(); i++) {
+                out.writeUTF(catalog.ids[i]);
+                out.writeUTF(catalog.names[i]);
+                out.writeInt(catalog.offsets[i]);
+            }
+            for (int index : catalog.byOffset) {
+                out.writeShort(index);
+            }
+            for (int index : catalog.byName) {
+                out.writeShort(index);
+            }
+            out.flush();
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write the time zone catalog", e);
+            if (fos != null) {
+                file.failWrite(fos);
+            }
+        }
+    }
+}
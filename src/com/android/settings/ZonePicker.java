@@ -20,27 +20,19 @@ import android.app.Activity;
 import android.app.AlarmManager;
 import android.app.ListFragment;
 import android.content.Context;
-import android.content.res.XmlResourceParser;
 import android.os.Bundle;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.Filter;
+import android.widget.Filterable;
 import android.widget.ListView;
-import android.widget.SimpleAdapter;
+import android.widget.TextView;
 
-import org.xmlpull.v1.XmlPullParserException;
-
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 import java.util.TimeZone;
 
 /**
@@ -57,90 +49,59 @@ public class ZonePicker extends ListFragment {
         public void onZoneSelected(TimeZone tz);
     }
 
-    private static final String KEY_ID = "id";  // value: String
-    private static final String KEY_DISPLAYNAME = "name";  // value: String
-    private static final String KEY_GMT = "gmt";  // value: String
-    private static final String KEY_OFFSET = "offset";  // value: int (Integer)
-    private static final String XMLTAG_TIMEZONE = "timezone";
-
-    private static final int HOURS_1 = 60 * 60000;
-
     private static final int MENU_TIMEZONE = Menu.FIRST+1;
     private static final int MENU_ALPHABETICAL = Menu.FIRST;
 
     private boolean mSortedByTimezone;
 
-    private SimpleAdapter mTimezoneSortedAdapter;
-    private SimpleAdapter mAlphabeticalAdapter;
+    private ZoneAdapter mTimezoneSortedAdapter;
+    private ZoneAdapter mAlphabeticalAdapter;
 
     private ZoneSelectionListener mListener;
 
-    /**
-     * Constructs an adapter with TimeZone list. Sorted by TimeZone in default.
-     *
-     * @param sortedByName use Name for sorting the list.
-     */
-    public static SimpleAdapter constructTimezoneAdapter(Context context,
-            boolean sortedByName) {
-        return constructTimezoneAdapter(context, sortedByName,
-                R.layout.date_time_setup_custom_list_item_2);
+    public static interface AdapterCallback {
+        public void onAdapterReady(ZoneAdapter adapter);
     }
 
     /**
-     * Constructs an adapter with TimeZone list. Sorted by TimeZone in default.
+     * Constructs an adapter with TimeZone list, once the zones are loaded.
+     * Sorted by TimeZone in default.
      *
      * @param sortedByName use Name for sorting the list.
+     * @param callback called on the main thread with the adapter.
      */
-    public static SimpleAdapter constructTimezoneAdapter(Context context,
-            boolean sortedByName, int layoutId) {
-        final String[] from = new String[] {KEY_DISPLAYNAME, KEY_GMT};
-        final int[] to = new int[] {android.R.id.text1, android.R.id.text2};
-
-        final String sortKey = (sortedByName ? KEY_DISPLAYNAME : KEY_OFFSET);
-        final MyComparator comparator = new MyComparator(sortKey);
-        final List<HashMap<String, Object>> sortedList = getZones(context);
-        Collections.sort(sortedList, comparator);
-        final SimpleAdapter adapter = new SimpleAdapter(context,
-                sortedList,
-                layoutId,
-                from,
-                to);
-
-        return adapter;
+    public static void constructTimezoneAdapter(final Context context,
+            final boolean sortedByName, final int layoutId, final AdapterCallback callback) {
+        ZoneCatalog.load(context, new ZoneCatalog.Callback() {
+            @Override
+            public void onCatalogLoaded(ZoneCatalog catalog) {
+                callback.onAdapterReady(new ZoneAdapter(context, catalog, sortedByName,
+                        layoutId));
+            }
+        });
     }
 
     /**
-     * Searches {@link TimeZone} from the given {@link SimpleAdapter} object, and returns
+     * Searches {@link TimeZone} from the given {@link ZoneAdapter} object, and returns
      * the index for the TimeZone.
      *
-     * @param adapter SimpleAdapter constructed by
-     * {@link #constructTimezoneAdapter(Context, boolean)}.
+     * @param adapter ZoneAdapter constructed by
+     * {@link #constructTimezoneAdapter(Context, boolean, int, AdapterCallback)}.
      * @param tz TimeZone to be searched.
      * @return Index for the given TimeZone. -1 when there's no corresponding list item.
      * returned.
      */
-    public static int getTimeZoneIndex(SimpleAdapter adapter, TimeZone tz) {
-        final String defaultId = tz.getID();
-        final int listSize = adapter.getCount();
-        for (int i = 0; i < listSize; i++) {
-            // Using HashMap<String, Object> induces unnecessary warning.
-            final HashMap<?,?> map = (HashMap<?,?>)adapter.getItem(i);
-            final String id = (String)map.get(KEY_ID);
-            if (defaultId.equals(id)) {
-                // If current timezone is in this list, move focus to it
-                return i;
-            }
-        }
-        return -1;
+    public static int getTimeZoneIndex(ZoneAdapter adapter, TimeZone tz) {
+        return adapter.getPosition(tz.getID());
     }
 
     /**
      * @param item one of items in adapters. The adapter should be constructed by
-     * {@link #constructTimezoneAdapter(Context, boolean)}.
+     * {@link #constructTimezoneAdapter(Context, boolean, int, AdapterCallback)}.
      * @return TimeZone object corresponding to the item.
      */
     public static TimeZone obtainTimeZoneFromItem(Object item) {
-        return TimeZone.getTimeZone((String)((Map<?, ?>)item).get(KEY_ID));
+        return TimeZone.getTimeZone((String) item);
     }
 
     @Override
@@ -148,11 +109,24 @@ public class ZonePicker extends ListFragment {
         super.onActivityCreated(savedInstanseState);
 
         final Activity activity = getActivity();
-        mTimezoneSortedAdapter = constructTimezoneAdapter(activity, false);
-        mAlphabeticalAdapter = constructTimezoneAdapter(activity, true);
-
-        // Sets the adapter
-        setSorting(true);
+        mSortedByTimezone = true;
+        setListShown(false);
+        ZoneCatalog.load(activity, new ZoneCatalog.Callback() {
+            @Override
+            public void onCatalogLoaded(ZoneCatalog catalog) {
+                if (getActivity() == null) {
+                    return;
+                }
+                mTimezoneSortedAdapter = new ZoneAdapter(activity, catalog, false,
+                        R.layout.date_time_setup_custom_list_item_2);
+                mAlphabeticalAdapter = new ZoneAdapter(activity, catalog, true,
+                        R.layout.date_time_setup_custom_list_item_2);
+
+                // Sets the adapter
+                setSorting(mSortedByTimezone);
+                getListView().setTextFilterEnabled(true);
+            }
+        });
         setHasOptionsMenu(true);
     }
 
@@ -207,8 +181,14 @@ public class ZonePicker extends ListFragment {
     }
 
     private void setSorting(boolean sortByTimezone) {
-        final SimpleAdapter adapter =
+        final ZoneAdapter adapter =
                 sortByTimezone ? mTimezoneSortedAdapter : mAlphabeticalAdapter;
+        mSortedByTimezone = sortByTimezone;
+        if (adapter == null) {
+            // still loading, applied once the zones are there
+            return;
+        }
+        getListView().clearTextFilter();
         setListAdapter(adapter);
         mSortedByTimezone = sortByTimezone;
         final int defaultIndex = getTimeZoneIndex(adapter, TimeZone.getDefault());
@@ -217,79 +197,9 @@ public class ZonePicker extends ListFragment {
         }
     }
 
-    private static List<HashMap<String, Object>> getZones(Context context) {
-        final List<HashMap<String, Object>> myData = new ArrayList<HashMap<String, Object>>();
-        final long date = Calendar.getInstance().getTimeInMillis();
-        try {
-            XmlResourceParser xrp = context.getResources().getXml(R.xml.timezones);
-            while (xrp.next() != XmlResourceParser.START_TAG)
-                continue;
-            xrp.next();
-            while (xrp.getEventType() != XmlResourceParser.END_TAG) {
-                while (xrp.getEventType() != XmlResourceParser.START_TAG) {
-                    if (xrp.getEventType() == XmlResourceParser.END_DOCUMENT) {
-                        return myData;
-                    }
-                    xrp.next();
-                }
-                if (xrp.getName().equals(XMLTAG_TIMEZONE)) {
-                    String id = xrp.getAttributeValue(0);
-                    String displayName = xrp.nextText();
-                    addItem(myData, id, displayName, date);
-                }
-                while (xrp.getEventType() != XmlResourceParser.END_TAG) {
-                    xrp.next();
-                }
-                xrp.next();
-            }
-            xrp.close();
-        } catch (XmlPullParserException xppe) {
-            Log.e(TAG, "Ill-formatted timezones.xml file");
-        } catch (java.io.IOException ioe) {
-            Log.e(TAG, "Unable to read timezones.xml file");
-        }
-
-        return myData;
-    }
-
-    private static void addItem(
-            List<HashMap<String, Object>> myData, String id, String displayName, long date) {
-        final HashMap<String, Object> map = new HashMap<String, Object>();
-        map.put(KEY_ID, id);
-        map.put(KEY_DISPLAYNAME, displayName);
-        final TimeZone tz = TimeZone.getTimeZone(id);
-        final int offset = tz.getOffset(date);
-        final int p = Math.abs(offset);
-        final StringBuilder name = new StringBuilder();
-        name.append("GMT");
-
-        if (offset < 0) {
-            name.append('-');
-        } else {
-            name.append('+');
-        }
-
-        name.append(p / (HOURS_1));
-        name.append(':');
-
-        int min = p / 60000;
-        min %= 60;
-
-        if (min < 10) {
-            name.append('0');
-        }
-        name.append(min);
-
-        map.put(KEY_GMT, name.toString());
-        map.put(KEY_OFFSET, offset);
-
-        myData.add(map);
-    }
-
     @Override
     public void onListItemClick(ListView listView, View v, int position, long id) {
-        final Map<?, ?> map = (Map<?, ?>)listView.getItemAtPosition(position);
-        final String tzId = (String) map.get(KEY_ID);
+        final String tzId = (String) listView.getItemAtPosition(position);
 
         // Update the system timezone value
         final Activity activity = getActivity();
@@ -303,36 +213,129 @@ public class ZonePicker extends ListFragment {
         }
     }
 
-    private static class MyComparator implements Comparator<HashMap<?, ?>> {
-        private String mSortingKey;
+    /**
+     * Lists the zones of the {@link ZoneCatalog} in one of its orders, or the
+     * ones matching a filter.  Its items are the zone ids.
+     */
+    public static class ZoneAdapter extends BaseAdapter implements Filterable {
+        private final LayoutInflater mInflater;
+        private final ZoneCatalog mCatalog;
+        private final int[] mOrder;
+        private final int mLayoutId;
+        private int[] mZones;
+        private ZoneFilter mFilter;
+
+        ZoneAdapter(Context context, ZoneCatalog catalog, boolean sortedByName, int layoutId) {
+            mInflater = LayoutInflater.from(context);
+            mCatalog = catalog;
+            mOrder = sortedByName ? catalog.byName : catalog.byOffset;
+            mLayoutId = layoutId;
+            mZones = mOrder;
+        }
 
-        public MyComparator(String sortingKey) {
-            mSortingKey = sortingKey;
+        @Override
+        public int getCount() {
+            return mZones.length;
         }
 
-        public void setSortingKey(String sortingKey) {
-            mSortingKey = sortingKey;
+        @Override
+        public Object getItem(int position) {
+            return mCatalog.ids[mZones[position]];
         }
 
-        public int compare(HashMap<?, ?> map1, HashMap<?, ?> map2) {
-            Object value1 = map1.get(mSortingKey);
-            Object value2 = map2.get(mSortingKey);
-
-            /*
-             * This should never happen, but just in-case, put non-comparable
-             * items at the end.
-             */
-            if (!isComparable(value1)) {
-                return isComparable(value2) ? 1 : 0;
-            } else if (!isComparable(value2)) {
-                return -1;
+        @Override
+        public long getItemId(int position) {
+            return mZones[position];
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        public int getPosition(String id) {
+            final int index = mCatalog.indexOf(id);
+            if (index >= 0) {
+                for (int i = 0; i < mZones.length; i++) {
+                    if (mZones[i] == index) {
+                        return i;
+                    }
+                }
             }
+            return -1;
+        }
 
-            return ((Comparable) value1).compareTo(value2);
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            if (convertView == null) {
+                convertView = mInflater.inflate(mLayoutId, parent, false);
+            }
+            final int index = mZones[position];
+            ((TextView) convertView.findViewById(android.R.id.text1))
+                    .setText(mCatalog.names[index]);
+            ((TextView) convertView.findViewById(android.R.id.text2))
+                    .setText(mCatalog.gmtLabels[index]);
+            return convertView;
+        }
+
+        @Override
+        public Filter getFilter() {
+            if (mFilter == null) {
+                mFilter = new ZoneFilter();
+            }
+            return mFilter;
         }
 
-        private boolean isComparable(Object value) {
-            return (value != null) && (value instanceof Comparable); 
+        /**
+         * Matches the zones whose name or id contains the typed text.  As the
+         * text is usually typed on, each filtering only looks through the
+         * matches of the text it extends.
+         */
+        private class ZoneFilter extends Filter {
+            private String mLastPrefix = "";
+            private int[] mLastMatches = mOrder;
+
+            @Override
+            protected FilterResults performFiltering(CharSequence constraint) {
+                final String prefix = constraint != null
+                        ? constraint.toString().trim().toLowerCase() : "";
+                final int[] candidates;
+                synchronized (this) {
+                    candidates = prefix.startsWith(mLastPrefix) ? mLastMatches : mOrder;
+                }
+
+                int[] matches = mOrder;
+                if (prefix.length() > 0) {
+                    final int[] found = new int[candidates.length];
+                    int count = 0;
+                    for (int index : candidates) {
+                        if (mCatalog.getFilterKey(index).contains(prefix)) {
+                            found[count++] = index;
+                        }
+                    }
+                    matches = new int[count];
+                    System.arraycopy(found, 0, matches, 0, count);
+                }
+                synchronized (this) {
+                    mLastPrefix = prefix;
+                    mLastMatches = matches;
+                }
+
+                final FilterResults results = new FilterResults();
+                results.values = matches;
+                results.count = matches.length;
+                return results;
+            }
+
+            @Override
+            protected void publishResults(CharSequence constraint, FilterResults results) {
+                mZones = (int[]) results.values;
+                if (results.count > 0 || mZones == mOrder) {
+                    notifyDataSetChanged();
+                } else {
+                    notifyDataSetInvalidated();
+                }
+            }
         }
     }
 }
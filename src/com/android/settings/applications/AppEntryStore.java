@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrent store of the installed applications known to
+ * {@link ApplicationsState} and the entries created for them.  Lookups by
+ * package name are O(1) and never block; whole-store readers (list
+ * rebuilds, size summation, background loaders) iterate immutable
+ * snapshots that are only recreated after the store has changed.
+ * <p>
+ * Mutations take a single lock, so that a package is removed together
+ * with its entry and no entry is added for a package already removed.
+ */
+class AppEntryStore {
+    private static class Snapshot<T> {
+        final int version;
+        final List<T> items;
+
+        Snapshot(int version, List<T> items) {
+            this.version = version;
+            this.items = items;
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    // Replaced as a whole when the installed applications are reloaded
+    private volatile ConcurrentHashMap<String, ApplicationInfo> mApplications
+            = new ConcurrentHashMap<String, ApplicationInfo>();
+    private final ConcurrentHashMap<String, AppEntry> mEntries
+            = new ConcurrentHashMap<String, AppEntry>();
+
+    // Bumped after every mutation; a snapshot is valid while its version
+    // matches.
+    private final AtomicInteger mApplicationsVersion = new AtomicInteger();
+    private final AtomicInteger mEntriesVersion = new AtomicInteger();
+    private volatile Snapshot<ApplicationInfo> mApplicationsSnapshot;
+    private volatile Snapshot<AppEntry> mEntriesSnapshot;
+
+    private final AtomicLong mCurId = new AtomicLong(1);
+
+    long nextId() {
+        return mCurId.getAndIncrement();
+    }
+
+    // ----- Installed applications
+
+    ApplicationInfo getApplication(String packageName) {
+        return mApplications.get(packageName);
+    }
+
+    boolean containsApplication(String packageName) {
+        return mApplications.containsKey(packageName);
+    }
+
+    /**
+     * Replaces the installed applications.  Readers see either the old or
+     * the new set, never a partly filled one.
+     */
+    void setApplications(List<ApplicationInfo> apps) {
+        final ConcurrentHashMap<String, ApplicationInfo> applications
+                = new ConcurrentHashMap<String, ApplicationInfo>(apps.size());
+        for (int i=0; i<apps.size(); i++) {
+            ApplicationInfo info = apps.get(i);
+            applications.put(info.packageName, info);
+        }
+        synchronized (mLock) {
+            mApplications = applications;
+            mApplicationsVersion.incrementAndGet();
+        }
+    }
+
+    void putApplication(ApplicationInfo info) {
+        synchronized (mLock) {
+            mApplications.put(info.packageName, info);
+            mApplicationsVersion.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes an application together with its entry, and returns the
+     * application, or null if it wasn't installed.
+     */
+    ApplicationInfo removePackage(String packageName) {
+        synchronized (mLock) {
+            ApplicationInfo info = mApplications.remove(packageName);
+            if (info == null) {
+                return null;
+            }
+            mApplicationsVersion.incrementAndGet();
+            if (mEntries.remove(packageName) != null) {
+                mEntriesVersion.incrementAndGet();
+            }
+            return info;
+        }
+    }
+
+    /**
+     * Returns an immutable view of the installed applications.  The same
+     * list is handed out until the set of applications changes.
+     */
+    List<ApplicationInfo> applications() {
+        final int version = mApplicationsVersion.get();
+        Snapshot<ApplicationInfo> snapshot = mApplicationsSnapshot;
+        if (snapshot == null || snapshot.version != version) {
+            snapshot = new Snapshot<ApplicationInfo>(version, Collections.unmodifiableList(
+                    new ArrayList<ApplicationInfo>(mApplications.values())));
+            mApplicationsSnapshot = snapshot;
+        }
+        return snapshot.items;
+    }
+
+    // ----- Application entries
+
+    AppEntry getEntry(String packageName) {
+        return mEntries.get(packageName);
+    }
+
+    /**
+     * Adds the entry unless one already exists for its package, and
+     * returns whichever entry ended up in the store.  The entry of a
+     * package that has been removed meanwhile is returned without being
+     * added.
+     */
+    AppEntry putEntryIfAbsent(AppEntry entry) {
+        synchronized (mLock) {
+            if (!mApplications.containsKey(entry.info.packageName)) {
+                return entry;
+            }
+            AppEntry existing = mEntries.putIfAbsent(entry.info.packageName, entry);
+            if (existing != null) {
+                return existing;
+            }
+            mEntriesVersion.incrementAndGet();
+            return entry;
+        }
+    }
+
+    void clearEntries() {
+        synchronized (mLock) {
+            mEntries.clear();
+            mEntriesVersion.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns an immutable view of all entries created so far.  The same
+     * list is handed out until an entry is added or removed.
+     */
+    List<AppEntry> entries() {
+        final int version = mEntriesVersion.get();
+        Snapshot<AppEntry> snapshot = mEntriesSnapshot;
+        if (snapshot == null || snapshot.version != version) {
+            snapshot = new Snapshot<AppEntry>(version, Collections.unmodifiableList(
+                    new ArrayList<AppEntry>(mEntries.values())));
+            mEntriesSnapshot = snapshot;
+        }
+        return snapshot.items;
+    }
+}
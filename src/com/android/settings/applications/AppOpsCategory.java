@@ -105,6 +105,8 @@ public class AppOpsCategory extends ListFragment implements
         }
 
         @Override public void onReceive(Context context, Intent intent) {
+            // Drop what the shared index knows about the old packages.
+            AppOpsState.invalidatePackages();
             // Tell the loader about the change.
             mLoader.onContentChanged();
         }
@@ -178,6 +180,7 @@ public class AppOpsCategory extends ListFragment implements
             // Start watching for changes in the app data.
             if (mPackageObserver == null) {
                 mPackageObserver = new PackageIntentReceiver(this);
+                AppOpsState.startWatchingPackages();
             }
 
             // Has something interesting in the configuration changed since we
@@ -230,6 +233,7 @@ public class AppOpsCategory extends ListFragment implements
             if (mPackageObserver != null) {
                 getContext().unregisterReceiver(mPackageObserver);
                 mPackageObserver = null;
+                AppOpsState.stopWatchingPackages();
             }
         }
 
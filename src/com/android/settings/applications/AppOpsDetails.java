@@ -203,6 +203,7 @@ public class AppOpsDetails extends Fragment {
                          }
                         mAppOps.setMode(switchOp, entry.getPackageOps().getUid(),
                                 entry.getPackageOps().getPackageName(), positionToMode(position));
+                        AppOpsState.invalidateOps();
                     }
 
                     @Override
@@ -28,6 +28,7 @@ import android.content.SharedPreferences;
 import android.graphics.drawable.Drawable;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.text.format.DateUtils;
 import android.util.Log;
 import android.util.SparseArray;
@@ -37,10 +38,12 @@ import com.android.settings.R;
 import java.io.File;
 import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 
 public class AppOpsState {
     static final String TAG = "AppOpsState";
@@ -57,7 +60,8 @@ public class AppOpsState {
     private SharedPreferences mPreferences;
 
     public AppOpsState(Context context) {
-        mContext = context;
+        // Entries built here outlive the caller in the shared index
+        mContext = context.getApplicationContext();
         mAppOps = (AppOpsManager)context.getSystemService(Context.APP_OPS_SERVICE);
         mPm = context.getPackageManager();
         mOpSummaries = context.getResources().getTextArray(R.array.app_ops_summaries);
@@ -188,52 +192,298 @@ public class AppOpsState {
     };
 
     /**
-     * This class holds the per-item data in our Loader.
+     * The permissions a template shows ops for and the op each of them
+     * maps to, worked out once rather than on every build.
      */
-    public static class AppEntry {
-        private final AppOpsState mState;
-        private final ApplicationInfo mInfo;
-        private final File mApkFile;
-        private final SparseArray<AppOpsManager.OpEntry> mOps
-                = new SparseArray<AppOpsManager.OpEntry>();
-        private final SparseArray<AppOpEntry> mOpSwitches
-                = new SparseArray<AppOpEntry>();
-        private String mLabel;
-        private Drawable mIcon;
-        private boolean mMounted;
+    static final class TemplateInfo {
+        final OpsTemplate mTemplate;
+        final ArrayList<String> mPerms = new ArrayList<String>();
+        final HashMap<String, Integer> mPermToOp = new HashMap<String, Integer>();
+        final int[] mOpToOrder = new int[AppOpsManager._NUM_OP];
+
+        TemplateInfo(OpsTemplate tpl) {
+            mTemplate = tpl;
+            for (int i=0; i<tpl.ops.length; i++) {
+                if (tpl.showPerms[i]) {
+                    String perm = AppOpsManager.opToPermission(tpl.ops[i]);
+                    if (perm != null && !mPermToOp.containsKey(perm)) {
+                        mPerms.add(perm);
+                        mPermToOp.put(perm, tpl.ops[i]);
+                        mOpToOrder[tpl.ops[i]] = i;
+                    }
+                }
+            }
+        }
+    }
 
-        public AppEntry(AppOpsState state, ApplicationInfo info) {
-            mState = state;
-            mInfo = info;
-            mApkFile = new File(info.sourceDir);
+    static final TemplateInfo[] ALL_TEMPLATE_INFOS = new TemplateInfo[ALL_TEMPLATES.length];
+    static {
+        for (int i=0; i<ALL_TEMPLATES.length; i++) {
+            ALL_TEMPLATE_INFOS[i] = new TemplateInfo(ALL_TEMPLATES[i]);
         }
+    }
 
-        public void addOp(AppOpEntry entry, AppOpsManager.OpEntry op) {
-            mOps.put(op.getOp(), op);
-            mOpSwitches.put(AppOpsManager.opToSwitch(op.getOp()), entry);
+    /**
+     * Returns the position of the template in ALL_TEMPLATES, or -1.
+     * Templates handed to fragments may have been unparcelled, so they
+     * are matched by content.
+     */
+    static int indexOfTemplate(OpsTemplate tpl) {
+        for (int i=0; i<ALL_TEMPLATES.length; i++) {
+            if (ALL_TEMPLATES[i] == tpl || (Arrays.equals(ALL_TEMPLATES[i].ops, tpl.ops)
+                    && Arrays.equals(ALL_TEMPLATES[i].showPerms, tpl.showPerms))) {
+                return i;
+            }
         }
+        return -1;
+    }
 
-        public boolean hasOp(int op) {
-            return mOps.indexOfKey(op) >= 0;
+    /**
+     * The ops and permission holders for all of ALL_TEMPLATES, fetched
+     * together and shared by every AppOpsState, so the tabs don't each
+     * query the system for their own.  The list built for a template is
+     * kept until one of the template's ops changes.
+     */
+    static final class OpsIndex {
+        // How long fetched ops are used before the system is asked again.
+        static final long OPS_MAX_AGE = 5000;
+
+        final int[] mAllOps;
+        final String[] mAllPerms;
+
+        // Apps seen so far, by package name.
+        final HashMap<String, CachedApp> mApps = new HashMap<String, CachedApp>();
+
+        List<AppOpsManager.PackageOps> mPackageOps;
+        // The ops of each entry in mPackageOps, by op code.
+        ArrayList<SparseArray<AppOpsManager.OpEntry>> mOpsByPackage;
+        long mPackageOpsTime;
+        boolean mOpsStale;
+
+        List<PackageInfo> mHolders;
+
+        // The lists built so far, by position in ALL_TEMPLATES.
+        final SparseArray<List<AppOpEntry>> mResults = new SparseArray<List<AppOpEntry>>();
+        boolean mResultsShowUserApps;
+        boolean mResultsShowSystemApps;
+        // The lists are sorted by label, so they are built again in another locale
+        Locale mResultsLocale;
+
+        // Loaders watching for package changes; none are seen without them.
+        int mPackageWatchers;
+
+        OpsIndex() {
+            ArrayList<Integer> ops = new ArrayList<Integer>();
+            ArrayList<String> perms = new ArrayList<String>();
+            for (int i=0; i<ALL_TEMPLATE_INFOS.length; i++) {
+                TemplateInfo info = ALL_TEMPLATE_INFOS[i];
+                for (int op : info.mTemplate.ops) {
+                    if (!ops.contains(op)) {
+                        ops.add(op);
+                    }
+                }
+                for (String perm : info.mPerms) {
+                    if (!perms.contains(perm)) {
+                        perms.add(perm);
+                    }
+                }
+            }
+            mAllOps = new int[ops.size()];
+            for (int i=0; i<mAllOps.length; i++) {
+                mAllOps[i] = ops.get(i);
+            }
+            mAllPerms = perms.toArray(new String[perms.size()]);
         }
 
-        public AppOpEntry getOpSwitch(int op) {
-            return mOpSwitches.get(AppOpsManager.opToSwitch(op));
+        synchronized void invalidatePackages() {
+            mApps.clear();
+            mHolders = null;
+            mPackageOps = null;
+            mOpsByPackage = null;
+            mResults.clear();
         }
 
-        public ApplicationInfo getApplicationInfo() {
-            return mInfo;
+        synchronized void invalidateOps() {
+            mOpsStale = true;
         }
 
-        public String getLabel() {
+        synchronized void startWatchingPackages() {
+            // Packages may have come and gone while nobody was watching
+            if (mPackageWatchers++ == 0) {
+                invalidatePackages();
+            }
+        }
+
+        synchronized void stopWatchingPackages() {
+            mPackageWatchers--;
+        }
+
+        /**
+         * Fetches whatever is missing or out of date, dropping the lists
+         * of the templates it affects.  Called with the index locked.
+         */
+        void refreshLocked(AppOpsState state, boolean showUserApps, boolean showSystemApps) {
+            if (showUserApps != mResultsShowUserApps || showSystemApps != mResultsShowSystemApps) {
+                mResultsShowUserApps = showUserApps;
+                mResultsShowSystemApps = showSystemApps;
+                mResults.clear();
+            }
+            final Locale locale = state.mContext.getResources().getConfiguration().locale;
+            if (!locale.equals(mResultsLocale)) {
+                mResultsLocale = locale;
+                mResults.clear();
+            }
+
+            final long now = SystemClock.uptimeMillis();
+            if (mPackageOps == null || mOpsStale || now - mPackageOpsTime >= OPS_MAX_AGE) {
+                List<AppOpsManager.PackageOps> pkgs = state.mAppOps.getPackagesForOps(mAllOps);
+                if (pkgs == null) {
+                    pkgs = new ArrayList<AppOpsManager.PackageOps>();
+                }
+                final boolean[] changed = new boolean[AppOpsManager._NUM_OP];
+                final HashMap<String, SparseArray<AppOpsManager.OpEntry>> oldOps
+                        = new HashMap<String, SparseArray<AppOpsManager.OpEntry>>();
+                if (mPackageOps != null) {
+                    for (int i=0; i<mPackageOps.size(); i++) {
+                        oldOps.put(packageKey(mPackageOps.get(i)), mOpsByPackage.get(i));
+                    }
+                } else {
+                    Arrays.fill(changed, true);
+                }
+                final ArrayList<SparseArray<AppOpsManager.OpEntry>> opsByPackage
+                        = new ArrayList<SparseArray<AppOpsManager.OpEntry>>(pkgs.size());
+                for (int i=0; i<pkgs.size(); i++) {
+                    AppOpsManager.PackageOps pkgOps = pkgs.get(i);
+                    SparseArray<AppOpsManager.OpEntry> ops
+                            = new SparseArray<AppOpsManager.OpEntry>();
+                    for (AppOpsManager.OpEntry op : pkgOps.getOps()) {
+                        ops.put(op.getOp(), op);
+                    }
+                    opsByPackage.add(ops);
+                    diffOps(oldOps.remove(packageKey(pkgOps)), ops, changed);
+                }
+                for (SparseArray<AppOpsManager.OpEntry> ops : oldOps.values()) {
+                    diffOps(ops, null, changed);
+                }
+                mPackageOps = pkgs;
+                mOpsByPackage = opsByPackage;
+                mPackageOpsTime = now;
+                mOpsStale = false;
+
+                for (int i=mResults.size()-1; i>=0; i--) {
+                    for (int op : ALL_TEMPLATES[mResults.keyAt(i)].ops) {
+                        if (changed[op]) {
+                            mResults.removeAt(i);
+                            break;
+                        }
+                    }
+                }
+            }
+
+            if (mHolders == null) {
+                mHolders = state.mPm.getPackagesHoldingPermissions(mAllPerms, 0);
+                mResults.clear();
+            }
+        }
+
+        private static String packageKey(AppOpsManager.PackageOps pkgOps) {
+            return pkgOps.getUid() + ":" + pkgOps.getPackageName();
+        }
+
+        /**
+         * Marks the ops that differ between two samples of a package.
+         */
+        private static void diffOps(SparseArray<AppOpsManager.OpEntry> oldOps,
+                SparseArray<AppOpsManager.OpEntry> newOps, boolean[] changed) {
+            if (oldOps != null) {
+                for (int i=0; i<oldOps.size(); i++) {
+                    AppOpsManager.OpEntry newOp = newOps != null
+                            ? newOps.get(oldOps.keyAt(i)) : null;
+                    if (newOp == null || !sameOp(oldOps.valueAt(i), newOp)) {
+                        changed[oldOps.keyAt(i)] = true;
+                    }
+                }
+            }
+            if (newOps != null) {
+                for (int i=0; i<newOps.size(); i++) {
+                    if (oldOps == null || oldOps.indexOfKey(newOps.keyAt(i)) < 0) {
+                        changed[newOps.keyAt(i)] = true;
+                    }
+                }
+            }
+        }
+
+        private static boolean sameOp(AppOpsManager.OpEntry a, AppOpsManager.OpEntry b) {
+            return a.getMode() == b.getMode()
+                    && a.getTime() == b.getTime()
+                    && a.getRejectTime() == b.getRejectTime()
+                    && a.getDuration() == b.getDuration()
+                    && a.getAllowedCount() == b.getAllowedCount()
+                    && a.getIgnoredCount() == b.getIgnoredCount();
+        }
+    }
+
+    private static final OpsIndex sIndex = new OpsIndex();
+
+    /**
+     * Forgets the apps and permission holders known to the shared index;
+     * call when packages are added, removed or changed.
+     */
+    static void invalidatePackages() {
+        sIndex.invalidatePackages();
+    }
+
+    /**
+     * Called once a loader has registered for package changes.  The index
+     * only hears about packages while some loader does, so when the first
+     * one starts it forgets what it knew before.
+     */
+    static void startWatchingPackages() {
+        sIndex.startWatchingPackages();
+    }
+
+    /**
+     * Called once a loader no longer hears about package changes.
+     */
+    static void stopWatchingPackages() {
+        sIndex.stopWatchingPackages();
+    }
+
+    /**
+     * Makes the next build fetch the ops again; call after changing a mode
+     * or resetting the counters.
+     */
+    public static void invalidateOps() {
+        sIndex.invalidateOps();
+    }
+
+    /**
+     * What is known about an installed app regardless of the ops being
+     * shown.  These are kept across builds and shared by all the tabs, so
+     * labels and icons are only loaded once.  The icon is kept as its
+     * constant state, each caller getting its own drawable from it.
+     */
+    static final class CachedApp {
+        final ApplicationInfo mInfo;
+        final File mApkFile;
+        private String mLabel;
+        private Locale mLabelLocale;
+        private Drawable.ConstantState mIcon;
+        private boolean mMounted;
+
+        CachedApp(ApplicationInfo info) {
+            mInfo = info;
+            mApkFile = new File(info.sourceDir);
+        }
+
+        synchronized String getLabel() {
             return mLabel;
         }
 
-        public Drawable getIcon() {
+        synchronized Drawable getIcon(Context context) {
             if (mIcon == null) {
                 if (mApkFile.exists()) {
-                    mIcon = mInfo.loadIcon(mState.mPm);
-                    return mIcon;
+                    return loadIcon(context);
                 } else {
                     mMounted = false;
                 }
@@ -242,23 +492,26 @@ public class AppOpsState {
                 // its icon.
                 if (mApkFile.exists()) {
                     mMounted = true;
-                    mIcon = mInfo.loadIcon(mState.mPm);
-                    return mIcon;
+                    return loadIcon(context);
                 }
             } else {
-                return mIcon;
+                return mIcon.newDrawable();
             }
 
-            return mState.mContext.getResources().getDrawable(
+            return context.getResources().getDrawable(
                     android.R.drawable.sym_def_app_icon);
         }
 
-        @Override public String toString() {
-            return mLabel;
+        private Drawable loadIcon(Context context) {
+            final Drawable icon = mInfo.loadIcon(context.getPackageManager());
+            mIcon = icon.getConstantState();
+            return icon;
         }
 
-        void loadLabel(Context context) {
-            if (mLabel == null || !mMounted) {
+        synchronized void loadLabel(Context context) {
+            final Locale locale = context.getResources().getConfiguration().locale;
+            if (mLabel == null || !mMounted || !locale.equals(mLabelLocale)) {
+                mLabelLocale = locale;
                 if (!mApkFile.exists()) {
                     mMounted = false;
                     mLabel = mInfo.packageName;
@@ -271,6 +524,61 @@ public class AppOpsState {
         }
     }
 
+    /**
+     * This class holds the per-item data in our Loader.
+     */
+    public static class AppEntry {
+        // The application context, entries being kept in the shared index
+        private final Context mContext;
+        private final CachedApp mApp;
+        private final SparseArray<AppOpsManager.OpEntry> mOps
+                = new SparseArray<AppOpsManager.OpEntry>();
+        private final SparseArray<AppOpEntry> mOpSwitches
+                = new SparseArray<AppOpEntry>();
+
+        public AppEntry(AppOpsState state, ApplicationInfo info) {
+            this(state, new CachedApp(info));
+        }
+
+        AppEntry(AppOpsState state, CachedApp app) {
+            mContext = state.mContext;
+            mApp = app;
+        }
+
+        public void addOp(AppOpEntry entry, AppOpsManager.OpEntry op) {
+            mOps.put(op.getOp(), op);
+            mOpSwitches.put(AppOpsManager.opToSwitch(op.getOp()), entry);
+        }
+
+        public boolean hasOp(int op) {
+            return mOps.indexOfKey(op) >= 0;
+        }
+
+        public AppOpEntry getOpSwitch(int op) {
+            return mOpSwitches.get(AppOpsManager.opToSwitch(op));
+        }
+
+        public ApplicationInfo getApplicationInfo() {
+            return mApp.mInfo;
+        }
+
+        public String getLabel() {
+            return mApp.getLabel();
+        }
+
+        public Drawable getIcon() {
+            return mApp.getIcon(mContext);
+        }
+
+        @Override public String toString() {
+            return getLabel();
+        }
+
+        void loadLabel(Context context) {
+            mApp.loadLabel(context);
+        }
+    }
+
     /**
      * This class holds the per-item data in our Loader.
      */
@@ -450,40 +758,68 @@ public class AppOpsState {
     }
 
     public List<AppOpEntry> buildState(OpsTemplate tpl) {
-        return buildState(tpl, 0, null);
+        final int index = indexOfTemplate(tpl);
+        if (index < 0) {
+            return buildState(tpl, 0, null);
+        }
+
+        final boolean showUserApps = shouldShowUserApps();
+        final boolean showSystemApps = shouldShowSystemApps();
+        synchronized (sIndex) {
+            sIndex.refreshLocked(this, showUserApps, showSystemApps);
+            List<AppOpEntry> entries = sIndex.mResults.get(index);
+            if (entries == null) {
+                entries = buildEntries(ALL_TEMPLATE_INFOS[index], sIndex.mPackageOps,
+                        sIndex.mOpsByPackage, sIndex.mHolders, null);
+                sIndex.mResults.put(index, entries);
+            }
+            return entries;
+        }
     }
 
     private AppEntry getAppEntry(final Context context, final HashMap<String, AppEntry> appEntries,
             final String packageName, ApplicationInfo appInfo) {
 
-        if (appInfo == null) {
-            try {
-                appInfo = mPm.getApplicationInfo(packageName,
-                        PackageManager.GET_DISABLED_COMPONENTS
-                        | PackageManager.GET_UNINSTALLED_PACKAGES);
-            } catch (PackageManager.NameNotFoundException e) {
-                Log.w(TAG, "Unable to find info for package " + packageName);
-                return null;
+        AppEntry appEntry = appEntries.get(packageName);
+        if (appEntry != null) {
+            return appEntry;
+        }
+
+        CachedApp app;
+        synchronized (sIndex) {
+            app = sIndex.mApps.get(packageName);
+        }
+        if (app == null) {
+            if (appInfo == null) {
+                try {
+                    appInfo = mPm.getApplicationInfo(packageName,
+                            PackageManager.GET_DISABLED_COMPONENTS
+                            | PackageManager.GET_UNINSTALLED_PACKAGES);
+                } catch (PackageManager.NameNotFoundException e) {
+                    Log.w(TAG, "Unable to find info for package " + packageName);
+                    return null;
+                }
+            }
+            app = new CachedApp(appInfo);
+            synchronized (sIndex) {
+                sIndex.mApps.put(packageName, app);
             }
         }
 
         // Hide user apps if needed
         if (!shouldShowUserApps() &&
-                (appInfo.flags & ApplicationInfo.FLAG_SYSTEM) == 0) {
+                (app.mInfo.flags & ApplicationInfo.FLAG_SYSTEM) == 0) {
             return null;
         }
         // Hide system apps if needed
         if (!shouldShowSystemApps() &&
-                (appInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0) {
+                (app.mInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0) {
             return null;
         }
 
-        AppEntry appEntry = appEntries.get(packageName);
-        if (appEntry == null) {
-            appEntry = new AppEntry(this, appInfo);
-            appEntry.loadLabel(context);
-            appEntries.put(packageName, appEntry);
-        }
+        appEntry = new AppEntry(this, app);
+        appEntry.loadLabel(context);
+        appEntries.put(packageName, appEntry);
         return appEntry;
     }
 
@@ -496,24 +832,8 @@ public class AppOpsState {
     }
 
     public List<AppOpEntry> buildState(OpsTemplate tpl, int uid, String packageName) {
-        final Context context = mContext;
-
-        final HashMap<String, AppEntry> appEntries = new HashMap<String, AppEntry>();
-        final List<AppOpEntry> entries = new ArrayList<AppOpEntry>();
-
-        final ArrayList<String> perms = new ArrayList<String>();
-        final ArrayList<Integer> permOps = new ArrayList<Integer>();
-        final int[] opToOrder = new int[AppOpsManager._NUM_OP];
-        for (int i=0; i<tpl.ops.length; i++) {
-            if (tpl.showPerms[i]) {
-                String perm = AppOpsManager.opToPermission(tpl.ops[i]);
-                if (perm != null && !perms.contains(perm)) {
-                    perms.add(perm);
-                    permOps.add(tpl.ops[i]);
-                    opToOrder[tpl.ops[i]] = i;
-                }
-            }
-        }
+        final int index = indexOfTemplate(tpl);
+        final TemplateInfo info = index >= 0 ? ALL_TEMPLATE_INFOS[index] : new TemplateInfo(tpl);
 
         List<AppOpsManager.PackageOps> pkgs;
         if (packageName != null) {
@@ -522,21 +842,6 @@ public class AppOpsState {
             pkgs = mAppOps.getPackagesForOps(tpl.ops);
         }
 
-        if (pkgs != null) {
-            for (int i=0; i<pkgs.size(); i++) {
-                AppOpsManager.PackageOps pkgOps = pkgs.get(i);
-                AppEntry appEntry = getAppEntry(context, appEntries, pkgOps.getPackageName(), null);
-                if (appEntry == null) {
-                    continue;
-                }
-                for (int j=0; j<pkgOps.getOps().size(); j++) {
-                    AppOpsManager.OpEntry opEntry = pkgOps.getOps().get(j);
-                    addOp(entries, pkgOps, appEntry, opEntry, packageName == null,
-                            packageName == null ? 0 : opToOrder[opEntry.getOp()]);
-                }
-            }
-        }
-
         List<PackageInfo> apps;
         if (packageName != null) {
             apps = new ArrayList<PackageInfo>();
@@ -546,53 +851,106 @@ public class AppOpsState {
             } catch (NameNotFoundException e) {
             }
         } else {
-            String[] permsArray = new String[perms.size()];
-            perms.toArray(permsArray);
+            String[] permsArray = new String[info.mPerms.size()];
+            info.mPerms.toArray(permsArray);
             apps = mPm.getPackagesHoldingPermissions(permsArray, 0);
         }
+
+        return buildEntries(info, pkgs, null, apps, packageName);
+    }
+
+    /**
+     * Builds the sorted entries of a template.
+     *
+     * @param pkgs the packages with ops; if {@code opsByPackage} is given,
+     *      their ops may include ops of other templates and are looked up
+     *      in it instead
+     * @param apps the packages holding permissions of the template; their
+     *      requested permissions may include those of other templates
+     * @param packageName the single package being shown, or null for all
+     */
+    private List<AppOpEntry> buildEntries(TemplateInfo info,
+            List<AppOpsManager.PackageOps> pkgs,
+            List<SparseArray<AppOpsManager.OpEntry>> opsByPackage,
+            List<PackageInfo> apps, String packageName) {
+        final Context context = mContext;
+        final OpsTemplate tpl = info.mTemplate;
+
+        final HashMap<String, AppEntry> appEntries = new HashMap<String, AppEntry>();
+        final List<AppOpEntry> entries = new ArrayList<AppOpEntry>();
+
+        if (pkgs != null) {
+            for (int i=0; i<pkgs.size(); i++) {
+                AppOpsManager.PackageOps pkgOps = pkgs.get(i);
+                AppEntry appEntry = null;
+                final int numOps = opsByPackage != null
+                        ? tpl.ops.length : pkgOps.getOps().size();
+                for (int j=0; j<numOps; j++) {
+                    AppOpsManager.OpEntry opEntry = opsByPackage != null
+                            ? opsByPackage.get(i).get(tpl.ops[j]) : pkgOps.getOps().get(j);
+                    if (opEntry == null) {
+                        continue;
+                    }
+                    if (appEntry == null) {
+                        appEntry = getAppEntry(context, appEntries, pkgOps.getPackageName(),
+                                null);
+                        if (appEntry == null) {
+                            break;
+                        }
+                    }
+                    addOp(entries, pkgOps, appEntry, opEntry, packageName == null,
+                            packageName == null ? 0 : info.mOpToOrder[opEntry.getOp()]);
+                }
+            }
+        }
+
         for (int i=0; i<apps.size(); i++) {
             PackageInfo appInfo = apps.get(i);
-            AppEntry appEntry = getAppEntry(context, appEntries, appInfo.packageName,
-                    appInfo.applicationInfo);
-            if (appEntry == null) {
+            if (appInfo.requestedPermissions == null) {
                 continue;
             }
+            AppEntry appEntry = null;
             List<AppOpsManager.OpEntry> dummyOps = null;
             AppOpsManager.PackageOps pkgOps = null;
-            if (appInfo.requestedPermissions != null) {
-                for (int j=0; j<appInfo.requestedPermissions.length; j++) {
-                    if (appInfo.requestedPermissionsFlags != null) {
-                        if ((appInfo.requestedPermissionsFlags[j]
-                                & PackageInfo.REQUESTED_PERMISSION_GRANTED) == 0) {
-                            if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm "
-                                    + appInfo.requestedPermissions[j] + " not granted; skipping");
-                            continue;
-                        }
+            for (int j=0; j<appInfo.requestedPermissions.length; j++) {
+                if (appInfo.requestedPermissionsFlags != null) {
+                    if ((appInfo.requestedPermissionsFlags[j]
+                            & PackageInfo.REQUESTED_PERMISSION_GRANTED) == 0) {
+                        if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm "
+                                + appInfo.requestedPermissions[j] + " not granted; skipping");
+                        continue;
                     }
-                    if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + ": requested perm "
-                            + appInfo.requestedPermissions[j]);
-                    for (int k=0; k<perms.size(); k++) {
-                        if (!perms.get(k).equals(appInfo.requestedPermissions[j])) {
-                            continue;
-                        }
-                        if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm " + perms.get(k)
-                                + " has op " + permOps.get(k) + ": " + appEntry.hasOp(permOps.get(k)));
-                        if (appEntry.hasOp(permOps.get(k))) {
-                            continue;
-                        }
-                        if (dummyOps == null) {
-                            dummyOps = new ArrayList<AppOpsManager.OpEntry>();
-                            pkgOps = new AppOpsManager.PackageOps(
-                                    appInfo.packageName, appInfo.applicationInfo.uid, dummyOps);
-
-                        }
-                        AppOpsManager.OpEntry opEntry = new AppOpsManager.OpEntry(
-                                permOps.get(k), AppOpsManager.MODE_ALLOWED, 0, 0, 0, 0, 0);
-                        dummyOps.add(opEntry);
-                        addOp(entries, pkgOps, appEntry, opEntry, packageName == null,
-                                packageName == null ? 0 : opToOrder[opEntry.getOp()]);
+                }
+                if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + ": requested perm "
+                        + appInfo.requestedPermissions[j]);
+                Integer op = info.mPermToOp.get(appInfo.requestedPermissions[j]);
+                if (op == null) {
+                    continue;
+                }
+                if (appEntry == null) {
+                    appEntry = getAppEntry(context, appEntries, appInfo.packageName,
+                            appInfo.applicationInfo);
+                    if (appEntry == null) {
+                        break;
                     }
                 }
+                if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm "
+                        + appInfo.requestedPermissions[j] + " has op " + op + ": "
+                        + appEntry.hasOp(op));
+                if (appEntry.hasOp(op)) {
+                    continue;
+                }
+                if (dummyOps == null) {
+                    dummyOps = new ArrayList<AppOpsManager.OpEntry>();
+                    pkgOps = new AppOpsManager.PackageOps(
+                            appInfo.packageName, appInfo.applicationInfo.uid, dummyOps);
+
+                }
+                AppOpsManager.OpEntry opEntry = new AppOpsManager.OpEntry(
+                        op, AppOpsManager.MODE_ALLOWED, 0, 0, 0, 0, 0);
+                dummyOps.add(opEntry);
+                addOp(entries, pkgOps, appEntry, opEntry, packageName == null,
+                        packageName == null ? 0 : info.mOpToOrder[opEntry.getOp()]);
             }
         }
 
@@ -174,6 +174,7 @@ public class AppOpsSummary extends Fragment {
             return;
         }
         appOps.resetCounters();
+        AppOpsState.invalidateOps();
         // reload content
         resetAdapter();
     }
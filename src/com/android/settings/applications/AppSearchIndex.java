@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Word-prefix index over the entries of an application list, for type to
+ * filter.  Every word of an entry's normalized label, and every
+ * dot-separated tail of its package name, is kept in one sorted token
+ * list, so the entries matching a prefix are found with a binary search
+ * instead of a scan of every label.  The index follows the list through
+ * the changes reported by {@link ApplicationsState}, and a query that
+ * extends the previous one only narrows the previous result.
+ * <p>
+ * Matches are the same as a scan would give: a label matches if it starts
+ * with the prefix or has it right after a space, and a package name if it
+ * starts with it or has it right after a dot.  Results keep the order of
+ * the list.  All methods are synchronized, so the index may be queried
+ * from a filter thread while the UI thread updates it.
+ */
+class AppSearchIndex {
+    private static class Token {
+        final String text;
+        final AppEntry entry;
+
+        Token(String text, AppEntry entry) {
+            this.text = text;
+            this.entry = entry;
+        }
+    }
+
+    private static final Comparator<Token> TOKEN_COMPARATOR = new Comparator<Token>() {
+        @Override
+        public int compare(Token lhs, Token rhs) {
+            return lhs.text.compareTo(rhs.text);
+        }
+    };
+
+    private final ArrayList<Token> mTokens = new ArrayList<Token>();
+    // The tokens of each indexed entry, so it can be taken out again.
+    private final IdentityHashMap<AppEntry, String[]> mEntryTokens
+            = new IdentityHashMap<AppEntry, String[]>();
+    // Position of each entry in the list, for putting results in order.
+    private final IdentityHashMap<AppEntry, Integer> mPositions
+            = new IdentityHashMap<AppEntry, Integer>();
+    private ArrayList<AppEntry> mList;
+
+    private String mLastPrefix;
+    private ArrayList<AppEntry> mLastResult;
+
+    /**
+     * Indexes a whole new list.
+     */
+    synchronized void setEntries(ArrayList<AppEntry> list) {
+        mTokens.clear();
+        mEntryTokens.clear();
+        if (list != null) {
+            for (int i=0; i<list.size(); i++) {
+                AppEntry entry = list.get(i);
+                String[] tokens = tokenize(entry);
+                mEntryTokens.put(entry, tokens);
+                for (String token : tokens) {
+                    mTokens.add(new Token(token, entry));
+                }
+            }
+            Collections.sort(mTokens, TOKEN_COMPARATOR);
+        }
+        setListLocked(list);
+    }
+
+    /**
+     * Brings the index up to date with a changed list.  Entries that moved
+     * are reported as inserted and are already indexed; they only change
+     * position.
+     */
+    synchronized void update(ArrayList<AppEntry> list, Collection<AppEntry> inserted,
+            Collection<AppEntry> removed) {
+        for (AppEntry entry : removed) {
+            removeLocked(entry);
+        }
+        for (AppEntry entry : inserted) {
+            String[] tokens = mEntryTokens.get(entry);
+            if (tokens != null) {
+                if (sameTokens(tokens, tokenize(entry))) {
+                    continue;
+                }
+                // The label changed, such as when its storage was mounted.
+                removeLocked(entry);
+            }
+            tokens = tokenize(entry);
+            mEntryTokens.put(entry, tokens);
+            for (String token : tokens) {
+                Token t = new Token(token, entry);
+                int index = Collections.binarySearch(mTokens, t, TOKEN_COMPARATOR);
+                mTokens.add(index >= 0 ? index : -index - 1, t);
+            }
+        }
+        setListLocked(list);
+    }
+
+    /**
+     * Returns the entries matching the prefix, in list order.  With no
+     * prefix, the list itself is returned.
+     */
+    synchronized ArrayList<AppEntry> filter(CharSequence prefix) {
+        if (mList == null) {
+            return null;
+        }
+        if (prefix == null || prefix.length() == 0) {
+            return mList;
+        }
+        final String prefixStr = ApplicationsState.normalize(prefix.toString());
+
+        ArrayList<AppEntry> result;
+        if (mLastResult != null && prefixStr.startsWith(mLastPrefix)) {
+            // Narrowing: only what matched before can still match.
+            result = new ArrayList<AppEntry>();
+            for (int i=0; i<mLastResult.size(); i++) {
+                AppEntry entry = mLastResult.get(i);
+                if (matches(entry, prefixStr)) {
+                    result.add(entry);
+                }
+            }
+        } else {
+            result = lookupLocked(prefixStr);
+        }
+        mLastPrefix = prefixStr;
+        mLastResult = result;
+        return result;
+    }
+
+    private ArrayList<AppEntry> lookupLocked(String prefixStr) {
+        // A label word or package tail matching the prefix must start with
+        // the prefix up to its first separator.
+        int end = 0;
+        while (end < prefixStr.length() && prefixStr.charAt(end) != ' '
+                && prefixStr.charAt(end) != '.') {
+            end++;
+        }
+        final String word = prefixStr.substring(0, end);
+        if (word.length() == 0) {
+            // Nothing to look up; check every entry.
+            ArrayList<AppEntry> result = new ArrayList<AppEntry>();
+            for (int i=0; i<mList.size(); i++) {
+                AppEntry entry = mList.get(i);
+                if (matches(entry, prefixStr)) {
+                    result.add(entry);
+                }
+            }
+            return result;
+        }
+
+        int index = Collections.binarySearch(mTokens, new Token(word, null), TOKEN_COMPARATOR);
+        if (index < 0) {
+            index = -index - 1;
+        } else {
+            // Back up to the first of several equal tokens.
+            while (index > 0 && mTokens.get(index - 1).text.equals(word)) {
+                index--;
+            }
+        }
+        final IdentityHashMap<AppEntry, Boolean> seen = new IdentityHashMap<AppEntry, Boolean>();
+        final ArrayList<AppEntry> result = new ArrayList<AppEntry>();
+        for (; index < mTokens.size(); index++) {
+            Token token = mTokens.get(index);
+            if (!token.text.startsWith(word)) {
+                break;
+            }
+            if (seen.put(token.entry, Boolean.TRUE) == null
+                    && matches(token.entry, prefixStr)) {
+                result.add(token.entry);
+            }
+        }
+        Collections.sort(result, new Comparator<AppEntry>() {
+            @Override
+            public int compare(AppEntry lhs, AppEntry rhs) {
+                return mPositions.get(lhs) - mPositions.get(rhs);
+            }
+        });
+        return result;
+    }
+
+    private void setListLocked(ArrayList<AppEntry> list) {
+        mList = list;
+        mPositions.clear();
+        if (list != null) {
+            for (int i=0; i<list.size(); i++) {
+                mPositions.put(list.get(i), i);
+            }
+        }
+        mLastPrefix = null;
+        mLastResult = null;
+    }
+
+    private void removeLocked(AppEntry entry) {
+        String[] tokens = mEntryTokens.remove(entry);
+        if (tokens == null) {
+            return;
+        }
+        for (String token : tokens) {
+            int index = Collections.binarySearch(mTokens, new Token(token, entry),
+                    TOKEN_COMPARATOR);
+            if (index < 0) {
+                continue;
+            }
+            // Equal tokens of other entries may sit on either side.
+            int start = index;
+            while (start > 0 && mTokens.get(start - 1).text.equals(token)) {
+                start--;
+            }
+            for (int i = start; i < mTokens.size() && mTokens.get(i).text.equals(token); i++) {
+                if (mTokens.get(i).entry == entry) {
+                    mTokens.remove(i);
+                    break;
+                }
+            }
+        }
+    }
+
+    private static boolean matches(AppEntry entry, String prefixStr) {
+        final String nlabel = entry.getNormalizedLabel();
+        if (nlabel.startsWith(prefixStr) || nlabel.indexOf(" " + prefixStr) != -1) {
+            return true;
+        }
+        final String pkg = entry.info.packageName.toLowerCase();
+        return pkg.startsWith(prefixStr) || pkg.indexOf("." + prefixStr) != -1;
+    }
+
+    private static String[] tokenize(AppEntry entry) {
+        final HashMap<String, Boolean> tokens = new HashMap<String, Boolean>();
+        for (String word : entry.getNormalizedLabel().split(" ")) {
+            if (word.length() > 0) {
+                tokens.put(word, Boolean.TRUE);
+            }
+        }
+        final String pkg = entry.info.packageName.toLowerCase();
+        int start = 0;
+        while (start < pkg.length()) {
+            int dot = pkg.indexOf('.', start);
+            // The tail from here, so "google.and" finds com.google.android.*
+            tokens.put(pkg.substring(start), Boolean.TRUE);
+            if (dot < 0) {
+                break;
+            }
+            start = dot + 1;
+        }
+        return tokens.keySet().toArray(new String[tokens.size()]);
+    }
+
+    private static boolean sameTokens(String[] a, String[] b) {
+        if (a.length != b.length) {
+            return false;
+        }
+        outer:
+        for (String token : a) {
+            for (String other : b) {
+                if (token.equals(other)) {
+                    continue outer;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+}
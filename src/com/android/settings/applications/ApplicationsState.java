@@ -23,13 +23,16 @@ import android.text.format.Formatter;
 import android.util.Log;
 
 import java.io.File;
+import java.text.CollationKey;
 import java.text.Collator;
 import java.text.Normalizer;
 import java.text.Normalizer.Form;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -46,11 +49,33 @@ public class ApplicationsState {
         public void onRunningStateChanged(boolean running);
         public void onPackageListChanged();
         public void onRebuildComplete(ArrayList<AppEntry> apps);
+        public void onListChanged(ChangeSet changes);
         public void onPackageIconChanged();
         public void onPackageSizeChanged(String packageName);
         public void onAllSizesComputed();
     }
 
+    /**
+     * Describes how a session's list changed since it was last delivered,
+     * either through {@link Callbacks#onRebuildComplete} or a previous
+     * change set.
+     */
+    public static class ChangeSet {
+        // The complete list after the change; owned by the receiver.
+        public final ArrayList<AppEntry> apps;
+        // Entries that were added to the list or moved within it.
+        public final ArrayList<AppEntry> inserted;
+        // Entries that are no longer in the list.
+        public final ArrayList<AppEntry> removed;
+
+        ChangeSet(ArrayList<AppEntry> apps, Collection<AppEntry> inserted,
+                Collection<AppEntry> removed) {
+            this.apps = apps;
+            this.inserted = new ArrayList<AppEntry>(inserted);
+            this.removed = new ArrayList<AppEntry>(removed);
+        }
+    }
+
     public static interface AppFilter {
         public void init();
         public boolean filterApp(ApplicationInfo info);
@@ -59,6 +84,13 @@ public class ApplicationsState {
     static final int SIZE_UNKNOWN = -1;
     static final int SIZE_INVALID = -2;
 
+    // Number of package size requests that may be outstanding at once.
+    static final int MAX_SIZE_REQUESTS = 4;
+
+    // How long a computed size is trusted before it is computed again;
+    // see isSizeStale().
+    static final long SIZE_MAX_AGE = 5*60*1000;
+
     static final Pattern REMOVE_DIACRITICALS_PATTERN
             = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
 
@@ -68,6 +100,15 @@ public class ApplicationsState {
                 .replaceAll("").toLowerCase();
     }
 
+    // Collator instances are not thread safe; synchronize on it.
+    static final Collator sCollator = Collator.getInstance();
+
+    static CollationKey getCollationKey(String label) {
+        synchronized (sCollator) {
+            return sCollator.getCollationKey(label);
+        }
+    }
+
     public static class SizeInfo {
         long cacheSize;
         long codeSize;
@@ -90,6 +131,7 @@ public class ApplicationsState {
         final File apkFile;
         final long id;
         String label;
+        CollationKey labelKey;
         long size;
         long internalSize;
         long externalSize;
@@ -112,6 +154,7 @@ public class ApplicationsState {
         String externalSizeStr;
         boolean sizeStale;
         long sizeLoadStart;
+        long sizeComputeTime;
 
         String normalizedLabel;
 
@@ -134,6 +177,9 @@ public class ApplicationsState {
                     CharSequence label = info.loadLabel(context.getPackageManager());
                     this.label = label != null ? label.toString() : info.packageName;
                 }
+                // Collate once here rather than on every comparison.
+                this.labelKey = getCollationKey(this.label);
+                this.normalizedLabel = null;
             }
         }
         
@@ -161,7 +207,6 @@ public class ApplicationsState {
     }
 
     public static final Comparator<AppEntry> ALPHA_COMPARATOR = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             final boolean normal1 = object1.info.enabled
@@ -171,40 +216,37 @@ public class ApplicationsState {
             if (normal1 != normal2) {
                 return normal1 ? -1 : 1;
             }
-            return sCollator.compare(object1.label, object2.label);
+            return object1.labelKey.compareTo(object2.labelKey);
         }
     };
 
     public static final Comparator<AppEntry> SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.size < object2.size) return 1;
             if (object1.size > object2.size) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return object1.labelKey.compareTo(object2.labelKey);
         }
     };
 
     public static final Comparator<AppEntry> INTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.internalSize < object2.internalSize) return 1;
             if (object1.internalSize > object2.internalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return object1.labelKey.compareTo(object2.labelKey);
         }
     };
 
     public static final Comparator<AppEntry> EXTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.externalSize < object2.externalSize) return 1;
             if (object1.externalSize > object2.externalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return object1.labelKey.compareTo(object2.labelKey);
         }
     };
 
@@ -268,20 +310,27 @@ public class ApplicationsState {
     final int mRetrieveFlags;
     PackageIntentReceiver mPackageIntentReceiver;
 
-    boolean mResumed;
-    boolean mHaveDisabledApps;
+    volatile boolean mResumed;
+    volatile boolean mHaveDisabledApps;
+
+    // Information about all applications.  The store is safe to use from
+    // any thread without further locking.
+    final AppEntryStore mEntries = new AppEntryStore();
 
-    // Information about all applications.  Synchronize on mEntriesMap
-    // to protect access to these.
+    // Session and resume state.  Synchronize on mLock to protect access
+    // to these.
+    final Object mLock = new Object();
     final ArrayList<Session> mSessions = new ArrayList<Session>();
     final ArrayList<Session> mRebuildingSessions = new ArrayList<Session>();
     final InterestingConfigChanges mInterestingConfigChanges = new InterestingConfigChanges();
-    final HashMap<String, AppEntry> mEntriesMap = new HashMap<String, AppEntry>();
-    final ArrayList<AppEntry> mAppEntries = new ArrayList<AppEntry>();
-    List<ApplicationInfo> mApplications = new ArrayList<ApplicationInfo>();
-    long mCurId = 1;
-    String mCurComputingSizePkg;
     boolean mSessionsChanged;
+    final HashSet<String> mChangedPackages = new HashSet<String>();
+
+    // Size computation state.  Synchronize on mSizeLock to protect access
+    // to these; never acquire another lock while holding it.
+    final Object mSizeLock = new Object();
+    final HashSet<String> mComputingSizePkgs = new HashSet<String>();
+    PackageSizeCache mSizeCache;
 
     // Temporary for dispatching session callbacks.  Only touched by main thread.
     final ArrayList<Session> mActiveSessions = new ArrayList<Session>();
@@ -315,6 +364,9 @@ public class ApplicationsState {
              } else if (Intent.ACTION_PACKAGE_REMOVED.equals(actionStr)) {
                  Uri data = intent.getData();
                  String pkgName = data.getEncodedSchemeSpecificPart();
+                 if (!intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                     forgetPackageSize(pkgName);
+                 }
                  removePackage(pkgName);
              } else if (Intent.ACTION_PACKAGE_CHANGED.equals(actionStr)) {
                  Uri data = intent.getData();
@@ -344,7 +396,7 @@ public class ApplicationsState {
     }
 
     void rebuildActiveSessions() {
-        synchronized (mEntriesMap) {
+        synchronized (mLock) {
             if (!mSessionsChanged) {
                 return;
             }
@@ -365,6 +417,7 @@ public class ApplicationsState {
         static final int MSG_PACKAGE_SIZE_CHANGED = 4;
         static final int MSG_ALL_SIZES_COMPUTED = 5;
         static final int MSG_RUNNING_STATE_CHANGED = 6;
+        static final int MSG_LIST_CHANGED = 7;
 
         @Override
         public void handleMessage(Message msg) {
@@ -376,6 +429,15 @@ public class ApplicationsState {
                         s.mCallbacks.onRebuildComplete(s.mLastAppList);
                     }
                 } break;
+                case MSG_LIST_CHANGED: {
+                    Session s = (Session)msg.obj;
+                    if (mActiveSessions.contains(s)) {
+                        ChangeSet changes = s.takeChanges();
+                        if (changes != null) {
+                            s.mCallbacks.onListChanged(changes);
+                        }
+                    }
+                } break;
                 case MSG_PACKAGE_LIST_CHANGED: {
                     for (int i=0; i<mActiveSessions.size(); i++) {
                         mActiveSessions.get(i).mCallbacks.onPackageListChanged();
@@ -455,9 +517,9 @@ public class ApplicationsState {
          * here, though, so this little trick will force it to turn into a real
          * lock immediately.
          */
-        synchronized (mEntriesMap) {
+        synchronized (mLock) {
             try {
-                mEntriesMap.wait(1);
+                mLock.wait(1);
             } catch (InterruptedException e) {
             }
         }
@@ -476,13 +538,24 @@ public class ApplicationsState {
         ArrayList<AppEntry> mRebuildResult;
         ArrayList<AppEntry> mLastAppList;
 
+        // Changes not yet delivered to the callbacks.  Synchronized on
+        // mRebuildSync.
+        final HashSet<AppEntry> mPendingInserted = new HashSet<AppEntry>();
+        final HashSet<AppEntry> mPendingRemoved = new HashSet<AppEntry>();
+
+        // The filtered and sorted list that package changes are applied to.
+        // Only touched by the background thread.
+        ArrayList<AppEntry> mList;
+        AppFilter mListFilter;
+        Comparator<AppEntry> mListComparator;
+
         Session(Callbacks callbacks) {
             mCallbacks = callbacks;
         }
 
         public void resume() {
             if (DEBUG_LOCKING) Log.v(TAG, "resume about to acquire lock...");
-            synchronized (mEntriesMap) {
+            synchronized (mLock) {
                 if (!mResumed) {
                     mResumed = true;
                     mSessionsChanged = true;
@@ -494,7 +567,7 @@ public class ApplicationsState {
 
         public void pause() {
             if (DEBUG_LOCKING) Log.v(TAG, "pause about to acquire lock...");
-            synchronized (mEntriesMap) {
+            synchronized (mLock) {
                 if (mResumed) {
                     mResumed = false;
                     mSessionsChanged = true;
@@ -508,7 +581,7 @@ public class ApplicationsState {
         // Creates a new list of app entries with the given filter and comparator.
         ArrayList<AppEntry> rebuild(AppFilter filter, Comparator<AppEntry> comparator) {
             synchronized (mRebuildSync) {
-                synchronized (mEntriesMap) {
+                synchronized (mLock) {
                     mRebuildingSessions.add(this);
                     mRebuildRequested = true;
                     mRebuildAsync = false;
@@ -563,34 +636,36 @@ public class ApplicationsState {
                 filter.init();
             }
             
-            List<ApplicationInfo> apps;
-            synchronized (mEntriesMap) {
-                apps = new ArrayList<ApplicationInfo>(mApplications);
-            }
+            // Works on a snapshot, so loaders never hold up the rebuild.
+            List<ApplicationInfo> apps = mEntries.applications();
 
             ArrayList<AppEntry> filteredApps = new ArrayList<AppEntry>();
             if (DEBUG) Log.i(TAG, "Rebuilding...");
             for (int i=0; i<apps.size(); i++) {
                 ApplicationInfo info = apps.get(i);
                 if (filter == null || filter.filterApp(info)) {
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
-                        AppEntry entry = getEntryLocked(info);
-                        entry.ensureLabel(mContext);
-                        if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
-                        filteredApps.add(entry);
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
-                    }
+                    AppEntry entry = obtainEntry(info);
+                    entry.ensureLabel(mContext);
+                    if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
+                    filteredApps.add(entry);
                 }
             }
 
             Collections.sort(filteredApps, comparator);
 
+            mList = filteredApps;
+            mListFilter = filter;
+            mListComparator = comparator;
+
             synchronized (mRebuildSync) {
                 if (!mRebuildRequested) {
-                    mLastAppList = filteredApps;
+                    mLastAppList = new ArrayList<AppEntry>(filteredApps);
+                    // The new list supersedes any change not delivered yet.
+                    mPendingInserted.clear();
+                    mPendingRemoved.clear();
+                    mMainHandler.removeMessages(MainHandler.MSG_LIST_CHANGED, this);
                     if (!mRebuildAsync) {
-                        mRebuildResult = filteredApps;
+                        mRebuildResult = mLastAppList;
                         mRebuildSync.notifyAll();
                     } else {
                         if (!mMainHandler.hasMessages(MainHandler.MSG_REBUILD_COMPLETE, this)) {
@@ -605,9 +680,103 @@ public class ApplicationsState {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
         }
 
+        // Brings the list in line with the current state of the given
+        // packages, moving only the entries that changed.
+        void handleChanges(Collection<String> pkgNames) {
+            if (mList == null) {
+                return;
+            }
+            boolean changed = false;
+            for (String pkgName : pkgNames) {
+                AppEntry entry = null;
+                ApplicationInfo info = mEntries.getApplication(pkgName);
+                if (info != null && (mListFilter == null || mListFilter.filterApp(info))) {
+                    entry = obtainEntry(info);
+                    entry.ensureLabel(mContext);
+                }
+                int idx = indexOfPackage(pkgName, entry);
+                if (idx >= 0) {
+                    AppEntry old = mList.get(idx);
+                    if (old == entry && isInOrder(idx)) {
+                        continue;
+                    }
+                    mList.remove(idx);
+                    synchronized (mRebuildSync) {
+                        mPendingInserted.remove(old);
+                        mPendingRemoved.add(old);
+                    }
+                    changed = true;
+                }
+                if (entry != null) {
+                    int pos = Collections.binarySearch(mList, entry, mListComparator);
+                    if (pos < 0) {
+                        pos = -pos - 1;
+                    }
+                    mList.add(pos, entry);
+                    synchronized (mRebuildSync) {
+                        mPendingRemoved.remove(entry);
+                        mPendingInserted.add(entry);
+                    }
+                    changed = true;
+                }
+            }
+            if (!changed) {
+                return;
+            }
+            if (DEBUG) Log.i(TAG, "Applied " + pkgNames.size() + " package changes");
+            synchronized (mRebuildSync) {
+                mLastAppList = new ArrayList<AppEntry>(mList);
+                if (!mMainHandler.hasMessages(MainHandler.MSG_LIST_CHANGED, this)) {
+                    Message msg = mMainHandler.obtainMessage(
+                            MainHandler.MSG_LIST_CHANGED, this);
+                    mMainHandler.sendMessage(msg);
+                }
+            }
+        }
+
+        ChangeSet takeChanges() {
+            synchronized (mRebuildSync) {
+                if (mPendingInserted.isEmpty() && mPendingRemoved.isEmpty()) {
+                    return null;
+                }
+                ChangeSet changes = new ChangeSet(mLastAppList,
+                        mPendingInserted, mPendingRemoved);
+                mPendingInserted.clear();
+                mPendingRemoved.clear();
+                return changes;
+            }
+        }
+
+        private int indexOfPackage(String pkgName, AppEntry entry) {
+            if (entry != null) {
+                // Fast path: the entry is still where its sort key says.
+                int idx = Collections.binarySearch(mList, entry, mListComparator);
+                if (idx >= 0 && mList.get(idx) == entry) {
+                    return idx;
+                }
+            }
+            for (int i=0; i<mList.size(); i++) {
+                if (mList.get(i).info.packageName.equals(pkgName)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean isInOrder(int idx) {
+            final AppEntry entry = mList.get(idx);
+            if (idx > 0 && mListComparator.compare(mList.get(idx-1), entry) > 0) {
+                return false;
+            }
+            if (idx < mList.size()-1 && mListComparator.compare(entry, mList.get(idx+1)) > 0) {
+                return false;
+            }
+            return true;
+        }
+
         public void release() {
             pause();
-            synchronized (mEntriesMap) {
+            synchronized (mLock) {
                 mSessions.remove(this);
             }
         }
@@ -615,7 +784,7 @@ public class ApplicationsState {
 
     public Session newSession(Callbacks callbacks) {
         Session s = new Session(callbacks);
-        synchronized (mEntriesMap) {
+        synchronized (mLock) {
             mSessions.add(s);
         }
         return s;
@@ -630,41 +799,46 @@ public class ApplicationsState {
             mPackageIntentReceiver = new PackageIntentReceiver();
             mPackageIntentReceiver.registerReceiver();
         }
-        mApplications = mPm.getInstalledApplications(mRetrieveFlags);
-        if (mApplications == null) {
-            mApplications = new ArrayList<ApplicationInfo>();
+        List<ApplicationInfo> apps = mPm.getInstalledApplications(mRetrieveFlags);
+        if (apps == null) {
+            apps = new ArrayList<ApplicationInfo>();
         }
 
         if (mInterestingConfigChanges.applyNewConfig(mContext.getResources())) {
             // If an interesting part of the configuration has changed, we
             // should completely reload the app entries.
-            mEntriesMap.clear();
-            mAppEntries.clear();
-        } else {
-            for (int i=0; i<mAppEntries.size(); i++) {
-                mAppEntries.get(i).sizeStale = true;
-            }
+            mEntries.clearEntries();
         }
 
-        mHaveDisabledApps = false;
-        for (int i=0; i<mApplications.size(); i++) {
-            final ApplicationInfo info = mApplications.get(i);
+        final long now = System.currentTimeMillis();
+
+        boolean haveDisabledApps = false;
+        for (int i=0; i<apps.size(); i++) {
+            final ApplicationInfo info = apps.get(i);
             // Need to trim out any applications that are disabled by
             // something different than the user.
             if (!info.enabled) {
                 if (info.enabledSetting != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER) {
-                    mApplications.remove(i);
+                    apps.remove(i);
                     i--;
                     continue;
                 }
-                mHaveDisabledApps = true;
+                haveDisabledApps = true;
             }
-            final AppEntry entry = mEntriesMap.get(info.packageName);
+            final AppEntry entry = mEntries.getEntry(info.packageName);
             if (entry != null) {
+                if (!entry.apkFile.getPath().equals(info.sourceDir)
+                        || isSizeStale(entry, now)) {
+                    entry.sizeStale = true;
+                }
                 entry.info = info;
             }
         }
-        mCurComputingSizePkg = null;
+        mHaveDisabledApps = haveDisabledApps;
+        mEntries.setApplications(apps);
+        synchronized (mSizeLock) {
+            mComputingSizePkgs.clear();
+        }
         if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
             mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
         }
@@ -691,21 +865,14 @@ public class ApplicationsState {
     }
 
     AppEntry getEntry(String packageName) {
-        if (DEBUG_LOCKING) Log.v(TAG, "getEntry about to acquire lock...");
-        synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry == null) {
-                for (int i=0; i<mApplications.size(); i++) {
-                    ApplicationInfo info = mApplications.get(i);
-                    if (packageName.equals(info.packageName)) {
-                        entry = getEntryLocked(info);
-                        break;
-                    }
-                }
+        AppEntry entry = mEntries.getEntry(packageName);
+        if (entry == null) {
+            ApplicationInfo info = mEntries.getApplication(packageName);
+            if (info != null) {
+                entry = obtainEntry(info);
             }
-            if (DEBUG_LOCKING) Log.v(TAG, "...getEntry releasing lock");
-            return entry;
         }
+        return entry;
     }
     
     void ensureIcon(AppEntry entry) {
@@ -718,104 +885,74 @@ public class ApplicationsState {
     }
     
     void requestSize(String packageName) {
-        if (DEBUG_LOCKING) Log.v(TAG, "requestSize about to acquire lock...");
-        synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry != null) {
-                mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
-            }
-            if (DEBUG_LOCKING) Log.v(TAG, "...requestSize releasing lock");
+        if (mEntries.getEntry(packageName) != null) {
+            mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
         }
     }
 
     long sumCacheSizes() {
         long sum = 0;
-        if (DEBUG_LOCKING) Log.v(TAG, "sumCacheSizes about to acquire lock...");
-        synchronized (mEntriesMap) {
-            if (DEBUG_LOCKING) Log.v(TAG, "-> sumCacheSizes now has lock");
-            for (int i=mAppEntries.size()-1; i>=0; i--) {
-                sum += mAppEntries.get(i).cacheSize;
-            }
-            if (DEBUG_LOCKING) Log.v(TAG, "...sumCacheSizes releasing lock");
+        final List<AppEntry> entries = mEntries.entries();
+        for (int i=entries.size()-1; i>=0; i--) {
+            sum += entries.get(i).cacheSize;
         }
         return sum;
     }
-    
-    int indexOfApplicationInfoLocked(String pkgName) {
-        for (int i=mApplications.size()-1; i>=0; i--) {
-            if (mApplications.get(i).packageName.equals(pkgName)) {
-                return i;
-            }
-        }
-        return -1;
-    }
 
     void addPackage(String pkgName) {
+        if (DEBUG) Log.i(TAG, "Adding package " + pkgName);
+        if (!mResumed) {
+            // If we are not resumed, we will do a full query the
+            // next time we resume, so there is no reason to do work
+            // here.
+            return;
+        }
+        if (mEntries.containsApplication(pkgName)) {
+            if (DEBUG) Log.i(TAG, "Package already exists!");
+            return;
+        }
+        ApplicationInfo info;
         try {
-            synchronized (mEntriesMap) {
-                if (DEBUG_LOCKING) Log.v(TAG, "addPackage acquired lock");
-                if (DEBUG) Log.i(TAG, "Adding package " + pkgName);
-                if (!mResumed) {
-                    // If we are not resumed, we will do a full query the
-                    // next time we resume, so there is no reason to do work
-                    // here.
-                    if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: not resumed");
-                    return;
-                }
-                if (indexOfApplicationInfoLocked(pkgName) >= 0) {
-                    if (DEBUG) Log.i(TAG, "Package already exists!");
-                    if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: already exists");
-                    return;
-                }
-                ApplicationInfo info = mPm.getApplicationInfo(pkgName, mRetrieveFlags);
-                if (!info.enabled) {
-                    if (info.enabledSetting
-                            != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER) {
-                        return;
-                    }
-                    mHaveDisabledApps = true;
-                }
-                mApplications.add(info);
-                if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
-                    mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
-                }
-                if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
-                    mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
-                }
-                if (DEBUG_LOCKING) Log.v(TAG, "addPackage releasing lock");
-            }
+            info = mPm.getApplicationInfo(pkgName, mRetrieveFlags);
         } catch (NameNotFoundException e) {
+            return;
+        }
+        if (!info.enabled) {
+            if (info.enabledSetting
+                    != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER) {
+                return;
+            }
+            mHaveDisabledApps = true;
+        }
+        mEntries.putApplication(info);
+        notifyPackageChanged(pkgName);
+        if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
+            mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
+        }
+        if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
+            mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
         }
     }
 
     void removePackage(String pkgName) {
-        synchronized (mEntriesMap) {
-            if (DEBUG_LOCKING) Log.v(TAG, "removePackage acquired lock");
-            int idx = indexOfApplicationInfoLocked(pkgName);
-            if (DEBUG) Log.i(TAG, "removePackage: " + pkgName + " @ " + idx);
-            if (idx >= 0) {
-                AppEntry entry = mEntriesMap.get(pkgName);
-                if (DEBUG) Log.i(TAG, "removePackage: " + entry);
-                if (entry != null) {
-                    mEntriesMap.remove(pkgName);
-                    mAppEntries.remove(entry);
-                }
-                ApplicationInfo info = mApplications.get(idx);
-                mApplications.remove(idx);
-                if (!info.enabled) {
-                    mHaveDisabledApps = false;
-                    for (int i=0; i<mApplications.size(); i++) {
-                        if (!mApplications.get(i).enabled) {
-                            mHaveDisabledApps = true;
-                            break;
-                        }
+        ApplicationInfo info = mEntries.removePackage(pkgName);
+        if (DEBUG) Log.i(TAG, "removePackage: " + pkgName + " -> " + info);
+        if (info != null) {
+            if (!info.enabled) {
+                boolean haveDisabledApps = false;
+                final List<ApplicationInfo> apps = mEntries.applications();
+                for (int i=0; i<apps.size(); i++) {
+                    if (!apps.get(i).enabled) {
+                        haveDisabledApps = true;
+                        break;
                     }
                 }
-                if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
-                    mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
-                }
+                mHaveDisabledApps = haveDisabledApps;
+            }
+            notifyPackageChanged(pkgName);
+            if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
+                mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
             }
-            if (DEBUG_LOCKING) Log.v(TAG, "removePackage releasing lock");
         }
     }
 
@@ -823,15 +960,89 @@ public class ApplicationsState {
         removePackage(pkgName);
         addPackage(pkgName);
     }
-    
-    AppEntry getEntryLocked(ApplicationInfo info) {
-        AppEntry entry = mEntriesMap.get(info.packageName);
+
+    // Queues a package whose membership or sort position may have changed,
+    // to be applied to each session's list on the background thread.
+    void notifyPackageChanged(String pkgName) {
+        synchronized (mLock) {
+            mChangedPackages.add(pkgName);
+        }
+        if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_APPLY_CHANGES)) {
+            mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_APPLY_CHANGES);
+        }
+    }
+
+    void forgetPackageSize(String pkgName) {
+        synchronized (mSizeLock) {
+            if (mSizeCache != null) {
+                mSizeCache.remove(pkgName);
+            }
+        }
+    }
+
+    // Whether a computed size is to be recomputed before it is trusted: when
+    // the apk or the app's data directory has changed since, or when it is
+    // older than SIZE_MAX_AGE.  Changes deeper in the data, including cache,
+    // may thus be shown up to SIZE_MAX_AGE out of date.
+    static boolean isSizeStale(AppEntry entry, long now) {
+        if (Math.abs(now - entry.sizeComputeTime) > SIZE_MAX_AGE
+                || entry.apkFile.lastModified() > entry.sizeComputeTime) {
+            return true;
+        }
+        final String dataDir = entry.info.dataDir;
+        return dataDir != null && new File(dataDir).lastModified() > entry.sizeComputeTime;
+    }
+
+    // Fills in the sizes of a new entry from the persisted snapshot, if the
+    // snapshot was taken against the currently installed apk.
+    boolean applyCachedSize(AppEntry entry, long now) {
+        if (entry.size != SIZE_UNKNOWN) {
+            return false;
+        }
+        final long stamp = entry.apkFile.lastModified();
+        PackageSizeCache.Entry cached;
+        synchronized (mSizeLock) {
+            if (mSizeCache == null) {
+                return false;
+            }
+            cached = mSizeCache.get(entry.info.packageName, stamp);
+        }
+        if (cached == null) {
+            return false;
+        }
+        synchronized (entry) {
+            if (entry.size != SIZE_UNKNOWN) {
+                return false;
+            }
+            entry.size = cached.size;
+            entry.internalSize = cached.internalSize;
+            entry.externalSize = cached.externalSize;
+            entry.cacheSize = cached.cacheSize;
+            entry.codeSize = cached.codeSize;
+            entry.dataSize = cached.dataSize;
+            entry.externalCodeSize = cached.externalCodeSize;
+            entry.externalDataSize = cached.externalDataSize;
+            entry.externalCacheSize = cached.externalCacheSize;
+            entry.sizeStr = getSizeStr(entry.size);
+            entry.internalSizeStr = getSizeStr(entry.internalSize);
+            entry.externalSizeStr = getSizeStr(entry.externalSize);
+            entry.sizeComputeTime = cached.computeTime;
+            entry.sizeStale = isSizeStale(entry, now);
+        }
+        if (DEBUG) Log.i(TAG, "Using cached size of " + entry.info.packageName
+                + ": " + entry.sizeStr + (entry.sizeStale ? " (stale)" : ""));
+        return true;
+    }
+
+    AppEntry obtainEntry(ApplicationInfo info) {
+        AppEntry entry = mEntries.getEntry(info.packageName);
         if (DEBUG) Log.i(TAG, "Looking up entry of pkg " + info.packageName + ": " + entry);
         if (entry == null) {
             if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
-            entry = new AppEntry(mContext, info, mCurId++);
-            mEntriesMap.put(info.packageName, entry);
-            mAppEntries.add(entry);
+            entry = new AppEntry(mContext, info, mEntries.nextId());
+            applyCachedSize(entry, System.currentTimeMillis());
+            // Another thread may have raced us to it; keep the first one.
+            entry = mEntries.putEntryIfAbsent(entry);
         } else if (entry.info != info) {
             entry.info = info;
         }
@@ -872,61 +1083,76 @@ public class ApplicationsState {
         static final int MSG_LOAD_ENTRIES = 2;
         static final int MSG_LOAD_ICONS = 3;
         static final int MSG_LOAD_SIZES = 4;
+        static final int MSG_SAVE_SIZES = 5;
+        static final int MSG_APPLY_CHANGES = 6;
+
+        // Delay before newly computed sizes are written out, so that a
+        // burst of results ends up in a single write.
+        static final long SAVE_SIZES_DELAY = 5*1000;
 
         boolean mRunning;
 
         final IPackageStatsObserver.Stub mStatsObserver = new IPackageStatsObserver.Stub() {
             public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
                 boolean sizeChanged = false;
-                synchronized (mEntriesMap) {
-                    if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted acquired lock");
-                    AppEntry entry = mEntriesMap.get(stats.packageName);
-                    if (entry != null) {
-                        synchronized (entry) {
-                            entry.sizeStale = false;
-                            entry.sizeLoadStart = 0;
-                            long externalCodeSize = stats.externalCodeSize
-                                    + stats.externalObbSize;
-                            long externalDataSize = stats.externalDataSize
-                                    + stats.externalMediaSize;
-                            long newSize = externalCodeSize + externalDataSize
-                                    + getTotalInternalSize(stats);
-                            if (entry.size != newSize ||
-                                    entry.cacheSize != stats.cacheSize ||
-                                    entry.codeSize != stats.codeSize ||
-                                    entry.dataSize != stats.dataSize ||
-                                    entry.externalCodeSize != externalCodeSize ||
-                                    entry.externalDataSize != externalDataSize ||
-                                    entry.externalCacheSize != stats.externalCacheSize) {
-                                entry.size = newSize;
-                                entry.cacheSize = stats.cacheSize;
-                                entry.codeSize = stats.codeSize;
-                                entry.dataSize = stats.dataSize;
-                                entry.externalCodeSize = externalCodeSize;
-                                entry.externalDataSize = externalDataSize;
-                                entry.externalCacheSize = stats.externalCacheSize;
-                                entry.sizeStr = getSizeStr(entry.size);
-                                entry.internalSize = getTotalInternalSize(stats);
-                                entry.internalSizeStr = getSizeStr(entry.internalSize);
-                                entry.externalSize = getTotalExternalSize(stats);
-                                entry.externalSizeStr = getSizeStr(entry.externalSize);
-                                if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
-                                        + ": " + entry.sizeStr);
-                                sizeChanged = true;
-                            }
+                PackageSizeCache.Entry cached = null;
+                AppEntry entry = mEntries.getEntry(stats.packageName);
+                if (entry != null) {
+                    synchronized (entry) {
+                        entry.sizeStale = false;
+                        entry.sizeLoadStart = 0;
+                        long externalCodeSize = stats.externalCodeSize
+                                + stats.externalObbSize;
+                        long externalDataSize = stats.externalDataSize
+                                + stats.externalMediaSize;
+                        long newSize = externalCodeSize + externalDataSize
+                                + getTotalInternalSize(stats);
+                        if (entry.size != newSize ||
+                                entry.cacheSize != stats.cacheSize ||
+                                entry.codeSize != stats.codeSize ||
+                                entry.dataSize != stats.dataSize ||
+                                entry.externalCodeSize != externalCodeSize ||
+                                entry.externalDataSize != externalDataSize ||
+                                entry.externalCacheSize != stats.externalCacheSize) {
+                            entry.size = newSize;
+                            entry.cacheSize = stats.cacheSize;
+                            entry.codeSize = stats.codeSize;
+                            entry.dataSize = stats.dataSize;
+                            entry.externalCodeSize = externalCodeSize;
+                            entry.externalDataSize = externalDataSize;
+                            entry.externalCacheSize = stats.externalCacheSize;
+                            entry.sizeStr = getSizeStr(entry.size);
+                            entry.internalSize = getTotalInternalSize(stats);
+                            entry.internalSizeStr = getSizeStr(entry.internalSize);
+                            entry.externalSize = getTotalExternalSize(stats);
+                            entry.externalSizeStr = getSizeStr(entry.externalSize);
+                            if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
+                                    + ": " + entry.sizeStr);
+                            sizeChanged = true;
                         }
-                        if (sizeChanged) {
-                            Message msg = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
-                            mMainHandler.sendMessage(msg);
+                        entry.sizeComputeTime = System.currentTimeMillis();
+                        if (succeeded) {
+                            cached = buildCachedSizeLocked(entry);
+                        }
+                    }
+                    if (sizeChanged) {
+                        Message msg = mMainHandler.obtainMessage(
+                                MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
+                        mMainHandler.sendMessage(msg);
+                        notifyPackageChanged(stats.packageName);
+                    }
+                }
+                synchronized (mSizeLock) {
+                    if (cached != null && mSizeCache != null) {
+                        mSizeCache.put(stats.packageName, cached);
+                        if (!hasMessages(MSG_SAVE_SIZES)) {
+                            sendEmptyMessageDelayed(MSG_SAVE_SIZES, SAVE_SIZES_DELAY);
                         }
                     }
-                    if (mCurComputingSizePkg == null
-                            || mCurComputingSizePkg.equals(stats.packageName)) {
-                        mCurComputingSizePkg = null;
+                    if (mComputingSizePkgs.remove(stats.packageName)
+                            || mComputingSizePkgs.isEmpty()) {
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
-                    if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted releasing lock");
                 }
             }
         };
@@ -935,11 +1161,48 @@ public class ApplicationsState {
             super(looper);
         }
 
+        PackageSizeCache.Entry buildCachedSizeLocked(AppEntry entry) {
+            PackageSizeCache.Entry cached = new PackageSizeCache.Entry();
+            cached.stamp = entry.apkFile.lastModified();
+            cached.computeTime = entry.sizeComputeTime;
+            cached.size = entry.size;
+            cached.internalSize = entry.internalSize;
+            cached.externalSize = entry.externalSize;
+            cached.cacheSize = entry.cacheSize;
+            cached.codeSize = entry.codeSize;
+            cached.dataSize = entry.dataSize;
+            cached.externalCodeSize = entry.externalCodeSize;
+            cached.externalDataSize = entry.externalDataSize;
+            cached.externalCacheSize = entry.externalCacheSize;
+            return cached;
+        }
+
+        void loadSizeCache() {
+            synchronized (mSizeLock) {
+                if (mSizeCache != null) {
+                    return;
+                }
+            }
+            PackageSizeCache cache = new PackageSizeCache(mContext.getCacheDir());
+            cache.load();
+            synchronized (mSizeLock) {
+                mSizeCache = cache;
+            }
+            final long now = System.currentTimeMillis();
+            final List<AppEntry> entries = mEntries.entries();
+            for (int i=0; i<entries.size(); i++) {
+                AppEntry entry = entries.get(i);
+                if (applyCachedSize(entry, now)) {
+                    notifyPackageChanged(entry.info.packageName);
+                }
+            }
+        }
+
         @Override
         public void handleMessage(Message msg) {
             // Always try rebuilding list first thing, if needed.
             ArrayList<Session> rebuildingSessions = null;
-            synchronized (mEntriesMap) {
+            synchronized (mLock) {
                 if (mRebuildingSessions.size() > 0) {
                     rebuildingSessions = new ArrayList<Session>(mRebuildingSessions);
                     mRebuildingSessions.clear();
@@ -954,24 +1217,39 @@ public class ApplicationsState {
             switch (msg.what) {
                 case MSG_REBUILD_LIST: {
                 } break;
+                case MSG_APPLY_CHANGES: {
+                    // Paused sessions are kept current too, so their list is
+                    // still valid if they resume without rebuilding.
+                    ArrayList<String> pkgNames;
+                    ArrayList<Session> sessions;
+                    synchronized (mLock) {
+                        if (mChangedPackages.isEmpty()) {
+                            return;
+                        }
+                        pkgNames = new ArrayList<String>(mChangedPackages);
+                        mChangedPackages.clear();
+                        sessions = new ArrayList<Session>(mSessions);
+                    }
+                    for (int i=0; i<sessions.size(); i++) {
+                        sessions.get(i).handleChanges(pkgNames);
+                    }
+                } break;
                 case MSG_LOAD_ENTRIES: {
+                    loadSizeCache();
                     int numDone = 0;
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES acquired lock");
-                        for (int i=0; i<mApplications.size() && numDone<6; i++) {
-                            if (!mRunning) {
-                                mRunning = true;
-                                Message m = mMainHandler.obtainMessage(
-                                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                mMainHandler.sendMessage(m);
-                            }
-                            ApplicationInfo info = mApplications.get(i);
-                            if (mEntriesMap.get(info.packageName) == null) {
-                                numDone++;
-                                getEntryLocked(info);
-                            }
+                    final List<ApplicationInfo> apps = mEntries.applications();
+                    for (int i=0; i<apps.size() && numDone<6; i++) {
+                        if (!mRunning) {
+                            mRunning = true;
+                            Message m = mMainHandler.obtainMessage(
+                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                            mMainHandler.sendMessage(m);
+                        }
+                        ApplicationInfo info = apps.get(i);
+                        if (mEntries.getEntry(info.packageName) == null) {
+                            numDone++;
+                            obtainEntry(info);
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES releasing lock");
                     }
 
                     if (numDone >= 6) {
@@ -982,25 +1260,22 @@ public class ApplicationsState {
                 } break;
                 case MSG_LOAD_ICONS: {
                     int numDone = 0;
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS acquired lock");
-                        for (int i=0; i<mAppEntries.size() && numDone<2; i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.icon == null || !entry.mounted) {
-                                synchronized (entry) {
-                                    if (entry.ensureIconLocked(mContext, mPm)) {
-                                        if (!mRunning) {
-                                            mRunning = true;
-                                            Message m = mMainHandler.obtainMessage(
-                                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                            mMainHandler.sendMessage(m);
-                                        }
-                                        numDone++;
+                    final List<AppEntry> entries = mEntries.entries();
+                    for (int i=0; i<entries.size() && numDone<2; i++) {
+                        AppEntry entry = entries.get(i);
+                        if (entry.icon == null || !entry.mounted) {
+                            synchronized (entry) {
+                                if (entry.ensureIconLocked(mContext, mPm)) {
+                                    if (!mRunning) {
+                                        mRunning = true;
+                                        Message m = mMainHandler.obtainMessage(
+                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                                        mMainHandler.sendMessage(m);
                                     }
+                                    numDone++;
                                 }
                             }
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS releasing lock");
                     }
                     if (numDone > 0) {
                         if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
@@ -1014,41 +1289,73 @@ public class ApplicationsState {
                     }
                 } break;
                 case MSG_LOAD_SIZES: {
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES acquired lock");
-                        if (mCurComputingSizePkg != null) {
-                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
-                            return;
-                        }
-
-                        long now = SystemClock.uptimeMillis();
-                        for (int i=0; i<mAppEntries.size(); i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
-                                if (entry.sizeLoadStart == 0 ||
-                                        (entry.sizeLoadStart < (now-20*1000))) {
-                                    if (!mRunning) {
-                                        mRunning = true;
-                                        Message m = mMainHandler.obtainMessage(
-                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                        mMainHandler.sendMessage(m);
-                                    }
-                                    entry.sizeLoadStart = now;
-                                    mCurComputingSizePkg = entry.info.packageName;
-                                    mPm.getPackageSizeInfo(mCurComputingSizePkg, mStatsObserver);
+                    // Keep up to MAX_SIZE_REQUESTS size requests in flight;
+                    // each completion sends another MSG_LOAD_SIZES.
+                    ArrayList<String> toRequest = null;
+                    boolean pending = false;
+                    long now = SystemClock.uptimeMillis();
+                    final List<AppEntry> entries = mEntries.entries();
+                    synchronized (mSizeLock) {
+                        for (int i=0; i<entries.size(); i++) {
+                            AppEntry entry = entries.get(i);
+                            if (entry.size != SIZE_UNKNOWN && !entry.sizeStale) {
+                                continue;
+                            }
+                            pending = true;
+                            final String pkgName = entry.info.packageName;
+                            final boolean computing = mComputingSizePkgs.contains(pkgName);
+                            if (!computing && mComputingSizePkgs.size() >= MAX_SIZE_REQUESTS) {
+                                continue;
+                            }
+                            if (entry.sizeLoadStart == 0 ||
+                                    (entry.sizeLoadStart < (now-20*1000))) {
+                                entry.sizeLoadStart = now;
+                                mComputingSizePkgs.add(pkgName);
+                                if (toRequest == null) {
+                                    toRequest = new ArrayList<String>();
                                 }
-                                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
-                                return;
+                                toRequest.add(pkgName);
                             }
                         }
-                        if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
-                            mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
-                            mRunning = false;
+                        pending |= !mComputingSizePkgs.isEmpty();
+                    }
+                    if (toRequest != null) {
+                        if (!mRunning) {
+                            mRunning = true;
                             Message m = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
+                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
                             mMainHandler.sendMessage(m);
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
+                        for (int i=0; i<toRequest.size(); i++) {
+                            mPm.getPackageSizeInfo(toRequest.get(i), mStatsObserver);
+                        }
+                    }
+                    if (pending) {
+                        return;
+                    }
+                    if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
+                        mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
+                        mRunning = false;
+                        Message m = mMainHandler.obtainMessage(
+                                MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
+                        mMainHandler.sendMessage(m);
+                    }
+                    removeMessages(MSG_SAVE_SIZES);
+                    sendEmptyMessage(MSG_SAVE_SIZES);
+                } break;
+                case MSG_SAVE_SIZES: {
+                    // Only copy the entries under the lock, so that sizes
+                    // coming in are not held up by the write.
+                    final PackageSizeCache cache;
+                    final HashMap<String, PackageSizeCache.Entry> snapshot;
+                    synchronized (mSizeLock) {
+                        cache = mSizeCache;
+                        snapshot = cache != null ? cache.takeSnapshot() : null;
+                    }
+                    if (snapshot != null && !cache.write(snapshot)) {
+                        synchronized (mSizeLock) {
+                            cache.setDirty();
+                        }
                     }
                 } break;
             }
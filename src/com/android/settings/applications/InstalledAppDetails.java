@@ -602,6 +602,9 @@ public class InstalledAppDetails extends Fragment
         mSession.resume();
         if (!refreshUi()) {
             setIntentAndFinish(true, true);
+        } else {
+            // The sizes, cache included, shown here are always recomputed
+            mState.requestSize(mAppEntry.info.packageName);
         }
     }
 
@@ -628,6 +631,10 @@ public class InstalledAppDetails extends Fragment
     public void onRebuildComplete(ArrayList<AppEntry> apps) {
     }
 
+    @Override
+    public void onListChanged(ApplicationsState.ChangeSet changes) {
+    }
+
     @Override
     public void onPackageSizeChanged(String packageName) {
         if (packageName.equals(mAppEntry.info.packageName)) {
@@ -1349,6 +1356,7 @@ public class InstalledAppDetails extends Fragment
     private void setPrivacyGuard(boolean enabled) {
         mAppOps.setPrivacyGuardSettingForPackage(
             mAppEntry.info.uid, mAppEntry.info.packageName, enabled);
+        AppOpsState.invalidateOps();
     }
 
     private void setHaloState(boolean state) {
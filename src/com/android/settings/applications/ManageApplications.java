@@ -539,8 +539,8 @@ public class ManageApplications extends Fragment implements
         private final Context mContext;
         private final ArrayList<View> mActive = new ArrayList<View>();
         private final int mFilterMode;
-        private ArrayList<ApplicationsState.AppEntry> mBaseEntries;
         private ArrayList<ApplicationsState.AppEntry> mEntries;
+        private final AppSearchIndex mSearchIndex = new AppSearchIndex();
         private boolean mResumed;
         private int mLastSortMode=-1;
         private boolean mWaitingForData;
@@ -551,10 +551,10 @@ public class ManageApplications extends Fragment implements
             @Override
             protected FilterResults performFiltering(CharSequence constraint) {
                 ArrayList<ApplicationsState.AppEntry> entries
-                        = applyPrefixFilter(constraint, mBaseEntries);
+                        = mSearchIndex.filter(constraint);
                 FilterResults fr = new FilterResults();
                 fr.values = entries;
-                fr.count = entries.size();
+                fr.count = entries != null ? entries.size() : 0;
                 return fr;
             }
 
@@ -653,12 +653,8 @@ public class ManageApplications extends Fragment implements
                 // Don't have new list yet, but can continue using the old one.
                 return;
             }
-            mBaseEntries = entries;
-            if (mBaseEntries != null) {
-                mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
-            } else {
-                mEntries = null;
-            }
+            mSearchIndex.setEntries(entries);
+            mEntries = mSearchIndex.filter(mCurFilterPrefix);
             notifyDataSetChanged();
             mTab.updateStorageUsage();
 
@@ -672,26 +668,6 @@ public class ManageApplications extends Fragment implements
             }
         }
 
-        ArrayList<ApplicationsState.AppEntry> applyPrefixFilter(CharSequence prefix,
-                ArrayList<ApplicationsState.AppEntry> origEntries) {
-            if (prefix == null || prefix.length() == 0) {
-                return origEntries;
-            } else {
-                String prefixStr = ApplicationsState.normalize(prefix.toString());
-                final String spacePrefixStr = " " + prefixStr;
-                ArrayList<ApplicationsState.AppEntry> newEntries
-                        = new ArrayList<ApplicationsState.AppEntry>();
-                for (int i=0; i<origEntries.size(); i++) {
-                    ApplicationsState.AppEntry entry = origEntries.get(i);
-                    String nlabel = entry.getNormalizedLabel();
-                    if (nlabel.startsWith(prefixStr) || nlabel.indexOf(spacePrefixStr) != -1) {
-                        newEntries.add(entry);
-                    }
-                }
-                return newEntries;
-            }
-        }
-
         @Override
         public void onRunningStateChanged(boolean running) {
             mTab.mOwner.getActivity().setProgressBarIndeterminateVisibility(running);
@@ -708,15 +684,27 @@ public class ManageApplications extends Fragment implements
             mTab.mListContainer.setVisibility(View.VISIBLE);
             mTab.mLoadingContainer.setVisibility(View.GONE);
             mWaitingForData = false;
-            mBaseEntries = apps;
-            mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
+            mSearchIndex.setEntries(apps);
+            mEntries = mSearchIndex.filter(mCurFilterPrefix);
+            notifyDataSetChanged();
+            mTab.updateStorageUsage();
+        }
+
+        @Override
+        public void onListChanged(ApplicationsState.ChangeSet changes) {
+            if (mWaitingForData) {
+                // A full rebuild is on its way.
+                return;
+            }
+            mSearchIndex.update(changes.apps, changes.inserted, changes.removed);
+            mEntries = mSearchIndex.filter(mCurFilterPrefix);
             notifyDataSetChanged();
             mTab.updateStorageUsage();
         }
 
         @Override
         public void onPackageListChanged() {
-            rebuild(false);
+            // Added and removed packages reach us through onListChanged.
         }
 
         @Override
@@ -733,14 +721,8 @@ public class ManageApplications extends Fragment implements
                     synchronized (holder.entry) {
                         holder.updateSizeText(mTab.mInvalidSizeStr, mWhichSize);
                     }
-                    if (holder.entry.info.packageName.equals(mTab.mOwner.mCurrentPkgName)
-                            && mLastSortMode == SORT_ORDER_SIZE) {
-                        // We got the size information for the last app the
-                        // user viewed, and are sorting by size...  they may
-                        // have cleared data, so we immediately want to resort
-                        // the list with the new size to reflect it to the user.
-                        rebuild(false);
-                    }
+                    // If we are sorting by size, the session moves the entry
+                    // and reports it through onListChanged.
                     mTab.updateStorageUsage();
                     return;
                 }
@@ -749,9 +731,6 @@ public class ManageApplications extends Fragment implements
 
         @Override
         public void onAllSizesComputed() {
-            if (mLastSortMode == SORT_ORDER_SIZE) {
-                rebuild(false);
-            }
             mTab.updateStorageUsage();
         }
         
@@ -1159,6 +1138,7 @@ public class ManageApplications extends Fragment implements
                     } catch (RemoteException e) {
                     }
                     aom.resetAllModes();
+                    AppOpsState.invalidateOps();
                     final int[] restrictedUids = npm.getUidsWithPolicy(
                             POLICY_REJECT_METERED_BACKGROUND);
                     final int currentUserId = ActivityManager.getCurrentUser();
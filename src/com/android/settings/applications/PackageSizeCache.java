@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Disk-backed snapshot of computed package sizes.  Entries are keyed by
+ * package name and stamped with the modification time of the package's
+ * apk, so a snapshot is only reused while the installed package is
+ * unchanged.  Not thread safe; callers synchronize externally, except
+ * for {@link #write}, which only touches the snapshot it is given.
+ */
+class PackageSizeCache {
+    static final String TAG = "PackageSizeCache";
+
+    private static final String FILE_NAME = "package_sizes";
+    private static final int VERSION = 1;
+
+    static class Entry {
+        long stamp;
+        long computeTime;
+        long size;
+        long internalSize;
+        long externalSize;
+        long cacheSize;
+        long codeSize;
+        long dataSize;
+        long externalCodeSize;
+        long externalDataSize;
+        long externalCacheSize;
+    }
+
+    private final AtomicFile mFile;
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    PackageSizeCache(File dir) {
+        mFile = new AtomicFile(new File(dir, FILE_NAME));
+    }
+
+    boolean isLoaded() {
+        return mLoaded;
+    }
+
+    boolean isDirty() {
+        return mDirty;
+    }
+
+    /**
+     * Returns the cached sizes of the given package, or null if there is
+     * no snapshot or it was taken against a different version of the apk.
+     */
+    Entry get(String packageName, long stamp) {
+        Entry entry = mEntries.get(packageName);
+        if (entry != null && entry.stamp != stamp) {
+            mEntries.remove(packageName);
+            mDirty = true;
+            return null;
+        }
+        return entry;
+    }
+
+    void put(String packageName, Entry entry) {
+        mEntries.put(packageName, entry);
+        mDirty = true;
+    }
+
+    void remove(String packageName) {
+        if (mEntries.remove(packageName) != null) {
+            mDirty = true;
+        }
+    }
+
+    void load() {
+        mLoaded = true;
+        mEntries.clear();
+        DataInputStream in = null;
+        try {
+            FileInputStream fis = mFile.openRead();
+            in = new DataInputStream(new BufferedInputStream(fis));
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String packageName = in.readUTF();
+                Entry entry = new Entry();
+                entry.stamp = in.readLong();
+                entry.computeTime = in.readLong();
+                entry.size = in.readLong();
+                entry.internalSize = in.readLong();
+                entry.externalSize = in.readLong();
+                entry.cacheSize = in.readLong();
+                entry.codeSize = in.readLong();
+                entry.dataSize = in.readLong();
+                entry.externalCodeSize = in.readLong();
+                entry.externalDataSize = in.readLong();
+                entry.externalCacheSize = in.readLong();
+                mEntries.put(packageName, entry);
+            }
+        } catch (FileNotFoundException e) {
+            // No snapshot yet.
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read package size snapshot", e);
+            mEntries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        mDirty = false;
+    }
+
+    void setDirty() {
+        mDirty = true;
+    }
+
+    /**
+     * Returns a copy of the entries to hand to {@link #write}, or null if
+     * nothing changed since the last one.  The cache counts as saved from
+     * here on; call {@link #setDirty} if the write fails.
+     */
+    HashMap<String, Entry> takeSnapshot() {
+        if (!mDirty) {
+            return null;
+        }
+        mDirty = false;
+        return new HashMap<String, Entry>(mEntries);
+    }
+
+    /**
+     * Writes a snapshot taken by {@link #takeSnapshot}.  Needs no lock, but
+     * must not run concurrently with another write or a load.
+     */
+    boolean write(Map<String, Entry> entries) {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                final Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.stamp);
+                out.writeLong(entry.computeTime);
+                out.writeLong(entry.size);
+                out.writeLong(entry.internalSize);
+                out.writeLong(entry.externalSize);
+                out.writeLong(entry.cacheSize);
+                out.writeLong(entry.codeSize);
+                out.writeLong(entry.dataSize);
+                out.writeLong(entry.externalCodeSize);
+                out.writeLong(entry.externalDataSize);
+                out.writeLong(entry.externalCacheSize);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write package size snapshot", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+            return false;
+        }
+    }
+}
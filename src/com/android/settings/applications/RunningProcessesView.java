@@ -34,6 +34,7 @@ import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
 import android.widget.FrameLayout;
@@ -49,8 +50,15 @@ import java.util.Iterator;
 
 public class RunningProcessesView extends FrameLayout
         implements AdapterView.OnItemClickListener, RecyclerListener,
-        RunningState.OnRefreshUiListener {
+        AbsListView.OnScrollListener, RunningState.OnRefreshUiListener {
     
+    // While the process list is stable, the memory summary is only read
+    // again this often.
+    static final long MEMINFO_MAX_AGE = 5000;
+
+    // Changes in available memory smaller than this don't update the summary.
+    static final long MEMINFO_CHANGE_THRESHOLD = 1024 * 1024;
+
     final int mMyUserId;
 
     long SECONDARY_SERVER_MEM;
@@ -82,6 +90,7 @@ public class RunningProcessesView extends FrameLayout
     long mLastForegroundProcessMemory = -1;
     long mLastServiceProcessMemory = -1;
     long mLastAvailMemory = -1;
+    long mLastMemInfoTime;
     
     Dialog mCurDialog;
 
@@ -93,6 +102,7 @@ public class RunningProcessesView extends FrameLayout
         ActivityManager.RunningServiceInfo mService;
         ViewHolder mHolder;
         long mFirstRunTime;
+        long mShownElapsedSeconds = -1;
         boolean mSetBackground;
         
         void updateTime(Context context, StringBuilder builder) {
@@ -114,6 +124,7 @@ public class RunningProcessesView extends FrameLayout
                     // This is a background process; no uptime.
                     if (!mSetBackground) {
                         mSetBackground = true;
+                        mShownElapsedSeconds = -1;
                         mHolder.uptime.setText("");
                     }
                 } else if (mItem instanceof RunningState.MergedItem) {
@@ -128,9 +139,13 @@ public class RunningProcessesView extends FrameLayout
                 if (mFirstRunTime >= 0) {
                     //Log.i("foo", "Time for " + mItem.mDisplayLabel
                     //        + ": " + (SystemClock.uptimeMillis()-mFirstRunTime));
-                    uptimeView.setText(DateUtils.formatElapsedTime(builder,
-                            (SystemClock.elapsedRealtime()-mFirstRunTime)/1000));
+                    long seconds = (SystemClock.elapsedRealtime()-mFirstRunTime)/1000;
+                    if (seconds != mShownElapsedSeconds) {
+                        mShownElapsedSeconds = seconds;
+                        uptimeView.setText(DateUtils.formatElapsedTime(builder, seconds));
+                    }
                 } else {
+                    mShownElapsedSeconds = -1;
                     boolean isService = false;
                     if (mItem instanceof RunningState.MergedItem) {
                         isService = ((RunningState.MergedItem)mItem).mServices.size() > 0;
@@ -223,6 +238,7 @@ public class RunningProcessesView extends FrameLayout
             if (mShowBackground != showBackground) {
                 mShowBackground = showBackground;
                 mState.setWatchingBackgroundItems(showBackground);
+                mState.noteUserInteraction();
                 refreshItems();
                 notifyDataSetChanged();
                 mColorBar.setShowingGreen(mShowBackground);
@@ -325,8 +341,13 @@ public class RunningProcessesView extends FrameLayout
             mDataAvail = null;
         }
 
+        refreshMemory();
+    }
+
+    void refreshMemory() {
         // This is the amount of available memory until we start killing
         // background services.
+        mLastMemInfoTime = SystemClock.uptimeMillis();
         mMemInfoReader.readMemInfo();
         long availMem = mMemInfoReader.getFreeSize() + mMemInfoReader.getCachedSize()
                 - SECONDARY_SERVER_MEM;
@@ -335,9 +356,15 @@ public class RunningProcessesView extends FrameLayout
         }
 
         synchronized (mState.mLock) {
+            // The summary only shows a few digits, so don't rebuild it for
+            // the small drift in free memory between samples.
+            boolean availChanged = mLastAvailMemory < 0
+                    || Math.abs(availMem - mLastAvailMemory) >= MEMINFO_CHANGE_THRESHOLD;
+            boolean summaryChanged = false;
             if (mLastNumBackgroundProcesses != mState.mNumBackgroundProcesses
                     || mLastBackgroundProcessMemory != mState.mBackgroundProcessMemory
-                    || mLastAvailMemory != availMem) {
+                    || availChanged) {
+                summaryChanged = true;
                 mLastNumBackgroundProcesses = mState.mNumBackgroundProcesses;
                 mLastBackgroundProcessMemory = mState.mBackgroundProcessMemory;
                 mLastAvailMemory = availMem;
@@ -354,6 +381,7 @@ public class RunningProcessesView extends FrameLayout
                     || mLastForegroundProcessMemory != mState.mForegroundProcessMemory
                     || mLastNumServiceProcesses != mState.mNumServiceProcesses
                     || mLastServiceProcessMemory != mState.mServiceProcessMemory) {
+                summaryChanged = true;
                 mLastNumForegroundProcesses = mState.mNumForegroundProcesses;
                 mLastForegroundProcessMemory = mState.mForegroundProcessMemory;
                 mLastNumServiceProcesses = mState.mNumServiceProcesses;
@@ -366,8 +394,12 @@ public class RunningProcessesView extends FrameLayout
                 */
             }
             
+            if (!summaryChanged) {
+                return;
+            }
+            
             float totalMem = mMemInfoReader.getTotalSize();
-            float totalShownMem = availMem + mLastBackgroundProcessMemory
+            float totalShownMem = mLastAvailMemory + mLastBackgroundProcessMemory
                     + mLastServiceProcessMemory;
             mColorBar.setRatios((totalMem-totalShownMem)/totalMem,
                     mLastServiceProcessMemory/totalMem,
@@ -379,6 +411,7 @@ public class RunningProcessesView extends FrameLayout
         ListView l = (ListView)parent;
         RunningState.MergedItem mi = (RunningState.MergedItem)l.getAdapter().getItem(position);
         mCurSelected = mi;
+        mState.noteUserInteraction();
         startServiceDetailsActivity(mi);
     }
 
@@ -404,6 +437,18 @@ public class RunningProcessesView extends FrameLayout
         mActiveItems.remove(view);
     }
 
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if (scrollState != OnScrollListener.SCROLL_STATE_IDLE) {
+            mState.noteUserInteraction();
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+    }
+
     public RunningProcessesView(Context context, AttributeSet attrs) {
         super(context, attrs);
         mMyUserId = UserHandle.myUserId();
@@ -422,6 +467,7 @@ public class RunningProcessesView extends FrameLayout
         }
         mListView.setOnItemClickListener(this);
         mListView.setRecyclerListener(this);
+        mListView.setOnScrollListener(this);
         mAdapter = new ServiceListAdapter(mState);
         mListView.setAdapter(mAdapter);
         mColorBar = (LinearColorBar)findViewById(R.id.color_bar);
@@ -487,6 +533,11 @@ public class RunningProcessesView extends FrameLayout
     public void onRefreshUi(int what) {
         switch (what) {
             case REFRESH_TIME:
+                // Nothing about the processes changed, but free memory may
+                // have moved on its own.
+                if (SystemClock.uptimeMillis() - mLastMemInfoTime >= MEMINFO_MAX_AGE) {
+                    refreshMemory();
+                }
                 updateTimes();
                 break;
             case REFRESH_DATA:
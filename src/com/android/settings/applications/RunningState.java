@@ -37,6 +37,7 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.text.format.Formatter;
@@ -69,6 +70,23 @@ public class RunningState {
     static final long TIME_UPDATE_DELAY = 1000;
     static final long CONTENTS_UPDATE_DELAY = 2000;
 
+    // The contents are looked at again sooner after processes come and go
+    // or the user does something, and less often while nothing changes.
+    static final long MIN_CONTENTS_UPDATE_DELAY = 1000;
+    static final long MAX_CONTENTS_UPDATE_DELAY = 8000;
+
+    // A process's memory use is sampled again once its last sample is this
+    // old, even if nothing else about it has changed.
+    static final long PSS_MAX_AGE = 10000;
+
+    // What changed in an update, reported to the UI thread as a bit mask.
+    // The list of service and interesting process items was rebuilt.
+    static final int CHANGE_ITEMS = 0x01;
+    // The list of background process items was rebuilt.
+    static final int CHANGE_BACKGROUND = 0x02;
+    // Process sizes, counts or memory totals changed.
+    static final int CHANGE_SIZES = 0x04;
+
     static final int MAX_SERVICES = 100;
 
     final Context mApplicationContext;
@@ -123,18 +141,27 @@ public class RunningState {
     final SparseArray<UserState> mUsers = new SparseArray<UserState>();
 
     static class AppProcessInfo {
-        final ActivityManager.RunningAppProcessInfo info;
+        ActivityManager.RunningAppProcessInfo info;
         boolean hasServices;
         boolean hasForegroundServices;
 
-        AppProcessInfo(ActivityManager.RunningAppProcessInfo _info) {
+        void set(ActivityManager.RunningAppProcessInfo _info) {
             info = _info;
+            hasServices = false;
+            hasForegroundServices = false;
         }
     }
 
     // Temporary structure used when updating above information.
     final SparseArray<AppProcessInfo> mTmpAppProcesses = new SparseArray<AppProcessInfo>();
 
+    // Entries of mTmpAppProcesses, kept across updates so that they are
+    // not allocated again on every pass.
+    final ArrayList<AppProcessInfo> mAppProcessInfoPool = new ArrayList<AppProcessInfo>();
+
+    // Temporary list of the processes whose memory is sampled in an update.
+    final ArrayList<ProcessItem> mTmpPssProcesses = new ArrayList<ProcessItem>();
+
     int mSequence = 0;
 
     final Comparator<RunningState.MergedItem> mBackgroundComparator
@@ -216,6 +243,9 @@ public class RunningState {
     int mNumServiceProcesses;
     long mServiceProcessMemory;
 
+    long mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
+    long mNextContentsUpdate;
+
     // ----- BACKGROUND MONITORING THREAD -----
 
     final HandlerThread mBackgroundThread;
@@ -236,12 +266,22 @@ public class RunningState {
                             return;
                         }
                     }
+                    final int changes = update(mApplicationContext, mAm);
                     Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
-                    cmd.arg1 = update(mApplicationContext, mAm) ? 1 : 0;
+                    cmd.arg1 = changes;
                     mHandler.sendMessage(cmd);
-                    removeMessages(MSG_UPDATE_CONTENTS);
-                    msg = obtainMessage(MSG_UPDATE_CONTENTS);
-                    sendMessageDelayed(msg, CONTENTS_UPDATE_DELAY);
+                    synchronized (mLock) {
+                        if ((changes & (CHANGE_ITEMS | CHANGE_BACKGROUND)) != 0) {
+                            mContentsUpdateDelay = MIN_CONTENTS_UPDATE_DELAY;
+                        } else {
+                            // Sizes alone wobble all the time; only processes
+                            // coming and going keep the updates frequent.
+                            mContentsUpdateDelay = Math.min(mContentsUpdateDelay * 2,
+                                    MAX_CONTENTS_UPDATE_DELAY);
+                        }
+                        removeMessages(MSG_UPDATE_CONTENTS);
+                        scheduleContentsUpdateLocked(mContentsUpdateDelay);
+                    }
                     break;
             }
         }
@@ -255,11 +295,26 @@ public class RunningState {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
-                case MSG_REFRESH_UI:
-                    mNextUpdate = msg.arg1 != 0
-                            ? OnRefreshUiListener.REFRESH_STRUCTURE
-                            : OnRefreshUiListener.REFRESH_DATA;
+                case MSG_REFRESH_UI: {
+                    boolean structure = (msg.arg1 & CHANGE_ITEMS) != 0;
+                    if ((msg.arg1 & CHANGE_BACKGROUND) != 0) {
+                        synchronized (mLock) {
+                            structure |= mWatchingBackgroundItems;
+                        }
+                    }
+                    // Several updates may land before the next tick; don't
+                    // let a later, smaller one hide a structural change.
+                    int next = OnRefreshUiListener.REFRESH_TIME;
+                    if (structure) {
+                        next = OnRefreshUiListener.REFRESH_STRUCTURE;
+                    } else if ((msg.arg1 & CHANGE_SIZES) != 0) {
+                        next = OnRefreshUiListener.REFRESH_DATA;
+                    }
+                    if (next > mNextUpdate) {
+                        mNextUpdate = next;
+                    }
                     break;
+                }
                 case MSG_UPDATE_TIME:
                     synchronized (mLock) {
                         if (!mResumed) {
@@ -355,6 +410,14 @@ public class RunningState {
         
         int mRunningSeq;
         ActivityManager.RunningAppProcessInfo mRunningProcessInfo;
+
+        // The state of the process when its memory was last sampled, so
+        // that it is only sampled again once that changes or gets old.
+        long mPssTime;
+        int mPssPid;
+        int mPssImportance;
+        int mPssFlags;
+        boolean mSizeStrStale;
         
         MergedItem mMergedItem;
 
@@ -508,20 +571,42 @@ public class RunningState {
             return changed;
         }
         
-        boolean updateSize(Context context, long pss, int curSeq) {
-            mSize = pss * 1024;
-            if (mCurSeq == curSeq) {
-                String sizeStr = Formatter.formatShortFileSize(
-                        context, mSize);
-                if (!sizeStr.equals(mSizeStr)){
-                    mSizeStr = sizeStr;
-                    // We update this on the second tick where we update just
-                    // the text in the current items, so no need to say we
-                    // changed here.
-                    return false;
-                }
+        boolean needsPss(long now) {
+            if (mPssTime == 0 || mPssPid != mPid || now - mPssTime >= PSS_MAX_AGE) {
+                return true;
+            }
+            return mRunningProcessInfo != null
+                    && (mRunningProcessInfo.importance != mPssImportance
+                            || mRunningProcessInfo.flags != mPssFlags);
+        }
+
+        /**
+         * Records a new memory sample, returning whether the size changed.
+         */
+        boolean setPss(long pss, long now) {
+            mPssTime = now;
+            mPssPid = mPid;
+            if (mRunningProcessInfo != null) {
+                mPssImportance = mRunningProcessInfo.importance;
+                mPssFlags = mRunningProcessInfo.flags;
+            }
+            long size = pss * 1024;
+            if (size == mSize) {
+                return false;
+            }
+            mSize = size;
+            mSizeStrStale = true;
+            return true;
+        }
+
+        void updateSize(Context context, int curSeq) {
+            if (mCurSeq == curSeq && (mSizeStrStale || mSizeStr == null)) {
+                // We update this on the second tick where we update just
+                // the text in the current items, so no need to say we
+                // changed here.
+                mSizeStr = Formatter.formatShortFileSize(context, mSize);
+                mSizeStrStale = false;
             }
-            return false;
         }
         
         boolean buildDependencyChain(Context context, PackageManager pm, int curSeq) {
@@ -640,19 +725,24 @@ public class RunningState {
         }
         
         boolean updateSize(Context context) {
+            long size;
             if (mUser != null) {
-                mSize = 0;
+                size = 0;
                 for (int i=0; i<mChildren.size(); i++) {
                     MergedItem child = mChildren.get(i);
                     child.updateSize(context);
-                    mSize += child.mSize;
+                    size += child.mSize;
                 }
             } else {
-                mSize = mProcess.mSize;
+                size = mProcess.mSize;
                 for (int i=0; i<mOtherProcesses.size(); i++) {
-                    mSize += mOtherProcesses.get(i).mSize;
+                    size += mOtherProcesses.get(i).mSize;
                 }
             }
+            if (size == mSize && mSizeStr != null) {
+                return false;
+            }
+            mSize = size;
             
             String sizeStr = Formatter.formatShortFileSize(
                     context, mSize);
@@ -751,9 +841,10 @@ public class RunningState {
                 mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
                 mBackgroundHandler.sendEmptyMessage(MSG_RESET_CONTENTS);
             }
-            if (!mBackgroundHandler.hasMessages(MSG_UPDATE_CONTENTS)) {
-                mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
-            }
+            // An update left over from before the pause may be a long way
+            // off; don't let it keep us from showing fresh data.
+            mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
+            scheduleContentsUpdateLocked(0);
             mHandler.sendEmptyMessage(MSG_UPDATE_TIME);
         }
     }
@@ -761,8 +852,37 @@ public class RunningState {
     void updateNow() {
         synchronized (mLock) {
             mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
-            mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
+            scheduleContentsUpdateLocked(0);
+        }
+    }
+
+    /**
+     * Called when the user does something with the UI showing this state,
+     * so that the next update comes soon rather than after a long back-off.
+     */
+    void noteUserInteraction() {
+        synchronized (mLock) {
+            mContentsUpdateDelay = MIN_CONTENTS_UPDATE_DELAY;
+            if (mResumed) {
+                scheduleContentsUpdateLocked(MIN_CONTENTS_UPDATE_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Makes sure the contents are updated within the given delay.  An
+     * update already scheduled to come sooner is kept.
+     */
+    private void scheduleContentsUpdateLocked(long delay) {
+        final long when = SystemClock.uptimeMillis() + delay;
+        if (mBackgroundHandler.hasMessages(MSG_UPDATE_CONTENTS)) {
+            if (mNextContentsUpdate <= when) {
+                return;
+            }
+            mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
         }
+        mNextContentsUpdate = when;
+        mBackgroundHandler.sendEmptyMessageAtTime(MSG_UPDATE_CONTENTS, when);
     }
 
     boolean hasData() {
@@ -846,12 +966,19 @@ public class RunningState {
         userItem.mChildren.add(newItem);
     }
 
-    private boolean update(Context context, ActivityManager am) {
+    /**
+     * Brings the state up to date with the activity manager, reusing what
+     * is known from the previous pass where nothing changed.
+     *
+     * @return the CHANGE_* flags describing what changed
+     */
+    private int update(Context context, ActivityManager am) {
         final PackageManager pm = context.getPackageManager();
         
         mSequence++;
         
         boolean changed = false;
+        boolean sizesChanged = false;
 
         // Retrieve list of services, filtering out anything that definitely
         // won't be shown in the UI.
@@ -888,7 +1015,15 @@ public class RunningState {
         mTmpAppProcesses.clear();
         for (int i=0; i<NP; i++) {
             ActivityManager.RunningAppProcessInfo pi = processes.get(i);
-            mTmpAppProcesses.put(pi.pid, new AppProcessInfo(pi));
+            AppProcessInfo ainfo;
+            if (i < mAppProcessInfoPool.size()) {
+                ainfo = mAppProcessInfoPool.get(i);
+            } else {
+                ainfo = new AppProcessInfo();
+                mAppProcessInfoPool.add(ainfo);
+            }
+            ainfo.set(pi);
+            mTmpAppProcesses.put(pi.pid, ainfo);
         }
 
         // Initial iteration through running services to collect per-process
@@ -1261,61 +1396,80 @@ public class RunningState {
             }
         }
         
+        // Only sample the memory of processes that are new, whose state
+        // changed, or whose last sample is getting old; the others keep
+        // their previous size.
+        final long now = SystemClock.uptimeMillis();
+        final int numProc = mAllProcessItems.size();
+        mTmpPssProcesses.clear();
+        for (int i=0; i<numProc; i++) {
+            ProcessItem proc = mAllProcessItems.get(i);
+            if (proc.needsPss(now)) {
+                mTmpPssProcesses.add(proc);
+            }
+        }
+        final int numPss = mTmpPssProcesses.size();
+        if (numPss > 0) {
+            int[] pids = new int[numPss];
+            for (int i=0; i<numPss; i++) {
+                pids[i] = mTmpPssProcesses.get(i).mPid;
+            }
+            try {
+                long[] pss = ActivityManagerNative.getDefault()
+                        .getProcessPss(pids);
+                for (int i=0; i<numPss; i++) {
+                    sizesChanged |= mTmpPssProcesses.get(i).setPss(pss[i], now);
+                }
+            } catch (RemoteException e) {
+            }
+            mTmpPssProcesses.clear();
+        }
+
         long backgroundProcessMemory = 0;
         long foregroundProcessMemory = 0;
         long serviceProcessMemory = 0;
         ArrayList<MergedItem> newBackgroundItems = null;
         ArrayList<MergedItem> newUserBackgroundItems = null;
         boolean diffUsers = false;
-        try {
-            final int numProc = mAllProcessItems.size();
-            int[] pids = new int[numProc];
-            for (int i=0; i<numProc; i++) {
-                pids[i] = mAllProcessItems.get(i).mPid;
-            }
-            long[] pss = ActivityManagerNative.getDefault()
-                    .getProcessPss(pids);
-            int bgIndex = 0;
-            for (int i=0; i<pids.length; i++) {
-                ProcessItem proc = mAllProcessItems.get(i);
-                changed |= proc.updateSize(context, pss[i], mSequence);
-                if (proc.mCurSeq == mSequence) {
-                    serviceProcessMemory += proc.mSize;
-                } else if (proc.mRunningProcessInfo.importance >=
-                        ActivityManager.RunningAppProcessInfo.IMPORTANCE_BACKGROUND) {
-                    backgroundProcessMemory += proc.mSize;
-                    MergedItem mergedItem;
-                    if (newBackgroundItems != null) {
+        int bgIndex = 0;
+        for (int i=0; i<numProc; i++) {
+            ProcessItem proc = mAllProcessItems.get(i);
+            proc.updateSize(context, mSequence);
+            if (proc.mCurSeq == mSequence) {
+                serviceProcessMemory += proc.mSize;
+            } else if (proc.mRunningProcessInfo.importance >=
+                    ActivityManager.RunningAppProcessInfo.IMPORTANCE_BACKGROUND) {
+                backgroundProcessMemory += proc.mSize;
+                MergedItem mergedItem;
+                if (newBackgroundItems != null) {
+                    mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
+                    proc.mMergedItem.mProcess = proc;
+                    diffUsers |= mergedItem.mUserId != mMyUserId;
+                    newBackgroundItems.add(mergedItem);
+                } else {
+                    if (bgIndex >= mBackgroundItems.size()
+                            || mBackgroundItems.get(bgIndex).mProcess != proc) {
+                        newBackgroundItems = new ArrayList<MergedItem>(numBackgroundProcesses);
+                        for (int bgi=0; bgi<bgIndex; bgi++) {
+                            mergedItem = mBackgroundItems.get(bgi);
+                            diffUsers |= mergedItem.mUserId != mMyUserId;
+                            newBackgroundItems.add(mergedItem);
+                        }
                         mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
                         proc.mMergedItem.mProcess = proc;
                         diffUsers |= mergedItem.mUserId != mMyUserId;
                         newBackgroundItems.add(mergedItem);
                     } else {
-                        if (bgIndex >= mBackgroundItems.size()
-                                || mBackgroundItems.get(bgIndex).mProcess != proc) {
-                            newBackgroundItems = new ArrayList<MergedItem>(numBackgroundProcesses);
-                            for (int bgi=0; bgi<bgIndex; bgi++) {
-                                mergedItem = mBackgroundItems.get(bgi);
-                                diffUsers |= mergedItem.mUserId != mMyUserId;
-                                newBackgroundItems.add(mergedItem);
-                            }
-                            mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
-                            proc.mMergedItem.mProcess = proc;
-                            diffUsers |= mergedItem.mUserId != mMyUserId;
-                            newBackgroundItems.add(mergedItem);
-                        } else {
-                            mergedItem = mBackgroundItems.get(bgIndex);
-                        }
+                        mergedItem = mBackgroundItems.get(bgIndex);
                     }
-                    mergedItem.update(context, true);
-                    mergedItem.updateSize(context);
-                    bgIndex++;
-                } else if (proc.mRunningProcessInfo.importance <=
-                        ActivityManager.RunningAppProcessInfo.IMPORTANCE_VISIBLE) {
-                    foregroundProcessMemory += proc.mSize;
                 }
+                mergedItem.update(context, true);
+                mergedItem.updateSize(context);
+                bgIndex++;
+            } else if (proc.mRunningProcessInfo.importance <=
+                    ActivityManager.RunningAppProcessInfo.IMPORTANCE_VISIBLE) {
+                foregroundProcessMemory += proc.mSize;
             }
-        } catch (RemoteException e) {
         }
         
         if (newBackgroundItems == null) {
@@ -1368,6 +1522,12 @@ public class RunningState {
         }
         
         synchronized (mLock) {
+            sizesChanged |= mNumBackgroundProcesses != numBackgroundProcesses
+                    || mNumForegroundProcesses != numForegroundProcesses
+                    || mNumServiceProcesses != numServiceProcesses
+                    || mBackgroundProcessMemory != backgroundProcessMemory
+                    || mForegroundProcessMemory != foregroundProcessMemory
+                    || mServiceProcessMemory != serviceProcessMemory;
             mNumBackgroundProcesses = numBackgroundProcesses;
             mNumForegroundProcesses = numForegroundProcesses;
             mNumServiceProcesses = numServiceProcesses;
@@ -1377,9 +1537,6 @@ public class RunningState {
             if (newBackgroundItems != null) {
                 mBackgroundItems = newBackgroundItems;
                 mUserBackgroundItems = newUserBackgroundItems;
-                if (mWatchingBackgroundItems) {
-                    changed = true;
-                }
             }
             if (!mHaveData) {
                 mHaveData = true;
@@ -1387,7 +1544,17 @@ public class RunningState {
             }
         }
         
-        return changed;
+        int changes = 0;
+        if (changed) {
+            changes |= CHANGE_ITEMS;
+        }
+        if (newBackgroundItems != null) {
+            changes |= CHANGE_BACKGROUND;
+        }
+        if (sizesChanged) {
+            changes |= CHANGE_SIZES;
+        }
+        return changes;
     }
     
     ArrayList<BaseItem> getCurrentItems() {
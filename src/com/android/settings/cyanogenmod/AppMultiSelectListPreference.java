@@ -18,7 +18,6 @@ package com.android.settings.cyanogenmod;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
 import android.content.res.TypedArray;
 import android.os.Bundle;
 import android.preference.DialogPreference;
@@ -33,11 +32,9 @@ import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.TextView;
 import com.android.settings.R;
+import com.android.settings.util.AppCatalog;
 
-import java.text.Collator;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -47,10 +44,13 @@ import java.util.Set;
  *
  * @author Clark Scheff
  */
-public class AppMultiSelectListPreference extends DialogPreference {
+public class AppMultiSelectListPreference extends DialogPreference
+        implements AppCatalog.Callback {
     private final List<MyApplicationInfo> mPackageInfoList = new ArrayList<MyApplicationInfo>();
-    private CharSequence[] mEntries;
-    private CharSequence[] mEntryValues;
+    private final AppCatalog mCatalog;
+    private AppListAdapter mAdapter;
+    private CharSequence[] mEntries = new CharSequence[0];
+    private CharSequence[] mEntryValues = new CharSequence[0];
     private Set<String> mValues = new HashSet<String>();
     private Set<String> mNewValues = new HashSet<String>();
     private boolean mPreferenceChanged;
@@ -61,31 +61,35 @@ public class AppMultiSelectListPreference extends DialogPreference {
 
     public AppMultiSelectListPreference(Context context, AttributeSet attrs) {
         super(context, attrs);
-        List<ApplicationInfo> pkgs = context.getPackageManager()
-                .getInstalledApplications(PackageManager.PERMISSION_GRANTED);
-        for (int i=0; i<pkgs.size(); i++) {
-            ApplicationInfo ai = pkgs.get(i);
-            if(context.getPackageManager().getLaunchIntentForPackage(ai.packageName) == null) {
+        mCatalog = AppCatalog.get(context);
+    }
+
+    @Override
+    public void onAppsLoaded(List<AppCatalog.App> apps) {
+        mPackageInfoList.clear();
+        List<CharSequence> entries = new ArrayList<CharSequence>();
+        List<CharSequence> entryValues = new ArrayList<CharSequence>();
+        for (AppCatalog.App app : apps) {
+            if (!app.isLaunchable()) {
                 continue;
             }
             MyApplicationInfo info = new MyApplicationInfo();
-            info.info = ai;
-            info.label = info.info.loadLabel(getContext().getPackageManager()).toString();
+            info.app = app;
+            info.info = app.info;
+            info.label = app.label;
             mPackageInfoList.add(info);
-        }
-
-        List<CharSequence> entries = new ArrayList<CharSequence>();
-        List<CharSequence> entryValues = new ArrayList<CharSequence>();
-        Collections.sort(mPackageInfoList, sDisplayNameComparator);
-        for (MyApplicationInfo info : mPackageInfoList) {
             entries.add(info.label);
             entryValues.add(info.info.packageName);
         }
-        MyApplicationInfo info = new MyApplicationInfo();
         mEntries = new CharSequence[entries.size()];
         mEntryValues = new CharSequence[entries.size()];
         entries.toArray(mEntries);
         entryValues.toArray(mEntryValues);
+
+        if (mAdapter != null) {
+            mAdapter.clear();
+            mAdapter.addAll(mPackageInfoList);
+        }
     }
 
     /**
@@ -128,7 +132,10 @@ public class AppMultiSelectListPreference extends DialogPreference {
     @Override
     protected void onPrepareDialogBuilder(AlertDialog.Builder builder) {
         super.onPrepareDialogBuilder(builder);
-        builder.setAdapter(new AppListAdapter(getContext()), null);
+        mAdapter = new AppListAdapter(getContext());
+        builder.setAdapter(mAdapter, null);
+        // Fills the list right away if the catalog is loaded, else once it is
+        mCatalog.getApps(this);
         mNewValues.clear();
         mNewValues.addAll(mValues);
     }
@@ -166,6 +173,21 @@ public class AppMultiSelectListPreference extends DialogPreference {
             }
         }
         mPreferenceChanged = false;
+        releaseAdapter();
+    }
+
+    @Override
+    public void onActivityDestroy() {
+        super.onActivityDestroy();
+        releaseAdapter();
+    }
+
+    private void releaseAdapter() {
+        mCatalog.cancel(this);
+        if (mAdapter != null) {
+            mCatalog.cancelIcons(mAdapter);
+            mAdapter = null;
+        }
     }
 
     @Override
@@ -187,11 +209,13 @@ public class AppMultiSelectListPreference extends DialogPreference {
     }
 
     class MyApplicationInfo {
+        AppCatalog.App app;
         ApplicationInfo info;
         CharSequence label;
     }
 
-    public class AppListAdapter extends ArrayAdapter<MyApplicationInfo> {
+    public class AppListAdapter extends ArrayAdapter<MyApplicationInfo>
+            implements AppCatalog.IconCallback {
         private final LayoutInflater mInflater;
 
         public AppListAdapter(Context context) {
@@ -209,7 +233,7 @@ public class AppMultiSelectListPreference extends DialogPreference {
             MyApplicationInfo info = getItem(position);
             holder.appName.setText(info.label);
             if (info.info != null) {
-                holder.appIcon.setImageDrawable(info.info.loadIcon(getContext().getPackageManager()));
+                holder.appIcon.setImageDrawable(mCatalog.getIcon(info.app, this));
             } else {
                 holder.appIcon.setImageDrawable(null);
             }
@@ -221,6 +245,11 @@ public class AppMultiSelectListPreference extends DialogPreference {
         public MyApplicationInfo getItem(int position) {
             return mPackageInfoList.get(position);
         }
+
+        @Override
+        public void onIconLoaded(AppCatalog.App app) {
+            notifyDataSetChanged();
+        }
     }
 
     public static class AppViewHolder {
@@ -249,16 +278,4 @@ public class AppMultiSelectListPreference extends DialogPreference {
             }
         }
     }
-
-    private final static Comparator<MyApplicationInfo> sDisplayNameComparator
-            = new Comparator<MyApplicationInfo>() {
-        public final int
-        compare(MyApplicationInfo a, MyApplicationInfo b) {
-            return collator.compare(a.label, b.label);
-        }
-
-        private final Collator collator = Collator.getInstance();
-    };
 }
-
-
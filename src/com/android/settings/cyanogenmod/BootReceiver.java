@@ -21,6 +21,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
+import android.os.Process;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.preference.PreferenceManager;
 import android.provider.Settings;
@@ -29,10 +31,13 @@ import android.util.Log;
 
 import com.android.settings.DisplaySettings;
 import com.android.settings.LocationSettings;
-import com.android.settings.R;
 import com.android.settings.Utils;
+import com.android.settings.util.KernelTunables;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 public class BootReceiver extends BroadcastReceiver {
@@ -44,59 +49,240 @@ public class BootReceiver extends BroadcastReceiver {
     private static final String PERF_PROFILE_SETTINGS_PROP = "sys.perf.profile.restored";
     private static final String KSM_SETTINGS_PROP = "sys.ksm.restored";
 
+    // Restore order; kernel tunables of adjacent steps are written together
+    private static final int PRIORITY_CPU = 10;
+    private static final int PRIORITY_IOSCHED = 20;
+    private static final int PRIORITY_KSM = 30;
+    private static final int PRIORITY_PERF_PROFILE = 40;
+    private static final int PRIORITY_HARDWARE = 50;
+    private static final int PRIORITY_LOCATION = 60;
+
+    // The restore has to finish well within the broadcast timeout, so a su
+    // that hangs or waits for a grant can't hold up the writes for long
+    private static final long ROOT_TIMEOUT_MS = 10 * 1000;
+
+    /**
+     * One thing to restore.  Steps that set kernel tunables queue them in
+     * {@link #prepare}; anything else happens in {@link #run}.
+     */
+    private static abstract class RestoreStep {
+        final String name;
+        final int priority;
+
+        RestoreStep(String name, int priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+
+        /** Queues the kernel tunables of this step. */
+        void prepare(Context ctx, KernelTunables.Batch tunables) {
+        }
+
+        /**
+         * Whether {@link #run} does anything.  The tunables queued by
+         * earlier steps are written before such a step runs.
+         */
+        boolean hasRun() {
+            return false;
+        }
+
+        /** Restores what is not a kernel tunable. */
+        void run(Context ctx) {
+        }
+    }
+
+    private static final Comparator<RestoreStep> PRIORITY_COMPARATOR =
+            new Comparator<RestoreStep>() {
+        @Override
+        public int compare(RestoreStep lhs, RestoreStep rhs) {
+            return lhs.priority - rhs.priority;
+        }
+    };
+
     @Override
     public void onReceive(Context ctx, Intent intent) {
-        if (SystemProperties.getBoolean(CPU_SETTINGS_PROP, false) == false
-                && intent.getAction().equals(Intent.ACTION_BOOT_COMPLETED)) {
-            SystemProperties.set(CPU_SETTINGS_PROP, "true");
-            configureCPU(ctx);
-        } else {
-            SystemProperties.set(CPU_SETTINGS_PROP, "false");
+        final boolean bootCompleted = Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction());
+        final ArrayList<RestoreStep> steps = new ArrayList<RestoreStep>();
+
+        if (claimRestore(CPU_SETTINGS_PROP, bootCompleted)) {
+            steps.add(new RestoreStep("CPU", PRIORITY_CPU) {
+                @Override
+                void prepare(Context ctx, KernelTunables.Batch tunables) {
+                    configureCPU(ctx, tunables);
+                }
+            });
         }
 
-        if (SystemProperties.getBoolean(IOSCHED_SETTINGS_PROP, false) == false
-                && intent.getAction().equals(Intent.ACTION_BOOT_COMPLETED)) {
-            SystemProperties.set(IOSCHED_SETTINGS_PROP, "true");
-            configureIOSched(ctx);
-        } else {
-            SystemProperties.set(IOSCHED_SETTINGS_PROP, "false");
+        if (claimRestore(IOSCHED_SETTINGS_PROP, bootCompleted)) {
+            steps.add(new RestoreStep("I/O scheduler", PRIORITY_IOSCHED) {
+                @Override
+                void prepare(Context ctx, KernelTunables.Batch tunables) {
+                    configureIOSched(ctx, tunables);
+                }
+            });
         }
 
-        if (SystemProperties.getBoolean(PERF_PROFILE_SETTINGS_PROP, false) == false
-                && intent.getAction().equals(Intent.ACTION_BOOT_COMPLETED)) {
-            SystemProperties.set(PERF_PROFILE_SETTINGS_PROP, "true");
-            configurePerfProfile(ctx);
-        } else {
-            SystemProperties.set(PERF_PROFILE_SETTINGS_PROP, "false");
+        if (claimRestore(PERF_PROFILE_SETTINGS_PROP, bootCompleted)) {
+            steps.add(new RestoreStep("Performance profile", PRIORITY_PERF_PROFILE) {
+                @Override
+                boolean hasRun() {
+                    return true;
+                }
+
+                @Override
+                void run(Context ctx) {
+                    configurePerfProfile(ctx);
+                }
+            });
         }
 
-        if (Utils.fileExists(MemoryManagement.KSM_RUN_FILE)) {
-            if (SystemProperties.getBoolean(KSM_SETTINGS_PROP, false) == false
-                    && intent.getAction().equals(Intent.ACTION_BOOT_COMPLETED)) {
-                SystemProperties.set(KSM_SETTINGS_PROP, "true");
-                configureKSM(ctx);
-            } else {
-                SystemProperties.set(KSM_SETTINGS_PROP, "false");
-            }
+        if (Utils.fileExists(MemoryManagement.KSM_RUN_FILE)
+                && claimRestore(KSM_SETTINGS_PROP, bootCompleted)) {
+            steps.add(new RestoreStep("KSM", PRIORITY_KSM) {
+                @Override
+                void prepare(Context ctx, KernelTunables.Batch tunables) {
+                    configureKSM(ctx, tunables);
+                }
+            });
         }
 
         /* Restore the hardware tunable values */
-        DisplayColor.restore(ctx);
-        DisplayGamma.restore(ctx);
-        VibratorIntensity.restore(ctx);
-        DisplaySettings.restore(ctx);
-        LocationSettings.restore(ctx);
+        steps.add(new RestoreStep("Hardware tunables", PRIORITY_HARDWARE) {
+            @Override
+            boolean hasRun() {
+                return true;
+            }
+
+            @Override
+            void run(Context ctx) {
+                DisplayColor.restore(ctx);
+                DisplayGamma.restore(ctx);
+                VibratorIntensity.restore(ctx);
+                DisplaySettings.restore(ctx);
+            }
+        });
+        steps.add(new RestoreStep("Location", PRIORITY_LOCATION) {
+            @Override
+            boolean hasRun() {
+                return true;
+            }
+
+            @Override
+            void run(Context ctx) {
+                LocationSettings.restore(ctx);
+            }
+        });
+
+        // Restore off the main thread, so that other boot receivers, which
+        // are delivered one after another, don't wait for this.  The
+        // broadcast is kept pending until then, so that the process isn't
+        // treated as idle and killed halfway through.
+        final Context appContext = ctx.getApplicationContext();
+        final PendingResult result = goAsync();
+        new Thread("BootRestore") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    restore(appContext, steps);
+                } finally {
+                    result.finish();
+                }
+            }
+        }.start();
     }
 
-    private void initFreqCapFiles(Context ctx)
-    {
-        if (Processor.freqCapFilesInitialized) return;
-        Processor.FREQ_MAX_FILE = ctx.getResources().getString(R.string.max_cpu_freq_file);
-        Processor.FREQ_MIN_FILE = ctx.getResources().getString(R.string.min_cpu_freq_file);
-        Processor.freqCapFilesInitialized = true;
+    /**
+     * Marks a restore as done for this boot.  Returns true if it is still
+     * to be done, which is only the case for the first boot completed
+     * broadcast.
+     */
+    private static boolean claimRestore(String prop, boolean bootCompleted) {
+        if (SystemProperties.getBoolean(prop, false) == false && bootCompleted) {
+            SystemProperties.set(prop, "true");
+            return true;
+        }
+        SystemProperties.set(prop, "false");
+        return false;
+    }
+
+    /** Timing and outcome of one step, for the restore report. */
+    private static class StepRecord {
+        RestoreStep step;
+        KernelTunables.Batch tunables;
+        int first;
+        int last;
+        long nanos;
+    }
+
+    /**
+     * Runs the steps in priority order.  The kernel tunables of consecutive
+     * steps are written in one batch, which is committed before the next
+     * step that restores anything else, and read back to check them.
+     */
+    private static void restore(Context ctx, List<RestoreStep> steps) {
+        Collections.sort(steps, PRIORITY_COMPARATOR);
+
+        final long start = SystemClock.elapsedRealtime();
+        final ArrayList<StepRecord> pending = new ArrayList<StepRecord>();
+        KernelTunables.Batch tunables = new KernelTunables.Batch();
+        for (RestoreStep step : steps) {
+            if (step.hasRun()) {
+                flush(tunables, pending);
+                tunables = new KernelTunables.Batch();
+            }
+
+            final StepRecord record = new StepRecord();
+            record.step = step;
+            record.tunables = tunables;
+            record.first = tunables.size();
+            final long stepStart = System.nanoTime();
+            try {
+                step.prepare(ctx, tunables);
+                step.run(ctx);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Unable to restore " + step.name, e);
+            }
+            record.nanos = System.nanoTime() - stepStart;
+            record.last = tunables.size();
+            pending.add(record);
+        }
+        flush(tunables, pending);
+
+        Log.i(TAG, "Restored settings in " + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    /**
+     * Commits a batch of tunables, verifies them and reports the steps
+     * recorded so far.
+     */
+    private static void flush(KernelTunables.Batch tunables, List<StepRecord> pending) {
+        boolean[] written = null;
+        boolean[] verified = null;
+        if (!tunables.isEmpty()) {
+            // Off the main thread, protected nodes may go through su
+            written = tunables.commit(true, ROOT_TIMEOUT_MS);
+            verified = tunables.verify();
+        }
+
+        for (StepRecord record : pending) {
+            long nanos = record.nanos;
+            int failed = 0;
+            for (int i = record.first; i < record.last; i++) {
+                nanos += tunables.getWriteNanos(i);
+                if (!written[i] || !verified[i]) {
+                    failed++;
+                    Log.w(TAG, record.step.name + ": " + (written[i] ? "verifying" : "writing")
+                            + " a kernel setting failed");
+                }
+            }
+            Log.d(TAG, record.step.name + " restored in " + (nanos / 1000000) + " ms ("
+                    + (record.last - record.first) + " writes, " + failed + " failed)");
+        }
+        pending.clear();
     }
 
-    private void configureCPU(Context ctx) {
+    private static void configureCPU(Context ctx, KernelTunables.Batch tunables) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
 
         if (prefs.getBoolean(Processor.SOB_PREF, false) == false) {
@@ -104,40 +290,23 @@ public class BootReceiver extends BroadcastReceiver {
             return;
         }
 
-        String governor = prefs.getString(Processor.GOV_PREF, null);
-        String minFrequency = prefs.getString(Processor.FREQ_MIN_PREF, null);
-        String maxFrequency = prefs.getString(Processor.FREQ_MAX_PREF, null);
-        String availableFrequenciesLine = Utils.fileReadOneLine(Processor.FREQ_LIST_FILE);
-        String availableGovernorsLine = Utils.fileReadOneLine(Processor.GOV_LIST_FILE);
-        boolean noSettings = ((availableGovernorsLine == null) || (governor == null)) &&
-                             ((availableFrequenciesLine == null) || ((minFrequency == null) && (maxFrequency == null)));
-        List<String> frequencies = null;
-        List<String> governors = null;
+        boolean restored = false;
+        for (CpuPolicy policy : CpuPolicy.getPolicies(ctx)) {
+            if (policy.syncSaved(prefs, tunables)) {
+                restored = true;
+            }
+        }
 
-        if (noSettings) {
+        if (!restored) {
             Log.d(TAG, "No CPU settings saved. Nothing to restore.");
-        } else {
-            initFreqCapFiles(ctx);
-            if (availableGovernorsLine != null){
-                governors = Arrays.asList(availableGovernorsLine.split(" "));
-            }
-            if (availableFrequenciesLine != null){
-                frequencies = Arrays.asList(availableFrequenciesLine.split(" "));
-            }
-            if (maxFrequency != null && frequencies != null && frequencies.contains(maxFrequency)) {
-                Utils.fileWriteOneLine(Processor.FREQ_MAX_FILE, maxFrequency);
-            }
-            if (minFrequency != null && frequencies != null && frequencies.contains(minFrequency)) {
-                Utils.fileWriteOneLine(Processor.FREQ_MIN_FILE, minFrequency);
-            }
-            if (governor != null && governors != null && governors.contains(governor)) {
-                Utils.fileWriteOneLine(Processor.GOV_FILE, governor);
-            }
-            Log.d(TAG, "CPU settings restored.");
+            return;
         }
+        // Cores of a group that are still offline get these when they come
+        // online, from the hotplug service.
+        CpuHotplugService.startIfNeeded(ctx);
     }
 
-    private void configureIOSched(Context ctx) {
+    private static void configureIOSched(Context ctx, KernelTunables.Batch tunables) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
 
         if (prefs.getBoolean(IOScheduler.SOB_PREF, false) == false) {
@@ -157,13 +326,12 @@ public class BootReceiver extends BroadcastReceiver {
                 ioschedulers = Arrays.asList(availableIOSchedulersLine.replace("[", "").replace("]", "").split(" "));
             }
             if (ioscheduler != null && ioschedulers != null && ioschedulers.contains(ioscheduler)) {
-                Utils.fileWriteOneLine(IOScheduler.IOSCHED_LIST_FILE, ioscheduler);
+                tunables.add(IOScheduler.IOSCHED_LIST_FILE, ioscheduler);
             }
-            Log.d(TAG, "I/O scheduler settings restored.");
         }
     }
 
-    private void configurePerfProfile(Context ctx) {
+    private static void configurePerfProfile(Context ctx) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
         final Resources res = ctx.getResources();
 
@@ -174,8 +342,9 @@ public class BootReceiver extends BroadcastReceiver {
 
         String perfProfileProp = res.getString(
                 com.android.internal.R.string.config_perf_profile_prop);
-        if (!TextUtils.isEmpty(perfProfileProp)) {
+        if (TextUtils.isEmpty(perfProfileProp)) {
             Log.d(TAG, "Performance profiles are not supported by the device. Nothing to restore.");
+            return;
         }
 
         String perfProfile = Settings.System.getString(ctx.getContentResolver(),
@@ -189,12 +358,11 @@ public class BootReceiver extends BroadcastReceiver {
         Log.d(TAG, "Performance profile settings restored.");
     }
 
-    private void configureKSM(Context ctx) {
+    private static void configureKSM(Context ctx, KernelTunables.Batch tunables) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
 
         boolean ksm = prefs.getBoolean(MemoryManagement.KSM_PREF, false);
 
-        Utils.fileWriteOneLine(MemoryManagement.KSM_RUN_FILE, ksm ? "1" : "0");
-        Log.d(TAG, "KSM settings restored.");
+        tunables.add(MemoryManagement.KSM_RUN_FILE, ksm ? "1" : "0");
     }
 }
@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.cyanogenmod;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * Samples the current frequency of every core, and the time each CPU group
+ * spends at each frequency, on a background thread.  The sysfs files are
+ * kept open and reread from the start into a fixed buffer, and the values
+ * are parsed in place, so a sample does not allocate; files are only opened
+ * or closed when cores go on or offline.  The last {@link #HISTORY_SIZE}
+ * samples are kept in a ring buffer.
+ */
+public class CpuFreqSampler {
+    public static final int HISTORY_SIZE = 120;
+
+    private static final String CPU_ROOT = "/sys/devices/system/cpu/";
+
+    private static final int MSG_SAMPLE = 1;
+    private static final int MSG_STOP = 2;
+
+    private static final int MSG_SAMPLED = 1;
+    private static final int MSG_CPUS_CHANGED = 2;
+
+    public interface Callback {
+        /** Called on the main thread after each sample. */
+        void onSample(CpuFreqSampler sampler);
+
+        /** Called on the main thread when cores have gone on or offline. */
+        void onCpusChanged(CpuFreqSampler sampler);
+    }
+
+    private final CpuPolicy[] mPolicies;
+    private final int mCpuCount;
+    private final long mInterval;
+    private final Callback mCallback;
+
+    // Sampler thread state
+    private final byte[] mBuffer = new byte[4096];
+    private RandomAccessFile mOnlineFile;
+    private final RandomAccessFile[] mCurFiles;
+    private final RandomAccessFile[] mStatsFiles;
+    private final boolean[] mOnline;
+    private final boolean[] mLastOnline;
+    private final int[] mStatsCpu;
+    private final long[][] mFrequencies;
+    private final long[][] mLastStats;
+    private final int[] mCurFreqs;
+
+    // Published results, guarded by this
+    private final long[] mTimes = new long[HISTORY_SIZE];
+    private final int[][] mHistory;
+    private final long[][] mResidency;
+    private int mHead = -1;
+    private int mCount;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_SAMPLED:
+                    mCallback.onSample(CpuFreqSampler.this);
+                    break;
+                case MSG_CPUS_CHANGED:
+                    mCallback.onCpusChanged(CpuFreqSampler.this);
+                    break;
+            }
+        }
+    };
+
+    public CpuFreqSampler(List<CpuPolicy> policies, long interval, Callback callback) {
+        mPolicies = policies.toArray(new CpuPolicy[policies.size()]);
+        int cpuCount = 1;
+        for (CpuPolicy policy : mPolicies) {
+            for (int cpu : policy.cpus) {
+                cpuCount = Math.max(cpuCount, cpu + 1);
+            }
+        }
+        mCpuCount = cpuCount;
+        mInterval = interval;
+        mCallback = callback;
+
+        mCurFiles = new RandomAccessFile[cpuCount];
+        mOnline = new boolean[cpuCount];
+        mLastOnline = new boolean[cpuCount];
+        mCurFreqs = new int[cpuCount];
+        mHistory = new int[HISTORY_SIZE][cpuCount];
+
+        final int groups = mPolicies.length;
+        mStatsFiles = new RandomAccessFile[groups];
+        mStatsCpu = new int[groups];
+        mFrequencies = new long[groups][];
+        mLastStats = new long[groups][];
+        mResidency = new long[groups][];
+        for (int i = 0; i < groups; i++) {
+            final String[] frequencies = mPolicies[i].frequencies;
+            final int n = frequencies != null ? frequencies.length : 0;
+            mFrequencies[i] = new long[n];
+            for (int j = 0; j < n; j++) {
+                try {
+                    mFrequencies[i][j] = Long.parseLong(frequencies[j]);
+                } catch (NumberFormatException e) {
+                }
+            }
+            mLastStats[i] = new long[n];
+            mResidency[i] = new long[n];
+            mStatsCpu[i] = -1;
+        }
+    }
+
+    public int getCpuCount() {
+        return mCpuCount;
+    }
+
+    /**
+     * Starts sampling.  The first sample is taken right away.
+     */
+    public synchronized void start() {
+        if (mThread == null) {
+            mThread = new HandlerThread("CpuFreqSampler", Process.THREAD_PRIORITY_BACKGROUND);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper()) {
+                @Override
+                public void handleMessage(Message msg) {
+                    switch (msg.what) {
+                        case MSG_SAMPLE:
+                            sample();
+                            sendEmptyMessageDelayed(MSG_SAMPLE, mInterval);
+                            break;
+                        case MSG_STOP:
+                            removeMessages(MSG_SAMPLE);
+                            closeAll();
+                            break;
+                    }
+                }
+            };
+        }
+        mHandler.removeMessages(MSG_SAMPLE);
+        mHandler.sendEmptyMessage(MSG_SAMPLE);
+    }
+
+    /**
+     * Stops sampling and closes the files.  The history is kept.
+     */
+    public synchronized void stop() {
+        if (mHandler != null) {
+            mHandler.sendEmptyMessage(MSG_STOP);
+        }
+        mMainHandler.removeCallbacksAndMessages(null);
+    }
+
+    /**
+     * Stops sampling and shuts down the sampler thread.
+     */
+    public synchronized void release() {
+        stop();
+        if (mThread != null) {
+            mThread.quitSafely();
+            mThread = null;
+            mHandler = null;
+        }
+    }
+
+    /**
+     * Copies the frequency of each core in the latest sample, in kHz, into
+     * the given array; offline cores read 0.  Returns false if there is no
+     * sample yet.
+     */
+    public synchronized boolean getLatest(int[] out) {
+        if (mCount == 0) {
+            return false;
+        }
+        System.arraycopy(mHistory[mHead], 0, out, 0, Math.min(out.length, mCpuCount));
+        return true;
+    }
+
+    /**
+     * Copies the history of one core, oldest first, into the given arrays
+     * and returns the number of samples copied.  Times are in
+     * {@link SystemClock#elapsedRealtime} milliseconds.
+     */
+    public synchronized int getHistory(int cpu, long[] times, int[] freqs) {
+        final int n = Math.min(mCount, Math.min(times.length, freqs.length));
+        int index = (mHead - n + 1 + HISTORY_SIZE) % HISTORY_SIZE;
+        for (int i = 0; i < n; i++) {
+            times[i] = mTimes[index];
+            freqs[i] = mHistory[index][cpu];
+            index = (index + 1) % HISTORY_SIZE;
+        }
+        return n;
+    }
+
+    /**
+     * Copies the time, in milliseconds, that the given CPU group has spent
+     * at each of its frequencies since sampling started.  Entries are in the
+     * order of {@link CpuPolicy#frequencies}.
+     */
+    public synchronized void getResidency(int group, long[] out) {
+        final long[] residency = mResidency[group];
+        System.arraycopy(residency, 0, out, 0, Math.min(out.length, residency.length));
+    }
+
+    private void sample() {
+        final boolean changed = updateOnline();
+
+        for (int cpu = 0; cpu < mCpuCount; cpu++) {
+            long freq = 0;
+            if (mOnline[cpu]) {
+                if (mCurFiles[cpu] == null) {
+                    mCurFiles[cpu] = open(CPU_ROOT + "cpu" + cpu + "/cpufreq/scaling_cur_freq");
+                }
+                final int len = read(mCurFiles[cpu]);
+                if (len > 0) {
+                    freq = parseLong(mBuffer, 0, len);
+                } else {
+                    mCurFiles[cpu] = close(mCurFiles[cpu]);
+                }
+            }
+            mCurFreqs[cpu] = (int) freq;
+        }
+
+        synchronized (this) {
+            for (int group = 0; group < mPolicies.length; group++) {
+                sampleResidency(group);
+            }
+            mHead = (mHead + 1) % HISTORY_SIZE;
+            mTimes[mHead] = SystemClock.elapsedRealtime();
+            System.arraycopy(mCurFreqs, 0, mHistory[mHead], 0, mCpuCount);
+            if (mCount < HISTORY_SIZE) {
+                mCount++;
+            }
+        }
+
+        if (changed) {
+            mMainHandler.sendEmptyMessage(MSG_CPUS_CHANGED);
+        }
+        mMainHandler.sendEmptyMessage(MSG_SAMPLED);
+    }
+
+    /**
+     * Accumulates the frequency residency of a group from the time_in_state
+     * of its first online core.  If that core changes, or its counters go
+     * backwards after a hotplug, the new counters become the baseline.
+     */
+    private void sampleResidency(int group) {
+        final long[] frequencies = mFrequencies[group];
+        if (frequencies.length == 0) {
+            return;
+        }
+        int cpu = -1;
+        for (int c : mPolicies[group].cpus) {
+            if (c < mCpuCount && mOnline[c]) {
+                cpu = c;
+                break;
+            }
+        }
+        if (cpu != mStatsCpu[group]) {
+            mStatsFiles[group] = close(mStatsFiles[group]);
+            if (cpu >= 0) {
+                mStatsFiles[group] = open(CPU_ROOT + "cpu" + cpu
+                        + "/cpufreq/stats/time_in_state");
+            }
+        }
+        final boolean rebase = cpu != mStatsCpu[group];
+        mStatsCpu[group] = cpu;
+
+        final int len = read(mStatsFiles[group]);
+        if (len <= 0) {
+            mStatsFiles[group] = close(mStatsFiles[group]);
+            mStatsCpu[group] = -1;
+            return;
+        }
+
+        // Lines of "<freq> <time in 10ms units>"
+        final long[] last = mLastStats[group];
+        final long[] residency = mResidency[group];
+        int pos = 0;
+        while (pos < len) {
+            final int freqStart = pos;
+            while (pos < len && mBuffer[pos] != ' ') pos++;
+            final long freq = parseLong(mBuffer, freqStart, pos);
+            final int timeStart = ++pos;
+            while (pos < len && mBuffer[pos] != '\n') pos++;
+            final long time = parseLong(mBuffer, timeStart, pos) * 10;
+            pos++;
+
+            for (int i = 0; i < frequencies.length; i++) {
+                if (frequencies[i] == freq) {
+                    if (!rebase && time >= last[i]) {
+                        residency[i] += time - last[i];
+                    }
+                    last[i] = time;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Rereads the online mask.  Returns true if it changed, in which case
+     * the frequency files of cores that went offline are closed.
+     */
+    private boolean updateOnline() {
+        if (mOnlineFile == null) {
+            mOnlineFile = open(CPU_ROOT + "online");
+        }
+        final int len = read(mOnlineFile);
+        System.arraycopy(mOnline, 0, mLastOnline, 0, mCpuCount);
+        if (len <= 0) {
+            // Assume a single core kernel without hotplug
+            mOnlineFile = close(mOnlineFile);
+            for (int cpu = 0; cpu < mCpuCount; cpu++) {
+                mOnline[cpu] = cpu == 0;
+            }
+        } else {
+            parseCpuMask(mBuffer, len, mOnline);
+        }
+
+        boolean changed = false;
+        for (int cpu = 0; cpu < mCpuCount; cpu++) {
+            if (mOnline[cpu] != mLastOnline[cpu]) {
+                changed = true;
+                if (!mOnline[cpu]) {
+                    mCurFiles[cpu] = close(mCurFiles[cpu]);
+                }
+            }
+        }
+        // The first sample establishes the mask rather than changing it
+        return changed && mCount > 0;
+    }
+
+    private void closeAll() {
+        mOnlineFile = close(mOnlineFile);
+        for (int cpu = 0; cpu < mCpuCount; cpu++) {
+            mCurFiles[cpu] = close(mCurFiles[cpu]);
+        }
+        for (int group = 0; group < mStatsFiles.length; group++) {
+            mStatsFiles[group] = close(mStatsFiles[group]);
+            mStatsCpu[group] = -1;
+        }
+    }
+
+    /**
+     * Rereads a sysfs file from the start into the shared buffer and
+     * returns the number of bytes read, or -1 on error.
+     */
+    private int read(RandomAccessFile file) {
+        if (file == null) {
+            return -1;
+        }
+        try {
+            file.seek(0);
+            int len = 0;
+            int n;
+            while (len < mBuffer.length
+                    && (n = file.read(mBuffer, len, mBuffer.length - len)) > 0) {
+                len += n;
+            }
+            return len;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static RandomAccessFile open(String path) {
+        try {
+            return new RandomAccessFile(path, "r");
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static RandomAccessFile close(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+            }
+        }
+        return null;
+    }
+
+    /** Parses the decimal digits in the given range, ignoring anything else. */
+    private static long parseLong(byte[] buffer, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end && i < buffer.length; i++) {
+            final byte b = buffer[i];
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+            } else if (b == '\n') {
+                break;
+            }
+        }
+        return value;
+    }
+
+    /** Parses a kernel CPU list such as "0-3,6" into the given mask. */
+    private static void parseCpuMask(byte[] buffer, int len, boolean[] mask) {
+        for (int i = 0; i < mask.length; i++) {
+            mask[i] = false;
+        }
+        int pos = 0;
+        while (pos < len) {
+            int first = 0;
+            boolean digits = false;
+            while (pos < len && buffer[pos] >= '0' && buffer[pos] <= '9') {
+                first = first * 10 + (buffer[pos++] - '0');
+                digits = true;
+            }
+            int last = first;
+            if (pos < len && buffer[pos] == '-') {
+                pos++;
+                last = 0;
+                while (pos < len && buffer[pos] >= '0' && buffer[pos] <= '9') {
+                    last = last * 10 + (buffer[pos++] - '0');
+                }
+            }
+            if (digits) {
+                for (int cpu = first; cpu <= last && cpu < mask.length; cpu++) {
+                    mask[cpu] = true;
+                }
+            }
+            pos++;
+        }
+    }
+}
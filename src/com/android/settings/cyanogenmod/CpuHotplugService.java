@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.cyanogenmod;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Process;
+import android.os.UEventObserver;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Brings cores that come online after boot in line with the saved CPU
+ * settings.  Hotplug drivers bring cores up and down as the load changes,
+ * and a core that comes up starts out with the kernel's defaults.  Runs
+ * while set on boot is enabled for devices with more than one core.
+ */
+public class CpuHotplugService extends Service {
+    private static final String TAG = "CpuHotplugService";
+
+    private static final String CPU_DEVPATH = "DEVPATH=/devices/system/cpu/cpu";
+
+    private static final int MSG_SYNC = 1;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    private final UEventObserver mObserver = new UEventObserver() {
+        @Override
+        public void onUEvent(UEventObserver.UEvent event) {
+            if ("online".equals(event.get("ACTION"))) {
+                // Cores tend to come up together; sync them in one pass
+                if (!mHandler.hasMessages(MSG_SYNC)) {
+                    mHandler.sendEmptyMessage(MSG_SYNC);
+                }
+            }
+        }
+    };
+
+    /**
+     * Starts the service if the saved CPU settings are restored on boot
+     * and there are cores that can come online later.
+     */
+    public static void startIfNeeded(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (!prefs.getBoolean(Processor.SOB_PREF, false)) {
+            return;
+        }
+        final List<CpuPolicy> policies = CpuPolicy.getPolicies(context);
+        if (policies.size() > 1 || (policies.size() == 1 && policies.get(0).cpus.length > 1)) {
+            context.startService(new Intent(context, CpuHotplugService.class));
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_SYNC) {
+                    sync();
+                }
+            }
+        };
+        mObserver.startObserving(CPU_DEVPATH);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Catch up on cores that came online before the service was running
+        mHandler.sendEmptyMessage(MSG_SYNC);
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        mObserver.stopObserving();
+        mThread.quitSafely();
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private void sync() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        if (!prefs.getBoolean(Processor.SOB_PREF, false)) {
+            Log.i(TAG, "CPU restore disabled by user preference, stopping");
+            stopSelf();
+            return;
+        }
+        for (CpuPolicy policy : CpuPolicy.getPolicies(this)) {
+            policy.syncSaved(prefs);
+        }
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.cyanogenmod;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.android.settings.R;
+import com.android.settings.util.KernelTunables;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A group of cores that share a frequency table, such as one cluster of a
+ * big.LITTLE SoC, or all cores of an SMP SoC whose kernel keeps a cpufreq
+ * policy per core.  Settings are applied to every online core of the group
+ * and stored per group, so that cores that come online later can be brought
+ * in line with {@link #sync}; {@link CpuHotplugService} does so for the
+ * saved settings.
+ */
+public class CpuPolicy {
+    private static final String TAG = "CpuPolicy";
+
+    private static final String CPU_ROOT = "/sys/devices/system/cpu/";
+    private static final String ONLINE_FILE = CPU_ROOT + "online";
+    private static final String POSSIBLE_FILE = CPU_ROOT + "possible";
+
+    private static final String GOV = "scaling_governor";
+    private static final String GOV_LIST = "scaling_available_governors";
+    private static final String FREQ_MIN = "scaling_min_freq";
+    private static final String FREQ_MAX = "scaling_max_freq";
+    private static final String FREQ_LIST = "scaling_available_frequencies";
+    private static final String FREQ_CUR = "scaling_cur_freq";
+    private static final String FREQINFO_CUR = "cpuinfo_cur_freq";
+
+    private static List<CpuPolicy> sPolicies;
+    private static String sCpu0MinFile;
+    private static String sCpu0MaxFile;
+
+    /** Position of the group, ordered by its lowest core. */
+    public final int index;
+    /** Cores of the group, in ascending order. */
+    public final int[] cpus;
+    /** Available governors, or null if the kernel doesn't expose them. */
+    public final String[] governors;
+    /** Available frequencies in kHz, or null if unknown. */
+    public final String[] frequencies;
+
+    private CpuPolicy(int index, int[] cpus, String[] governors, String[] frequencies) {
+        this.index = index;
+        this.cpus = cpus;
+        this.governors = governors;
+        this.frequencies = frequencies;
+    }
+
+    /**
+     * Returns the CPU groups of this device.  Discovery needs one online
+     * core per group; if a core can't be placed yet because its group is
+     * entirely offline, the result is not kept and the next call looks
+     * again.
+     */
+    public static synchronized List<CpuPolicy> getPolicies(Context context) {
+        if (sCpu0MaxFile == null) {
+            sCpu0MaxFile = context.getString(R.string.max_cpu_freq_file);
+            sCpu0MinFile = context.getString(R.string.min_cpu_freq_file);
+        }
+        if (sPolicies != null) {
+            return sPolicies;
+        }
+
+        final int[] possible = parseCpuList(readLine(POSSIBLE_FILE));
+        final int[] online = parseCpuList(readLine(ONLINE_FILE));
+        final int[] all = possible.length > 0 ? possible : online.length > 0 ? online
+                : new int[] { 0 };
+
+        // Group cores by frequency table, filling in offline siblings from
+        // related_cpus where the kernel shares one policy across a cluster.
+        final LinkedHashMap<String, ArrayList<Integer>> groups =
+                new LinkedHashMap<String, ArrayList<Integer>>();
+        final LinkedHashMap<String, String[]> governorsByGroup =
+                new LinkedHashMap<String, String[]>();
+        final boolean[] placed = new boolean[maxCpu(all) + 1];
+        for (int cpu : all) {
+            if (placed[cpu] || !new File(cpufreqFile(cpu, "")).isDirectory()) {
+                continue;
+            }
+            final String freqLine = readLine(cpufreqFile(cpu, FREQ_LIST));
+            final String key = freqLine != null ? freqLine.trim() : "";
+            ArrayList<Integer> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<Integer>();
+                groups.put(key, group);
+                governorsByGroup.put(key, split(readLine(cpufreqFile(cpu, GOV_LIST))));
+            }
+            int[] related = parseCpuList(readLine(cpufreqFile(cpu, "related_cpus")));
+            if (related.length == 0) {
+                related = new int[] { cpu };
+            }
+            for (int sibling : related) {
+                if (sibling < placed.length && !placed[sibling]) {
+                    placed[sibling] = true;
+                    group.add(sibling);
+                }
+            }
+            if (!placed[cpu]) {
+                placed[cpu] = true;
+                group.add(cpu);
+            }
+        }
+
+        // Cores that are offline and not listed by any sibling can only be
+        // placed if there is a single group for them to belong to.
+        boolean complete = true;
+        for (int cpu : all) {
+            if (!placed[cpu]) {
+                if (groups.size() == 1) {
+                    groups.values().iterator().next().add(cpu);
+                } else {
+                    complete = false;
+                }
+            }
+        }
+
+        final ArrayList<CpuPolicy> policies = new ArrayList<CpuPolicy>(groups.size());
+        for (String key : groups.keySet()) {
+            final ArrayList<Integer> group = groups.get(key);
+            final int[] cpus = new int[group.size()];
+            for (int i = 0; i < cpus.length; i++) {
+                cpus[i] = group.get(i);
+            }
+            Arrays.sort(cpus);
+            policies.add(new CpuPolicy(policies.size(), cpus, governorsByGroup.get(key),
+                    key.isEmpty() ? null : key.split(" ")));
+        }
+
+        if (complete) {
+            sPolicies = policies;
+        }
+        return policies;
+    }
+
+    /**
+     * Returns the preference key under which this group's value of the
+     * given setting is stored.  The first group uses the plain key, which
+     * keeps settings saved before groups were known.
+     */
+    public String getPrefKey(String baseKey) {
+        return index == 0 ? baseKey : baseKey + "_" + index;
+    }
+
+    public String getGovernor() {
+        return readFirstOnline(GOV);
+    }
+
+    public String getMinFrequency() {
+        return readFirstOnline(FREQ_MIN);
+    }
+
+    public String getMaxFrequency() {
+        return readFirstOnline(FREQ_MAX);
+    }
+
+    /**
+     * Returns the current frequency of the first online core, or null if
+     * the whole group is offline.
+     */
+    public String getCurFrequency() {
+        final String cur = readFirstOnline(FREQ_CUR);
+        return cur != null ? cur : readFirstOnline(FREQINFO_CUR);
+    }
+
+    public boolean hasGovernor() {
+        return governors != null && getGovernor() != null;
+    }
+
+    public boolean hasFrequencies() {
+        return frequencies != null;
+    }
+
+    public boolean isOnline() {
+        return firstOnline() >= 0;
+    }
+
+    /**
+     * Applies the given governor and frequency limits to every online core
+     * of the group.  Null values are left alone.  If any write fails, the
+     * cores that were already changed are restored and false is returned.
+     */
+    public boolean apply(String governor, String minFrequency, String maxFrequency) {
+        if (!isSupported(governor, governors) || !isSupported(minFrequency, frequencies)
+                || !isSupported(maxFrequency, frequencies)) {
+            return false;
+        }
+
+        final int[] online = getOnlineCpus();
+        final ArrayList<String[]> undo = new ArrayList<String[]>();
+        for (int cpu : online) {
+            if (!applyTo(cpu, governor, minFrequency, maxFrequency, undo)) {
+                Log.w(TAG, "Unable to apply settings to cpu" + cpu + ", rolling back");
+                for (int i = undo.size() - 1; i >= 0; i--) {
+                    KernelTunables.writeLine(undo.get(i)[0], undo.get(i)[1]);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the settings to one core, recording the previous value of
+     * each file changed.  Limits are written in the order that keeps
+     * min <= max at every step, as the kernel rejects anything else.
+     */
+    private boolean applyTo(int cpu, String governor, String min, String max,
+            ArrayList<String[]> undo) {
+        if (governor != null && !write(cpufreqFile(cpu, GOV), governor, undo)) {
+            return false;
+        }
+        final String minFile = cpu == 0 ? sCpu0MinFile : cpufreqFile(cpu, FREQ_MIN);
+        final String maxFile = cpu == 0 ? sCpu0MaxFile : cpufreqFile(cpu, FREQ_MAX);
+        boolean maxFirst = true;
+        if (min != null && max != null) {
+            final String curMax = readLine(maxFile);
+            maxFirst = curMax == null || parseFreq(max) >= parseFreq(curMax);
+        }
+        if (maxFirst) {
+            return (max == null || write(maxFile, max, undo))
+                    && (min == null || write(minFile, min, undo));
+        } else {
+            return (min == null || write(minFile, min, undo))
+                    && (max == null || write(maxFile, max, undo));
+        }
+    }
+
+    private static boolean write(String file, String value, ArrayList<String[]> undo) {
+        final String old = readLine(file);
+        if (value.equals(old)) {
+            return true;
+        }
+        if (!KernelTunables.writeLine(file, value)) {
+            return false;
+        }
+        if (old != null) {
+            undo.add(new String[] { file, old });
+        }
+        return true;
+    }
+
+    /**
+     * Applies the given settings to any online core that does not have
+     * them yet, for example because it was hotplugged after the settings
+     * were applied.  Null values are left alone.
+     */
+    public void sync(String governor, String min, String max) {
+        final KernelTunables.Batch batch = new KernelTunables.Batch();
+        sync(governor, min, max, batch);
+        batch.commit(false);
+    }
+
+    /**
+     * Brings the online cores in line with the settings saved for this
+     * group by the Processor screen.  Returns false if none are saved.
+     */
+    public boolean syncSaved(SharedPreferences prefs) {
+        final KernelTunables.Batch batch = new KernelTunables.Batch();
+        if (!syncSaved(prefs, batch)) {
+            return false;
+        }
+        batch.commit(false);
+        return true;
+    }
+
+    /**
+     * Adds the writes that bring the online cores in line with the settings
+     * saved for this group to a batch.  Returns false if none are saved.
+     */
+    public boolean syncSaved(SharedPreferences prefs, KernelTunables.Batch batch) {
+        final String governor = prefs.getString(getPrefKey(Processor.GOV_PREF), null);
+        final String min = prefs.getString(getPrefKey(Processor.FREQ_MIN_PREF), null);
+        final String max = prefs.getString(getPrefKey(Processor.FREQ_MAX_PREF), null);
+        if ((governors == null || governor == null)
+                && (frequencies == null || (min == null && max == null))) {
+            return false;
+        }
+        sync(governor, min, max, batch);
+        return true;
+    }
+
+    /**
+     * Adds the writes that bring the online cores in line with the given
+     * settings to a batch, in the same order as {@link #apply}.
+     */
+    public void sync(String governor, String min, String max, KernelTunables.Batch batch) {
+        if (!isSupported(governor, governors)) {
+            governor = null;
+        }
+        if (!isSupported(min, frequencies)) {
+            min = null;
+        }
+        if (!isSupported(max, frequencies)) {
+            max = null;
+        }
+        if (governor == null && min == null && max == null) {
+            return;
+        }
+        for (int cpu : getOnlineCpus()) {
+            final String govFile = cpufreqFile(cpu, GOV);
+            final String minFile = cpu == 0 ? sCpu0MinFile : cpufreqFile(cpu, FREQ_MIN);
+            final String maxFile = cpu == 0 ? sCpu0MaxFile : cpufreqFile(cpu, FREQ_MAX);
+            final String curMax = max != null ? readLine(maxFile) : null;
+            final boolean syncMin = min != null && !min.equals(readLine(minFile));
+            final boolean syncMax = max != null && !max.equals(curMax);
+
+            if (governor != null && !governor.equals(readLine(govFile))) {
+                batch.add(govFile, governor);
+            }
+            if (syncMax && (curMax == null || parseFreq(max) >= parseFreq(curMax))) {
+                batch.add(maxFile, max);
+                if (syncMin) batch.add(minFile, min);
+            } else {
+                if (syncMin) batch.add(minFile, min);
+                if (syncMax) batch.add(maxFile, max);
+            }
+        }
+    }
+
+    /** Returns the online cores of this group. */
+    public int[] getOnlineCpus() {
+        final int[] online = parseCpuList(readLine(ONLINE_FILE));
+        final int[] result = new int[cpus.length];
+        int count = 0;
+        for (int cpu : cpus) {
+            if (online.length == 0 ? cpu == 0 : Arrays.binarySearch(online, cpu) >= 0) {
+                result[count++] = cpu;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private int firstOnline() {
+        final int[] online = getOnlineCpus();
+        return online.length > 0 ? online[0] : -1;
+    }
+
+    private String readFirstOnline(String name) {
+        final int cpu = firstOnline();
+        if (cpu < 0) {
+            return null;
+        }
+        if (cpu == 0 && FREQ_MIN.equals(name)) {
+            return readLine(sCpu0MinFile);
+        } else if (cpu == 0 && FREQ_MAX.equals(name)) {
+            return readLine(sCpu0MaxFile);
+        }
+        return readLine(cpufreqFile(cpu, name));
+    }
+
+    private static boolean isSupported(String value, String[] available) {
+        return value == null || available == null || Arrays.asList(available).contains(value);
+    }
+
+    private static String cpufreqFile(int cpu, String name) {
+        return CPU_ROOT + "cpu" + cpu + "/cpufreq/" + name;
+    }
+
+    private static String readLine(String file) {
+        return file != null ? KernelTunables.readLine(file) : null;
+    }
+
+    private static String[] split(String line) {
+        return line != null && !line.trim().isEmpty() ? line.trim().split(" ") : null;
+    }
+
+    private static long parseFreq(String freq) {
+        try {
+            return Long.parseLong(freq.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int maxCpu(int[] cpus) {
+        int max = 0;
+        for (int cpu : cpus) {
+            max = Math.max(max, cpu);
+        }
+        return max;
+    }
+
+    /**
+     * Parses a kernel CPU list such as "0-3,6", returning the cores in
+     * ascending order.
+     */
+    static int[] parseCpuList(String line) {
+        if (line == null) {
+            return new int[0];
+        }
+        final ArrayList<Integer> list = new ArrayList<Integer>();
+        for (String part : line.trim().split("[,\\s]+")) {
+            if (part.isEmpty()) {
+                continue;
+            }
+            try {
+                final int dash = part.indexOf('-');
+                if (dash < 0) {
+                    list.add(Integer.parseInt(part));
+                } else {
+                    final int end = Integer.parseInt(part.substring(dash + 1));
+                    for (int cpu = Integer.parseInt(part.substring(0, dash)); cpu <= end; cpu++) {
+                        list.add(cpu);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Unable to parse cpu list " + line);
+            }
+        }
+        final int[] cpus = new int[list.size()];
+        for (int i = 0; i < cpus.length; i++) {
+            cpus[i] = list.get(i);
+        }
+        Arrays.sort(cpus);
+        return cpus;
+    }
+}
@@ -28,6 +28,8 @@ import com.android.settings.util.CMDProcessor;
 import com.android.settings.util.CMDProcessor.CommandResult;
 import com.android.settings.util.Helpers;
 
+import java.util.ArrayList;
+
 public class DensityChanger extends SettingsPreferenceFragment implements
         OnPreferenceChangeListener {
 
@@ -228,19 +230,22 @@ public class DensityChanger extends SettingsPreferenceFragment implements
     private class ClearMarketDataTask extends AsyncTask<String, Void, Boolean> {
         protected Boolean doInBackground(String... stuff) {
             String vending = "/data/data/com.android.vending/";
-            CommandResult cr = new CMDProcessor().su.runWaitFor("ls " + vending);
+            CMDProcessor.SH su = new CMDProcessor().su;
+            CommandResult cr = su.runWaitFor("ls " + vending);
 
             if (cr.stdout == null)
                 return false;
 
+            ArrayList<String> commands = new ArrayList<String>();
             for (String dir : cr.stdout.split("\n")) {
                 if (!dir.equals("lib")) {
-                    String c = "rm -r " + vending + dir;
-                    // Log.i(TAG, c);
-                    if (!new CMDProcessor().su.runWaitFor(c).success())
-                        return false;
+                    commands.add("rm -r " + vending + dir);
                 }
             }
+            for (CommandResult r : su.runWaitFor(commands.toArray(new String[commands.size()]))) {
+                if (!r.success())
+                    return false;
+            }
             return true;
         }
 
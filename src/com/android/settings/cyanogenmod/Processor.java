@@ -17,15 +17,18 @@
 package com.android.settings.cyanogenmod;
 
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
+import android.preference.CheckBoxPreference;
 import android.preference.ListPreference;
 import android.preference.Preference;
+import android.preference.PreferenceCategory;
+import android.preference.PreferenceGroup;
 import android.preference.PreferenceScreen;
 
 import com.android.settings.R;
 import com.android.settings.SettingsPreferenceFragment;
-import com.android.settings.Utils;
+
+import java.util.ArrayList;
+import java.util.List;
 
 //
 // CPU Related Settings
@@ -34,161 +37,224 @@ public class Processor extends SettingsPreferenceFragment implements
         Preference.OnPreferenceChangeListener {
 
     public static final String FREQ_CUR_PREF = "pref_cpu_freq_cur";
-    public static final String SCALE_CUR_FILE = "/sys/devices/system/cpu/cpu0/cpufreq/scaling_cur_freq";
-    public static final String FREQINFO_CUR_FILE = "/sys/devices/system/cpu/cpu0/cpufreq/cpuinfo_cur_freq";
-    private static String FREQ_CUR_FILE = SCALE_CUR_FILE;
     public static final String GOV_PREF = "pref_cpu_gov";
-    public static final String GOV_LIST_FILE = "/sys/devices/system/cpu/cpu0/cpufreq/scaling_available_governors";
-    public static final String GOV_FILE = "/sys/devices/system/cpu/cpu0/cpufreq/scaling_governor";
     public static final String FREQ_MIN_PREF = "pref_cpu_freq_min";
     public static final String FREQ_MAX_PREF = "pref_cpu_freq_max";
-    public static final String FREQ_LIST_FILE = "/sys/devices/system/cpu/cpu0/cpufreq/scaling_available_frequencies";
-    public static String FREQ_MAX_FILE = null;
-    public static String FREQ_MIN_FILE = null;
     public static final String SOB_PREF = "pref_cpu_set_on_boot";
-
-    protected static boolean freqCapFilesInitialized = false;
+    public static final String RESIDENCY_PREF = "pref_cpu_time_in_state";
 
     private static final String TAG = "CPUSettings";
 
+    private static final long SAMPLE_INTERVAL = 500;
+    // Frequencies shown in the time at frequency summary
+    private static final int RESIDENCY_ENTRIES = 3;
+
     private String mGovernorFormat;
     private String mMinFrequencyFormat;
     private String mMaxFrequencyFormat;
 
     private Preference mCurFrequencyPref;
-    private ListPreference mGovernorPref;
-    private ListPreference mMinFrequencyPref;
-    private ListPreference mMaxFrequencyPref;
 
-    private class CurCPUThread extends Thread {
-        private boolean mInterrupt = false;
+    /** The preferences controlling one CPU group. */
+    private static class PolicyPrefs {
+        CpuPolicy policy;
+        PreferenceGroup group;
+        ListPreference governor;
+        ListPreference minFrequency;
+        ListPreference maxFrequency;
+        Preference residency;
+        long[] residencyTimes;
+    }
 
-        public void interrupt() {
-            mInterrupt = true;
-        }
+    private final ArrayList<PolicyPrefs> mPolicyPrefs = new ArrayList<PolicyPrefs>();
+
+    private CpuFreqSampler mSampler;
+    private int[] mCurFreqs;
+    private final long[] mHistoryTimes = new long[CpuFreqSampler.HISTORY_SIZE];
+    private final int[] mHistoryFreqs = new int[CpuFreqSampler.HISTORY_SIZE];
 
+    private final CpuFreqSampler.Callback mSamplerCallback = new CpuFreqSampler.Callback() {
         @Override
-        public void run() {
-            try {
-                while (!mInterrupt) {
-                    sleep(500);
-                    final String curFreq = Utils.fileReadOneLine(FREQ_CUR_FILE);
-                    if (curFreq != null)
-                        mCurCPUHandler.sendMessage(mCurCPUHandler.obtainMessage(0, curFreq));
+        public void onSample(CpuFreqSampler sampler) {
+            if (sampler.getLatest(mCurFreqs)) {
+                final String curFreq = formatCurFrequencies(sampler, mCurFreqs);
+                if (curFreq != null) {
+                    mCurFrequencyPref.setSummary(curFreq);
+                }
+            }
+            for (int i = 0; i < mPolicyPrefs.size(); i++) {
+                final PolicyPrefs prefs = mPolicyPrefs.get(i);
+                if (prefs.residency != null) {
+                    sampler.getResidency(i, prefs.residencyTimes);
+                    final String residency = formatResidency(prefs);
+                    if (residency != null) {
+                        prefs.residency.setSummary(residency);
+                    }
                 }
-            } catch (InterruptedException e) {
             }
         }
-    };
-
-    private CurCPUThread mCurCPUThread = new CurCPUThread();
 
-    private Handler mCurCPUHandler = new Handler() {
-        public void handleMessage(Message msg) {
-            mCurFrequencyPref.setSummary(toMHz((String) msg.obj));
+        @Override
+        public void onCpusChanged(CpuFreqSampler sampler) {
+            // Cores that just came online may have kernel defaults.  The
+            // hotplug service does the same with the saved settings, but
+            // only while set on boot is enabled.
+            for (PolicyPrefs prefs : mPolicyPrefs) {
+                prefs.policy.sync(getValue(prefs.governor),
+                        getValue(prefs.minFrequency), getValue(prefs.maxFrequency));
+            }
         }
     };
 
-    private void initFreqCapFiles()
-    {
-        if (freqCapFilesInitialized) return;
-        FREQ_MAX_FILE = getString(R.string.max_cpu_freq_file);
-        FREQ_MIN_FILE = getString(R.string.min_cpu_freq_file);
-        freqCapFilesInitialized = true;
-    }
-
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        initFreqCapFiles();
-
         mGovernorFormat = getString(R.string.cpu_governors_summary);
         mMinFrequencyFormat = getString(R.string.cpu_min_freq_summary);
         mMaxFrequencyFormat = getString(R.string.cpu_max_freq_summary);
 
-        String[] availableFrequencies = new String[0];
-        String[] availableGovernors = new String[0];
-        String[] frequencies;
-        String availableGovernorsLine;
-        String availableFrequenciesLine;
-        String temp;
-
         addPreferencesFromResource(R.xml.processor_settings);
 
         PreferenceScreen prefScreen = getPreferenceScreen();
 
-        mGovernorPref = (ListPreference) prefScreen.findPreference(GOV_PREF);
         mCurFrequencyPref = (Preference) prefScreen.findPreference(FREQ_CUR_PREF);
-        mMinFrequencyPref = (ListPreference) prefScreen.findPreference(FREQ_MIN_PREF);
-        mMaxFrequencyPref = (ListPreference) prefScreen.findPreference(FREQ_MAX_PREF);
+
+        final List<CpuPolicy> policies = CpuPolicy.getPolicies(getActivity());
+        final boolean grouped = policies.size() > 1;
+        final Preference setOnBoot = prefScreen.findPreference(SOB_PREF);
+        // Keep set on boot below the per-group categories and time at frequency
+        prefScreen.removePreference(setOnBoot);
+
+        for (CpuPolicy policy : policies) {
+            final PolicyPrefs prefs = new PolicyPrefs();
+            prefs.policy = policy;
+            PreferenceGroup group = prefScreen;
+            if (policy.index == 0) {
+                prefs.governor = (ListPreference) prefScreen.findPreference(GOV_PREF);
+                prefs.minFrequency = (ListPreference) prefScreen.findPreference(FREQ_MIN_PREF);
+                prefs.maxFrequency = (ListPreference) prefScreen.findPreference(FREQ_MAX_PREF);
+            } else {
+                prefs.governor = createListPreference(policy.getPrefKey(GOV_PREF),
+                        R.string.cpu_governors_title);
+                prefs.minFrequency = createListPreference(policy.getPrefKey(FREQ_MIN_PREF),
+                        R.string.cpu_min_freq_title);
+                prefs.maxFrequency = createListPreference(policy.getPrefKey(FREQ_MAX_PREF),
+                        R.string.cpu_max_freq_title);
+            }
+            if (grouped) {
+                prefScreen.removePreference(prefs.governor);
+                prefScreen.removePreference(prefs.minFrequency);
+                prefScreen.removePreference(prefs.maxFrequency);
+                group = new PreferenceCategory(getActivity());
+                group.setTitle(getString(R.string.cpu_group_title, formatCpus(policy.cpus)));
+                prefScreen.addPreference(group);
+                group.addPreference(prefs.governor);
+                group.addPreference(prefs.minFrequency);
+                group.addPreference(prefs.maxFrequency);
+            }
+            setupPolicyPrefs(group, prefs);
+            prefs.group = group;
+            mPolicyPrefs.add(prefs);
+        }
+
+        if (policies.isEmpty()) {
+            // No cpufreq support at all
+            prefScreen.removePreference(prefScreen.findPreference(GOV_PREF));
+            prefScreen.findPreference(FREQ_MIN_PREF).setEnabled(false);
+            prefScreen.findPreference(FREQ_MAX_PREF).setEnabled(false);
+        }
+
+        // Cur frequency
+        final String curFreq = readCurFrequencies();
+        if (curFreq == null) {
+            mCurFrequencyPref.setEnabled(false);
+
+        } else {
+            mCurFrequencyPref.setSummary(curFreq);
+
+            mSampler = new CpuFreqSampler(policies, SAMPLE_INTERVAL, mSamplerCallback);
+            mCurFreqs = new int[mSampler.getCpuCount()];
+
+            // Time at frequency, as sampled while the screen is shown
+            for (PolicyPrefs prefs : mPolicyPrefs) {
+                if (!prefs.policy.hasFrequencies()) {
+                    continue;
+                }
+                prefs.residency = new Preference(getActivity());
+                prefs.residency.setKey(prefs.policy.getPrefKey(RESIDENCY_PREF));
+                prefs.residency.setTitle(R.string.cpu_time_in_state_title);
+                prefs.residency.setSelectable(false);
+                prefs.residencyTimes = new long[prefs.policy.frequencies.length];
+                prefs.group.addPreference(prefs.residency);
+            }
+        }
+
+        prefScreen.addPreference(setOnBoot);
+    }
+
+    private ListPreference createListPreference(String key, int titleRes) {
+        final ListPreference pref = new ListPreference(getActivity());
+        pref.setKey(key);
+        pref.setTitle(titleRes);
+        pref.setDialogTitle(titleRes);
+        return pref;
+    }
+
+    private void setupPolicyPrefs(PreferenceGroup group, PolicyPrefs prefs) {
+        final CpuPolicy policy = prefs.policy;
+        String temp;
 
         /* Governor
         Some systems might not use governors */
-        if (!Utils.fileExists(GOV_LIST_FILE) || !Utils.fileExists(GOV_FILE) || (temp = Utils.fileReadOneLine(GOV_FILE)) == null || (availableGovernorsLine = Utils.fileReadOneLine(GOV_LIST_FILE)) == null) {
-            prefScreen.removePreference(mGovernorPref);
+        if (!policy.hasGovernor()) {
+            group.removePreference(prefs.governor);
+            prefs.governor = null;
 
         } else {
-            availableGovernors = availableGovernorsLine.split(" ");
-
-            mGovernorPref.setEntryValues(availableGovernors);
-            mGovernorPref.setEntries(availableGovernors);
-            mGovernorPref.setValue(temp);
-            mGovernorPref.setSummary(String.format(mGovernorFormat, temp));
-            mGovernorPref.setOnPreferenceChangeListener(this);
+            temp = policy.getGovernor();
+            prefs.governor.setEntryValues(policy.governors);
+            prefs.governor.setEntries(policy.governors);
+            prefs.governor.setValue(temp);
+            prefs.governor.setSummary(String.format(mGovernorFormat, temp));
+            prefs.governor.setOnPreferenceChangeListener(this);
         }
 
         // Disable the min/max list if we dont have a list file
-        if (!Utils.fileExists(FREQ_LIST_FILE) || (availableFrequenciesLine = Utils.fileReadOneLine(FREQ_LIST_FILE)) == null) {
-            mMinFrequencyPref.setEnabled(false);
-            mMaxFrequencyPref.setEnabled(false);
+        if (!policy.hasFrequencies()) {
+            prefs.minFrequency.setEnabled(false);
+            prefs.maxFrequency.setEnabled(false);
 
         } else {
-            availableFrequencies = availableFrequenciesLine.split(" ");
-
-            frequencies = new String[availableFrequencies.length];
+            final String[] frequencies = new String[policy.frequencies.length];
             for (int i = 0; i < frequencies.length; i++) {
-                frequencies[i] = toMHz(availableFrequencies[i]);
+                frequencies[i] = toMHz(policy.frequencies[i]);
             }
 
             // Min frequency
-            if (!Utils.fileExists(FREQ_MIN_FILE) || (temp = Utils.fileReadOneLine(FREQ_MIN_FILE)) == null) {
-                mMinFrequencyPref.setEnabled(false);
+            if ((temp = policy.getMinFrequency()) == null) {
+                prefs.minFrequency.setEnabled(false);
 
             } else {
-                mMinFrequencyPref.setEntryValues(availableFrequencies);
-                mMinFrequencyPref.setEntries(frequencies);
-                mMinFrequencyPref.setValue(temp);
-                mMinFrequencyPref.setSummary(String.format(mMinFrequencyFormat, toMHz(temp)));
-                mMinFrequencyPref.setOnPreferenceChangeListener(this);
+                prefs.minFrequency.setEntryValues(policy.frequencies);
+                prefs.minFrequency.setEntries(frequencies);
+                prefs.minFrequency.setValue(temp);
+                prefs.minFrequency.setSummary(String.format(mMinFrequencyFormat, toMHz(temp)));
+                prefs.minFrequency.setOnPreferenceChangeListener(this);
             }
 
             // Max frequency
-            if (!Utils.fileExists(FREQ_MAX_FILE) || (temp = Utils.fileReadOneLine(FREQ_MAX_FILE)) == null) {
-                mMaxFrequencyPref.setEnabled(false);
+            if ((temp = policy.getMaxFrequency()) == null) {
+                prefs.maxFrequency.setEnabled(false);
 
             } else {
-                mMaxFrequencyPref.setEntryValues(availableFrequencies);
-                mMaxFrequencyPref.setEntries(frequencies);
-                mMaxFrequencyPref.setValue(temp);
-                mMaxFrequencyPref.setSummary(String.format(mMaxFrequencyFormat, toMHz(temp)));
-                mMaxFrequencyPref.setOnPreferenceChangeListener(this);
+                prefs.maxFrequency.setEntryValues(policy.frequencies);
+                prefs.maxFrequency.setEntries(frequencies);
+                prefs.maxFrequency.setValue(temp);
+                prefs.maxFrequency.setSummary(String.format(mMaxFrequencyFormat, toMHz(temp)));
+                prefs.maxFrequency.setOnPreferenceChangeListener(this);
             }
         }
-
-        // Cur frequency
-        if (!Utils.fileExists(FREQ_CUR_FILE)) {
-            FREQ_CUR_FILE = FREQINFO_CUR_FILE;
-        }
-
-        if (!Utils.fileExists(FREQ_CUR_FILE) || (temp = Utils.fileReadOneLine(FREQ_CUR_FILE)) == null) {
-            mCurFrequencyPref.setEnabled(false);
-
-        } else {
-            mCurFrequencyPref.setSummary(toMHz(temp));
-
-            mCurCPUThread.start();
-        }
     }
 
     @Override
@@ -197,67 +263,211 @@ public class Processor extends SettingsPreferenceFragment implements
 
         super.onResume();
 
-        initFreqCapFiles();
+        for (PolicyPrefs prefs : mPolicyPrefs) {
+            final CpuPolicy policy = prefs.policy;
+
+            if (prefs.minFrequency.isEnabled() && (temp = policy.getMinFrequency()) != null) {
+                prefs.minFrequency.setValue(temp);
+                prefs.minFrequency.setSummary(String.format(mMinFrequencyFormat, toMHz(temp)));
+            }
+
+            if (prefs.maxFrequency.isEnabled() && (temp = policy.getMaxFrequency()) != null) {
+                prefs.maxFrequency.setValue(temp);
+                prefs.maxFrequency.setSummary(String.format(mMaxFrequencyFormat, toMHz(temp)));
+            }
 
-        if (Utils.fileExists(FREQ_MIN_FILE) && (temp = Utils.fileReadOneLine(FREQ_MIN_FILE)) != null) {
-            mMinFrequencyPref.setValue(temp);
-            mMinFrequencyPref.setSummary(String.format(mMinFrequencyFormat, toMHz(temp)));
+            if (prefs.governor != null && (temp = policy.getGovernor()) != null) {
+                prefs.governor.setSummary(String.format(mGovernorFormat, temp));
+            }
         }
 
-        if (Utils.fileExists(FREQ_MAX_FILE) && (temp = Utils.fileReadOneLine(FREQ_MAX_FILE)) != null) {
-            mMaxFrequencyPref.setValue(temp);
-            mMaxFrequencyPref.setSummary(String.format(mMaxFrequencyFormat, toMHz(temp)));
+        if (mSampler != null) {
+            mSampler.start();
         }
+    }
 
-        if (Utils.fileExists(GOV_FILE) && (temp = Utils.fileReadOneLine(GOV_FILE)) != null) {
-            mGovernorPref.setSummary(String.format(mGovernorFormat, temp));
+    @Override
+    public void onPause() {
+        super.onPause();
+        if (mSampler != null) {
+            mSampler.stop();
         }
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        mCurCPUThread.interrupt();
-        try {
-            mCurCPUThread.join();
-        } catch (InterruptedException e) {
+        if (mSampler != null) {
+            mSampler.release();
         }
     }
 
+    @Override
+    public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
+        if (SOB_PREF.equals(preference.getKey())
+                && ((CheckBoxPreference) preference).isChecked()) {
+            // Keep the settings on cores that come online from now on
+            CpuHotplugService.startIfNeeded(getActivity());
+        }
+        return super.onPreferenceTreeClick(preferenceScreen, preference);
+    }
+
     public boolean onPreferenceChange(Preference preference, Object newValue) {
-        initFreqCapFiles();
+        if (newValue == null) {
+            return false;
+        }
+        final String value = (String) newValue;
 
-        String fname = "";
+        for (PolicyPrefs prefs : mPolicyPrefs) {
+            if (preference == prefs.governor) {
+                if (prefs.policy.apply(value, null, null)) {
+                    prefs.governor.setSummary(String.format(mGovernorFormat, value));
+                    return true;
+                }
+                return false;
+            } else if (preference == prefs.minFrequency) {
+                if (prefs.policy.apply(null, value, null)) {
+                    prefs.minFrequency.setSummary(String.format(mMinFrequencyFormat,
+                            toMHz(value)));
+                    return true;
+                }
+                return false;
+            } else if (preference == prefs.maxFrequency) {
+                if (prefs.policy.apply(null, null, value)) {
+                    prefs.maxFrequency.setSummary(String.format(mMaxFrequencyFormat,
+                            toMHz(value)));
+                    return true;
+                }
+                return false;
+            }
+        }
+        return false;
+    }
 
-        if (newValue != null) {
-            if (preference == mGovernorPref) {
-                fname = GOV_FILE;
-            } else if (preference == mMinFrequencyPref) {
-                fname = FREQ_MIN_FILE;
-            } else if (preference == mMaxFrequencyPref) {
-                fname = FREQ_MAX_FILE;
+    /**
+     * Returns the current frequency of each online CPU group, separated
+     * by slashes, or null if none can be read.
+     */
+    private String readCurFrequencies() {
+        StringBuilder builder = null;
+        for (PolicyPrefs prefs : mPolicyPrefs) {
+            final String cur = prefs.policy.getCurFrequency();
+            if (cur == null) {
+                continue;
+            }
+            if (builder == null) {
+                builder = new StringBuilder();
+            } else {
+                builder.append(" / ");
             }
+            builder.append(toMHz(cur));
+        }
+        return builder != null ? builder.toString() : null;
+    }
 
-            if (Utils.fileWriteOneLine(fname, (String) newValue)) {
-                if (preference == mGovernorPref) {
-                    mGovernorPref.setSummary(String.format(mGovernorFormat, (String) newValue));
-                } else if (preference == mMinFrequencyPref) {
-                    mMinFrequencyPref.setSummary(String.format(mMinFrequencyFormat,
-                            toMHz((String) newValue)));
-                } else if (preference == mMaxFrequencyPref) {
-                    mMaxFrequencyPref.setSummary(String.format(mMaxFrequencyFormat,
-                            toMHz((String) newValue)));
+    /**
+     * Formats the frequency of the first online core of each CPU group,
+     * from a sample of all cores, with the range it moved in over the
+     * sampler's history.
+     */
+    private String formatCurFrequencies(CpuFreqSampler sampler, int[] freqs) {
+        StringBuilder builder = null;
+        for (PolicyPrefs prefs : mPolicyPrefs) {
+            for (int cpu : prefs.policy.cpus) {
+                if (cpu < freqs.length && freqs[cpu] > 0) {
+                    if (builder == null) {
+                        builder = new StringBuilder();
+                    } else {
+                        builder.append(" / ");
+                    }
+                    builder.append(formatFrequencyRange(sampler, cpu, freqs[cpu]));
+                    break;
                 }
-                return true;
-            } else {
-                return false;
             }
         }
-        return false;
+        return builder != null ? builder.toString() : null;
+    }
+
+    private String formatFrequencyRange(CpuFreqSampler sampler, int cpu, int cur) {
+        int min = cur;
+        int max = cur;
+        final int count = sampler.getHistory(cpu, mHistoryTimes, mHistoryFreqs);
+        for (int i = 0; i < count; i++) {
+            // Samples taken while the core was offline read 0
+            if (mHistoryFreqs[i] > 0) {
+                min = Math.min(min, mHistoryFreqs[i]);
+                max = Math.max(max, mHistoryFreqs[i]);
+            }
+        }
+        if (min == max) {
+            return toMHz(cur);
+        }
+        return getString(R.string.cpu_cur_freq_range, toMHz(cur), toMHz(min), toMHz(max));
+    }
+
+    /**
+     * Formats the share of the sampled time a CPU group spent at its most
+     * used frequencies, or returns null if no time was sampled yet.
+     */
+    private String formatResidency(PolicyPrefs prefs) {
+        final long[] times = prefs.residencyTimes;
+        long total = 0;
+        for (long time : times) {
+            total += time;
+        }
+        if (total <= 0) {
+            return null;
+        }
+        final boolean[] shown = new boolean[times.length];
+        final StringBuilder builder = new StringBuilder();
+        for (int n = 0; n < RESIDENCY_ENTRIES; n++) {
+            int top = -1;
+            for (int i = 0; i < times.length; i++) {
+                if (!shown[i] && times[i] > 0 && (top < 0 || times[i] > times[top])) {
+                    top = i;
+                }
+            }
+            if (top < 0) {
+                break;
+            }
+            shown[top] = true;
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(getString(R.string.cpu_time_in_state_entry,
+                    toMHz(prefs.policy.frequencies[top]), (int) (times[top] * 100 / total)));
+        }
+        return builder.toString();
+    }
+
+    private static String getValue(ListPreference pref) {
+        return pref != null && pref.isEnabled() ? pref.getValue() : null;
+    }
+
+    private static String formatCpus(int[] cpus) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < cpus.length; i++) {
+            int end = i;
+            while (end + 1 < cpus.length && cpus[end + 1] == cpus[end] + 1) {
+                end++;
+            }
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(cpus[i]);
+            if (end > i) {
+                builder.append('-').append(cpus[end]);
+            }
+            i = end;
+        }
+        return builder.toString();
     }
 
     private String toMHz(String mhzString) {
-        return new StringBuilder().append(Integer.valueOf(mhzString) / 1000).append(" MHz")
-                .toString();
+        return toMHz(Integer.valueOf(mhzString.trim()));
+    }
+
+    private String toMHz(int khz) {
+        return new StringBuilder().append(khz / 1000).append(" MHz").toString();
     }
-}
\ No newline at end of file
+}
@@ -243,6 +243,7 @@ public class PrivacyGuardManager extends Fragment
             app.privacyGuardEnabled = false;
         }
         mAppOps.resetAllModes();
+        AppOpsState.invalidateOps();
         mAdapter.notifyDataSetChanged();
     }
 
@@ -253,6 +254,7 @@ public class PrivacyGuardManager extends Fragment
 
         app.privacyGuardEnabled = !app.privacyGuardEnabled;
         mAppOps.setPrivacyGuardSettingForPackage(app.uid, app.packageName, app.privacyGuardEnabled);
+        AppOpsState.invalidateOps();
 
         mAdapter.notifyDataSetChanged();
     }
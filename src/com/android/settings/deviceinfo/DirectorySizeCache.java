@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+
+import java.io.File;
+import java.util.HashMap;
+
+/**
+ * Remembers measured directory sizes so that a remeasure can skip
+ * subtrees that have not changed.  A size is reused while the modification
+ * times of the directory and of its immediate subdirectories are unchanged,
+ * and for at most {@link #MAX_AGE}, which bounds how long changes deeper in
+ * the tree can go unnoticed.  Thread safe.
+ */
+class DirectorySizeCache {
+    static final long MAX_AGE = 10 * DateUtils.MINUTE_IN_MILLIS;
+
+    private static class Entry {
+        final long stamp;
+        final long size;
+        final long measuredAt;
+
+        Entry(long stamp, long size, long measuredAt) {
+            this.stamp = stamp;
+            this.size = size;
+            this.measuredAt = measuredAt;
+        }
+    }
+
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    /**
+     * Returns a stamp describing the current state of the given directory,
+     * or 0 if it cannot be read from this process, in which case its size
+     * should not be cached.
+     */
+    static long computeStamp(File dir) {
+        long stamp = dir.lastModified();
+        if (stamp == 0) {
+            return 0;
+        }
+        final File[] children = dir.listFiles();
+        if (children == null) {
+            return 0;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                stamp = stamp * 31 + child.lastModified();
+            }
+        }
+        return stamp != 0 ? stamp : 1;
+    }
+
+    /**
+     * Returns the cached size of the directory, or -1 if it has to be
+     * measured again.
+     */
+    synchronized long get(File dir, long stamp) {
+        final Entry entry = mEntries.get(dir.getPath());
+        if (entry == null) {
+            return -1;
+        }
+        if (entry.stamp != stamp
+                || SystemClock.elapsedRealtime() - entry.measuredAt > MAX_AGE) {
+            mEntries.remove(dir.getPath());
+            return -1;
+        }
+        return entry.size;
+    }
+
+    synchronized void put(File dir, long stamp, long size) {
+        mEntries.put(dir.getPath(), new Entry(stamp, size, SystemClock.elapsedRealtime()));
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+    }
+}
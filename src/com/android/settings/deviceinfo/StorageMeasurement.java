@@ -38,6 +38,7 @@ import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.storage.StorageVolume;
 import android.util.Log;
+import android.util.SparseIntArray;
 import android.util.SparseLongArray;
 
 import com.android.internal.app.IMediaContainerService;
@@ -51,6 +52,9 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -81,6 +85,17 @@ public class StorageMeasurement {
     @GuardedBy("sInstances")
     private static HashMap<StorageVolume, StorageMeasurement> sInstances = Maps.newHashMap();
 
+    /** Directories sized concurrently through the container service. */
+    private static final int MEASURE_THREADS = 4;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            MEASURE_THREADS, MEASURE_THREADS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
     /**
      * Obtain shared instance of {@link StorageMeasurement} for given physical
      * {@link StorageVolume}, or internal storage if {@code null}.
@@ -97,6 +112,24 @@ public class StorageMeasurement {
     }
 
     public static class MeasurementDetails {
+        /** {@link #appsSize} and {@link #cacheSize} have been measured. */
+        public static final int MEASURED_APPS = 1 << 0;
+        /** {@link #mediaSize} has been measured. */
+        public static final int MEASURED_MEDIA = 1 << 1;
+        /** {@link #miscSize} has been measured. */
+        public static final int MEASURED_MISC = 1 << 2;
+        /** {@link #usersSize} has been measured. */
+        public static final int MEASURED_USERS = 1 << 3;
+
+        /**
+         * Categories measured so far.  Partial details are delivered as each
+         * category finishes; values of the other categories are incomplete.
+         */
+        public int measured;
+
+        /** All categories have been measured. */
+        public boolean complete;
+
         public long totalSize;
         public long availSize;
 
@@ -142,6 +175,26 @@ public class StorageMeasurement {
          * internal storage. Key is {@link UserHandle}.
          */
         public SparseLongArray usersSize = new SparseLongArray();
+
+        public boolean isMeasured(int category) {
+            return complete || (measured & category) != 0;
+        }
+
+        MeasurementDetails copy() {
+            final MeasurementDetails copy = new MeasurementDetails();
+            copy.measured = measured;
+            copy.complete = complete;
+            copy.totalSize = totalSize;
+            copy.availSize = availSize;
+            copy.appsSize = appsSize;
+            copy.cacheSize = cacheSize;
+            copy.mediaSize.putAll(mediaSize);
+            copy.miscSize = miscSize;
+            for (int i = 0; i < usersSize.size(); i++) {
+                copy.usersSize.put(usersSize.keyAt(i), usersSize.valueAt(i));
+            }
+            return copy;
+        }
     }
 
     public interface MeasurementReceiver {
@@ -162,7 +215,9 @@ public class StorageMeasurement {
     private long mTotalSize;
     private long mAvailSize;
 
-    List<FileInfo> mFileInfoForMisc;
+    private final DirectorySizeCache mDirectorySizes = new DirectorySizeCache();
+
+    volatile List<FileInfo> mFileInfoForMisc;
 
     private StorageMeasurement(Context context, StorageVolume volume) {
         mVolume = volume;
@@ -193,10 +248,23 @@ public class StorageMeasurement {
         mHandler.sendEmptyMessage(MeasurementHandler.MSG_DISCONNECT);
     }
 
+    /**
+     * Discard the last measurement.  Directories that have not changed since
+     * they were last sized are not measured again.
+     */
     public void invalidate() {
         mHandler.sendEmptyMessage(MeasurementHandler.MSG_INVALIDATE);
     }
 
+    /**
+     * Discard the last measurement along with all remembered directory
+     * sizes, for changes that directory stamps do not reflect such as a
+     * remount or cleared caches.
+     */
+    public void invalidateAll() {
+        mHandler.sendEmptyMessage(MeasurementHandler.MSG_INVALIDATE_ALL);
+    }
+
     private void sendInternalApproximateUpdate() {
         MeasurementReceiver receiver = (mReceiver != null) ? mReceiver.get() : null;
         if (receiver == null) {
@@ -220,28 +288,32 @@ public class StorageMeasurement {
         private final boolean mIsInternal;
         private final MeasurementDetails mDetails;
         private final int mCurrentUser;
-        private final Message mFinished;
+        private final Measurement mMeasurement;
 
         private int mRemaining;
 
-        public StatsObserver(boolean isInternal, MeasurementDetails details, int currentUser,
-                Message finished, int remaining) {
+        public StatsObserver(boolean isInternal, Measurement measurement, int currentUser,
+                int remaining) {
             mIsInternal = isInternal;
-            mDetails = details;
+            mMeasurement = measurement;
+            mDetails = measurement.mDetails;
             mCurrentUser = currentUser;
-            mFinished = finished;
             mRemaining = remaining;
         }
 
         @Override
         public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
+            final boolean finished;
             synchronized (mDetails) {
                 if (succeeded) {
                     addStatsLocked(stats);
                 }
-                if (--mRemaining == 0) {
-                    mFinished.sendToTarget();
-                }
+                finished = --mRemaining == 0;
+            }
+            if (finished) {
+                // Apps data is also spliced into the per-user totals.
+                mMeasurement.finish(MeasurementDetails.MEASURED_APPS);
+                mMeasurement.finish(MeasurementDetails.MEASURED_USERS);
             }
         }
 
@@ -280,12 +352,116 @@ public class StorageMeasurement {
         }
     }
 
+    /**
+     * One measurement pass.  Each category is measured by any number of
+     * tasks, and partial details are delivered whenever a category has
+     * no tasks left.  A category is registered with one extra task that is
+     * finished once all of its real tasks have been started, so it cannot
+     * complete early.
+     */
+    private class Measurement {
+        final MeasurementDetails mDetails = new MeasurementDetails();
+        final SparseIntArray mPending = new SparseIntArray();
+        final ArrayList<FileInfo> mMiscFiles = new ArrayList<FileInfo>();
+        final IMediaContainerService mImcs;
+        int mExpected;
+
+        volatile boolean mCancelled;
+        volatile boolean mFailed;
+
+        Measurement(IMediaContainerService imcs) {
+            mImcs = imcs;
+        }
+
+        void expect(int category, int tasks) {
+            synchronized (mDetails) {
+                mExpected |= category;
+                mPending.put(category, mPending.get(category) + tasks + 1);
+            }
+        }
+
+        void begin(int category, int tasks) {
+            synchronized (mDetails) {
+                mPending.put(category, mPending.get(category) + tasks);
+            }
+        }
+
+        void finish(int category) {
+            final MeasurementDetails snapshot;
+            synchronized (mDetails) {
+                final int pending = mPending.get(category) - 1;
+                mPending.put(category, pending);
+                if (pending > 0) {
+                    return;
+                }
+                if (category == MeasurementDetails.MEASURED_MISC) {
+                    // sort the list of FileInfo objects collected above in
+                    // descending order of their sizes
+                    Collections.sort(mMiscFiles);
+                    mFileInfoForMisc = mMiscFiles;
+                }
+                mDetails.measured |= category;
+                mDetails.complete = (mDetails.measured & mExpected) == mExpected;
+                snapshot = mDetails.copy();
+            }
+            if (mCancelled) {
+                return;
+            }
+            if (snapshot.complete) {
+                mHandler.obtainMessage(MeasurementHandler.MSG_COMPLETED, this).sendToTarget();
+            }
+            sendExactUpdate(snapshot);
+        }
+
+        void cancel() {
+            mCancelled = true;
+        }
+
+        /**
+         * Size the given directory on the measurement pool, then record the
+         * result with the details locked and finish a task of the category.
+         */
+        void measureDirectory(final int category, final File path, final SizeRecorder recorder) {
+            sExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long size = 0;
+                    if (!mCancelled) {
+                        size = getDirectorySize(Measurement.this, path);
+                    }
+                    synchronized (mDetails) {
+                        recorder.record(size);
+                    }
+                    finish(category);
+                }
+            });
+        }
+
+        void measureMisc(final File dir) {
+            sExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled) {
+                        listMisc(Measurement.this, dir);
+                    }
+                    finish(MeasurementDetails.MEASURED_MISC);
+                }
+            });
+        }
+    }
+
+    private interface SizeRecorder {
+        /** Called with the details of the measurement locked. */
+        void record(long size);
+    }
+
     private class MeasurementHandler extends Handler {
         public static final int MSG_MEASURE = 1;
         public static final int MSG_CONNECTED = 2;
         public static final int MSG_DISCONNECT = 3;
         public static final int MSG_COMPLETED = 4;
         public static final int MSG_INVALIDATE = 5;
+        public static final int MSG_INVALIDATE_ALL = 6;
 
         private Object mLock = new Object();
 
@@ -295,6 +471,9 @@ public class StorageMeasurement {
 
         private MeasurementDetails mCached;
 
+        /** Measurement in progress, if any. */
+        private Measurement mCurrent;
+
         private final WeakReference<Context> mContext;
 
         private final ServiceConnection mDefContainerConn = new ServiceConnection() {
@@ -327,6 +506,18 @@ public class StorageMeasurement {
                         sendExactUpdate(mCached);
                         break;
                     }
+                    if (mCurrent != null) {
+                        // Catch up on what has been measured so far; the
+                        // rest keeps streaming in.
+                        final MeasurementDetails partial;
+                        synchronized (mCurrent.mDetails) {
+                            partial = mCurrent.mDetails.copy();
+                        }
+                        if (partial.measured != 0) {
+                            sendExactUpdate(partial);
+                        }
+                        break;
+                    }
 
                     final Context context = (mContext != null) ? mContext.get() : null;
                     if (context == null) {
@@ -366,12 +557,29 @@ public class StorageMeasurement {
                     break;
                 }
                 case MSG_COMPLETED: {
-                    mCached = (MeasurementDetails) msg.obj;
-                    sendExactUpdate(mCached);
+                    final Measurement measurement = (Measurement) msg.obj;
+                    if (measurement != mCurrent) {
+                        break;
+                    }
+                    mCurrent = null;
+                    // Keep failed measurements from being served again.
+                    if (!measurement.mFailed) {
+                        synchronized (measurement.mDetails) {
+                            mCached = measurement.mDetails.copy();
+                        }
+                    }
                     break;
                 }
+                case MSG_INVALIDATE_ALL: {
+                    mDirectorySizes.clear();
+                    // fall through
+                }
                 case MSG_INVALIDATE: {
                     mCached = null;
+                    if (mCurrent != null) {
+                        mCurrent.cancel();
+                        mCurrent = null;
+                    }
                     break;
                 }
             }
@@ -397,8 +605,12 @@ public class StorageMeasurement {
                 return;
             }
 
-            final MeasurementDetails details = new MeasurementDetails();
-            final Message finished = obtainMessage(MSG_COMPLETED, details);
+            if (mCurrent != null) {
+                mCurrent.cancel();
+            }
+            final Measurement measurement = new Measurement(imcs);
+            final MeasurementDetails details = measurement.mDetails;
+            mCurrent = measurement;
 
             details.totalSize = mTotalSize;
             details.availSize = mAvailSize;
@@ -414,79 +626,125 @@ public class StorageMeasurement {
             // external volume
             final boolean measureMedia = (mIsInternal && Environment.isExternalStorageEmulated())
                     || mIsPrimary;
+            final boolean measureApps = mIsInternal || mIsPrimary;
+
+            // Register every category before starting any task, so that
+            // details are not reported complete while some are still missing.
+            measurement.expect(MeasurementDetails.MEASURED_APPS, measureApps ? 1 : 0);
+            measurement.expect(MeasurementDetails.MEASURED_USERS,
+                    users.size() + (measureApps ? 1 : 0));
             if (measureMedia) {
-                for (String type : sMeasureMediaTypes) {
-                    final File path = currentEnv.getExternalStoragePublicDirectory(type);
-                    final long size = getDirectorySize(imcs, path);
-                    details.mediaSize.put(type, size);
-                }
+                measurement.expect(MeasurementDetails.MEASURED_MEDIA,
+                        sMeasureMediaTypes.size());
+                measurement.expect(MeasurementDetails.MEASURED_MISC, 1);
             }
 
-            // Measure misc files not counted under media
             if (measureMedia) {
+                for (final String type : sMeasureMediaTypes) {
+                    final File path = currentEnv.getExternalStoragePublicDirectory(type);
+                    measurement.measureDirectory(MeasurementDetails.MEASURED_MEDIA, path,
+                            new SizeRecorder() {
+                        @Override
+                        public void record(long size) {
+                            details.mediaSize.put(type, size);
+                        }
+                    });
+                }
+                measurement.finish(MeasurementDetails.MEASURED_MEDIA);
+
+                // Measure misc files not counted under media
                 final File path = mIsInternal ? currentEnv.getExternalStorageDirectory()
                         : mVolume.getPathFile();
-                details.miscSize = measureMisc(imcs, path);
+                measurement.measureMisc(path);
+                measurement.finish(MeasurementDetails.MEASURED_MISC);
             }
 
             // Measure total emulated storage of all users; internal apps data
             // will be spliced in later
-            for (UserInfo user : users) {
+            for (final UserInfo user : users) {
                 final UserEnvironment userEnv = new UserEnvironment(user.id);
-                final long size = getDirectorySize(imcs, userEnv.getExternalStorageDirectory());
-                addValue(details.usersSize, user.id, size);
+                measurement.measureDirectory(MeasurementDetails.MEASURED_USERS,
+                        userEnv.getExternalStorageDirectory(), new SizeRecorder() {
+                    @Override
+                    public void record(long size) {
+                        addValue(details.usersSize, user.id, size);
+                    }
+                });
             }
+            measurement.finish(MeasurementDetails.MEASURED_USERS);
 
             // Measure all apps for all users
             final PackageManager pm = context.getPackageManager();
-            if (mIsInternal || mIsPrimary) {
+            if (measureApps) {
                 final List<ApplicationInfo> apps = pm.getInstalledApplications(
                         PackageManager.GET_UNINSTALLED_PACKAGES
                         | PackageManager.GET_DISABLED_COMPONENTS);
 
                 final int count = users.size() * apps.size();
-                final StatsObserver observer = new StatsObserver(
-                        mIsInternal, details, currentUser, finished, count);
-
-                for (UserInfo user : users) {
-                    for (ApplicationInfo app : apps) {
-                        pm.getPackageSizeInfo(app.packageName, user.id, observer);
+                if (count == 0) {
+                    measurement.finish(MeasurementDetails.MEASURED_APPS);
+                    measurement.finish(MeasurementDetails.MEASURED_USERS);
+                } else {
+                    final StatsObserver observer = new StatsObserver(
+                            mIsInternal, measurement, currentUser, count);
+                    for (UserInfo user : users) {
+                        for (ApplicationInfo app : apps) {
+                            pm.getPackageSizeInfo(app.packageName, user.id, observer);
+                        }
                     }
                 }
-
-            } else {
-                finished.sendToTarget();
             }
+            measurement.finish(MeasurementDetails.MEASURED_APPS);
         }
     }
 
-    private static long getDirectorySize(IMediaContainerService imcs, File path) {
+    /**
+     * Returns the size of the given directory, reusing the last measured
+     * size if the directory is unchanged since.
+     */
+    private long getDirectorySize(Measurement measurement, File path) {
+        final long stamp = DirectorySizeCache.computeStamp(path);
+        if (stamp != 0) {
+            final long cached = mDirectorySizes.get(path, stamp);
+            if (cached >= 0) {
+                if (LOGV) Log.v(TAG, "getDirectorySize(" + path + ") cached " + cached);
+                return cached;
+            }
+        }
         try {
-            final long size = imcs.calculateDirectorySize(path.toString());
+            final long size = measurement.mImcs.calculateDirectorySize(path.toString());
             Log.d(TAG, "getDirectorySize(" + path + ") returned " + size);
+            if (stamp != 0) {
+                mDirectorySizes.put(path, stamp, size);
+            }
             return size;
         } catch (Exception e) {
             Log.w(TAG, "Could not read memory from default container service for " + path, e);
+            measurement.mFailed = true;
             return 0;
         }
     }
 
-    private long measureMisc(IMediaContainerService imcs, File dir) {
-        mFileInfoForMisc = new ArrayList<FileInfo>();
-
+    /**
+     * List the top level of the given directory and size each entry that is
+     * not already counted as media, one task per subdirectory.
+     */
+    private void listMisc(final Measurement measurement, File dir) {
+        final MeasurementDetails details = measurement.mDetails;
         final Parcel p = Parcel.obtain();
         try {
-            final byte[] bytes = imcs.listDirectory(dir.toString());
+            final byte[] bytes = measurement.mImcs.listDirectory(dir.toString());
             p.unmarshall(bytes, 0, bytes.length);
             p.setDataPosition(0);
         } catch (Exception e) {
             Log.w(TAG, "Could not list directory from default container service for " + dir, e);
-            return 0;
+            measurement.mFailed = true;
+            p.recycle();
+            return;
         }
 
         // Get sizes of all top level nodes except the ones already computed
         long counter = 0;
-        long miscSize = 0;
 
         int count = p.readInt();
         for (int i = 0; i < count; i++) {
@@ -501,21 +759,26 @@ public class StorageMeasurement {
             }
 
             if (isFile) {
-                mFileInfoForMisc.add(new FileInfo(path, fileSize, counter++));
-                miscSize += fileSize;
+                synchronized (details) {
+                    measurement.mMiscFiles.add(new FileInfo(path, fileSize, counter++));
+                    details.miscSize += fileSize;
+                }
             } else if (isDirectory) {
-                final long dirSize = getDirectorySize(imcs, new File(path));
-                mFileInfoForMisc.add(new FileInfo(path, dirSize, counter++));
-                miscSize += dirSize;
+                final long id = counter++;
+                measurement.begin(MeasurementDetails.MEASURED_MISC, 1);
+                measurement.measureDirectory(MeasurementDetails.MEASURED_MISC, new File(path),
+                        new SizeRecorder() {
+                    @Override
+                    public void record(long size) {
+                        measurement.mMiscFiles.add(new FileInfo(path, size, id));
+                        details.miscSize += size;
+                    }
+                });
             } else {
                 // Non directory, non file: not listed
             }
         }
-
-        // sort the list of FileInfo objects collected above in descending order of their sizes
-        Collections.sort(mFileInfoForMisc);
-
-        return miscSize;
+        p.recycle();
     }
 
     static class FileInfo implements Comparable<FileInfo> {
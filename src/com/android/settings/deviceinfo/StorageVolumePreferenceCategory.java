@@ -355,26 +355,39 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory
 
         mUsageBarPreference.clear();
 
-        updatePreference(mItemApps, details.appsSize);
+        // Partial details only carry the categories measured so far; leave
+        // the others as they are until they arrive.
+        if (details.isMeasured(MeasurementDetails.MEASURED_APPS)) {
+            updatePreference(mItemApps, details.appsSize);
+        }
 
-        final long dcimSize = totalValues(details.mediaSize, Environment.DIRECTORY_DCIM,
-                Environment.DIRECTORY_MOVIES, Environment.DIRECTORY_PICTURES);
-        updatePreference(mItemDcim, dcimSize);
+        if (details.isMeasured(MeasurementDetails.MEASURED_MEDIA)) {
+            final long dcimSize = totalValues(details.mediaSize, Environment.DIRECTORY_DCIM,
+                    Environment.DIRECTORY_MOVIES, Environment.DIRECTORY_PICTURES);
+            updatePreference(mItemDcim, dcimSize);
 
-        final long musicSize = totalValues(details.mediaSize, Environment.DIRECTORY_MUSIC,
-                Environment.DIRECTORY_ALARMS, Environment.DIRECTORY_NOTIFICATIONS,
-                Environment.DIRECTORY_RINGTONES, Environment.DIRECTORY_PODCASTS);
-        updatePreference(mItemMusic, musicSize);
+            final long musicSize = totalValues(details.mediaSize, Environment.DIRECTORY_MUSIC,
+                    Environment.DIRECTORY_ALARMS, Environment.DIRECTORY_NOTIFICATIONS,
+                    Environment.DIRECTORY_RINGTONES, Environment.DIRECTORY_PODCASTS);
+            updatePreference(mItemMusic, musicSize);
 
-        final long downloadsSize = totalValues(details.mediaSize, Environment.DIRECTORY_DOWNLOADS);
-        updatePreference(mItemDownloads, downloadsSize);
+            final long downloadsSize = totalValues(details.mediaSize,
+                    Environment.DIRECTORY_DOWNLOADS);
+            updatePreference(mItemDownloads, downloadsSize);
+        }
 
-        updatePreference(mItemCache, details.cacheSize);
-        updatePreference(mItemMisc, details.miscSize);
+        if (details.isMeasured(MeasurementDetails.MEASURED_APPS)) {
+            updatePreference(mItemCache, details.cacheSize);
+        }
+        if (details.isMeasured(MeasurementDetails.MEASURED_MISC)) {
+            updatePreference(mItemMisc, details.miscSize);
+        }
 
-        for (StorageItemPreference userPref : mItemUsers) {
-            final long userSize = details.usersSize.get(userPref.userHandle);
-            updatePreference(userPref, userSize);
+        if (details.isMeasured(MeasurementDetails.MEASURED_USERS)) {
+            for (StorageItemPreference userPref : mItemUsers) {
+                final long userSize = details.usersSize.get(userPref.userHandle);
+                updatePreference(userPref, userSize);
+            }
         }
 
         mUsageBarPreference.commit();
@@ -390,32 +403,37 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory
         }
     }
 
-    private void measure() {
-        mMeasure.invalidate();
+    private void measure(boolean full) {
+        if (full) {
+            mMeasure.invalidateAll();
+        } else {
+            mMeasure.invalidate();
+        }
         mMeasure.measure();
     }
 
     public void onResume() {
         mMeasure.setReceiver(mReceiver);
-        measure();
+        measure(false);
     }
 
     public void onStorageStateChanged() {
-        measure();
+        measure(true);
     }
 
     public void onUsbStateChanged(boolean isUsbConnected, String usbFunction) {
         mUsbConnected = isUsbConnected;
         mUsbFunction = usbFunction;
-        measure();
+        measure(true);
     }
 
     public void onMediaScannerFinished() {
-        measure();
+        measure(false);
     }
 
     public void onCacheCleared() {
-        measure();
+        // Caches live deep below Android/, where directory stamps don't see.
+        measure(true);
     }
 
     public void onPause() {
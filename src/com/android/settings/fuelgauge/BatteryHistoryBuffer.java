@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.BatteryStats;
+import android.os.BatteryStats.HistoryItem;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import java.util.Arrays;
+
+/**
+ * Battery history decoded in a single pass into parallel arrays of
+ * timestamps, levels and state bits.  Only update records are kept, along
+ * with markers for the discontinuities (such as reboots) that split the
+ * chart.  The buffer is immutable once decoded and can be handed to
+ * another fragment through a {@link Bundle}.
+ */
+class BatteryHistoryBuffer {
+    /** Level recorded for a discontinuity rather than an update. */
+    static final byte LEVEL_BREAK = -1;
+
+    private static final String KEY_TIMES = "times";
+    private static final String KEY_LEVELS = "levels";
+    private static final String KEY_STATES = "states";
+    private static final String KEY_STATS_PERIOD = "stats_period";
+
+    /** A history without any records. */
+    static final BatteryHistoryBuffer EMPTY = new BatteryHistoryBuffer(0, new long[0],
+            new byte[0], new int[0], 0);
+
+    final int count;
+    final long[] times;
+    final byte[] levels;
+    final int[] states;
+
+    /** Battery realtime covered by the statistics, in microseconds. */
+    final long statsPeriod;
+    final long histStart;
+    final long histEnd;
+    /** Union of the states of all update records. */
+    final int aggrStates;
+
+    private BatteryHistoryBuffer(int count, long[] times, byte[] levels, int[] states,
+            long statsPeriod) {
+        this.count = count;
+        this.times = times;
+        this.levels = levels;
+        this.states = states;
+        this.statsPeriod = statsPeriod;
+
+        long start = 0, end = 0;
+        int aggr = 0;
+        boolean first = true;
+        for (int i=0; i<count; i++) {
+            if (levels[i] == LEVEL_BREAK) {
+                continue;
+            }
+            if (first) {
+                first = false;
+                start = times[i];
+            }
+            end = times[i];
+            aggr |= states[i];
+        }
+        if (end <= start) end = start+1;
+        histStart = start;
+        histEnd = end;
+        aggrStates = aggr;
+    }
+
+    /**
+     * Walk the history of the given statistics once.  Records after the
+     * last update are dropped, as they would not be drawn.
+     */
+    static BatteryHistoryBuffer decode(BatteryStats stats) {
+        int capacity = 256;
+        long[] times = new long[capacity];
+        byte[] levels = new byte[capacity];
+        int[] states = new int[capacity];
+        int count = 0;
+        int lastInteresting = 0;
+
+        if (stats.startIteratingHistoryLocked()) {
+            final HistoryItem rec = new HistoryItem();
+            while (stats.getNextHistoryLocked(rec)) {
+                final boolean update = rec.cmd == HistoryItem.CMD_UPDATE;
+                if (!update && (rec.cmd == HistoryItem.CMD_OVERFLOW || count == 0)) {
+                    continue;
+                }
+                if (count == capacity) {
+                    capacity *= 2;
+                    times = Arrays.copyOf(times, capacity);
+                    levels = Arrays.copyOf(levels, capacity);
+                    states = Arrays.copyOf(states, capacity);
+                }
+                times[count] = rec.time;
+                levels[count] = update ? rec.batteryLevel : LEVEL_BREAK;
+                states[count] = update ? rec.states : 0;
+                count++;
+                if (update) {
+                    lastInteresting = count;
+                }
+            }
+        }
+
+        final long statsPeriod = stats.computeBatteryRealtime(
+                SystemClock.elapsedRealtime() * 1000, BatteryStats.STATS_SINCE_CHARGED);
+        return new BatteryHistoryBuffer(lastInteresting, times, levels, states, statsPeriod);
+    }
+
+    void writeToBundle(Bundle out) {
+        out.putLongArray(KEY_TIMES, Arrays.copyOf(times, count));
+        out.putByteArray(KEY_LEVELS, Arrays.copyOf(levels, count));
+        out.putIntArray(KEY_STATES, Arrays.copyOf(states, count));
+        out.putLong(KEY_STATS_PERIOD, statsPeriod);
+    }
+
+    static BatteryHistoryBuffer readFromBundle(Bundle in) {
+        final long[] times = in.getLongArray(KEY_TIMES);
+        final byte[] levels = in.getByteArray(KEY_LEVELS);
+        final int[] states = in.getIntArray(KEY_STATES);
+        if (times == null || levels == null || states == null) {
+            return null;
+        }
+        return new BatteryHistoryBuffer(times.length, times, levels, states,
+                in.getLong(KEY_STATS_PERIOD));
+    }
+}
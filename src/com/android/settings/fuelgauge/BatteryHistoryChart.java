@@ -25,8 +25,6 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Typeface;
-import android.os.BatteryStats;
-import android.os.SystemClock;
 import android.os.BatteryStats.HistoryItem;
 import android.telephony.ServiceState;
 import android.text.TextPaint;
@@ -133,7 +131,7 @@ public class BatteryHistoryChart extends View {
     
     int mFontSize;
     
-    BatteryStats mStats;
+    BatteryHistoryBuffer mHistory;
     long mStatsPeriod;
     String mDurationString;
     String mTotalDurationString;
@@ -166,7 +164,6 @@ public class BatteryHistoryChart extends View {
     static final int PHONE_SIGNAL_BIN_MASK = CHART_DATA_BIN_MASK;
     static final int PHONE_SIGNAL_BIN_SHIFT = CHART_DATA_BIN_SHIFT;
     
-    int mNumHist;
     long mHistStart;
     long mHistEnd;
     int mBatLow;
@@ -334,12 +331,20 @@ public class BatteryHistoryChart extends View {
         }
     }
     
-    void setStats(BatteryStats stats) {
-        mStats = stats;
-        
-        long uSecTime = mStats.computeBatteryRealtime(SystemClock.elapsedRealtime() * 1000,
-                BatteryStats.STATS_SINCE_CHARGED);
-        mStatsPeriod = uSecTime;
+    /**
+     * Shows the given history, or an empty chart for {@code null}, such as
+     * when the statistics couldn't be read.
+     */
+    void setHistory(BatteryHistoryBuffer history) {
+        if (history == null) {
+            history = BatteryHistoryBuffer.EMPTY;
+        }
+        if (history == mHistory) {
+            return;
+        }
+        mHistory = history;
+
+        mStatsPeriod = history.statsPeriod;
         String durationString = Utils.formatElapsedTime(getContext(), mStatsPeriod / 1000);
         mDurationString = getContext().getString(R.string.battery_stats_on_battery,
                 durationString);
@@ -349,90 +354,47 @@ public class BatteryHistoryChart extends View {
         mWifiRunningLabel = getContext().getString(R.string.battery_stats_wifi_running_label);
         mWakeLockLabel = getContext().getString(R.string.battery_stats_wake_lock_label);
         mPhoneSignalLabel = getContext().getString(R.string.battery_stats_phone_signal_label);
-        
-        int pos = 0;
-        int lastInteresting = 0;
-        byte lastLevel = -1;
+
         mBatLow = 0;
         mBatHigh = 100;
-        int aggrStates = 0;
-        boolean first = true;
-        if (stats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (stats.getNextHistoryLocked(rec)) {
-                pos++;
-                if (rec.cmd == HistoryItem.CMD_UPDATE) {
-                    if (first) {
-                        first = false;
-                        mHistStart = rec.time;
-                    }
-                    if (rec.batteryLevel != lastLevel || pos == 1) {
-                        lastLevel = rec.batteryLevel;
-                    }
-                    lastInteresting = pos;
-                    mHistEnd = rec.time;
-                    aggrStates |= rec.states;
-                }
-            }
-        }
-        mNumHist = lastInteresting;
-        mHaveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
-        mHaveWifi = (aggrStates&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0;
+        mHistStart = history.histStart;
+        mHistEnd = history.histEnd;
+        mHaveGps = (history.aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+        mHaveWifi = (history.aggrStates&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0;
         if (!com.android.settings.Utils.isWifiOnly(getContext())) {
             mHavePhoneSignal = true;
         }
-        if (mHistEnd <= mHistStart) mHistEnd = mHistStart+1;
         mTotalDurationString = Utils.formatElapsedTime(getContext(), mHistEnd - mHistStart);
+
+        // A recycled view keeps its size, so lay the chart out again here
+        // rather than waiting for onSizeChanged().
+        if (getWidth() > 0 && getHeight() > 0) {
+            measureText();
+            layoutChart(getWidth(), getHeight());
+            invalidate();
+        }
     }
 
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+        measureText();
+    }
+
+    private void measureText() {
         mDurationStringWidth = (int)mTextPaint.measureText(mDurationString);
         mTotalDurationStringWidth = (int)mTextPaint.measureText(mTotalDurationString);
         mTextAscent = (int)mTextPaint.ascent();
         mTextDescent = (int)mTextPaint.descent();
     }
 
-    void finishPaths(int w, int h, int levelh, int startX, int y, Path curLevelPath,
-            int lastX, boolean lastCharging, boolean lastScreenOn, boolean lastGpsOn,
-            boolean lastWifiRunning, boolean lastWakeLock, Path lastPath) {
-        if (curLevelPath != null) {
-            if (lastX >= 0 && lastX < w) {
-                if (lastPath != null) {
-                    lastPath.lineTo(w, y);
-                }
-                curLevelPath.lineTo(w, y);
-            }
-            curLevelPath.lineTo(w, mLevelTop+levelh);
-            curLevelPath.lineTo(startX, mLevelTop+levelh);
-            curLevelPath.close();
-        }
-        
-        if (lastCharging) {
-            mChargingPath.lineTo(w, h-mChargingOffset);
-        }
-        if (lastScreenOn) {
-            mScreenOnPath.lineTo(w, h-mScreenOnOffset);
-        }
-        if (lastGpsOn) {
-            mGpsOnPath.lineTo(w, h-mGpsOnOffset);
-        }
-        if (lastWifiRunning) {
-            mWifiRunningPath.lineTo(w, h-mWifiRunningOffset);
-        }
-        if (lastWakeLock) {
-            mWakeLockPath.lineTo(w, h-mWakeLockOffset);
-        }
-        if (mHavePhoneSignal) {
-            mPhoneSignalChart.finish(w);
-        }
-    }
-    
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
-        
+        layoutChart(w, h);
+    }
+
+    private void layoutChart(int w, int h) {
         int textHeight = mTextDescent - mTextAscent;
         mThinLineWidth = (int)TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
                 2, getResources().getDisplayMetrics());
@@ -503,154 +465,223 @@ public class BatteryHistoryChart extends View {
         mWifiRunningPath.reset();
         mWakeLockPath.reset();
         mChargingPath.reset();
-        
-        final long timeStart = mHistStart;
-        final long timeChange = mHistEnd-mHistStart;
-        
-        final int batLow = mBatLow;
-        final int batChange = mBatHigh-mBatLow;
-        
+
         final int levelh = h - mLevelOffset - mLevelTop;
         mLevelBottom = mLevelTop + levelh;
-        
-        int x = 0, y = 0, startX = 0, lastX = -1, lastY = -1;
-        int i = 0;
-        Path curLevelPath = null;
-        Path lastLinePath = null;
-        boolean lastCharging = false, lastScreenOn = false, lastGpsOn = false;
-        boolean lastWifiRunning = false, lastWakeLock = false;
-        final int N = mNumHist;
-        if (mStats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (mStats.getNextHistoryLocked(rec) && i < N) {
-                if (rec.cmd == BatteryStats.HistoryItem.CMD_UPDATE) {
-                    x = (int)(((rec.time-timeStart)*w)/timeChange);
-                    y = mLevelTop + levelh - ((rec.batteryLevel-batLow)*(levelh-1))/batChange;
-
-                    if (lastX != x) {
-                        // We have moved by at least a pixel.
-                        if (lastY != y) {
-                            // Don't plot changes within a pixel.
-                            Path path;
-                            byte value = rec.batteryLevel;
-                            if (value <= BATTERY_CRITICAL) path = mBatCriticalPath;
-                            else if (value <= BATTERY_WARN) path = mBatWarnPath;
-                            else path = mBatGoodPath;
-
-                            if (path != lastLinePath) {
-                                if (lastLinePath != null) {
-                                    lastLinePath.lineTo(x, y);
-                                }
-                                path.moveTo(x, y);
-                                lastLinePath = path;
-                            } else {
-                                path.lineTo(x, y);
-                            }
-
-                            if (curLevelPath == null) {
-                                curLevelPath = mBatLevelPath;
-                                curLevelPath.moveTo(x, y);
-                                startX = x;
-                            } else {
-                                curLevelPath.lineTo(x, y);
-                            }
-                            lastX = x;
-                            lastY = y;
-                        }
-                    }
 
-                    final boolean charging =
-                        (rec.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
-                    if (charging != lastCharging) {
-                        if (charging) {
-                            mChargingPath.moveTo(x, h-mChargingOffset);
-                        } else {
-                            mChargingPath.lineTo(x, h-mChargingOffset);
-                        }
-                        lastCharging = charging;
-                    }
+        if (mHistory != null) {
+            new PathBuilder(w, h, levelh).build(mHistory);
+        }
+    }
 
-                    final boolean screenOn =
-                        (rec.states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
-                    if (screenOn != lastScreenOn) {
-                        if (screenOn) {
-                            mScreenOnPath.moveTo(x, h-mScreenOnOffset);
-                        } else {
-                            mScreenOnPath.lineTo(x, h-mScreenOnOffset);
-                        }
-                        lastScreenOn = screenOn;
+    // States drawn as bars, in the order of PathBuilder.statePaths.
+    static final int[] STATE_BAR_FLAGS = new int[] {
+        HistoryItem.STATE_BATTERY_PLUGGED_FLAG,
+        HistoryItem.STATE_SCREEN_ON_FLAG,
+        HistoryItem.STATE_GPS_ON_FLAG,
+        HistoryItem.STATE_WIFI_RUNNING_FLAG,
+        HistoryItem.STATE_WAKE_LOCK_FLAG,
+    };
+
+    /**
+     * Builds the chart paths from the decoded history.  Records are folded
+     * into pixel columns first: the level line keeps the first, lowest,
+     * highest and last level seen in a column, and a state bar covers a
+     * column if the state was on at any point in it.  The number of path
+     * segments is therefore bounded by the chart width rather than by the
+     * length of the history.
+     */
+    final class PathBuilder {
+        final int w, h, levelh;
+        final Path[] statePaths;
+        final int[] stateYs;
+
+        // Level line.
+        Path curLevelPath;
+        Path lastLinePath;
+        int startX, lastX = -1, lastY = -1;
+
+        // State bars; drawnStates is what the paths currently show and
+        // curStates the state of the last record.
+        int drawnStates, curStates;
+
+        // Column being accumulated.
+        int col = -1;
+        int colStates;
+        int firstLevel, minLevel, maxLevel, lastLevel;
+        int minPos, maxPos, colRecords;
+
+        PathBuilder(int w, int h, int levelh) {
+            this.w = w;
+            this.h = h;
+            this.levelh = levelh;
+            statePaths = new Path[] {
+                mChargingPath, mScreenOnPath, mGpsOnPath, mWifiRunningPath, mWakeLockPath
+            };
+            stateYs = new int[] {
+                h-mChargingOffset, h-mScreenOnOffset, h-mGpsOnOffset,
+                h-mWifiRunningOffset, h-mWakeLockOffset
+            };
+        }
+
+        void build(BatteryHistoryBuffer hist) {
+            final long timeStart = mHistStart;
+            final long timeChange = mHistEnd-mHistStart;
+            final int N = hist.count;
+            for (int i=0; i<N; i++) {
+                final int level = hist.levels[i];
+                if (level == BatteryHistoryBuffer.LEVEL_BREAK) {
+                    if (col >= 0) {
+                        flushColumn();
+                        finish(col+1);
+                        reset();
                     }
-
-                    final boolean gpsOn =
-                        (rec.states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
-                    if (gpsOn != lastGpsOn) {
-                        if (gpsOn) {
-                            mGpsOnPath.moveTo(x, h-mGpsOnOffset);
-                        } else {
-                            mGpsOnPath.lineTo(x, h-mGpsOnOffset);
+                    continue;
+                }
+                final int x = (int)(((hist.times[i]-timeStart)*w)/timeChange);
+                if (x != col) {
+                    if (col >= 0) {
+                        flushColumn();
+                        if (x > col+1) {
+                            // Nothing happened in between; carry the last state.
+                            applyStates(col+1, curStates);
                         }
-                        lastGpsOn = gpsOn;
                     }
+                    col = x;
+                    colStates = curStates;
+                    firstLevel = minLevel = maxLevel = level;
+                    minPos = maxPos = colRecords = 0;
+                }
+                if (level < minLevel) {
+                    minLevel = level;
+                    minPos = colRecords;
+                }
+                if (level > maxLevel) {
+                    maxLevel = level;
+                    maxPos = colRecords;
+                }
+                lastLevel = level;
+                colRecords++;
+                curStates = hist.states[i];
+                colStates |= curStates;
+            }
+            if (col >= 0) {
+                flushColumn();
+                if (col+1 < w) {
+                    applyStates(col+1, curStates);
+                }
+            }
+            finish(w);
+        }
 
-                    final boolean wifiRunning =
-                        (rec.states&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0;
-                    if (wifiRunning != lastWifiRunning) {
-                        if (wifiRunning) {
-                            mWifiRunningPath.moveTo(x, h-mWifiRunningOffset);
-                        } else {
-                            mWifiRunningPath.lineTo(x, h-mWifiRunningOffset);
-                        }
-                        lastWifiRunning = wifiRunning;
-                    }
+        private void flushColumn() {
+            final int x = col;
+            addLevelPoint(x, firstLevel);
+            if (minPos <= maxPos) {
+                addLevelPoint(x, minLevel);
+                addLevelPoint(x, maxLevel);
+            } else {
+                addLevelPoint(x, maxLevel);
+                addLevelPoint(x, minLevel);
+            }
+            addLevelPoint(x, lastLevel);
+            applyStates(x, colStates);
+
+            if (mLargeMode && mHavePhoneSignal) {
+                int bin;
+                if (((curStates&HistoryItem.STATE_PHONE_STATE_MASK)
+                        >> HistoryItem.STATE_PHONE_STATE_SHIFT)
+                        == ServiceState.STATE_POWER_OFF) {
+                    bin = 0;
+                } else if ((curStates&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
+                    bin = 1;
+                } else {
+                    bin = (curStates&HistoryItem.STATE_SIGNAL_STRENGTH_MASK)
+                            >> HistoryItem.STATE_SIGNAL_STRENGTH_SHIFT;
+                    bin += 2;
+                }
+                mPhoneSignalChart.addTick(x, bin);
+            }
+        }
 
-                    final boolean wakeLock =
-                        (rec.states&HistoryItem.STATE_WAKE_LOCK_FLAG) != 0;
-                    if (wakeLock != lastWakeLock) {
-                        if (wakeLock) {
-                            mWakeLockPath.moveTo(x, h-mWakeLockOffset);
-                        } else {
-                            mWakeLockPath.lineTo(x, h-mWakeLockOffset);
-                        }
-                        lastWakeLock = wakeLock;
-                    }
+        private void addLevelPoint(int x, int level) {
+            final int y = mLevelTop + levelh - ((level-mBatLow)*(levelh-1))/(mBatHigh-mBatLow);
+            if (y == lastY) {
+                // Don't plot changes within a pixel.
+                return;
+            }
+            Path path;
+            if (level <= BATTERY_CRITICAL) path = mBatCriticalPath;
+            else if (level <= BATTERY_WARN) path = mBatWarnPath;
+            else path = mBatGoodPath;
+
+            if (path != lastLinePath) {
+                if (lastLinePath != null) {
+                    lastLinePath.lineTo(x, y);
+                }
+                path.moveTo(x, y);
+                lastLinePath = path;
+            } else {
+                path.lineTo(x, y);
+            }
 
-                    if (mLargeMode && mHavePhoneSignal) {
-                        int bin;
-                        if (((rec.states&HistoryItem.STATE_PHONE_STATE_MASK)
-                                >> HistoryItem.STATE_PHONE_STATE_SHIFT)
-                                == ServiceState.STATE_POWER_OFF) {
-                            bin = 0;
-                        } else if ((rec.states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
-                            bin = 1;
-                        } else {
-                            bin = (rec.states&HistoryItem.STATE_SIGNAL_STRENGTH_MASK)
-                                    >> HistoryItem.STATE_SIGNAL_STRENGTH_SHIFT;
-                            bin += 2;
-                        }
-                        mPhoneSignalChart.addTick(x, bin);
+            if (curLevelPath == null) {
+                curLevelPath = mBatLevelPath;
+                curLevelPath.moveTo(x, y);
+                startX = x;
+            } else {
+                curLevelPath.lineTo(x, y);
+            }
+            lastX = x;
+            lastY = y;
+        }
+
+        private void applyStates(int x, int states) {
+            final int changed = states ^ drawnStates;
+            for (int i=0; i<STATE_BAR_FLAGS.length; i++) {
+                final int flag = STATE_BAR_FLAGS[i];
+                if ((changed&flag) != 0) {
+                    if ((states&flag) != 0) {
+                        statePaths[i].moveTo(x, stateYs[i]);
+                    } else {
+                        statePaths[i].lineTo(x, stateYs[i]);
                     }
+                }
+            }
+            drawnStates = states;
+        }
 
-                } else if (rec.cmd != BatteryStats.HistoryItem.CMD_OVERFLOW) {
-                    if (curLevelPath != null) {
-                        finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
-                                lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
-                                lastWakeLock, lastLinePath);
-                        lastX = lastY = -1;
-                        curLevelPath = null;
-                        lastLinePath = null;
-                        lastCharging = lastScreenOn = lastGpsOn = lastWakeLock = false;
+        private void finish(int endX) {
+            if (curLevelPath != null) {
+                if (lastX >= 0 && lastX < endX) {
+                    if (lastLinePath != null) {
+                        lastLinePath.lineTo(endX, lastY);
                     }
+                    curLevelPath.lineTo(endX, lastY);
+                }
+                curLevelPath.lineTo(endX, mLevelTop+levelh);
+                curLevelPath.lineTo(startX, mLevelTop+levelh);
+                curLevelPath.close();
+            }
+            for (int i=0; i<STATE_BAR_FLAGS.length; i++) {
+                if ((drawnStates&STATE_BAR_FLAGS[i]) != 0) {
+                    statePaths[i].lineTo(endX, stateYs[i]);
                 }
-                
-                i++;
+            }
+            if (mHavePhoneSignal) {
+                mPhoneSignalChart.finish(endX);
             }
         }
-        
-        finishPaths(w, h, levelh, startX, lastY, curLevelPath, lastX,
-                lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
-                lastWakeLock, lastLinePath);
+
+        private void reset() {
+            curLevelPath = null;
+            lastLinePath = null;
+            lastX = lastY = -1;
+            drawnStates = curStates = 0;
+            col = -1;
+        }
     }
-    
+
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
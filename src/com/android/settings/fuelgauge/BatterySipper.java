@@ -26,14 +26,15 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
 import android.os.BatteryStats.Uid;
+import android.util.SparseArray;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 
 class BatterySipper implements Comparable<BatterySipper> {
     final Context mContext;
-    /* Cache cleared when PowerUsageSummary is destroyed */
-    static final HashMap<String,UidToDetail> sUidCache = new HashMap<String,UidToDetail>();
+    /* Resolved names and icons by uid, shared by every sipper and cleared
+     * when PowerUsageSummary is destroyed.  Guarded by itself. */
+    static final SparseArray<UidToDetail> sUidCache = new SparseArray<UidToDetail>();
     final ArrayList<BatterySipper> mRequestQueue;
     final Handler mHandler;
     String name;
@@ -97,14 +98,29 @@ class BatterySipper implements Comparable<BatterySipper> {
         return Double.compare(other.getSortValue(), getSortValue());
     }
 
+    static void clearNameIconCache() {
+        synchronized (sUidCache) {
+            sUidCache.clear();
+        }
+    }
+
+    private boolean applyCachedNameIcon(int uid) {
+        final UidToDetail utd;
+        synchronized (sUidCache) {
+            utd = sUidCache.get(uid);
+        }
+        if (utd == null) {
+            return false;
+        }
+        defaultPackageName = utd.packageName;
+        name = utd.name;
+        icon = utd.icon;
+        return true;
+    }
+
     void getQuickNameIconForUid(Uid uidObj) {
         final int uid = uidObj.getUid();
-        final String uidString = Integer.toString(uid);
-        if (sUidCache.containsKey(uidString)) {
-            UidToDetail utd = sUidCache.get(uidString);
-            defaultPackageName = utd.packageName;
-            name = utd.name;
-            icon = utd.icon;
+        if (applyCachedNameIcon(uid)) {
             return;
         }
         PackageManager pm = mContext.getPackageManager();
@@ -135,6 +151,12 @@ class BatterySipper implements Comparable<BatterySipper> {
     void getNameIcon() {
         PackageManager pm = mContext.getPackageManager();
         final int uid = uidObj.getUid();
+        // Another sipper for the same uid may have been resolved meanwhile.
+        if (applyCachedNameIcon(uid)) {
+            mHandler.sendMessage(mHandler.obtainMessage(
+                    BatteryUsageEngine.MSG_UPDATE_NAME_ICON, this));
+            return;
+        }
         final Drawable defaultActivityIcon = pm.getDefaultActivityIcon();
         String[] packages = pm.getPackagesForUid(uid);
         if (packages == null) {
@@ -189,12 +211,14 @@ class BatterySipper implements Comparable<BatterySipper> {
                 }
             }
         }
-        final String uidString = Integer.toString(uidObj.getUid());
         UidToDetail utd = new UidToDetail();
         utd.name = name;
         utd.icon = icon;
         utd.packageName = defaultPackageName;
-        sUidCache.put(uidString, utd);
-        mHandler.sendMessage(mHandler.obtainMessage(PowerUsageSummary.MSG_UPDATE_NAME_ICON, this));
+        synchronized (sUidCache) {
+            sUidCache.put(uid, utd);
+        }
+        mHandler.sendMessage(mHandler.obtainMessage(BatteryUsageEngine.MSG_UPDATE_NAME_ICON,
+                this));
     }
 }
\ No newline at end of file
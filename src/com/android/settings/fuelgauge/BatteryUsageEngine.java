@@ -0,0 +1,800 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.Context;
+import android.content.pm.UserInfo;
+import android.graphics.drawable.Drawable;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.os.BatteryStats;
+import android.os.BatteryStats.Uid;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Parcel;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.telephony.SignalStrength;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.app.IBatteryStats;
+import com.android.internal.os.BatteryStatsImpl;
+import com.android.internal.os.PowerProfile;
+import com.android.settings.R;
+import com.android.settings.fuelgauge.PowerUsageDetail.DrainType;
+import com.android.settings.users.UserUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the battery usage list shown by {@link PowerUsageSummary} on a
+ * background thread.  Power figures are memoized per UID and only
+ * recomputed for UIDs whose counters moved since the previous refresh, and
+ * names and icons of app sippers are resolved on the same thread once the
+ * list has been delivered.  One instance is shared by the process so that
+ * the last statistics survive configuration changes.
+ */
+class BatteryUsageEngine {
+    static final String TAG = "BatteryUsageEngine";
+    static final boolean DEBUG = false;
+
+    interface Callbacks {
+        /** A new usage list has been computed. */
+        void onUsageComputed(Result result);
+
+        /** The name and icon of an app sipper have been resolved. */
+        void onNameIconResolved(BatterySipper sipper);
+    }
+
+    /**
+     * Outcome of one refresh.  Sippers are sorted by descending power and
+     * are not shared with any other result.
+     */
+    static class Result {
+        BatteryStatsImpl stats;
+        BatteryHistoryBuffer history;
+        int statsType;
+        boolean available;
+        long statsPeriod;
+        double maxPower;
+        double totalPower;
+        final ArrayList<BatterySipper> usageList = new ArrayList<BatterySipper>();
+    }
+
+    /**
+     * Power attributed to one UID along with the counters it was derived
+     * from.  All counters are monotonic, so identical totals mean nothing
+     * has been accounted to the UID since.
+     */
+    private static class UidUsage {
+        int procCount;
+        long userTime;
+        long systemTime;
+        long foregroundTime;
+        long wakelockTime;
+        long sensorTime;
+        long gpsTime;
+        long tcpBytesReceived;
+        long tcpBytesSent;
+        long wifiRunningTime;
+        long wifiScanTime;
+
+        double cpuPower;
+        double sensorPower;
+        String packageWithHighestDrain;
+
+        boolean sameCounters(UidUsage other) {
+            return procCount == other.procCount && userTime == other.userTime
+                    && systemTime == other.systemTime
+                    && foregroundTime == other.foregroundTime
+                    && wakelockTime == other.wakelockTime
+                    && sensorTime == other.sensorTime && gpsTime == other.gpsTime
+                    && tcpBytesReceived == other.tcpBytesReceived
+                    && tcpBytesSent == other.tcpBytesSent
+                    && wifiRunningTime == other.wifiRunningTime
+                    && wifiScanTime == other.wifiScanTime;
+        }
+    }
+
+    static final Object sLock = new Object();
+    static BatteryUsageEngine sInstance;
+
+    static BatteryUsageEngine getInstance(Context context) {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new BatteryUsageEngine(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    final Context mContext;
+    final PowerProfile mPowerProfile;
+    final UserManager mUm;
+    final IBatteryStats mBatteryInfo;
+    final HandlerThread mThread;
+    final BackgroundHandler mBackgroundHandler;
+    final MainHandler mMainHandler = new MainHandler();
+
+    // Main thread only.
+    Callbacks mCallbacks;
+    Result mLastResult;
+
+    /** Sippers waiting for their name and icon, guarded by itself. */
+    final ArrayList<BatterySipper> mRequestQueue = new ArrayList<BatterySipper>();
+
+    // Only touched on the background thread.
+    BatteryStatsImpl mStats;
+    BatteryHistoryBuffer mHistory;
+    int mMemoStatsType = -1;
+    SparseArray<UidUsage> mUidUsage = new SparseArray<UidUsage>();
+    SparseArray<Double> mSensorPower;
+    final List<BatterySipper> mUsageList = new ArrayList<BatterySipper>();
+    final List<BatterySipper> mWifiSippers = new ArrayList<BatterySipper>();
+    final List<BatterySipper> mBluetoothSippers = new ArrayList<BatterySipper>();
+    final SparseArray<List<BatterySipper>> mUserSippers = new SparseArray<List<BatterySipper>>();
+    final SparseArray<Double> mUserPower = new SparseArray<Double>();
+    int mStatsType;
+    long mStatsPeriod;
+    double mMaxPower;
+    double mTotalPower;
+    double mWifiPower;
+    double mBluetoothPower;
+    long mAppWifiRunning;
+
+    private BatteryUsageEngine(Context context) {
+        mContext = context;
+        mPowerProfile = new PowerProfile(context);
+        mUm = (UserManager) context.getSystemService(Context.USER_SERVICE);
+        mBatteryInfo = IBatteryStats.Stub.asInterface(
+                ServiceManager.getService("batteryinfo"));
+        mThread = new HandlerThread("BatteryUsageEngine",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mBackgroundHandler = new BackgroundHandler(mThread.getLooper());
+    }
+
+    /**
+     * Start receiving results; the last computed result, if any, is
+     * returned so it can be shown until the next one arrives.
+     */
+    Result resume(Callbacks callbacks) {
+        mCallbacks = callbacks;
+        return mLastResult;
+    }
+
+    void pause() {
+        mCallbacks = null;
+        synchronized (mRequestQueue) {
+            mRequestQueue.clear();
+        }
+        mBackgroundHandler.removeMessages(MSG_RESOLVE_NAMES);
+        mMainHandler.removeMessages(MSG_UPDATE_NAME_ICON);
+    }
+
+    /**
+     * Drop statistics, memoized results and resolved names once the
+     * summary is gone for good, and shut down the engine thread.  The next
+     * {@link #getInstance} creates a new engine.
+     */
+    void release() {
+        pause();
+        mLastResult = null;
+        mBackgroundHandler.removeMessages(MSG_REFRESH);
+        mBackgroundHandler.sendEmptyMessage(MSG_RELEASE);
+        mThread.quitSafely();
+        synchronized (sLock) {
+            if (sInstance == this) {
+                sInstance = null;
+            }
+        }
+    }
+
+    /**
+     * Recompute the usage list for the given statistics type, reading a
+     * fresh copy of the statistics first if requested.  Requests that
+     * have not started yet are coalesced.
+     */
+    void refresh(int statsType, boolean reload) {
+        if (mBackgroundHandler.hasMessages(MSG_REFRESH, Boolean.TRUE)) {
+            reload = true;
+        }
+        mBackgroundHandler.removeMessages(MSG_REFRESH);
+        mBackgroundHandler.sendMessage(mBackgroundHandler.obtainMessage(MSG_REFRESH,
+                statsType, 0, reload ? Boolean.TRUE : Boolean.FALSE));
+    }
+
+    static final int MSG_USAGE_COMPUTED = 1;
+    static final int MSG_UPDATE_NAME_ICON = 2;
+
+    class MainHandler extends Handler {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_USAGE_COMPUTED: {
+                    mLastResult = (Result) msg.obj;
+                    if (mCallbacks != null) {
+                        mCallbacks.onUsageComputed(mLastResult);
+                    }
+                } break;
+                case MSG_UPDATE_NAME_ICON: {
+                    if (mCallbacks != null) {
+                        mCallbacks.onNameIconResolved((BatterySipper) msg.obj);
+                    }
+                } break;
+            }
+        }
+    }
+
+    static final int MSG_REFRESH = 1;
+    static final int MSG_RESOLVE_NAMES = 2;
+    static final int MSG_RELEASE = 3;
+
+    class BackgroundHandler extends Handler {
+        BackgroundHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_REFRESH: {
+                    if (mStats == null || msg.obj == Boolean.TRUE) {
+                        load();
+                    }
+                    Result result = compute(msg.arg1);
+                    mMainHandler.sendMessage(mMainHandler.obtainMessage(
+                            MSG_USAGE_COMPUTED, result));
+                    sendEmptyMessage(MSG_RESOLVE_NAMES);
+                } break;
+                case MSG_RESOLVE_NAMES: {
+                    BatterySipper bs;
+                    synchronized (mRequestQueue) {
+                        if (mRequestQueue.isEmpty()) {
+                            break;
+                        }
+                        bs = mRequestQueue.remove(0);
+                    }
+                    bs.getNameIcon();
+                    // One at a time so that a pending refresh is not held up.
+                    sendEmptyMessage(MSG_RESOLVE_NAMES);
+                } break;
+                case MSG_RELEASE: {
+                    mStats = null;
+                    mHistory = null;
+                    mUidUsage.clear();
+                    mMemoStatsType = -1;
+                    BatterySipper.clearNameIconCache();
+                } break;
+            }
+        }
+    }
+
+    private void load() {
+        try {
+            byte[] data = mBatteryInfo.getStatistics();
+            Parcel parcel = Parcel.obtain();
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            BatteryStatsImpl stats = com.android.internal.os.BatteryStatsImpl.CREATOR
+                    .createFromParcel(parcel);
+            parcel.recycle();
+            stats.distributeWorkLocked(BatteryStats.STATS_SINCE_CHARGED);
+            mStats = stats;
+            // The history only changes with the statistics, so decode it
+            // once here for both the summary chart and the detail screen.
+            mHistory = BatteryHistoryBuffer.decode(stats);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException:", e);
+        }
+    }
+
+    private Result compute(int statsType) {
+        final Result result = new Result();
+        result.stats = mStats;
+        result.history = mHistory;
+        result.statsType = statsType;
+        if (mStats == null
+                || mPowerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL) < 10) {
+            return result;
+        }
+
+        mStatsType = statsType;
+        mMaxPower = 0;
+        mTotalPower = 0;
+        mWifiPower = 0;
+        mBluetoothPower = 0;
+        mAppWifiRunning = 0;
+        mUsageList.clear();
+        mWifiSippers.clear();
+        mBluetoothSippers.clear();
+        mUserSippers.clear();
+        mUserPower.clear();
+
+        // The summary may read the same statistics while showing details.
+        synchronized (mStats) {
+            processAppUsage();
+            processMiscUsage();
+        }
+        Collections.sort(mUsageList);
+
+        result.available = true;
+        result.statsPeriod = mStatsPeriod;
+        result.maxPower = mMaxPower;
+        result.totalPower = mTotalPower;
+        result.usageList.addAll(mUsageList);
+        mUsageList.clear();
+        return result;
+    }
+
+    private BatterySipper newSipper(String label, DrainType drainType, int iconId, Uid uid,
+            double power) {
+        return new BatterySipper(mContext, mRequestQueue, mMainHandler, label, drainType,
+                iconId, uid, new double[] {power});
+    }
+
+    private double getSensorPower(int sensorHandle) {
+        if (mSensorPower == null) {
+            mSensorPower = new SparseArray<Double>();
+            SensorManager sensorManager = (SensorManager) mContext.getSystemService(
+                    Context.SENSOR_SERVICE);
+            List<Sensor> sensorList = sensorManager.getSensorList(Sensor.TYPE_ALL);
+            for (Sensor s : sensorList) {
+                mSensorPower.put(s.getHandle(), (double) s.getPower());
+            }
+        }
+        Double power = mSensorPower.get(sensorHandle);
+        return power != null ? power : 0;
+    }
+
+    /**
+     * Read the counters that feed the power model of the given UID.
+     */
+    private UidUsage sampleUid(Uid u, long uSecTime, int which) {
+        final UidUsage usage = new UidUsage();
+        final Map<String, ? extends BatteryStats.Uid.Proc> processStats = u.getProcessStats();
+        usage.procCount = processStats.size();
+        for (BatteryStats.Uid.Proc ps : processStats.values()) {
+            usage.userTime += ps.getUserTime(which);
+            usage.systemTime += ps.getSystemTime(which);
+            usage.foregroundTime += ps.getForegroundTime(which);
+        }
+        Map<String, ? extends BatteryStats.Uid.Wakelock> wakelockStats = u.getWakelockStats();
+        for (BatteryStats.Uid.Wakelock wakelock : wakelockStats.values()) {
+            // Only care about partial wake locks since full wake locks
+            // are canceled when the user turns the screen off.
+            BatteryStats.Timer timer = wakelock.getWakeTime(BatteryStats.WAKE_TYPE_PARTIAL);
+            if (timer != null) {
+                usage.wakelockTime += timer.getTotalTimeLocked(uSecTime, which);
+            }
+        }
+        usage.wakelockTime /= 1000; // convert to millis
+        Map<Integer, ? extends BatteryStats.Uid.Sensor> sensorStats = u.getSensorStats();
+        for (BatteryStats.Uid.Sensor sensor : sensorStats.values()) {
+            long sensorTime = sensor.getSensorTime().getTotalTimeLocked(uSecTime, which) / 1000;
+            if (sensor.getHandle() == Uid.Sensor.GPS) {
+                usage.gpsTime = sensorTime;
+            }
+            usage.sensorTime += sensorTime;
+        }
+        usage.tcpBytesReceived = u.getTcpBytesReceived(which);
+        usage.tcpBytesSent = u.getTcpBytesSent(which);
+        usage.wifiRunningTime = u.getWifiRunningTime(uSecTime, which) / 1000;
+        usage.wifiScanTime = u.getWifiScanTime(uSecTime, which) / 1000;
+        return usage;
+    }
+
+    /**
+     * Compute the CPU and sensor power of a UID whose counters changed.
+     * These depend on how time was split across speed steps and sensors
+     * rather than on the totals alone.
+     */
+    private void computeUidPower(Uid u, UidUsage usage, long uSecTime, int which,
+            double[] powerCpuNormal, long[] cpuSpeedStepTimes) {
+        final int speedSteps = powerCpuNormal.length;
+        double power = 0;
+        double highestDrain = 0;
+        String packageWithHighestDrain = null;
+        Map<String, ? extends BatteryStats.Uid.Proc> processStats = u.getProcessStats();
+        for (Map.Entry<String, ? extends BatteryStats.Uid.Proc> ent
+                : processStats.entrySet()) {
+            Uid.Proc ps = ent.getValue();
+            final long tmpCpuTime = (ps.getUserTime(which) + ps.getSystemTime(which)) * 10;
+            int totalTimeAtSpeeds = 0;
+            // Get the total first
+            for (int step = 0; step < speedSteps; step++) {
+                cpuSpeedStepTimes[step] = ps.getTimeAtCpuSpeedStep(step, which);
+                totalTimeAtSpeeds += cpuSpeedStepTimes[step];
+            }
+            if (totalTimeAtSpeeds == 0) totalTimeAtSpeeds = 1;
+            // Then compute the ratio of time spent at each speed
+            double processPower = 0;
+            for (int step = 0; step < speedSteps; step++) {
+                double ratio = (double) cpuSpeedStepTimes[step] / totalTimeAtSpeeds;
+                processPower += ratio * tmpCpuTime * powerCpuNormal[step];
+            }
+            if (DEBUG && processPower != 0) {
+                Log.i(TAG, String.format("process %s, cpu power=%.2f",
+                        ent.getKey(), processPower / 1000));
+            }
+            power += processPower;
+            if (packageWithHighestDrain == null
+                    || packageWithHighestDrain.startsWith("*")) {
+                highestDrain = processPower;
+                packageWithHighestDrain = ent.getKey();
+            } else if (highestDrain < processPower
+                    && !ent.getKey().startsWith("*")) {
+                highestDrain = processPower;
+                packageWithHighestDrain = ent.getKey();
+            }
+        }
+        usage.cpuPower = power / 1000;
+        usage.packageWithHighestDrain = packageWithHighestDrain;
+
+        double sensorPower = 0;
+        Map<Integer, ? extends BatteryStats.Uid.Sensor> sensorStats = u.getSensorStats();
+        for (BatteryStats.Uid.Sensor sensor : sensorStats.values()) {
+            final int sensorHandle = sensor.getHandle();
+            long sensorTime = sensor.getSensorTime().getTotalTimeLocked(uSecTime, which) / 1000;
+            double multiplier = sensorHandle == Uid.Sensor.GPS
+                    ? mPowerProfile.getAveragePower(PowerProfile.POWER_GPS_ON)
+                    : getSensorPower(sensorHandle);
+            double p = (multiplier * sensorTime) / 1000;
+            if (DEBUG && p != 0) {
+                Log.i(TAG, String.format("sensor %s power=%.2f", sensor.toString(), p));
+            }
+            sensorPower += p;
+        }
+        usage.sensorPower = sensorPower;
+    }
+
+    private void processAppUsage() {
+        final int which = mStatsType;
+        if (mMemoStatsType != which) {
+            mUidUsage.clear();
+            mMemoStatsType = which;
+        }
+        final int speedSteps = mPowerProfile.getNumSpeedSteps();
+        final double[] powerCpuNormal = new double[speedSteps];
+        final long[] cpuSpeedStepTimes = new long[speedSteps];
+        for (int p = 0; p < speedSteps; p++) {
+            powerCpuNormal[p] = mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_ACTIVE, p);
+        }
+        final double averageCostPerByte = getAverageDataCost();
+        final double wakelockPowerPerMs = mPowerProfile.getAveragePower(
+                PowerProfile.POWER_CPU_AWAKE);
+        final double wifiRunningPowerPerMs = mPowerProfile.getAveragePower(
+                PowerProfile.POWER_WIFI_ON);
+        final double wifiScanPowerPerMs = mPowerProfile.getAveragePower(
+                PowerProfile.POWER_WIFI_SCAN);
+        long uSecTime = mStats.computeBatteryRealtime(SystemClock.elapsedRealtime() * 1000, which);
+        long appWakelockTime = 0;
+        BatterySipper osApp = null;
+        mStatsPeriod = uSecTime;
+        final SparseArray<UidUsage> lastUsage = mUidUsage;
+        final SparseArray<UidUsage> uidUsage = new SparseArray<UidUsage>(lastUsage.size());
+        int recomputed = 0;
+        SparseArray<? extends Uid> uidStats = mStats.getUidStats();
+        final int NU = uidStats.size();
+        for (int iu = 0; iu < NU; iu++) {
+            Uid u = uidStats.valueAt(iu);
+            final int uid = u.getUid();
+            UidUsage usage = sampleUid(u, uSecTime, which);
+            final UidUsage last = lastUsage.get(uid);
+            if (last != null && last.sameCounters(usage)) {
+                usage = last;
+            } else {
+                computeUidPower(u, usage, uSecTime, which, powerCpuNormal, cpuSpeedStepTimes);
+                recomputed++;
+            }
+            uidUsage.put(uid, usage);
+
+            long cpuFgTime = usage.foregroundTime * 10; // convert to millis
+            long cpuTime = (usage.userTime + usage.systemTime) * 10;
+            if (cpuFgTime > cpuTime) {
+                if (DEBUG && cpuFgTime > cpuTime + 10000) {
+                    Log.i(TAG, "WARNING! Cputime is more than 10 seconds behind Foreground time");
+                }
+                cpuTime = cpuFgTime; // Statistics may not have been gathered yet.
+            }
+            double power = usage.cpuPower;
+            // Add cost of holding a wake lock
+            power += (usage.wakelockTime * wakelockPowerPerMs) / 1000;
+            appWakelockTime += usage.wakelockTime;
+            // Add cost of data traffic
+            power += (usage.tcpBytesReceived + usage.tcpBytesSent) * averageCostPerByte;
+            // Add cost of keeping WIFI running.
+            power += (usage.wifiRunningTime * wifiRunningPowerPerMs) / 1000;
+            mAppWifiRunning += usage.wifiRunningTime;
+            // Add cost of WIFI scans
+            power += (usage.wifiScanTime * wifiScanPowerPerMs) / 1000;
+            power += usage.sensorPower;
+
+            if (DEBUG) Log.i(TAG, String.format("UID %d total power=%.2f", uid, power));
+
+            // Add the app to the list if it is consuming power
+            boolean isOtherUser = false;
+            final int userId = UserHandle.getUserId(uid);
+            if (power != 0 || uid == 0) {
+                BatterySipper app = newSipper(usage.packageWithHighestDrain, DrainType.APP, 0,
+                        u, power);
+                app.cpuTime = cpuTime;
+                app.gpsTime = usage.gpsTime;
+                app.wifiRunningTime = usage.wifiRunningTime;
+                app.cpuFgTime = cpuFgTime;
+                app.wakeLockTime = usage.wakelockTime;
+                app.tcpBytesReceived = usage.tcpBytesReceived;
+                app.tcpBytesSent = usage.tcpBytesSent;
+                if (uid == Process.WIFI_UID) {
+                    mWifiSippers.add(app);
+                } else if (uid == Process.BLUETOOTH_UID) {
+                    mBluetoothSippers.add(app);
+                } else if (userId != UserHandle.myUserId()
+                        && UserHandle.getAppId(uid) >= Process.FIRST_APPLICATION_UID) {
+                    isOtherUser = true;
+                    List<BatterySipper> list = mUserSippers.get(userId);
+                    if (list == null) {
+                        list = new ArrayList<BatterySipper>();
+                        mUserSippers.put(userId, list);
+                    }
+                    list.add(app);
+                } else {
+                    mUsageList.add(app);
+                }
+                if (uid == 0) {
+                    osApp = app;
+                }
+            }
+            if (power != 0) {
+                if (uid == Process.WIFI_UID) {
+                    mWifiPower += power;
+                } else if (uid == Process.BLUETOOTH_UID) {
+                    mBluetoothPower += power;
+                } else if (isOtherUser) {
+                    Double userPower = mUserPower.get(userId);
+                    if (userPower == null) {
+                        userPower = power;
+                    } else {
+                        userPower += power;
+                    }
+                    mUserPower.put(userId, userPower);
+                } else {
+                    if (power > mMaxPower) mMaxPower = power;
+                    mTotalPower += power;
+                }
+            }
+        }
+        mUidUsage = uidUsage;
+        if (DEBUG) Log.i(TAG, "Recomputed " + recomputed + " of " + NU + " uids");
+
+        // The device has probably been awake for longer than the screen on
+        // time and application wake lock time would account for.  Assign
+        // this remainder to the OS, if possible.
+        if (osApp != null) {
+            long wakeTimeMillis = mStats.computeBatteryUptime(
+                    SystemClock.uptimeMillis() * 1000, which) / 1000;
+            wakeTimeMillis -= appWakelockTime + (mStats.getScreenOnTime(
+                    SystemClock.elapsedRealtime(), which) / 1000);
+            if (wakeTimeMillis > 0) {
+                double power = (wakeTimeMillis * wakelockPowerPerMs) / 1000;
+                if (DEBUG) Log.i(TAG, "OS wakeLockTime " + wakeTimeMillis + " power " + power);
+                osApp.wakeLockTime += wakeTimeMillis;
+                osApp.value += power;
+                osApp.values[0] += power;
+                if (osApp.value > mMaxPower) mMaxPower = osApp.value;
+                mTotalPower += power;
+            }
+        }
+    }
+
+    private void addPhoneUsage(long uSecNow) {
+        long phoneOnTimeMs = mStats.getPhoneOnTime(uSecNow, mStatsType) / 1000;
+        double phoneOnPower = mPowerProfile.getAveragePower(PowerProfile.POWER_RADIO_ACTIVE)
+                * phoneOnTimeMs / 1000;
+        addEntry(mContext.getString(R.string.power_phone), DrainType.PHONE, phoneOnTimeMs,
+                R.drawable.ic_settings_voice_calls, phoneOnPower);
+    }
+
+    private void addScreenUsage(long uSecNow) {
+        double power = 0;
+        long screenOnTimeMs = mStats.getScreenOnTime(uSecNow, mStatsType) / 1000;
+        power += screenOnTimeMs * mPowerProfile.getAveragePower(PowerProfile.POWER_SCREEN_ON);
+        final double screenFullPower =
+                mPowerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL);
+        for (int i = 0; i < BatteryStats.NUM_SCREEN_BRIGHTNESS_BINS; i++) {
+            double screenBinPower = screenFullPower * (i + 0.5f)
+                    / BatteryStats.NUM_SCREEN_BRIGHTNESS_BINS;
+            long brightnessTime = mStats.getScreenBrightnessTime(i, uSecNow, mStatsType) / 1000;
+            power += screenBinPower * brightnessTime;
+            if (DEBUG) {
+                Log.i(TAG, "Screen bin power = " + (int) screenBinPower + ", time = "
+                        + brightnessTime);
+            }
+        }
+        power /= 1000; // To seconds
+        addEntry(mContext.getString(R.string.power_screen), DrainType.SCREEN, screenOnTimeMs,
+                R.drawable.ic_settings_display, power);
+    }
+
+    private void addRadioUsage(long uSecNow) {
+        double power = 0;
+        final int BINS = SignalStrength.NUM_SIGNAL_STRENGTH_BINS;
+        long signalTimeMs = 0;
+        for (int i = 0; i < BINS; i++) {
+            long strengthTimeMs = mStats.getPhoneSignalStrengthTime(i, uSecNow, mStatsType) / 1000;
+            power += strengthTimeMs / 1000
+                    * mPowerProfile.getAveragePower(PowerProfile.POWER_RADIO_ON, i);
+            signalTimeMs += strengthTimeMs;
+        }
+        long scanningTimeMs = mStats.getPhoneSignalScanningTime(uSecNow, mStatsType) / 1000;
+        power += scanningTimeMs / 1000 * mPowerProfile.getAveragePower(
+                PowerProfile.POWER_RADIO_SCANNING);
+        BatterySipper bs =
+                addEntry(mContext.getString(R.string.power_cell), DrainType.CELL,
+                        signalTimeMs, R.drawable.ic_settings_cell_standby, power);
+        if (signalTimeMs != 0) {
+            bs.noCoveragePercent = mStats.getPhoneSignalStrengthTime(0, uSecNow, mStatsType)
+                    / 1000 * 100.0 / signalTimeMs;
+        }
+    }
+
+    private void aggregateSippers(BatterySipper bs, List<BatterySipper> from, String tag) {
+        for (int i=0; i<from.size(); i++) {
+            BatterySipper wbs = from.get(i);
+            if (DEBUG) Log.i(TAG, tag + " adding sipper " + wbs + ": cpu=" + wbs.cpuTime);
+            bs.cpuTime += wbs.cpuTime;
+            bs.gpsTime += wbs.gpsTime;
+            bs.wifiRunningTime += wbs.wifiRunningTime;
+            bs.cpuFgTime += wbs.cpuFgTime;
+            bs.wakeLockTime += wbs.wakeLockTime;
+            bs.tcpBytesReceived += wbs.tcpBytesReceived;
+            bs.tcpBytesSent += wbs.tcpBytesSent;
+        }
+    }
+
+    private void addWiFiUsage(long uSecNow) {
+        long onTimeMs = mStats.getWifiOnTime(uSecNow, mStatsType) / 1000;
+        long runningTimeMs = mStats.getGlobalWifiRunningTime(uSecNow, mStatsType) / 1000;
+        if (DEBUG) Log.i(TAG, "WIFI runningTime=" + runningTimeMs
+                + " app runningTime=" + mAppWifiRunning);
+        runningTimeMs -= mAppWifiRunning;
+        if (runningTimeMs < 0) runningTimeMs = 0;
+        double wifiPower = (onTimeMs * 0 /* TODO */
+                * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_ON)
+            + runningTimeMs * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_ON)) / 1000;
+        if (DEBUG) Log.i(TAG, "WIFI power=" + wifiPower + " from procs=" + mWifiPower);
+        BatterySipper bs = addEntry(mContext.getString(R.string.power_wifi), DrainType.WIFI,
+                runningTimeMs, R.drawable.ic_settings_wifi, wifiPower + mWifiPower);
+        aggregateSippers(bs, mWifiSippers, "WIFI");
+    }
+
+    private void addIdleUsage(long uSecNow) {
+        long idleTimeMs = (uSecNow - mStats.getScreenOnTime(uSecNow, mStatsType)) / 1000;
+        double idlePower = (idleTimeMs * mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_IDLE))
+                / 1000;
+        addEntry(mContext.getString(R.string.power_idle), DrainType.IDLE, idleTimeMs,
+                R.drawable.ic_settings_phone_idle, idlePower);
+    }
+
+    private void addBluetoothUsage(long uSecNow) {
+        long btOnTimeMs = mStats.getBluetoothOnTime(uSecNow, mStatsType) / 1000;
+        double btPower = btOnTimeMs * mPowerProfile.getAveragePower(PowerProfile.POWER_BLUETOOTH_ON)
+                / 1000;
+        int btPingCount = mStats.getBluetoothPingCount();
+        btPower += (btPingCount
+                * mPowerProfile.getAveragePower(PowerProfile.POWER_BLUETOOTH_AT_CMD)) / 1000;
+        BatterySipper bs = addEntry(mContext.getString(R.string.power_bluetooth),
+                DrainType.BLUETOOTH, btOnTimeMs, R.drawable.ic_settings_bluetooth,
+                btPower + mBluetoothPower);
+        aggregateSippers(bs, mBluetoothSippers, "Bluetooth");
+    }
+
+    private void addUserUsage() {
+        for (int i=0; i<mUserSippers.size(); i++) {
+            final int userId = mUserSippers.keyAt(i);
+            final List<BatterySipper> sippers = mUserSippers.valueAt(i);
+            UserInfo info = mUm.getUserInfo(userId);
+            Drawable icon;
+            String name;
+            if (info != null) {
+                icon = UserUtils.getUserIcon(mUm, info, mContext.getResources());
+                name = info.name;
+                if (name == null) {
+                    name = Integer.toString(info.id);
+                }
+                name = mContext.getResources().getString(
+                        R.string.running_process_item_user_label, name);
+            } else {
+                icon = null;
+                name = mContext.getResources().getString(
+                        R.string.running_process_item_removed_user_label);
+            }
+            double power = mUserPower.get(userId);
+            BatterySipper bs = addEntry(name, DrainType.USER, 0, 0, power);
+            bs.icon = icon;
+            aggregateSippers(bs, sippers, "User");
+        }
+    }
+
+    private double getAverageDataCost() {
+        final long WIFI_BPS = 1000000; // TODO: Extract average bit rates from system
+        final long MOBILE_BPS = 200000; // TODO: Extract average bit rates from system
+        final double WIFI_POWER = mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_ACTIVE)
+                / 3600;
+        final double MOBILE_POWER = mPowerProfile.getAveragePower(PowerProfile.POWER_RADIO_ACTIVE)
+                / 3600;
+        final long mobileData = mStats.getMobileTcpBytesReceived(mStatsType) +
+                mStats.getMobileTcpBytesSent(mStatsType);
+        final long wifiData = mStats.getTotalTcpBytesReceived(mStatsType) +
+                mStats.getTotalTcpBytesSent(mStatsType) - mobileData;
+        final long radioDataUptimeMs = mStats.getRadioDataUptime() / 1000;
+        final long mobileBps = radioDataUptimeMs != 0
+                ? mobileData * 8 * 1000 / radioDataUptimeMs
+                : MOBILE_BPS;
+
+        double mobileCostPerByte = MOBILE_POWER / (mobileBps / 8);
+        double wifiCostPerByte = WIFI_POWER / (WIFI_BPS / 8);
+        if (wifiData + mobileData != 0) {
+            return (mobileCostPerByte * mobileData + wifiCostPerByte * wifiData)
+                    / (mobileData + wifiData);
+        } else {
+            return 0;
+        }
+    }
+
+    private void processMiscUsage() {
+        final int which = mStatsType;
+        long uSecTime = SystemClock.elapsedRealtime() * 1000;
+        final long uSecNow = mStats.computeBatteryRealtime(uSecTime, which);
+        final long timeSinceUnplugged = uSecNow;
+        if (DEBUG) {
+            Log.i(TAG, "Uptime since last unplugged = " + (timeSinceUnplugged / 1000));
+        }
+
+        addUserUsage();
+        addPhoneUsage(uSecNow);
+        addScreenUsage(uSecNow);
+        addWiFiUsage(uSecNow);
+        addBluetoothUsage(uSecNow);
+        addIdleUsage(uSecNow); // Not including cellular idle power
+        // Don't compute radio usage if it's a wifi-only device
+        if (!com.android.settings.Utils.isWifiOnly(mContext)) {
+            addRadioUsage(uSecNow);
+        }
+    }
+
+    private BatterySipper addEntry(String label, DrainType drainType, long time, int iconId,
+            double power) {
+        if (power > mMaxPower) mMaxPower = power;
+        mTotalPower += power;
+        BatterySipper bs = newSipper(label, drainType, iconId, null, power);
+        bs.usageTime = time;
+        bs.iconId = iconId;
+        mUsageList.add(bs);
+        return bs;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkStats.TAG_NONE;
+
+import android.net.INetworkStatsSession;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.RemoteException;
+
+import com.android.internal.util.Objects;
+
+import java.util.HashMap;
+
+/**
+ * Caches {@link NetworkStatsHistory} read through an
+ * {@link INetworkStatsSession}, keyed by template, UID, set and fields, so
+ * that switching between networks, cycles and apps is served from memory.
+ * Returned histories are shared and must not be modified; callers
+ * {@link #invalidate()} once the stats service has recorded new buckets.
+ */
+public class NetworkHistoryCache {
+    private static final int UID_NETWORK = -1;
+    private static final int SET_NETWORK = -1;
+
+    private static class Key {
+        final NetworkTemplate template;
+        final int uid;
+        final int set;
+        final int fields;
+
+        Key(NetworkTemplate template, int uid, int set, int fields) {
+            this.template = template;
+            this.uid = uid;
+            this.set = set;
+            this.fields = fields;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(template, uid, set, fields);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Key) {
+                final Key other = (Key) obj;
+                return uid == other.uid && set == other.set && fields == other.fields
+                        && Objects.equal(template, other.template);
+            }
+            return false;
+        }
+    }
+
+    private final INetworkStatsSession mSession;
+    private final HashMap<Key, NetworkStatsHistory> mHistory =
+            new HashMap<Key, NetworkStatsHistory>();
+
+    public NetworkHistoryCache(INetworkStatsSession session) {
+        mSession = session;
+    }
+
+    public synchronized NetworkStatsHistory getHistoryForNetwork(
+            NetworkTemplate template, int fields) throws RemoteException {
+        final Key key = new Key(template, UID_NETWORK, SET_NETWORK, fields);
+        NetworkStatsHistory history = mHistory.get(key);
+        if (history == null) {
+            history = mSession.getHistoryForNetwork(template, fields);
+            mHistory.put(key, history);
+        }
+        return history;
+    }
+
+    public synchronized NetworkStatsHistory getHistoryForUid(
+            NetworkTemplate template, int uid, int set, int fields) throws RemoteException {
+        final Key key = new Key(template, uid, set, fields);
+        NetworkStatsHistory history = mHistory.get(key);
+        if (history == null) {
+            history = mSession.getHistoryForUid(template, uid, set, TAG_NONE, fields);
+            mHistory.put(key, history);
+        }
+        return history;
+    }
+
+    /**
+     * Drop all cached history, typically after the stats service has been
+     * asked to poll.
+     */
+    public synchronized void invalidate() {
+        mHistory.clear();
+    }
+}
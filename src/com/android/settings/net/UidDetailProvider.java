@@ -16,11 +16,13 @@
 
 package com.android.settings.net;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.UserInfo;
 import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
@@ -28,19 +30,46 @@ import android.net.ConnectivityManager;
 import android.net.TrafficStats;
 import android.os.UserManager;
 import android.text.TextUtils;
+import android.util.LruCache;
 import android.util.SparseArray;
 
 import com.android.settings.R;
 import com.android.settings.Utils;
 import com.android.settings.users.UserUtils;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Return details about a specific UID, handling special cases like
  * {@link TrafficStats#UID_TETHERING} and {@link UserInfo}.
+ * <p>
+ * Details are shared by all providers in the process through a bounded
+ * in-memory cache, and labels are persisted across processes.  Both are
+ * invalidated by package broadcasts, which are listened to while any
+ * provider is in use.  Resolving may wait for a batch another thread is
+ * resolving, so it must not be done on the main thread.
  */
 public class UidDetailProvider {
+    /** Upper bound on details, including their icons, kept in memory. */
+    private static final int MAX_CACHED_DETAILS = 200;
+
+    private static final LruCache<Integer, UidDetail> sUidDetailCache =
+            new LruCache<Integer, UidDetail>(MAX_CACHED_DETAILS);
+
+    /** Guards the resolution state below; held while resolving a batch. */
+    private static final Object sResolveLock = new Object();
+    private static SparseArray<ArrayList<PackageInfo>> sPackagesByUid;
+    private static UidLabelCache sLabelCache;
+
+    /** UIDs changed by broadcasts, applied at the start of the next batch. */
+    private static final ArrayList<Integer> sInvalidUids = new ArrayList<Integer>();
+    private static boolean sInvalidAll;
+
+    private static PackageReceiver sPackageReceiver;
+    private static int sProviderCount;
+
     private final Context mContext;
-    private final SparseArray<UidDetail> mUidDetailCache;
 
     public static int buildKeyForUser(int userHandle) {
         return -(2000 + userHandle);
@@ -48,69 +77,143 @@ public class UidDetailProvider {
 
     public UidDetailProvider(Context context) {
         mContext = context.getApplicationContext();
-        mUidDetailCache = new SparseArray<UidDetail>();
+        synchronized (sInvalidUids) {
+            if (sProviderCount++ == 0) {
+                sPackageReceiver = new PackageReceiver();
+                sPackageReceiver.register(mContext);
+            }
+        }
+    }
+
+    /**
+     * Stops keeping the caches current for this provider.  Once no provider
+     * is left the package broadcasts are no longer listened to, so whatever
+     * is resolved then is dropped.
+     */
+    public void release() {
+        synchronized (sInvalidUids) {
+            if (--sProviderCount == 0) {
+                mContext.unregisterReceiver(sPackageReceiver);
+                sPackageReceiver = null;
+                sUidDetailCache.evictAll();
+                sInvalidAll = true;
+            }
+        }
     }
 
     public void clearCache() {
-        synchronized (mUidDetailCache) {
-            mUidDetailCache.clear();
+        sUidDetailCache.evictAll();
+        synchronized (sInvalidUids) {
+            sInvalidAll = true;
         }
     }
 
     /**
-     * Resolve best descriptive label for the given UID.
+     * Resolve best descriptive label for the given UID.  Unless blocking,
+     * only cached details are returned, or {@code null}; blocking must not
+     * be done on the main thread.
      */
     public UidDetail getUidDetail(int uid, boolean blocking) {
-        UidDetail detail;
-
-        synchronized (mUidDetailCache) {
-            detail = mUidDetailCache.get(uid);
+        final UidDetail detail = sUidDetailCache.get(uid);
+        if (detail != null || !blocking) {
+            return detail;
         }
 
-        if (detail != null) {
-            return detail;
-        } else if (!blocking) {
-            return null;
+        return getUidDetails(new int[] { uid }).get(uid);
+    }
+
+    /**
+     * Resolve details for all the given UIDs in a single pass, sharing one
+     * package query between them.  Blocks until all {@link Drawable}
+     * lookup is finished.
+     */
+    public SparseArray<UidDetail> getUidDetails(int[] uids) {
+        final SparseArray<UidDetail> details = new SparseArray<UidDetail>(uids.length);
+
+        synchronized (sResolveLock) {
+            applyInvalidationsLocked();
+            for (int uid : uids) {
+                UidDetail detail = sUidDetailCache.get(uid);
+                if (detail == null) {
+                    detail = buildUidDetailLocked(uid);
+                    sUidDetailCache.put(uid, detail);
+                }
+                details.put(uid, detail);
+            }
+            if (sLabelCache != null) {
+                sLabelCache.save();
+            }
         }
 
-        detail = buildUidDetail(uid);
+        return details;
+    }
 
-        synchronized (mUidDetailCache) {
-            mUidDetailCache.put(uid, detail);
+    private void applyInvalidationsLocked() {
+        if (sLabelCache == null) {
+            sLabelCache = new UidLabelCache(mContext.getCacheDir());
+            sLabelCache.load(mContext.getResources().getConfiguration().locale.toString());
         }
 
-        return detail;
+        synchronized (sInvalidUids) {
+            if (sInvalidAll) {
+                sPackagesByUid = null;
+                sLabelCache.load(mContext.getResources().getConfiguration().locale.toString());
+            } else if (!sInvalidUids.isEmpty()) {
+                sPackagesByUid = null;
+                for (int uid : sInvalidUids) {
+                    sLabelCache.remove(uid);
+                }
+            }
+            sInvalidAll = false;
+            sInvalidUids.clear();
+        }
+    }
+
+    private SparseArray<ArrayList<PackageInfo>> getPackagesByUidLocked(PackageManager pm) {
+        if (sPackagesByUid == null) {
+            final List<PackageInfo> packages = pm.getInstalledPackages(0);
+            final SparseArray<ArrayList<PackageInfo>> byUid =
+                    new SparseArray<ArrayList<PackageInfo>>();
+            for (PackageInfo info : packages) {
+                if (info.applicationInfo == null) continue;
+                final int uid = info.applicationInfo.uid;
+                ArrayList<PackageInfo> list = byUid.get(uid);
+                if (list == null) {
+                    list = new ArrayList<PackageInfo>(1);
+                    byUid.put(uid, list);
+                }
+                list.add(info);
+            }
+            sPackagesByUid = byUid;
+        }
+        return sPackagesByUid;
     }
 
     /**
      * Build {@link UidDetail} object, blocking until all {@link Drawable}
      * lookup is finished.
      */
-    private UidDetail buildUidDetail(int uid) {
+    private UidDetail buildUidDetailLocked(int uid) {
         final Resources res = mContext.getResources();
         final PackageManager pm = mContext.getPackageManager();
 
         final UidDetail detail = new UidDetail();
-        detail.label = pm.getNameForUid(uid);
         detail.icon = pm.getDefaultActivityIcon();
 
         // handle special case labels
         switch (uid) {
             case android.os.Process.SYSTEM_UID:
                 detail.label = res.getString(R.string.process_kernel_label);
-                detail.icon = pm.getDefaultActivityIcon();
                 return detail;
             case TrafficStats.UID_REMOVED:
                 detail.label = res.getString(UserManager.supportsMultipleUsers()
                         ? R.string.data_usage_uninstalled_apps_users
                         : R.string.data_usage_uninstalled_apps);
-                detail.icon = pm.getDefaultActivityIcon();
                 return detail;
             case TrafficStats.UID_TETHERING:
                 final ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(
                         Context.CONNECTIVITY_SERVICE);
                 detail.label = res.getString(Utils.getTetheringLabel(cm));
-                detail.icon = pm.getDefaultActivityIcon();
                 return detail;
         }
 
@@ -126,30 +229,30 @@ public class UidDetailProvider {
             }
         }
 
-        // otherwise fall back to using packagemanager labels
-        final String[] packageNames = pm.getPackagesForUid(uid);
-        final int length = packageNames != null ? packageNames.length : 0;
-        try {
-            if (length == 1) {
-                final ApplicationInfo info = pm.getApplicationInfo(packageNames[0], 0);
-                detail.label = info.loadLabel(pm).toString();
-                detail.icon = info.loadIcon(pm);
-            } else if (length > 1) {
-                detail.detailLabels = new CharSequence[length];
-                for (int i = 0; i < length; i++) {
-                    final String packageName = packageNames[i];
-                    final PackageInfo packageInfo = pm.getPackageInfo(packageName, 0);
-                    final ApplicationInfo appInfo = pm.getApplicationInfo(packageName, 0);
-
-                    detail.detailLabels[i] = appInfo.loadLabel(pm).toString();
-                    if (packageInfo.sharedUserLabel != 0) {
-                        detail.label = pm.getText(packageName, packageInfo.sharedUserLabel,
-                                packageInfo.applicationInfo).toString();
-                        detail.icon = appInfo.loadIcon(pm);
+        // otherwise fall back to using packagemanager labels, reusing
+        // persisted labels while the packages are unchanged
+        final ArrayList<PackageInfo> packages = getPackagesByUidLocked(pm).get(uid);
+        if (packages != null) {
+            final long stamp = buildStamp(packages);
+            UidLabelCache.Entry labels = sLabelCache.get(uid, stamp);
+            if (labels == null) {
+                labels = loadLabels(uid, packages, pm);
+                labels.stamp = stamp;
+                sLabelCache.put(uid, labels);
+            }
+
+            detail.label = labels.label;
+            detail.detailLabels = labels.detailLabels;
+            if (labels.iconPackage != null) {
+                for (PackageInfo info : packages) {
+                    if (labels.iconPackage.equals(info.packageName)) {
+                        detail.icon = info.applicationInfo.loadIcon(pm);
+                        break;
                     }
                 }
             }
-        } catch (NameNotFoundException e) {
+        } else {
+            detail.label = pm.getNameForUid(uid);
         }
 
         if (TextUtils.isEmpty(detail.label)) {
@@ -158,4 +261,95 @@ public class UidDetailProvider {
 
         return detail;
     }
+
+    private static UidLabelCache.Entry loadLabels(
+            int uid, ArrayList<PackageInfo> packages, PackageManager pm) {
+        final UidLabelCache.Entry labels = new UidLabelCache.Entry();
+        final int length = packages.size();
+        if (length == 1) {
+            final ApplicationInfo appInfo = packages.get(0).applicationInfo;
+            labels.label = appInfo.loadLabel(pm).toString();
+            labels.iconPackage = appInfo.packageName;
+        } else {
+            final String name = pm.getNameForUid(uid);
+            labels.label = name != null ? name : Integer.toString(uid);
+            labels.detailLabels = new String[length];
+            for (int i = 0; i < length; i++) {
+                final PackageInfo packageInfo = packages.get(i);
+                final ApplicationInfo appInfo = packageInfo.applicationInfo;
+
+                labels.detailLabels[i] = appInfo.loadLabel(pm).toString();
+                if (packageInfo.sharedUserLabel != 0) {
+                    final CharSequence sharedLabel = pm.getText(packageInfo.packageName,
+                            packageInfo.sharedUserLabel, appInfo);
+                    if (sharedLabel != null) {
+                        labels.label = sharedLabel.toString();
+                        labels.iconPackage = packageInfo.packageName;
+                    }
+                }
+            }
+        }
+        return labels;
+    }
+
+    private static long buildStamp(ArrayList<PackageInfo> packages) {
+        long stamp = 17;
+        for (PackageInfo info : packages) {
+            stamp = 31 * stamp + info.packageName.hashCode();
+            stamp = 31 * stamp + info.lastUpdateTime;
+        }
+        return stamp;
+    }
+
+    private static void invalidateUid(int uid) {
+        sUidDetailCache.remove(uid);
+        synchronized (sInvalidUids) {
+            sInvalidUids.add(uid);
+        }
+    }
+
+    /**
+     * Drops cached details for packages as they are installed, updated or
+     * removed, and everything when the locale changes.
+     */
+    private static class PackageReceiver extends BroadcastReceiver {
+        void register(Context context) {
+            final IntentFilter packageFilter = new IntentFilter();
+            packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            packageFilter.addDataScheme("package");
+            context.registerReceiver(this, packageFilter);
+
+            final IntentFilter filter = new IntentFilter();
+            filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+            filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+            filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+            context.registerReceiver(this, filter);
+        }
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
+                sUidDetailCache.evictAll();
+                synchronized (sInvalidUids) {
+                    sInvalidAll = true;
+                }
+            } else if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                    || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                final int[] uids = intent.getIntArrayExtra(Intent.EXTRA_CHANGED_UID_LIST);
+                if (uids != null) {
+                    for (int uid : uids) {
+                        invalidateUid(uid);
+                    }
+                }
+            } else {
+                final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+                if (uid != -1) {
+                    invalidateUid(uid);
+                }
+            }
+        }
+    }
 }
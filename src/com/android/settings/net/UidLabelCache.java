@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persistent, bounded map from UID to the labels shown for it, along with
+ * the package whose icon represents it.  Each entry is stamped with the
+ * packages sharing the UID and their update times so that it is dropped
+ * once any of them changes.  Beyond {@link #MAX_ENTRIES} the least
+ * recently used entries are dropped.  Not thread safe; callers synchronize
+ * externally.
+ */
+class UidLabelCache {
+    private static final String TAG = "UidLabelCache";
+
+    private static final String FILE_NAME = "uid_labels";
+    private static final int VERSION = 1;
+
+    /** Most entries kept, in memory and on disk. */
+    private static final int MAX_ENTRIES = 512;
+
+    static class Entry {
+        long stamp;
+        String label;
+        String[] detailLabels;
+        String iconPackage;
+    }
+
+    private final AtomicFile mFile;
+    // In access order, so that the eldest is the least recently used
+    private final LinkedHashMap<Integer, Entry> mEntries =
+            new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private String mLocale;
+    private boolean mDirty;
+
+    UidLabelCache(File dir) {
+        mFile = new AtomicFile(new File(dir, FILE_NAME));
+    }
+
+    Entry get(int uid, long stamp) {
+        final Entry entry = mEntries.get(uid);
+        if (entry != null && entry.stamp != stamp) {
+            remove(uid);
+            return null;
+        }
+        return entry;
+    }
+
+    void put(int uid, Entry entry) {
+        mEntries.put(uid, entry);
+        mDirty = true;
+    }
+
+    void remove(int uid) {
+        if (mEntries.remove(uid) != null) {
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Load entries written for the given locale; entries for any other
+     * locale are discarded.
+     */
+    void load(String locale) {
+        mLocale = locale;
+        mEntries.clear();
+        mDirty = false;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != VERSION || !locale.equals(in.readUTF())) {
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final int uid = in.readInt();
+                final Entry entry = new Entry();
+                entry.stamp = in.readLong();
+                entry.label = in.readUTF();
+                final int detailCount = in.readInt();
+                if (detailCount > 0) {
+                    entry.detailLabels = new String[detailCount];
+                    for (int j = 0; j < detailCount; j++) {
+                        entry.detailLabels[j] = in.readUTF();
+                    }
+                }
+                if (in.readBoolean()) {
+                    entry.iconPackage = in.readUTF();
+                }
+                mEntries.put(uid, entry);
+            }
+        } catch (FileNotFoundException e) {
+            // nothing persisted yet
+        } catch (IOException e) {
+            Log.w(TAG, "problem reading uid labels", e);
+            mEntries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    void save() {
+        if (!mDirty || mLocale == null) return;
+
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(VERSION);
+            out.writeUTF(mLocale);
+            out.writeInt(mEntries.size());
+            // Eldest first, so that loading restores the access order
+            for (Map.Entry<Integer, Entry> mapEntry : mEntries.entrySet()) {
+                final Entry entry = mapEntry.getValue();
+                out.writeInt(mapEntry.getKey());
+                out.writeLong(entry.stamp);
+                out.writeUTF(entry.label);
+                final int detailCount = entry.detailLabels != null
+                        ? entry.detailLabels.length : 0;
+                out.writeInt(detailCount);
+                for (int j = 0; j < detailCount; j++) {
+                    out.writeUTF(entry.detailLabels[j]);
+                }
+                out.writeBoolean(entry.iconPackage != null);
+                if (entry.iconPackage != null) {
+                    out.writeUTF(entry.iconPackage);
+                }
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            mDirty = false;
+        } catch (IOException e) {
+            Log.w(TAG, "problem writing uid labels", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+}
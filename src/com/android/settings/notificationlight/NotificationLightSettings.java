@@ -21,16 +21,11 @@ import android.app.Dialog;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.content.Intent;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
-import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
-import android.graphics.drawable.Drawable;
 import android.os.Bundle;
-import android.os.Handler;
 import android.preference.CheckBoxPreference;
 import android.preference.Preference;
 import android.preference.PreferenceGroup;
@@ -54,11 +49,10 @@ import android.widget.TextView;
 
 import com.android.settings.R;
 import com.android.settings.SettingsPreferenceFragment;
+import com.android.settings.util.AppCatalog;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
@@ -157,6 +151,12 @@ public class NotificationLightSettings extends SettingsPreferenceFragment implem
         getActivity().invalidateOptionsMenu();
     }
 
+    @Override
+    public void onDestroy() {
+        mPackageAdapter.cancel();
+        super.onDestroy();
+    }
+
     private void refreshDefault() {
         ContentResolver resolver = getContentResolver();
         int color = Settings.System.getInt(resolver,
@@ -478,10 +478,10 @@ public class NotificationLightSettings extends SettingsPreferenceFragment implem
      * AppItem class
      */
     private static class PackageItem implements Comparable<PackageItem> {
+        AppCatalog.App app;
         CharSequence title;
         TreeSet<CharSequence> activityTitles = new TreeSet<CharSequence>();
         String packageName;
-        Drawable icon;
 
         @Override
         public int compareTo(PackageItem another) {
@@ -493,54 +493,42 @@ public class NotificationLightSettings extends SettingsPreferenceFragment implem
     /**
      * AppAdapter class
      */
-    private class PackageAdapter extends BaseAdapter {
-        private List<PackageItem> mInstalledPackages = new LinkedList<PackageItem>();
-
-        private void reloadList() {
-            final Handler handler = new Handler();
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    synchronized (mInstalledPackages) {
-                        mInstalledPackages.clear();
-                    }
+    private class PackageAdapter extends BaseAdapter
+            implements AppCatalog.Callback, AppCatalog.IconCallback {
+        private final AppCatalog mCatalog = AppCatalog.get(getActivity());
+        private List<PackageItem> mInstalledPackages = new ArrayList<PackageItem>();
 
-                    final Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
-                    mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
-                    List<ResolveInfo> installedAppsInfo =
-                            mPackageManager.queryIntentActivities(mainIntent, 0);
-
-                    for (ResolveInfo info : installedAppsInfo) {
-                        ApplicationInfo appInfo = info.activityInfo.applicationInfo;
-
-                        final PackageItem item = new PackageItem();
-                        item.title = appInfo.loadLabel(mPackageManager);
-                        item.activityTitles.add(info.loadLabel(mPackageManager));
-                        item.icon = appInfo.loadIcon(mPackageManager);
-                        item.packageName = appInfo.packageName;
-
-                        handler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                // NO synchronize here: We know that mInstalledApps.clear()
-                                // was called and will never be called again.
-                                // At this point the only thread modifying mInstalledApp is main
-                                int index = Collections.binarySearch(mInstalledPackages, item);
-                                if (index < 0) {
-                                    mInstalledPackages.add(-index - 1, item);
-                                } else {
-                                    mInstalledPackages.get(index).activityTitles.addAll(item.activityTitles);
-                                }
-                                notifyDataSetChanged();
-                            }
-                        });
-                    }
-                }
-            }).start();
+        public PackageAdapter() {
+            mCatalog.getApps(this);
         }
 
-        public PackageAdapter() {
-            reloadList();
+        public void cancel() {
+            mCatalog.cancel(this);
+            mCatalog.cancelIcons(this);
+        }
+
+        @Override
+        public void onIconLoaded(AppCatalog.App app) {
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public void onAppsLoaded(List<AppCatalog.App> apps) {
+            synchronized (mInstalledPackages) {
+                mInstalledPackages.clear();
+                for (AppCatalog.App app : apps) {
+                    if (!app.isLaunchable()) {
+                        continue;
+                    }
+                    final PackageItem item = new PackageItem();
+                    item.app = app;
+                    item.title = app.label;
+                    item.activityTitles.addAll(app.activityLabels);
+                    item.packageName = app.info.packageName;
+                    mInstalledPackages.add(item);
+                }
+            }
+            notifyDataSetChanged();
         }
 
         @Override
@@ -582,7 +570,7 @@ public class NotificationLightSettings extends SettingsPreferenceFragment implem
             PackageItem applicationInfo = getItem(position);
 
             holder.title.setText(applicationInfo.title);
-            holder.icon.setImageDrawable(applicationInfo.icon);
+            holder.icon.setImageDrawable(mCatalog.getIcon(applicationInfo.app, this));
 
             boolean needSummary = applicationInfo.activityTitles.size() > 0;
             if (applicationInfo.activityTitles.size() == 1) {
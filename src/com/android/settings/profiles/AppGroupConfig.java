@@ -16,8 +16,8 @@
 
 package com.android.settings.profiles;
 
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 
 import android.app.AlertDialog;
@@ -26,13 +26,11 @@ import android.app.NotificationGroup;
 import android.app.ProfileManager;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
-import android.os.Handler;
 import android.preference.Preference;
 import android.preference.PreferenceGroup;
 import android.preference.PreferenceScreen;
@@ -56,6 +54,7 @@ import android.widget.Toast;
 
 import com.android.settings.R;
 import com.android.settings.SettingsPreferenceFragment;
+import com.android.settings.util.AppCatalog;
 
 public class AppGroupConfig extends SettingsPreferenceFragment
     implements Preference.OnPreferenceChangeListener {
@@ -97,7 +96,7 @@ public class AppGroupConfig extends SettingsPreferenceFragment
         if (args != null) {
             mNotificationGroup = (NotificationGroup) args.getParcelable("NotificationGroup");
             mPackageManager = getPackageManager();
-            mAppAdapter = new PackageAdaptor(mPackageManager.getInstalledPackages(0));
+            mAppAdapter = new PackageAdaptor();
             mAppAdapter.update();
 
             updatePackages();
@@ -205,6 +204,14 @@ public class AppGroupConfig extends SettingsPreferenceFragment
         super.onPause();
     }
 
+    @Override
+    public void onDestroy() {
+        if (mAppAdapter != null) {
+            mAppAdapter.cancel();
+        }
+        super.onDestroy();
+    }
+
     @Override
     public boolean onPreferenceChange(Preference preference, Object newValue) {
         if (preference == mNamePreference) {
@@ -320,9 +327,9 @@ public class AppGroupConfig extends SettingsPreferenceFragment
     }
 
     class PackageItem implements Comparable<PackageItem> {
+        AppCatalog.App app;
         String title;
         String packageName;
-        Drawable icon;
         boolean enabled;
 
         @Override
@@ -338,50 +345,41 @@ public class AppGroupConfig extends SettingsPreferenceFragment
         }
     }
 
-    class PackageAdaptor extends BaseAdapter {
-
-        protected List<PackageInfo> mInstalledPackageInfo;
-
-        protected List<PackageItem> mInstalledPackages = new LinkedList<PackageItem>();
-
-        private void reloadList() {
-            final Handler handler = new Handler();
-            new Thread(new Runnable() {
-
-                @Override
-                public void run() {
-                    synchronized (mInstalledPackages) {
-                        mInstalledPackages.clear();
-                        for (PackageInfo info : mInstalledPackageInfo) {
-                            final PackageItem item = new PackageItem();
-                            ApplicationInfo applicationInfo = info.applicationInfo;
-                            item.title = applicationInfo.loadLabel(mPackageManager).toString();
-                            item.icon = applicationInfo.loadIcon(mPackageManager);
-                            item.packageName = applicationInfo.packageName;
-                            item.enabled = applicationInfo.enabled;
-                            handler.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    int index = Collections.binarySearch(mInstalledPackages, item);
-                                    if (index < 0) {
-                                        index = -index - 1;
-                                        mInstalledPackages.add(index, item);
-                                    }
-                                    notifyDataSetChanged();
-                                }
-                            });
-                        }
-                    }
-                }
-            }).start();
+    class PackageAdaptor extends BaseAdapter
+            implements AppCatalog.Callback, AppCatalog.IconCallback {
+
+        protected List<PackageItem> mInstalledPackages = new ArrayList<PackageItem>();
+
+        private final AppCatalog mCatalog = AppCatalog.get(getActivity());
+
+        public void update() {
+            mCatalog.getApps(this);
         }
 
-        public PackageAdaptor(List<PackageInfo> installedPackagesInfo) {
-            mInstalledPackageInfo = installedPackagesInfo;
+        public void cancel() {
+            mCatalog.cancel(this);
+            mCatalog.cancelIcons(this);
         }
 
-        public void update() {
-            reloadList();
+        @Override
+        public void onIconLoaded(AppCatalog.App app) {
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public void onAppsLoaded(List<AppCatalog.App> apps) {
+            mInstalledPackages.clear();
+            for (AppCatalog.App app : apps) {
+                PackageItem item = new PackageItem();
+                item.app = app;
+                item.title = app.label.toString();
+                item.packageName = app.info.packageName;
+                item.enabled = app.info.enabled;
+                mInstalledPackages.add(item);
+            }
+            // The catalog is in label order; bring the enabled apps first
+            Collections.sort(mInstalledPackages);
+            notifyDataSetChanged();
         }
 
         @Override
@@ -423,8 +421,7 @@ public class AppGroupConfig extends SettingsPreferenceFragment
                 holder.summary.setVisibility(View.GONE);
             }
             if (holder.icon != null) {
-                Drawable loadIcon = applicationInfo.icon;
-                holder.icon.setImageDrawable(loadIcon);
+                holder.icon.setImageDrawable(mCatalog.getIcon(applicationInfo.app, this));
             }
             return convertView;
         }
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.app.ListFragment;
+import android.content.Context;
+import android.os.Bundle;
+import android.preference.PreferenceActivity;
+import android.text.Editable;
+import android.text.TextUtils;
+import android.text.TextWatcher;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.Filter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import com.android.settings.R;
+import com.android.settings.SettingsPreferenceFragment;
+
+import java.util.List;
+
+/**
+ * Searches the settings as the query is typed and opens the screen of the
+ * chosen result, scrolled to the setting.
+ */
+public class SearchFragment extends ListFragment implements SearchIndex.Callback, TextWatcher {
+    private static final int MAX_RESULTS = 50;
+
+    private SearchIndex mIndex;
+    private EditText mQuery;
+    private TextView mEmpty;
+    private ResultAdapter mAdapter;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mIndex = SearchIndex.get(getActivity());
+    }
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container,
+            Bundle savedInstanceState) {
+        final View view = inflater.inflate(R.layout.search_settings, container, false);
+        mQuery = (EditText) view.findViewById(R.id.search_query);
+        mQuery.addTextChangedListener(this);
+        mEmpty = (TextView) view.findViewById(android.R.id.empty);
+        return view;
+    }
+
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+        mAdapter = new ResultAdapter(getActivity());
+        setListAdapter(mAdapter);
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        mIndex.registerCallback(this);
+        mIndex.update();
+        refresh();
+        mQuery.requestFocus();
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        mIndex.unregisterCallback(this);
+    }
+
+    @Override
+    public void onIndexChanged() {
+        refresh();
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+        refresh();
+    }
+
+    private void refresh() {
+        // Queried in the background, results are shown as they come
+        mAdapter.getFilter().filter(mQuery.getText().toString());
+    }
+
+    @Override
+    public void onListItemClick(ListView l, View v, int position, long id) {
+        final SearchIndex.Entry entry = mAdapter.getItem(position);
+        if (!mIndex.isAllowed(entry)) {
+            // Hidden since it was found, as when developer options were turned off
+            refresh();
+            return;
+        }
+        Bundle args = null;
+        if (entry.key != null) {
+            args = new Bundle();
+            args.putString(SettingsPreferenceFragment.EXTRA_PREFERENCE_KEY, entry.key);
+        }
+        ((PreferenceActivity) getActivity()).startPreferencePanel(entry.fragment, args, 0,
+                entry.screenTitle, null, 0);
+    }
+
+    private class ResultAdapter extends ArrayAdapter<SearchIndex.Entry> {
+        private final LayoutInflater mInflater;
+        private final Filter mFilter = new Filter() {
+            @Override
+            protected FilterResults performFiltering(CharSequence constraint) {
+                final List<SearchIndex.Entry> entries = mIndex.query(
+                        constraint != null ? constraint.toString() : null, MAX_RESULTS);
+                final FilterResults results = new FilterResults();
+                results.values = entries;
+                results.count = entries.size();
+                return results;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            protected void publishResults(CharSequence constraint, FilterResults results) {
+                if (getActivity() == null) {
+                    return;
+                }
+                setNotifyOnChange(false);
+                clear();
+                addAll((List<SearchIndex.Entry>) results.values);
+                notifyDataSetChanged();
+                mEmpty.setText(constraint != null && TextUtils.getTrimmedLength(constraint) > 0
+                        ? getString(R.string.search_settings_no_results) : "");
+            }
+        };
+
+        ResultAdapter(Context context) {
+            super(context, 0);
+            mInflater = LayoutInflater.from(context);
+        }
+
+        @Override
+        public Filter getFilter() {
+            return mFilter;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            if (convertView == null) {
+                convertView = mInflater.inflate(android.R.layout.simple_list_item_2,
+                        parent, false);
+            }
+            final SearchIndex.Entry entry = getItem(position);
+            final TextView title = (TextView) convertView.findViewById(android.R.id.text1);
+            final TextView detail = (TextView) convertView.findViewById(android.R.id.text2);
+            title.setText(entry.title);
+            // Where the setting is, or what it does when it's a whole screen
+            detail.setText(entry.keywords != null ? entry.keywords : entry.summary);
+            return convertView;
+        }
+    }
+}
@@ -0,0 +1,738 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.Resources;
+import android.content.res.XmlResourceParser;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.text.TextUtils;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+
+import com.android.settings.R;
+import com.android.settings.Settings;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Full-text index of the settings reachable from the header list.  Every
+ * header and every preference of the screens listed in
+ * {@link SearchIndexableResources} becomes an {@link Entry} with its title,
+ * summary and the titles of the screens and categories above it.
+ * <p>
+ * The index is built on a background thread and saved to a file, stamped
+ * with the locale and the installed version of this package, so later
+ * processes just read it back.  It is built again only when the stamp no
+ * longer matches, as after an update or a locale change.  While it is
+ * being built each screen is searchable as soon as it is parsed.
+ * <p>
+ * Queries match every word of the query against the start of the indexed
+ * words, tolerating a typo or two in longer words, and rank titles above
+ * breadcrumbs and summaries.  They may touch system services, so they are
+ * run off the main thread.
+ * <p>
+ * Settings under a header that {@link Settings#isHeaderShown} hides, such as
+ * the developer options before they are enabled, are neither indexed nor
+ * returned, nor opened.
+ */
+public class SearchIndex {
+    private static final String TAG = "SearchIndex";
+
+    private static final String INDEX_FILE = "search_index";
+    private static final int INDEX_VERSION = 2;
+
+    private static final String ANDROID_NS = "http://schemas.android.com/apk/res/android";
+    private static final String BREADCRUMB_SEPARATOR = " > ";
+
+    private static final int FIELD_TITLE = 0;
+    private static final int FIELD_SUMMARY = 1;
+    private static final int FIELD_KEYWORDS = 2;
+    private static final float[] FIELD_WEIGHTS = { 3f, 1f, 1.5f };
+    // A word that only starts with the query term, and one reached with typos
+    private static final float PREFIX_FACTOR = 0.8f;
+    private static final float FUZZY_FACTOR = 0.5f;
+
+    private static final Pattern ACCENTS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+    private static final Pattern NON_WORD = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    /**
+     * A searchable setting.
+     */
+    public static class Entry {
+        public final String title;
+        public final String summary;
+        /** Titles of the screens and categories the setting is found under. */
+        public final String keywords;
+        /** Title of the screen the fragment shows. */
+        public final String screenTitle;
+        public final String fragment;
+        /** Key of the preference, or null for a whole screen. */
+        public final String key;
+        /** Id of the header the setting is reached from, which must be shown. */
+        public final int headerId;
+
+        Entry(String title, String summary, String keywords, String screenTitle,
+                String fragment, String key, int headerId) {
+            this.title = title;
+            this.summary = summary;
+            this.keywords = keywords;
+            this.screenTitle = screenTitle;
+            this.fragment = fragment;
+            this.key = key;
+            this.headerId = headerId;
+        }
+    }
+
+    public interface Callback {
+        /**
+         * Called on the main thread when entries were added to the index,
+         * so that results shown from it can be queried again.
+         */
+        void onIndexChanged();
+    }
+
+    /** Growable list of postings, each an entry index shifted left by 2 and a field. */
+    private static final class Postings {
+        int[] items = new int[4];
+        int size;
+
+        void add(int posting) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = posting;
+        }
+    }
+
+    private static SearchIndex sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final Handler mMainHandler;
+
+    // Guarded by this
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+    private final TreeMap<String, Postings> mWords = new TreeMap<String, Postings>();
+    private final ArrayList<Callback> mCallbacks = new ArrayList<Callback>();
+    private String mStamp;
+
+    private final Runnable mUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateIndex();
+        }
+    };
+
+    private final Runnable mNotifyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final Callback[] callbacks;
+            synchronized (SearchIndex.this) {
+                callbacks = mCallbacks.toArray(new Callback[mCallbacks.size()]);
+            }
+            for (Callback callback : callbacks) {
+                callback.onIndexChanged();
+            }
+        }
+    };
+
+    public static synchronized SearchIndex get(Context context) {
+        if (sInstance == null) {
+            sInstance = new SearchIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SearchIndex(Context context) {
+        mContext = context;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Brings the index up to date in the background: read from its file
+     * when that is current, built again otherwise.  Cheap when nothing
+     * changed.
+     */
+    public void update() {
+        mHandler.removeCallbacks(mUpdateRunnable);
+        mHandler.post(mUpdateRunnable);
+    }
+
+    public synchronized void registerCallback(Callback callback) {
+        mCallbacks.add(callback);
+    }
+
+    public synchronized void unregisterCallback(Callback callback) {
+        mCallbacks.remove(callback);
+    }
+
+    /**
+     * Returns the best entries matching every word of the query, best
+     * first.
+     */
+    public List<Entry> query(String query, int maxResults) {
+        final String[] terms = tokenize(query);
+        if (terms.length == 0) {
+            return Collections.emptyList();
+        }
+
+        synchronized (this) {
+            final int count = mEntries.size();
+            float[] scores = null;
+            for (String term : terms) {
+                final float[] termScores = new float[count];
+                scoreTerm(term, termScores);
+                if (scores == null) {
+                    scores = termScores;
+                    continue;
+                }
+                // Every term must match
+                for (int i = 0; i < count; i++) {
+                    scores[i] = termScores[i] > 0 && scores[i] > 0 ? scores[i] + termScores[i] : 0;
+                }
+            }
+
+            final ArrayList<Integer> matches = new ArrayList<Integer>();
+            final SparseBooleanArray shown = new SparseBooleanArray();
+            for (int i = 0; i < count; i++) {
+                if (scores[i] > 0 && isHeaderShown(mEntries.get(i).headerId, shown)) {
+                    matches.add(i);
+                }
+            }
+            final float[] finalScores = scores;
+            Collections.sort(matches, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    int result = Float.compare(finalScores[rhs], finalScores[lhs]);
+                    if (result != 0) {
+                        return result;
+                    }
+                    return mEntries.get(lhs).title.compareToIgnoreCase(mEntries.get(rhs).title);
+                }
+            });
+
+            final int n = Math.min(maxResults, matches.size());
+            final ArrayList<Entry> results = new ArrayList<Entry>(n);
+            for (int i = 0; i < n; i++) {
+                results.add(mEntries.get(matches.get(i)));
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Returns whether the entry may be opened, that is whether its header is
+     * currently shown in the header list.
+     */
+    public boolean isAllowed(Entry entry) {
+        return Settings.isHeaderShown(mContext, entry.headerId);
+    }
+
+    private boolean isHeaderShown(int headerId, SparseBooleanArray shown) {
+        final int index = shown.indexOfKey(headerId);
+        if (index >= 0) {
+            return shown.valueAt(index);
+        }
+        final boolean result = Settings.isHeaderShown(mContext, headerId);
+        shown.put(headerId, result);
+        return result;
+    }
+
+    /**
+     * Adds the score of the best field of each entry matching the term.
+     */
+    private void scoreTerm(String term, float[] scores) {
+        final Map<String, Postings> prefixed =
+                mWords.subMap(term, true, term + Character.MAX_VALUE, false);
+        for (Map.Entry<String, Postings> word : prefixed.entrySet()) {
+            addScores(word.getValue(),
+                    word.getKey().length() == term.length() ? 1f : PREFIX_FACTOR, scores);
+        }
+
+        final int maxDistance = term.length() < 4 ? 0 : term.length() < 8 ? 1 : 2;
+        if (maxDistance == 0) {
+            return;
+        }
+        // Typos are only looked for past the first letter, which keeps the
+        // scan to the words starting with it.
+        final char first = term.charAt(0);
+        final Map<String, Postings> candidates = mWords.subMap(String.valueOf(first), true,
+                String.valueOf((char) (first + 1)), false);
+        for (Map.Entry<String, Postings> word : candidates.entrySet()) {
+            final String text = word.getKey();
+            if (text.startsWith(term)) {
+                continue;
+            }
+            final int distance = prefixDistance(term, text, maxDistance);
+            if (distance <= maxDistance) {
+                addScores(word.getValue(), FUZZY_FACTOR / distance, scores);
+            }
+        }
+    }
+
+    private static void addScores(Postings postings, float factor, float[] scores) {
+        for (int i = 0; i < postings.size; i++) {
+            final int posting = postings.items[i];
+            final int entry = posting >> 2;
+            final float score = FIELD_WEIGHTS[posting & 3] * factor;
+            if (score > scores[entry]) {
+                scores[entry] = score;
+            }
+        }
+    }
+
+    /**
+     * Returns the edit distance from the term to the closest prefix of the
+     * word, or more than the maximum if it is further than that.
+     */
+    private static int prefixDistance(String term, String word, int maxDistance) {
+        final int m = term.length();
+        final int n = Math.min(word.length(), m + maxDistance);
+        if (n < m - maxDistance) {
+            return maxDistance + 1;
+        }
+        int[] prev = new int[n + 1];
+        int[] cur = new int[n + 1];
+        for (int j = 0; j <= n; j++) {
+            prev[j] = j;
+        }
+        for (int i = 1; i <= m; i++) {
+            cur[0] = i;
+            int rowMin = cur[0];
+            final char c = term.charAt(i - 1);
+            for (int j = 1; j <= n; j++) {
+                final int cost = c == word.charAt(j - 1) ? 0 : 1;
+                cur[j] = Math.min(Math.min(cur[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+                if (cur[j] < rowMin) {
+                    rowMin = cur[j];
+                }
+            }
+            if (rowMin > maxDistance) {
+                return maxDistance + 1;
+            }
+            final int[] tmp = prev;
+            prev = cur;
+            cur = tmp;
+        }
+        // The term against any prefix of the word
+        int best = maxDistance + 1;
+        for (int j = 0; j <= n; j++) {
+            if (prev[j] < best) {
+                best = prev[j];
+            }
+        }
+        return best;
+    }
+
+    private static String[] tokenize(String text) {
+        if (TextUtils.isEmpty(text)) {
+            return new String[0];
+        }
+        final String normalized = ACCENTS.matcher(
+                Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("").toLowerCase();
+        final ArrayList<String> words = new ArrayList<String>();
+        for (String word : NON_WORD.split(normalized)) {
+            if (word.length() > 0) {
+                words.add(word);
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    // Called on the background thread only
+    private void updateIndex() {
+        final String stamp = getStamp();
+        synchronized (this) {
+            if (stamp.equals(mStamp)) {
+                return;
+            }
+        }
+
+        final AtomicFile file = new AtomicFile(new File(mContext.getFilesDir(), INDEX_FILE));
+        final ArrayList<Entry> entries = read(file, stamp);
+        if (entries != null) {
+            synchronized (this) {
+                clearLocked();
+                for (Entry entry : entries) {
+                    addLocked(entry);
+                }
+                mStamp = stamp;
+            }
+            mMainHandler.post(mNotifyRunnable);
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+        synchronized (this) {
+            clearLocked();
+        }
+        build();
+        final ArrayList<Entry> built;
+        synchronized (this) {
+            mStamp = stamp;
+            built = new ArrayList<Entry>(mEntries);
+        }
+        write(file, stamp, built);
+        Log.i(TAG, "Indexed " + built.size() + " settings in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private String getStamp() {
+        final StringBuilder stamp = new StringBuilder();
+        stamp.append(mContext.getResources().getConfiguration().locale);
+        try {
+            PackageInfo pi = mContext.getPackageManager().getPackageInfo(
+                    mContext.getPackageName(), 0);
+            stamp.append(':').append(pi.versionCode).append(':').append(pi.lastUpdateTime);
+        } catch (NameNotFoundException e) {
+            // Can't happen for our own package
+        }
+        // Hidden screens are left out, so their headers being shown is part of it
+        stamp.append(':');
+        for (int headerId : getHeaderIds()) {
+            stamp.append(Settings.isHeaderShown(mContext, headerId) ? '1' : '0');
+        }
+        return stamp.toString();
+    }
+
+    private int[] getHeaderIds() {
+        final ArrayList<Integer> ids = new ArrayList<Integer>();
+        final XmlResourceParser parser = mContext.getResources().getXml(R.xml.settings_headers);
+        try {
+            int type;
+            while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (type == XmlPullParser.START_TAG && "header".equals(parser.getName())) {
+                    ids.add(parser.getAttributeResourceValue(ANDROID_NS, "id", 0));
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to read the settings headers", e);
+        } finally {
+            parser.close();
+        }
+        for (SearchIndexableResources.Resource resource : SearchIndexableResources.RESOURCES) {
+            ids.add(resource.headerId);
+        }
+        final int[] result = new int[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids.get(i);
+        }
+        return result;
+    }
+
+    private void clearLocked() {
+        mEntries.clear();
+        mWords.clear();
+        mStamp = null;
+    }
+
+    private void addLocked(Entry entry) {
+        final int index = mEntries.size();
+        mEntries.add(entry);
+        addWordsLocked(entry.title, index, FIELD_TITLE);
+        addWordsLocked(entry.summary, index, FIELD_SUMMARY);
+        addWordsLocked(entry.keywords, index, FIELD_KEYWORDS);
+    }
+
+    private void addWordsLocked(String text, int index, int field) {
+        for (String word : tokenize(text)) {
+            Postings postings = mWords.get(word);
+            if (postings == null) {
+                postings = new Postings();
+                mWords.put(word, postings);
+            }
+            postings.add(index << 2 | field);
+        }
+    }
+
+    private void build() {
+        final Resources res = mContext.getResources();
+        final HashMap<String, String> headerTitles = new HashMap<String, String>();
+        final HashSet<String> seen = new HashSet<String>();
+
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        try {
+            indexHeaders(res, headerTitles, entries);
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to index the settings headers", e);
+        }
+        publish(entries, seen);
+
+        for (SearchIndexableResources.Resource resource : SearchIndexableResources.RESOURCES) {
+            if (!Settings.isHeaderShown(mContext, resource.headerId)) {
+                // Not reachable here, so not searchable either
+                continue;
+            }
+            entries = new ArrayList<Entry>();
+            try {
+                indexScreen(res, resource, headerTitles.get(resource.className), entries);
+            } catch (Exception e) {
+                // Index what can be read, leave out the rest of the screen
+                Log.w(TAG, "Unable to index " + resource.className, e);
+            }
+            publish(entries, seen);
+        }
+    }
+
+    private void publish(ArrayList<Entry> entries, HashSet<String> seen) {
+        synchronized (this) {
+            for (Entry entry : entries) {
+                // Screens listed in several places, or preferences found in
+                // more than one file of a screen, are kept once.
+                if (seen.add(entry.fragment + '/' + entry.key + '/' + entry.title)) {
+                    addLocked(entry);
+                }
+            }
+        }
+        mMainHandler.removeCallbacks(mNotifyRunnable);
+        mMainHandler.post(mNotifyRunnable);
+    }
+
+    private void indexHeaders(Resources res, HashMap<String, String> headerTitles,
+            ArrayList<Entry> out) throws XmlPullParserException, IOException {
+        final XmlResourceParser parser = res.getXml(R.xml.settings_headers);
+        try {
+            String section = null;
+            int type;
+            while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (type != XmlPullParser.START_TAG || !"header".equals(parser.getName())) {
+                    continue;
+                }
+                final String title = getText(res, parser, "title");
+                final String fragment = parser.getAttributeValue(ANDROID_NS, "fragment");
+                final int headerId = parser.getAttributeResourceValue(ANDROID_NS, "id", 0);
+                if (fragment == null) {
+                    // A section, or a header that only starts an activity
+                    if (parser.getAttributeValue(ANDROID_NS, "icon") == null) {
+                        section = title;
+                    }
+                    continue;
+                }
+                if (title == null || !Settings.isHeaderShown(mContext, headerId)) {
+                    continue;
+                }
+                headerTitles.put(fragment, title);
+                out.add(new Entry(title, getText(res, parser, "summary"), section, title,
+                        fragment, null, headerId));
+            }
+        } finally {
+            parser.close();
+        }
+    }
+
+    private void indexScreen(Resources res, SearchIndexableResources.Resource resource,
+            String headerTitle, ArrayList<Entry> out) throws XmlPullParserException, IOException {
+        final XmlResourceParser parser = res.getXml(resource.xmlResId);
+        try {
+            // Titles of the enclosing screens and categories, by depth
+            final ArrayList<String> breadcrumbs = new ArrayList<String>();
+            String screenTitle = headerTitle;
+            int type;
+            while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (type == XmlPullParser.END_TAG) {
+                    breadcrumbs.remove(breadcrumbs.size() - 1);
+                    continue;
+                }
+                if (type != XmlPullParser.START_TAG) {
+                    continue;
+                }
+                final String title = getText(res, parser, "title");
+                final boolean root = breadcrumbs.isEmpty();
+                if (root && screenTitle == null) {
+                    screenTitle = title;
+                }
+
+                final String name = parser.getName();
+                final String fragment = parser.getAttributeValue(ANDROID_NS, "fragment");
+                final boolean category = name.endsWith("PreferenceCategory");
+                final boolean screen = name.endsWith("PreferenceScreen");
+                if (!root && !category && title != null) {
+                    String summary = getText(res, parser, "summary");
+                    if (summary == null) {
+                        summary = getText(res, parser, "summaryOn");
+                    }
+                    final String keywords = joinBreadcrumbs(screenTitle, breadcrumbs);
+                    if (fragment != null) {
+                        // A link to another screen: open that one
+                        out.add(new Entry(title, summary, keywords, title, fragment, null,
+                                resource.headerId));
+                    } else {
+                        out.add(new Entry(title, summary, keywords, screenTitle,
+                                resource.className,
+                                parser.getAttributeValue(ANDROID_NS, "key"), resource.headerId));
+                    }
+                }
+                breadcrumbs.add(!root && (category || screen) ? title : null);
+            }
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static String joinBreadcrumbs(String screenTitle, ArrayList<String> breadcrumbs) {
+        final StringBuilder sb = new StringBuilder();
+        if (screenTitle != null) {
+            sb.append(screenTitle);
+        }
+        for (String crumb : breadcrumbs) {
+            if (crumb == null) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(BREADCRUMB_SEPARATOR);
+            }
+            sb.append(crumb);
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    private static String getText(Resources res, XmlResourceParser parser, String attr) {
+        final int resId = parser.getAttributeResourceValue(ANDROID_NS, attr, 0);
+        if (resId != 0) {
+            try {
+                return res.getString(resId);
+            } catch (Resources.NotFoundException e) {
+                return null;
+            }
+        }
+        return parser.getAttributeValue(ANDROID_NS, attr);
+    }
+
+    /**
+     * Reads the saved index, or returns null if there is none or it was
+     * saved for another locale or version.
+     * <p>
+     * The file holds the format version and stamp, the table of fragment
+     * class names, and then each entry with the index of its fragment and
+     * its strings, empty for those it doesn't have.
+     */
+    private static ArrayList<Entry> read(AtomicFile file, String stamp) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(file.openRead()));
+            if (in.readInt() != INDEX_VERSION || !stamp.equals(in.readUTF())) {
+                return null;
+            }
+            final String[] fragments = new String[in.readInt()];
+            for (int i = 0; i < fragments.length; i++) {
+                fragments[i] = in.readUTF();
+            }
+            final int count = in.readInt();
+            final ArrayList<Entry> entries = new ArrayList<Entry>(count);
+            for (int i = 0; i < count; i++) {
+                final String fragment = fragments[in.readShort()];
+                entries.add(new Entry(readString(in), readString(in), readString(in),
+                        readString(in), fragment, readString(in), in.readInt()));
+            }
+            return entries;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read the search index", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+    }
+
+    private static void write(AtomicFile file, String stamp, ArrayList<Entry> entries) {
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(INDEX_VERSION);
+            out.writeUTF(stamp);
+
+            final HashMap<String, Integer> fragments = new HashMap<String, Integer>();
+            final ArrayList<String> fragmentTable = new ArrayList<String>();
+            for (Entry entry : entries) {
+                if (!fragments.containsKey(entry.fragment)) {
+                    fragments.put(entry.fragment, fragmentTable.size());
+                    fragmentTable.add(entry.fragment);
+                }
+            }
+            out.writeInt(fragmentTable.size());
+            for (String fragment : fragmentTable) {
+                out.writeUTF(fragment);
+            }
+
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeShort(fragments.get(entry.fragment));
+                writeString(out, entry.title);
+                writeString(out, entry.summary);
+                writeString(out, entry.keywords);
+                writeString(out, entry.screenTitle);
+                writeString(out, entry.key);
+                out.writeInt(entry.headerId);
+            }
+            out.flush();
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write the search index", e);
+            if (fos != null) {
+                file.failWrite(fos);
+            }
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final String s = in.readUTF();
+        return s.length() > 0 ? s : null;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeUTF(s != null ? s : "");
+    }
+}
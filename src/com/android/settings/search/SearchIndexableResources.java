@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import com.android.settings.R;
+
+/**
+ * The preference screens covered by search, with the header they are
+ * reached from and the fragment that shows each of them.  A screen is only
+ * searchable while its header is shown.  Screens that only make sense with
+ * arguments, such as the editors for a single APN or profile, are left out,
+ * since search opens the fragment on its own.
+ */
+final class SearchIndexableResources {
+    static final class Resource {
+        final int xmlResId;
+        final int headerId;
+        final String className;
+
+        Resource(int xmlResId, int headerId, String className) {
+            this.xmlResId = xmlResId;
+            this.headerId = headerId;
+            this.className = className;
+        }
+    }
+
+    private static final String PKG = "com.android.settings.";
+
+    static final Resource[] RESOURCES = new Resource[] {
+        // Wireless & networks
+        new Resource(R.xml.wifi_settings, R.id.wifi_settings, PKG + "wifi.WifiSettings"),
+        new Resource(R.xml.wifi_advanced_settings, R.id.wifi_settings,
+                PKG + "wifi.AdvancedWifiSettings"),
+        new Resource(R.xml.bluetooth_settings, R.id.bluetooth_settings,
+                PKG + "bluetooth.BluetoothSettings"),
+        new Resource(R.xml.wireless_settings, R.id.wireless_settings, PKG + "WirelessSettings"),
+        new Resource(R.xml.tether_prefs, R.id.wireless_settings, PKG + "TetherSettings"),
+        new Resource(R.xml.vpn_settings2, R.id.wireless_settings, PKG + "vpn2.VpnSettings"),
+        new Resource(R.xml.wifi_display_settings, R.id.wireless_settings,
+                PKG + "wfd.WifiDisplaySettings"),
+
+        // Interface
+        new Resource(R.xml.lockscreen_interface_settings, R.id.lock_screen_settings,
+                PKG + "cyanogenmod.LockscreenInterface"),
+        new Resource(R.xml.lockscreen_buttons_settings, R.id.lock_screen_settings,
+                PKG + "cyanogenmod.LockscreenButtons"),
+        new Resource(R.xml.system_ui_settings, R.id.system_settings,
+                PKG + "cyanogenmod.SystemUiSettings"),
+        new Resource(R.xml.status_bar, R.id.system_settings, PKG + "cyanogenmod.StatusBar"),
+        new Resource(R.xml.status_bar_style, R.id.system_settings,
+                PKG + "cyanogenmod.StatusBarStyle"),
+        new Resource(R.xml.status_bar_clock_style, R.id.system_settings,
+                PKG + "cyanogenmod.StatusBarClockStyle"),
+        new Resource(R.xml.quick_settings_panel, R.id.system_settings,
+                PKG + "cyanogenmod.QuickSettings"),
+        new Resource(R.xml.notification_drawer, R.id.system_settings,
+                PKG + "cyanogenmod.NotificationDrawer"),
+        new Resource(R.xml.notification_bg_pref, R.id.system_settings,
+                PKG + "cyanogenmod.NotificationDrawerStyle"),
+        new Resource(R.xml.nav_bar_style, R.id.system_settings, PKG + "cyanogenmod.NavBarStyle"),
+        new Resource(R.xml.pie_control, R.id.system_settings, PKG + "cyanogenmod.PieControl"),
+        new Resource(R.xml.power_menu_settings, R.id.button_settings,
+                PKG + "cyanogenmod.PowerMenu"),
+        new Resource(R.xml.ram_bar, R.id.system_settings, PKG + "cyanogenmod.RamBar"),
+        new Resource(R.xml.halo_settings, R.id.system_settings, PKG + "cyanogenmod.HaloSettings"),
+        new Resource(R.xml.app_sidebar_settings, R.id.system_settings,
+                PKG + "cyanogenmod.AppSidebar"),
+        new Resource(R.xml.active_display_settings, R.id.system_settings,
+                PKG + "cyanogenmod.ActiveDisplaySettings"),
+        new Resource(R.xml.quiet_hours_settings, R.id.sound_settings,
+                PKG + "cyanogenmod.QuietHours"),
+        new Resource(R.xml.profiles_settings, R.id.profiles_settings,
+                PKG + "profiles.ProfilesList"),
+
+        // Device
+        new Resource(R.xml.sound_settings, R.id.sound_settings, PKG + "SoundSettings"),
+        new Resource(R.xml.display_settings, R.id.display_settings, PKG + "DisplaySettings"),
+        new Resource(R.xml.display_rotation, R.id.display_settings,
+                PKG + "cyanogenmod.DisplayRotation"),
+        new Resource(R.xml.wallpaper_settings, R.id.display_settings,
+                PKG + "WallpaperTypeSettings"),
+        new Resource(R.xml.notification_light_settings, R.id.display_settings,
+                PKG + "notificationlight.NotificationLightSettings"),
+        new Resource(R.xml.battery_light_settings, R.id.display_settings,
+                PKG + "notificationlight.BatteryLightSettings"),
+        new Resource(R.xml.button_settings, R.id.button_settings,
+                PKG + "cyanogenmod.ButtonSettings"),
+        new Resource(R.xml.more_device_settings, R.id.more_device_settings,
+                PKG + "cyanogenmod.MoreDeviceSettings"),
+        new Resource(R.xml.device_info_memory, R.id.storage_settings, PKG + "deviceinfo.Memory"),
+        new Resource(R.xml.usb_settings, R.id.storage_settings, PKG + "deviceinfo.UsbSettings"),
+        new Resource(R.xml.power_usage_summary, R.id.battery_settings,
+                PKG + "fuelgauge.PowerUsageSummary"),
+        new Resource(R.xml.application_settings, R.id.application_settings,
+                PKG + "ApplicationSettings"),
+        new Resource(R.xml.performance_settings, R.id.performance_settings,
+                PKG + "cyanogenmod.PerformanceSettings"),
+        new Resource(R.xml.processor_settings, R.id.performance_settings,
+                PKG + "cyanogenmod.Processor"),
+        new Resource(R.xml.ioscheduler_settings, R.id.performance_settings,
+                PKG + "cyanogenmod.IOScheduler"),
+        new Resource(R.xml.memory_management, R.id.performance_settings,
+                PKG + "cyanogenmod.MemoryManagement"),
+        new Resource(R.xml.perf_profile_settings, R.id.performance_settings,
+                PKG + "cyanogenmod.PerformanceProfile"),
+        new Resource(R.xml.user_settings, R.id.user_settings, PKG + "users.UserSettings"),
+
+        // Personal
+        new Resource(R.xml.location_settings, R.id.location_settings, PKG + "LocationSettings"),
+        new Resource(R.xml.security_settings_misc, R.id.security_settings,
+                PKG + "SecuritySettings"),
+        new Resource(R.xml.security_settings_cyanogenmod, R.id.security_settings,
+                PKG + "SecuritySettings"),
+        new Resource(R.xml.privacy_guard_prefs, R.id.security_settings,
+                PKG + "cyanogenmod.privacyguard.PrivacyGuardPrefs"),
+        new Resource(R.xml.blacklist_prefs, R.id.security_settings,
+                PKG + "blacklist.PreferenceFragment"),
+        new Resource(R.xml.language_settings, R.id.language_settings,
+                PKG + "inputmethod.InputMethodAndLanguageSettings"),
+        new Resource(R.xml.keyboard_input_settings, R.id.language_settings,
+                PKG + "cyanogenmod.KeyboardInputSettings"),
+        new Resource(R.xml.spellchecker_prefs, R.id.language_settings,
+                PKG + "inputmethod.SpellCheckersSettings"),
+        new Resource(R.xml.tts_settings, R.id.language_settings, PKG + "tts.TextToSpeechSettings"),
+        new Resource(R.xml.privacy_settings, R.id.privacy_settings, PKG + "PrivacySettings"),
+        new Resource(R.xml.manage_accounts_settings, R.id.account_settings,
+                PKG + "accounts.ManageAccountsSettings"),
+
+        // System
+        new Resource(R.xml.date_time_prefs, R.id.date_time_settings, PKG + "DateTimeSettings"),
+        new Resource(R.xml.accessibility_settings, R.id.accessibility_settings,
+                PKG + "AccessibilitySettings"),
+        new Resource(R.xml.development_prefs, R.id.development_settings,
+                PKG + "DevelopmentSettings"),
+        new Resource(R.xml.device_info_settings, R.id.about_settings, PKG + "DeviceInfoSettings"),
+        new Resource(R.xml.device_info_status, R.id.about_settings, PKG + "deviceinfo.Status"),
+        new Resource(R.xml.anonymous_stats, R.id.about_settings, PKG + "cmstats.AnonymousStats"),
+    };
+
+    private SearchIndexableResources() {
+    }
+}
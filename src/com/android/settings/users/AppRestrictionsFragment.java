@@ -46,6 +46,7 @@ import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.UserHandle;
@@ -115,6 +116,9 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
 
     private static final int MAX_APP_RESTRICTIONS = 100;
 
+    // Preferences added per pass of the UI thread while populating the list
+    private static final int POPULATE_BATCH_SIZE = 16;
+
     private static final String DELIMITER = ";";
 
     /** Key for extra passed in from calling fragment for the userId of the user being edited */
@@ -138,7 +142,15 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
     private TextView mUserNameView;
 
     private List<SelectableAppInfo> mVisibleApps;
-    private List<ApplicationInfo> mUserApps;
+    // Packages installed for the user being edited
+    private Set<String> mUserPackages;
+    // Packages that supply restrictions of their own
+    private Set<String> mRestrictionPackages;
+
+    private final Handler mHandler = new Handler();
+    private int mPopulateGeneration;
+    // Whether mSelectedPackages holds every visible app, so it can be applied
+    private boolean mPopulated;
 
     private Dialog mEditUserInfoDialog;
 
@@ -151,9 +163,9 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
             // Update the user's app selection right away without waiting for a pause
             // onPause() might come in too late, causing apps to disappear after broadcasts
             // have been scheduled during user startup.
-            if (mAppListChanged) {
+            if (mAppListChanged && mPopulated) {
                 if (DEBUG) Log.d(TAG, "User backgrounding, update app list");
-                updateUserAppList();
+                updateUserAppList(new HashMap<String,Boolean>(mSelectedPackages));
                 if (DEBUG) Log.d(TAG, "User backgrounding, done updating app list");
             }
         }
@@ -165,6 +177,7 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
         CharSequence activityName;
         Drawable icon;
         SelectableAppInfo masterEntry;
+        PackageInfo packageInfo;
 
         @Override
         public String toString() {
@@ -333,12 +346,18 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
 
     public void onPause() {
         super.onPause();
-        mNewUser = false;
+        // Stop adding apps; a partial selection is not applied, and a new
+        // user keeps its defaults for the next time the list is populated.
+        mPopulateGeneration++;
         getActivity().unregisterReceiver(mUserBackgrounding);
+        if (!mPopulated) return;
+        mNewUser = false;
         if (mAppListChanged) {
+            final HashMap<String,Boolean> selection =
+                    new HashMap<String,Boolean>(mSelectedPackages);
             new Thread() {
                 public void run() {
-                    updateUserAppList();
+                    updateUserAppList(selection);
                 }
             }.start();
         }
@@ -351,7 +370,7 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
         return circularIcon;
     }
 
-    private void updateUserAppList() {
+    private void updateUserAppList(Map<String,Boolean> selection) {
         IPackageManager ipm = IPackageManager.Stub.asInterface(
                 ServiceManager.getService("package"));
         final int userId = mUser.getIdentifier();
@@ -359,7 +378,7 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
             Log.e(TAG, "Cannot apply application restrictions on a regular user!");
             return;
         }
-        for (Map.Entry<String,Boolean> entry : mSelectedPackages.entrySet()) {
+        for (Map.Entry<String,Boolean> entry : selection.entrySet()) {
             String packageName = entry.getKey();
             if (entry.getValue()) {
                 // Enable selected apps
@@ -502,8 +521,14 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
         Intent widgetIntent = new Intent(AppWidgetManager.ACTION_APPWIDGET_UPDATE);
         addSystemApps(mVisibleApps, widgetIntent, excludePackages);
 
-        List<ApplicationInfo> installedApps = pm.getInstalledApplications(0);
-        for (ApplicationInfo app : installedApps) {
+        // One bulk query for the owner's packages, looked up by name from here on
+        final HashMap<String, PackageInfo> packages = new HashMap<String, PackageInfo>();
+        for (PackageInfo pi : pm.getInstalledPackages(0)) {
+            packages.put(pi.packageName, pi);
+        }
+        for (PackageInfo pi : packages.values()) {
+            final ApplicationInfo app = pi.applicationInfo;
+            if (app == null) continue;
             if ((app.flags & ApplicationInfo.FLAG_SYSTEM) == 0
                     && (app.flags & ApplicationInfo.FLAG_UPDATED_SYSTEM_APP) == 0) {
                 // Downloaded app
@@ -514,28 +539,26 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
                 info.icon = app.loadIcon(pm);
                 mVisibleApps.add(info);
             } else {
-                try {
-                    PackageInfo pi = pm.getPackageInfo(app.packageName, 0);
-                    // If it's a system app that requires an account and doesn't see restricted
-                    // accounts, mark for removal. It might get shown in the UI if it has an icon
-                    // but will still be marked as false and immutable.
-                    if (pi.requiredAccountType != null && pi.restrictedAccountType == null) {
-                        mSelectedPackages.put(app.packageName, false);
-                    }
-                } catch (NameNotFoundException re) {
+                // If it's a system app that requires an account and doesn't see restricted
+                // accounts, mark for removal. It might get shown in the UI if it has an icon
+                // but will still be marked as false and immutable.
+                if (pi.requiredAccountType != null && pi.restrictedAccountType == null) {
+                    mSelectedPackages.put(app.packageName, false);
                 }
             }
         }
 
-        mUserApps = null;
+        List<ApplicationInfo> userApps = null;
         try {
-            mUserApps = ipm.getInstalledApplications(
+            userApps = ipm.getInstalledApplications(
                     0, mUser.getIdentifier()).getList();
         } catch (RemoteException re) {
         }
 
-        if (mUserApps != null) {
-            for (ApplicationInfo app : mUserApps) {
+        final HashSet<String> userPackages = new HashSet<String>();
+        if (userApps != null) {
+            for (ApplicationInfo app : userApps) {
+                userPackages.add(app.packageName);
                 if ((app.flags & ApplicationInfo.FLAG_SYSTEM) == 0
                         && (app.flags & ApplicationInfo.FLAG_UPDATED_SYSTEM_APP) == 0) {
                     // Downloaded app
@@ -548,6 +571,15 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
                 }
             }
         }
+        mUserPackages = userPackages;
+
+        final HashSet<String> restrictionPackages = new HashSet<String>();
+        Intent restrictionsIntent = new Intent(Intent.ACTION_GET_RESTRICTION_ENTRIES);
+        for (ResolveInfo info : pm.queryBroadcastReceivers(restrictionsIntent, 0)) {
+            restrictionPackages.add(info.activityInfo.packageName);
+        }
+        mRestrictionPackages = restrictionPackages;
+
         Collections.sort(mVisibleApps, new AppLabelComparator());
 
         // Remove dupes
@@ -574,88 +606,120 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
                 packageMap.put(info.packageName, info);
             }
         }
+
+        // Packages only the edited user has are looked up once here rather than
+        // on the UI thread for each preference.
+        for (SelectableAppInfo info : mVisibleApps) {
+            if (info.packageName == null) continue;
+            PackageInfo pi = packages.get(info.packageName);
+            if (pi == null && !packages.containsKey(info.packageName)) {
+                try {
+                    pi = ipm.getPackageInfo(info.packageName, 0, mUser.getIdentifier());
+                } catch (RemoteException e) {
+                }
+                packages.put(info.packageName, pi);
+            }
+            info.packageInfo = pi;
+        }
     }
 
+    /**
+     * Adds a preference for each visible app, a batch at a time, so that the
+     * list shows up and scrolls while the rest of the apps are still added.
+     */
     private void populateApps() {
         final Context context = getActivity();
         if (context == null) return;
-        final PackageManager pm = mPackageManager;
-        IPackageManager ipm = AppGlobals.getPackageManager();
         mAppList.removeAll();
-        Intent restrictionsIntent = new Intent(Intent.ACTION_GET_RESTRICTION_ENTRIES);
-        final List<ResolveInfo> receivers = pm.queryBroadcastReceivers(restrictionsIntent, 0);
-        int i = 0;
-        if (mVisibleApps.size() > 0) {
-            for (SelectableAppInfo app : mVisibleApps) {
-                String packageName = app.packageName;
-                if (packageName == null) continue;
-                final boolean isSettingsApp = packageName.equals(context.getPackageName());
-                AppRestrictionsPreference p = new AppRestrictionsPreference(context, this);
-                final boolean hasSettings = resolveInfoListHasPackage(receivers, packageName);
-                p.setIcon(app.icon != null ? app.icon.mutate() : null);
-                p.setChecked(false);
-                p.setTitle(app.activityName);
-                if (app.masterEntry != null) {
-                    p.setSummary(context.getString(R.string.user_restrictions_controlled_by,
-                            app.masterEntry.activityName));
-                }
-                p.setKey(PKG_PREFIX + packageName);
-                p.setSettingsEnabled(hasSettings || isSettingsApp);
-                p.setPersistent(false);
-                p.setOnPreferenceChangeListener(this);
-                p.setOnPreferenceClickListener(this);
-                PackageInfo pi = null;
-                try {
-                    pi = pm.getPackageInfo(packageName, 0);
-                } catch (NameNotFoundException re) {
-                    try {
-                        pi = ipm.getPackageInfo(packageName, 0, mUser.getIdentifier());
-                    } catch (RemoteException e) {
-                    }
-                }
-                if (pi != null && pi.requiredForAllUsers) {
-                    p.setChecked(true);
-                    p.setImmutable(true);
-                    // If the app is required and has no restrictions, skip showing it
-                    if (!hasSettings && !isSettingsApp) continue;
-                    // Get and populate the defaults, since the user is not going to be
-                    // able to toggle this app ON (it's ON by default and immutable).
-                    if (hasSettings) {
-                        requestRestrictionsForApp(packageName, p);
+        final int generation = ++mPopulateGeneration;
+        final List<SelectableAppInfo> visibleApps = mVisibleApps;
+        final boolean newUser = mNewUser;
+        mPopulated = false;
+        mHandler.post(new Runnable() {
+            private int mNext;
+            private int mAdded;
+
+            @Override
+            public void run() {
+                // Superseded by a newer load, or no longer attached
+                if (generation != mPopulateGeneration || getActivity() == null) return;
+                final int end = Math.min(mNext + POPULATE_BATCH_SIZE, visibleApps.size());
+                for (; mNext < end; mNext++) {
+                    if (addAppPreference(context, visibleApps.get(mNext), mAdded, newUser)) {
+                        mAdded++;
                     }
-                } else if (!mNewUser && appInfoListHasPackage(mUserApps, packageName)) {
-                    p.setChecked(true);
-                }
-                if (pi.requiredAccountType != null && pi.restrictedAccountType == null) {
-                    p.setChecked(false);
-                    p.setImmutable(true);
-                    p.setSummary(R.string.app_not_supported_in_limited);
                 }
-                if (pi.restrictedAccountType != null) {
-                    p.setSummary(R.string.app_sees_restricted_accounts);
+                if (mNext < visibleApps.size()) {
+                    mHandler.post(this);
+                    return;
                 }
-                if (app.masterEntry != null) {
-                    p.setImmutable(true);
-                    p.setChecked(mSelectedPackages.get(packageName));
+                mPopulated = true;
+                // If this is the first time for a new profile, install/uninstall default apps
+                // for profile to avoid taking the hit in onPause(), which can cause race
+                // conditions on user switch.
+                if (newUser && mFirstTime) {
+                    mFirstTime = false;
+                    updateUserAppList(mSelectedPackages);
                 }
-                mAppList.addPreference(p);
-                if (isSettingsApp) {
-                    p.setOrder(MAX_APP_RESTRICTIONS * 1);
-                } else {
-                    p.setOrder(MAX_APP_RESTRICTIONS * (i + 2));
-                }
-                p.setSelectableAppInfo(app);
-                mSelectedPackages.put(packageName, p.isChecked());
-                mAppListChanged = true;
-                i++;
             }
+        });
+    }
+
+    private boolean addAppPreference(Context context, SelectableAppInfo app, int i,
+            boolean newUser) {
+        String packageName = app.packageName;
+        if (packageName == null) return false;
+        final boolean isSettingsApp = packageName.equals(context.getPackageName());
+        AppRestrictionsPreference p = new AppRestrictionsPreference(context, this);
+        final boolean hasSettings = mRestrictionPackages.contains(packageName);
+        p.setIcon(app.icon != null ? app.icon.mutate() : null);
+        p.setChecked(false);
+        p.setTitle(app.activityName);
+        if (app.masterEntry != null) {
+            p.setSummary(context.getString(R.string.user_restrictions_controlled_by,
+                    app.masterEntry.activityName));
+        }
+        p.setKey(PKG_PREFIX + packageName);
+        p.setSettingsEnabled(hasSettings || isSettingsApp);
+        p.setPersistent(false);
+        p.setOnPreferenceChangeListener(this);
+        p.setOnPreferenceClickListener(this);
+        final PackageInfo pi = app.packageInfo;
+        if (pi != null && pi.requiredForAllUsers) {
+            p.setChecked(true);
+            p.setImmutable(true);
+            // If the app is required and has no restrictions, skip showing it
+            if (!hasSettings && !isSettingsApp) return false;
+            // Get and populate the defaults, since the user is not going to be
+            // able to toggle this app ON (it's ON by default and immutable).
+            if (hasSettings) {
+                requestRestrictionsForApp(packageName, p);
+            }
+        } else if (!newUser && mUserPackages.contains(packageName)) {
+            p.setChecked(true);
+        }
+        if (pi != null && pi.requiredAccountType != null && pi.restrictedAccountType == null) {
+            p.setChecked(false);
+            p.setImmutable(true);
+            p.setSummary(R.string.app_not_supported_in_limited);
+        }
+        if (pi != null && pi.restrictedAccountType != null) {
+            p.setSummary(R.string.app_sees_restricted_accounts);
+        }
+        if (app.masterEntry != null) {
+            p.setImmutable(true);
+            p.setChecked(mSelectedPackages.get(packageName));
         }
-        // If this is the first time for a new profile, install/uninstall default apps for profile
-        // to avoid taking the hit in onPause(), which can cause race conditions on user switch.
-        if (mNewUser && mFirstTime) {
-            mFirstTime = false;
-            updateUserAppList();
+        mAppList.addPreference(p);
+        if (isSettingsApp) {
+            p.setOrder(MAX_APP_RESTRICTIONS * 1);
+        } else {
+            p.setOrder(MAX_APP_RESTRICTIONS * (i + 2));
         }
+        p.setSelectableAppInfo(app);
+        mSelectedPackages.put(packageName, p.isChecked());
+        mAppListChanged = true;
+        return true;
     }
 
     private class AppLabelComparator implements Comparator<SelectableAppInfo> {
@@ -668,24 +732,6 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
         }
     }
 
-    private boolean resolveInfoListHasPackage(List<ResolveInfo> receivers, String packageName) {
-        for (ResolveInfo info : receivers) {
-            if (info.activityInfo.packageName.equals(packageName)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private boolean appInfoListHasPackage(List<ApplicationInfo> apps, String packageName) {
-        for (ApplicationInfo info : apps) {
-            if (info.packageName.equals(packageName)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     private void updateAllEntries(String prefKey, boolean checked) {
         for (int i = 0; i < mAppList.getPreferenceCount(); i++) {
             Preference pref = mAppList.getPreference(i);
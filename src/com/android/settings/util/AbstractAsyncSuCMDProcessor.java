@@ -44,6 +44,37 @@ public abstract class AbstractAsyncSuCMDProcessor extends AsyncTask<String, Void
          this.mMountSystem = false;
     }
 
+    /**
+     * Runs the given commands back to back in the shared su session.
+     *
+     * @return the stdout of the last command, or FAILURE if no command
+     *     was given
+     */
+    @Override
+    protected String doInBackground(String... params) {
+        if (params == null || params.length == 0) {
+            return FAILURE;
+        }
+        for (String param : params) {
+            if (param == null || param.trim().isEmpty()) {
+                return FAILURE;
+            }
+        }
+
+        if (mMountSystem) {
+            CMDProcessor.getMount("rw");
+        }
+        try {
+            final CMDProcessor.CommandResult[] results =
+                    new CMDProcessor().su.runWaitFor(params);
+            return results[results.length - 1].stdout;
+        } finally {
+            if (mMountSystem) {
+                CMDProcessor.getMount("ro");
+            }
+        }
+    }
+
     /**
      * <p>Runs on the UI thread after {@link #doInBackground}. The
      * specified result is the value returned by {@link #doInBackground}.</p>
@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.util;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.ResolveInfo;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.util.LruCache;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Process-wide catalog of the installed applications, for the pickers that
+ * list them.  The catalog is loaded on a background thread the first time
+ * it is asked for, and from then on kept current by the package broadcasts,
+ * reloading only the packages they name, so a picker opened later gets its
+ * list without going back to the package manager.
+ * <p>
+ * Every app is kept with its label and the labels of its launcher
+ * activities.  Icons are loaded on demand, on the background thread, and
+ * kept in a cache bounded by their bitmap size.  The cache holds their
+ * constant states, and every caller gets a drawable of its own.
+ */
+public class AppCatalog {
+    private static final String TAG = "AppCatalog";
+
+    // Bytes of icon bitmaps kept in memory
+    private static final int ICON_CACHE_SIZE = 4 * 1024 * 1024;
+    // Charged for icons that aren't bitmaps
+    private static final int ICON_DEFAULT_SIZE = 16 * 1024;
+
+    private static final int MSG_LOAD = 1;
+    private static final int MSG_PACKAGES_CHANGED = 2;
+    private static final int MSG_LOCALE_CHANGED = 3;
+    private static final int MSG_LOAD_ICON = 4;
+
+    /**
+     * An installed application.
+     */
+    public static class App {
+        public final ApplicationInfo info;
+        public final CharSequence label;
+        /** Labels of the app's launcher activities, empty if it has none. */
+        public final List<CharSequence> activityLabels;
+
+        App(ApplicationInfo info, CharSequence label, List<CharSequence> activityLabels) {
+            this.info = info;
+            this.label = label;
+            this.activityLabels = activityLabels;
+        }
+
+        public String getPackageName() {
+            return info.packageName;
+        }
+
+        public boolean isLaunchable() {
+            return !activityLabels.isEmpty();
+        }
+    }
+
+    public interface Callback {
+        /**
+         * Called on the main thread with every installed app, sorted by
+         * label.  The list must not be modified.
+         */
+        void onAppsLoaded(List<App> apps);
+    }
+
+    public interface IconCallback {
+        /**
+         * Called on the main thread once the icon of the app is cached,
+         * so that {@link #getIcon} now returns it.
+         */
+        void onIconLoaded(App app);
+    }
+
+    private static class CachedIcon {
+        final Drawable.ConstantState state;
+        final int size;
+
+        CachedIcon(Drawable.ConstantState state, int size) {
+            this.state = state;
+            this.size = size;
+        }
+    }
+
+    private static AppCatalog sInstance;
+
+    private final PackageManager mPm;
+    private final Handler mMainHandler;
+    private final BackgroundHandler mBackgroundHandler;
+
+    // Only touched by the background thread
+    private final HashMap<String, App> mApps = new HashMap<String, App>();
+    private boolean mLoaded;
+
+    // Guarded by this
+    private List<App> mSnapshot;
+    private final ArrayList<Callback> mPendingCallbacks = new ArrayList<Callback>();
+    private final HashMap<String, ArrayList<IconCallback>> mIconCallbacks =
+            new HashMap<String, ArrayList<IconCallback>>();
+
+    // Only written by the background thread
+    private final LruCache<String, CachedIcon> mIcons =
+            new LruCache<String, CachedIcon>(ICON_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(String packageName, CachedIcon icon) {
+            return icon.size;
+        }
+    };
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            String[] packages = null;
+            if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
+                mBackgroundHandler.sendEmptyMessage(MSG_LOCALE_CHANGED);
+                return;
+            } else if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                    || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                packages = intent.getStringArrayExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST);
+            } else if (intent.getData() != null) {
+                packages = new String[] { intent.getData().getSchemeSpecificPart() };
+            }
+            if (packages != null && packages.length > 0) {
+                mBackgroundHandler.obtainMessage(MSG_PACKAGES_CHANGED, packages).sendToTarget();
+            }
+        }
+    };
+
+    public static synchronized AppCatalog get(Context context) {
+        if (sInstance == null) {
+            sInstance = new AppCatalog(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private AppCatalog(Context context) {
+        mPm = context.getPackageManager();
+        mMainHandler = new Handler(Looper.getMainLooper());
+
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mBackgroundHandler = new BackgroundHandler(thread.getLooper());
+
+        IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiver(mPackageReceiver, filter);
+
+        filter = new IntentFilter(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        context.registerReceiver(mPackageReceiver, filter);
+    }
+
+    /**
+     * Hands the installed apps to the callback, on the main thread.  When
+     * the catalog is current and this is called on the main thread, the
+     * callback is run before this returns.
+     */
+    public void getApps(Callback callback) {
+        List<App> apps;
+        synchronized (this) {
+            apps = mSnapshot;
+            if (apps == null) {
+                mPendingCallbacks.add(callback);
+                if (mPendingCallbacks.size() == 1) {
+                    mBackgroundHandler.sendEmptyMessage(MSG_LOAD);
+                }
+                return;
+            }
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            callback.onAppsLoaded(apps);
+        } else {
+            deliver(callback, apps);
+        }
+    }
+
+    /**
+     * Drops a callback that hasn't been called yet, such as when its picker
+     * goes away before the catalog is loaded.
+     */
+    public synchronized void cancel(Callback callback) {
+        mPendingCallbacks.remove(callback);
+    }
+
+    /**
+     * Returns the app's icon if it is cached.  Otherwise the icon is loaded
+     * in the background, the callback is told once it is there, and the
+     * default icon is returned in the meantime.
+     */
+    public Drawable getIcon(App app, IconCallback callback) {
+        final CachedIcon icon = mIcons.get(app.info.packageName);
+        if (icon != null) {
+            return icon.state.newDrawable();
+        }
+        synchronized (this) {
+            ArrayList<IconCallback> callbacks = mIconCallbacks.get(app.info.packageName);
+            if (callbacks == null) {
+                callbacks = new ArrayList<IconCallback>();
+                mIconCallbacks.put(app.info.packageName, callbacks);
+                mBackgroundHandler.obtainMessage(MSG_LOAD_ICON, app).sendToTarget();
+            }
+            if (!callbacks.contains(callback)) {
+                callbacks.add(callback);
+            }
+        }
+        return mPm.getDefaultActivityIcon();
+    }
+
+    /**
+     * Drops an icon callback, such as when its picker goes away while icons
+     * are still loading.
+     */
+    public synchronized void cancelIcons(IconCallback callback) {
+        for (ArrayList<IconCallback> callbacks : mIconCallbacks.values()) {
+            callbacks.remove(callback);
+        }
+    }
+
+    private void deliverIcon(final App app) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<IconCallback> callbacks;
+                synchronized (AppCatalog.this) {
+                    callbacks = mIconCallbacks.remove(app.info.packageName);
+                }
+                if (callbacks != null) {
+                    for (IconCallback callback : callbacks) {
+                        callback.onIconLoaded(app);
+                    }
+                }
+            }
+        });
+    }
+
+    private void deliver(final Callback callback, final List<App> apps) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onAppsLoaded(apps);
+            }
+        });
+    }
+
+    private final class BackgroundHandler extends Handler {
+        private final Intent mLauncherIntent;
+        private final Collator mCollator = Collator.getInstance();
+        private final Comparator<App> mComparator = new Comparator<App>() {
+            @Override
+            public int compare(App lhs, App rhs) {
+                int result = mCollator.compare(lhs.label.toString(), rhs.label.toString());
+                return result != 0 ? result : lhs.info.packageName.compareTo(
+                        rhs.info.packageName);
+            }
+        };
+
+        BackgroundHandler(Looper looper) {
+            super(looper);
+            mLauncherIntent = new Intent(Intent.ACTION_MAIN, null);
+            mLauncherIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_LOAD:
+                    if (!mLoaded) {
+                        loadAll();
+                    }
+                    break;
+                case MSG_PACKAGES_CHANGED:
+                    if (!mLoaded) {
+                        // Nothing cached yet, the next load sees the change
+                        return;
+                    }
+                    for (String packageName : (String[]) msg.obj) {
+                        mIcons.remove(packageName);
+                        loadPackage(packageName);
+                    }
+                    break;
+                case MSG_LOAD_ICON:
+                    loadIcon((App) msg.obj);
+                    deliverIcon((App) msg.obj);
+                    return;
+                case MSG_LOCALE_CHANGED:
+                    // Every label is stale; reload lazily when next asked
+                    mLoaded = false;
+                    mApps.clear();
+                    break;
+            }
+
+            final List<App> apps;
+            final ArrayList<Callback> callbacks;
+            synchronized (AppCatalog.this) {
+                mSnapshot = null;
+                // Without waiting callbacks the snapshot is rebuilt when next
+                // asked for.  Callbacks waiting across a locale change are
+                // served by the load they already queued.
+                if (!mLoaded || mPendingCallbacks.isEmpty()) {
+                    return;
+                }
+                apps = buildSnapshot();
+                mSnapshot = apps;
+                callbacks = new ArrayList<Callback>(mPendingCallbacks);
+                mPendingCallbacks.clear();
+            }
+            for (Callback callback : callbacks) {
+                deliver(callback, apps);
+            }
+        }
+
+        private List<App> buildSnapshot() {
+            ArrayList<App> apps = new ArrayList<App>(mApps.values());
+            Collections.sort(apps, mComparator);
+            return Collections.unmodifiableList(apps);
+        }
+
+        private void loadIcon(App app) {
+            if (mIcons.get(app.info.packageName) != null) {
+                return;
+            }
+            Drawable icon = app.info.loadIcon(mPm);
+            if (icon.getConstantState() == null) {
+                // Can't be shared, so show the default icon instead
+                icon = mPm.getDefaultActivityIcon();
+            }
+            final Drawable.ConstantState state = icon.getConstantState();
+            final int size = icon instanceof BitmapDrawable
+                    ? ((BitmapDrawable) icon).getBitmap().getByteCount() : ICON_DEFAULT_SIZE;
+            mIcons.put(app.info.packageName, new CachedIcon(state, size));
+        }
+
+        private void loadAll() {
+            final HashMap<String, ArrayList<CharSequence>> activityLabels =
+                    new HashMap<String, ArrayList<CharSequence>>();
+            for (ResolveInfo ri : mPm.queryIntentActivities(mLauncherIntent, 0)) {
+                addActivityLabel(activityLabels, ri);
+            }
+
+            mApps.clear();
+            for (ApplicationInfo info : mPm.getInstalledApplications(0)) {
+                mApps.put(info.packageName, createApp(info,
+                        activityLabels.get(info.packageName)));
+            }
+            mLoaded = true;
+        }
+
+        private void loadPackage(String packageName) {
+            final ApplicationInfo info;
+            try {
+                info = mPm.getApplicationInfo(packageName, 0);
+            } catch (NameNotFoundException e) {
+                mApps.remove(packageName);
+                return;
+            }
+
+            final HashMap<String, ArrayList<CharSequence>> activityLabels =
+                    new HashMap<String, ArrayList<CharSequence>>();
+            final Intent intent = new Intent(mLauncherIntent);
+            intent.setPackage(packageName);
+            for (ResolveInfo ri : mPm.queryIntentActivities(intent, 0)) {
+                addActivityLabel(activityLabels, ri);
+            }
+            mApps.put(packageName, createApp(info, activityLabels.get(packageName)));
+        }
+
+        private void addActivityLabel(HashMap<String, ArrayList<CharSequence>> activityLabels,
+                ResolveInfo ri) {
+            final String packageName = ri.activityInfo.packageName;
+            ArrayList<CharSequence> labels = activityLabels.get(packageName);
+            if (labels == null) {
+                labels = new ArrayList<CharSequence>();
+                activityLabels.put(packageName, labels);
+            }
+            labels.add(ri.loadLabel(mPm));
+        }
+
+        private App createApp(ApplicationInfo info, ArrayList<CharSequence> activityLabels) {
+            final List<CharSequence> labels = activityLabels != null
+                    ? Collections.unmodifiableList(activityLabels)
+                    : Collections.<CharSequence>emptyList();
+            return new App(info, info.loadLabel(mPm), labels);
+        }
+    }
+}
@@ -18,7 +18,6 @@ package com.android.settings.util;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
@@ -31,7 +30,8 @@ import android.util.Log;
 public class CMDProcessor {
 
     private static final String TAG = "CMD Processor";
-    private Boolean can_su;
+    // Shared by all instances, as they all talk to the same su session.
+    private static Boolean can_su;
     public SH sh;
     public SH su;
 
@@ -76,28 +76,6 @@ public class CMDProcessor {
             SHELL = SHELL_in;
         }
 
-        private String getStreamLines(final InputStream is) {
-            String out = null;
-            StringBuffer buffer = null;
-            final DataInputStream dis = new DataInputStream(is);
-
-            try {
-                if (dis.available() > 0) {
-                    buffer = new StringBuffer(dis.readLine());
-                    while (dis.available() > 0) {
-                        buffer.append("\n").append(dis.readLine());
-                    }
-                }
-                dis.close();
-            } catch (final Exception ex) {
-                Log.e(TAG, ex.getMessage());
-            }
-            if (buffer != null) {
-                out = buffer.toString();
-            }
-            return out;
-        }
-
         public Process run(final String s) {
             Process process = null;
             try {
@@ -114,25 +92,29 @@ public class CMDProcessor {
             return process;
         }
 
+        /**
+         * Runs the command in this shell's persistent session, so that
+         * the shell (and for su, the root grant) is only set up once.
+         */
         public CommandResult runWaitFor(final String s) {
-            final Process process = run(s);
-            Integer exit_value = null;
-            String stdout = null;
-            String stderr = null;
-            if (process != null) {
-                try {
-                    exit_value = process.waitFor();
-
-                    stdout = getStreamLines(process.getInputStream());
-                    stderr = getStreamLines(process.getErrorStream());
-
-                } catch (final InterruptedException e) {
-                    Log.e(TAG, "runWaitFor " + e.toString());
-                } catch (final NullPointerException e) {
-                    Log.e(TAG, "runWaitFor " + e.toString());
-                }
+            return toCommandResult(ShellSession.get(SHELL).run(s));
+        }
+
+        /**
+         * Runs several commands back to back, writing them to the shell
+         * in one go.  Results are returned in the same order.
+         */
+        public CommandResult[] runWaitFor(final String... s) {
+            final ShellSession.Result[] results = ShellSession.get(SHELL).run(s);
+            final CommandResult[] out = new CommandResult[results.length];
+            for (int i = 0; i < results.length; i++) {
+                out[i] = toCommandResult(results[i]);
             }
-            return new CommandResult(exit_value, stdout, stderr);
+            return out;
+        }
+
+        private CommandResult toCommandResult(final ShellSession.Result r) {
+            return new CommandResult(r.exitValue, r.stdout, r.stderr);
         }
     }
 
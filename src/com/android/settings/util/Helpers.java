@@ -14,7 +14,6 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Date;
 
@@ -89,46 +88,11 @@ public class Helpers {
     }
 
     public static String readOneLine(String fname) {
-        BufferedReader br = null;
-        String line = null;
-        try {
-            br = new BufferedReader(new FileReader(fname), 1024);
-            line = br.readLine();
-        } catch (FileNotFoundException ignored) {
-            Log.d(TAG, "File was not found! trying via shell...");
-        } catch (IOException e) {
-            Log.d(TAG, "IOException while reading system file", e);
-        } finally {
-            if (br != null) {
-                try {
-                    br.close();
-                } catch (IOException ignored) {
-                    // failed to close reader
-                }
-            }
-        }
-        return line;
+        return KernelTunables.readLine(fname);
     }
 
     public static boolean writeOneLine(String filename, String value) {
-        FileWriter fileWriter = null;
-        try {
-            fileWriter = new FileWriter(filename);
-            fileWriter.write(value);
-        } catch (IOException e) {
-            String Error = "Error writing { " + value + " } to file: " + filename;
-            Log.e(TAG, Error, e);
-            return false;
-        } finally {
-            if (fileWriter != null) {
-                try {
-                    fileWriter.close();
-                } catch (IOException ignored) {
-                    // failed to close writer
-                }
-            }
-        }
-        return true;
+        return KernelTunables.writeLine(filename, value);
     }
 
     public static String[] getAvailableIOSchedulers() {
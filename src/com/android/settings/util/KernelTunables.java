@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.util;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads and writes single-value kernel tunables, such as the nodes under
+ * /sys and /proc/sys.  Reads go through a per-thread buffer instead of a
+ * new reader per call.  Whether a node exists is remembered, and refreshed
+ * whenever the node is opened, so repeated checks don't stat it again.
+ * <p>
+ * Writes can be grouped in a {@link Batch}, which applies them in order and
+ * can retry the nodes this process may not write through a root shell,
+ * all in one shell submission.
+ */
+public class KernelTunables {
+    private static final String TAG = "KernelTunables";
+
+    private static final ConcurrentHashMap<String, Boolean> sExists =
+            new ConcurrentHashMap<String, Boolean>();
+
+    private static final ThreadLocal<byte[]> sBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[1024];
+        }
+    };
+
+    private KernelTunables() {
+    }
+
+    /**
+     * Returns whether the node exists.  The answer is cached, so for nodes
+     * that come and go, such as those of hotplugged cores, just read them:
+     * {@link #readLine} returns null if they are gone.
+     */
+    public static boolean exists(String path) {
+        Boolean exists = sExists.get(path);
+        if (exists == null) {
+            exists = new File(path).exists();
+            sExists.put(path, exists);
+        }
+        return exists;
+    }
+
+    /** Forgets everything known about which nodes exist. */
+    public static void clearCache() {
+        sExists.clear();
+    }
+
+    /**
+     * Returns the first line of the node, without the line break, or null
+     * if it can't be read.
+     */
+    public static String readLine(String path) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(path);
+            sExists.put(path, true);
+
+            byte[] buffer = sBuffer.get();
+            int len = 0;
+            while (true) {
+                if (len == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    sBuffer.set(buffer);
+                }
+                final int n = in.read(buffer, len, buffer.length - len);
+                if (n <= 0) {
+                    break;
+                }
+                final int start = len;
+                len += n;
+                for (int i = start; i < len; i++) {
+                    if (buffer[i] == '\n') {
+                        return new String(buffer, 0, i);
+                    }
+                }
+            }
+            return new String(buffer, 0, len);
+        } catch (FileNotFoundException e) {
+            if (!new File(path).exists()) {
+                sExists.put(path, false);
+            } else {
+                Log.w(TAG, "Unable to open " + path + ": " + e.getMessage());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "IO Exception when reading " + path, e);
+        } finally {
+            close(in);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the first line of each node.  Entries are null for the nodes
+     * that can't be read.
+     */
+    public static String[] readLines(String... paths) {
+        final String[] lines = new String[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            lines[i] = readLine(paths[i]);
+        }
+        return lines;
+    }
+
+    /**
+     * Writes the value to the node from this process.
+     */
+    public static boolean writeLine(String path, String value) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(path);
+            sExists.put(path, true);
+            out.write(value.getBytes());
+            return true;
+        } catch (FileNotFoundException e) {
+            sExists.put(path, new File(path).exists());
+            Log.e(TAG, "Unable to open " + path + " for writing: " + e.getMessage());
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing " + value + " to " + path, e);
+            return false;
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+    private static String quote(String s) {
+        return "'" + s.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * A list of writes applied in order by {@link #commit}.
+     */
+    public static class Batch {
+        private final ArrayList<String> mPaths = new ArrayList<String>();
+        private final ArrayList<String> mValues = new ArrayList<String>();
+        private long[] mWriteNanos;
+
+        public Batch add(String path, String value) {
+            mPaths.add(path);
+            mValues.add(value);
+            return this;
+        }
+
+        public int size() {
+            return mPaths.size();
+        }
+
+        public boolean isEmpty() {
+            return mPaths.isEmpty();
+        }
+
+        /**
+         * Applies the writes in order.  If {@code allowRoot} is set and a
+         * node that exists can't be written from this process, that write
+         * and all the ones after it are handed to the root shell in a
+         * single submission, so the order is kept.  This blocks while su
+         * starts, so it must not be called on the main thread.
+         *
+         * @return whether each write succeeded, in the order they were added
+         */
+        public boolean[] commit(boolean allowRoot) {
+            return commit(allowRoot, ShellSession.DEFAULT_TIMEOUT_MS);
+        }
+
+        /**
+         * Like {@link #commit(boolean)}, but gives up on each write handed
+         * to the root shell after the given time, for instance while su
+         * waits for the user to grant access.  Those writes then fail.
+         */
+        public boolean[] commit(boolean allowRoot, long rootTimeoutMillis) {
+            final int n = mPaths.size();
+            final boolean[] results = new boolean[n];
+            mWriteNanos = new long[n];
+            final ArrayList<Integer> retry = new ArrayList<Integer>();
+            for (int i = 0; i < n; i++) {
+                if (!retry.isEmpty()) {
+                    retry.add(i);
+                    continue;
+                }
+                final long start = System.nanoTime();
+                results[i] = writeLine(mPaths.get(i), mValues.get(i));
+                mWriteNanos[i] = System.nanoTime() - start;
+                if (!results[i] && allowRoot && exists(mPaths.get(i))) {
+                    retry.add(i);
+                }
+            }
+            if (retry.isEmpty()) {
+                return results;
+            }
+
+            final String[] commands = new String[retry.size()];
+            for (int i = 0; i < commands.length; i++) {
+                final int index = retry.get(i);
+                commands[i] = "echo " + quote(mValues.get(index)) + " > "
+                        + quote(mPaths.get(index));
+            }
+            final long start = System.nanoTime();
+            final ShellSession.Result[] shellResults = ShellSession.get("su")
+                    .run(rootTimeoutMillis, commands);
+            // The shell round trip is shared evenly by the writes it made
+            final long shellNanos = (System.nanoTime() - start) / commands.length;
+            for (int i = 0; i < commands.length; i++) {
+                final Integer exitValue = shellResults[i].exitValue;
+                results[retry.get(i)] = exitValue != null && exitValue == 0;
+                mWriteNanos[retry.get(i)] += shellNanos;
+            }
+            return results;
+        }
+
+        /**
+         * Returns how long the given write took in the last commit, in
+         * nanoseconds.
+         */
+        public long getWriteNanos(int index) {
+            return mWriteNanos != null ? mWriteNanos[index] : 0;
+        }
+
+        /**
+         * Reads every node back and checks that it holds the value written.
+         * Nodes that list their choices with the current one in brackets,
+         * such as an I/O scheduler's "noop [cfq]", match on the bracketed
+         * choice.
+         *
+         * @return whether each node holds its value, in the order added
+         */
+        public boolean[] verify() {
+            final int n = mPaths.size();
+            final boolean[] results = new boolean[n];
+            for (int i = 0; i < n; i++) {
+                final String line = readLine(mPaths.get(i));
+                if (line == null) {
+                    continue;
+                }
+                final String value = mValues.get(i).trim();
+                final String current = line.trim();
+                results[i] = current.equals(value)
+                        || (" " + current + " ").contains(" [" + value + "] ");
+            }
+            return results;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-lived {@code sh} or {@code su} process that runs commands one
+ * after another, so the cost of starting the shell (and of su granting
+ * root) is paid once per process rather than once per command.
+ * <p>
+ * Each command runs in a subshell with its stdin closed, followed by a
+ * sentinel line on stdout carrying its exit status and another on
+ * stderr.  Two reader threads drain both streams with blocking reads and
+ * hand every line to the oldest command whose sentinel has not been seen
+ * yet, so several commands can be written at once.  If the shell dies,
+ * the commands still pending fail and the next submission starts a new
+ * shell.
+ * <p>
+ * A command that doesn't finish within its timeout, or that swallows its
+ * sentinel (an unbalanced quote, say), would hold up every command after
+ * it, so the shell is killed then and all pending commands fail.
+ */
+public class ShellSession {
+    private static final String TAG = "ShellSession";
+
+    /** How long {@link #run} waits for a command by default. */
+    public static final long DEFAULT_TIMEOUT_MS = 30 * 1000;
+
+    private static final HashMap<String, ShellSession> sSessions =
+            new HashMap<String, ShellSession>();
+
+    /**
+     * Returns the session shared by the process for the given shell,
+     * typically {@code "sh"} or {@code "su"}.
+     */
+    public static ShellSession get(String shell) {
+        synchronized (sSessions) {
+            ShellSession session = sSessions.get(shell);
+            if (session == null) {
+                session = new ShellSession(shell);
+                sSessions.put(shell, session);
+            }
+            return session;
+        }
+    }
+
+    public static class Result {
+        /** Exit status, or null if the shell died before it finished. */
+        public final Integer exitValue;
+        /** Output lines joined with newlines, or null if there were none. */
+        public final String stdout;
+        public final String stderr;
+
+        Result(Integer exitValue, String stdout, String stderr) {
+            this.exitValue = exitValue;
+            this.stdout = stdout;
+            this.stderr = stderr;
+        }
+    }
+
+    private static class Command {
+        final String command;
+        final String stdoutSentinel;
+        final String stderrSentinel;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        StringBuilder stdout;
+        StringBuilder stderr;
+        boolean stdoutDone;
+        boolean stderrDone;
+        Integer exitValue;
+        Result result;
+
+        Command(String command, String sentinel) {
+            this.command = command;
+            stdoutSentinel = sentinel + ":out:";
+            stderrSentinel = sentinel + ":err";
+        }
+    }
+
+    private final String mShell;
+    // Marks sentinels so that they can't be mistaken for command output.
+    private final String mToken = Long.toHexString(new Random().nextLong());
+
+    private final Object mLock = new Object();
+    // Written commands whose output is still being read; guarded by mLock.
+    private final LinkedList<Command> mPending = new LinkedList<Command>();
+    private Process mProcess;
+    private OutputStream mStdin;
+    private long mNextId;
+
+    private ShellSession(String shell) {
+        mShell = shell;
+    }
+
+    /**
+     * Runs a command and waits for it to finish.
+     */
+    public Result run(String command) {
+        return run(DEFAULT_TIMEOUT_MS, new String[] { command })[0];
+    }
+
+    /**
+     * Writes all commands to the shell in one go and waits for all of
+     * them to finish.  Results are returned in the same order.
+     */
+    public Result[] run(String... commands) {
+        return run(DEFAULT_TIMEOUT_MS, commands);
+    }
+
+    /**
+     * Like {@link #run(String...)}, but waits at most the given time for
+     * each command.  When one takes longer the shell is restarted and it
+     * and all commands still pending fail, with a null exit status.
+     */
+    public Result[] run(long timeoutMillis, String... commands) {
+        final Command[] submitted = submit(commands);
+        final Result[] results = new Result[submitted.length];
+        for (int i = 0; i < submitted.length; i++) {
+            results[i] = await(submitted[i], timeoutMillis);
+        }
+        return results;
+    }
+
+    private Command[] submit(String[] commands) {
+        final Command[] submitted = new Command[commands.length];
+        if (commands.length == 0) {
+            return submitted;
+        }
+        final StringBuilder script = new StringBuilder();
+        synchronized (mLock) {
+            for (int i = 0; i < commands.length; i++) {
+                final Command cmd = new Command(commands[i], "__" + mToken + ":" + mNextId++);
+                submitted[i] = cmd;
+                script.append("(\n").append(cmd.command).append("\n) </dev/null\n")
+                        .append("echo \"").append(cmd.stdoutSentinel).append("$?\"\n")
+                        .append("echo \"").append(cmd.stderrSentinel).append("\" >&2\n");
+            }
+            if (!ensureStartedLocked()) {
+                for (Command cmd : submitted) {
+                    finishLocked(cmd);
+                }
+                return submitted;
+            }
+            for (Command cmd : submitted) {
+                mPending.add(cmd);
+            }
+            try {
+                mStdin.write(script.toString().getBytes());
+                mStdin.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to write to " + mShell, e);
+                shutdownLocked();
+            }
+        }
+        return submitted;
+    }
+
+    private Result await(Command cmd, long timeoutMillis) {
+        final long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+        while (true) {
+            final long remaining = deadline - SystemClock.uptimeMillis();
+            try {
+                if (remaining > 0 && cmd.done.await(remaining, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                // keep waiting until the deadline
+                continue;
+            }
+            synchronized (mLock) {
+                if (cmd.result == null) {
+                    Log.e(TAG, mShell + ": timed out after " + timeoutMillis + "ms running: "
+                            + cmd.command);
+                    shutdownLocked();
+                }
+            }
+            break;
+        }
+        return cmd.result;
+    }
+
+    private boolean ensureStartedLocked() {
+        if (mProcess != null) {
+            return true;
+        }
+        try {
+            mProcess = Runtime.getRuntime().exec(mShell);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to start " + mShell, e);
+            return false;
+        }
+        mStdin = mProcess.getOutputStream();
+        final Process process = mProcess;
+        new Reader(process, process.getInputStream(), false).start();
+        new Reader(process, process.getErrorStream(), true).start();
+        return true;
+    }
+
+    /**
+     * Drops the shell and fails every pending command.  Called with the
+     * lock held.
+     */
+    private void shutdownLocked() {
+        if (mProcess != null) {
+            mProcess.destroy();
+            mProcess = null;
+            mStdin = null;
+        }
+        for (Command cmd : mPending) {
+            cmd.exitValue = null;
+            finishLocked(cmd);
+        }
+        mPending.clear();
+    }
+
+    private void finishLocked(Command cmd) {
+        cmd.result = new Result(cmd.exitValue,
+                cmd.stdout != null ? cmd.stdout.toString() : null,
+                cmd.stderr != null ? cmd.stderr.toString() : null);
+        cmd.done.countDown();
+    }
+
+    private static void append(Command cmd, String line, boolean stderr) {
+        StringBuilder buffer = stderr ? cmd.stderr : cmd.stdout;
+        if (buffer == null) {
+            buffer = new StringBuilder(line);
+            if (stderr) {
+                cmd.stderr = buffer;
+            } else {
+                cmd.stdout = buffer;
+            }
+        } else {
+            buffer.append('\n').append(line);
+        }
+    }
+
+    /**
+     * Handles one line of output.  Output that does not end with a newline
+     * shares its line with the sentinel that follows it.
+     */
+    private void onLine(Process process, String line, boolean stderr) {
+        synchronized (mLock) {
+            if (process != mProcess) {
+                return;
+            }
+            Command cmd = null;
+            for (Command pending : mPending) {
+                if (!(stderr ? pending.stderrDone : pending.stdoutDone)) {
+                    cmd = pending;
+                    break;
+                }
+            }
+            if (cmd == null) {
+                Log.w(TAG, mShell + ": unexpected output: " + line);
+                return;
+            }
+
+            final String sentinel = stderr ? cmd.stderrSentinel : cmd.stdoutSentinel;
+            final int index = line.indexOf(sentinel);
+            if (index < 0) {
+                append(cmd, line, stderr);
+                return;
+            }
+            if (index > 0) {
+                append(cmd, line.substring(0, index), stderr);
+            }
+            if (stderr) {
+                cmd.stderrDone = true;
+            } else {
+                cmd.stdoutDone = true;
+                try {
+                    cmd.exitValue = Integer.parseInt(
+                            line.substring(index + sentinel.length()).trim());
+                } catch (NumberFormatException e) {
+                    cmd.exitValue = null;
+                }
+            }
+            if (cmd.stdoutDone && cmd.stderrDone) {
+                mPending.remove(cmd);
+                finishLocked(cmd);
+            }
+        }
+    }
+
+    private void onEnd(Process process) {
+        synchronized (mLock) {
+            if (process == mProcess) {
+                Log.w(TAG, mShell + " exited");
+                shutdownLocked();
+            }
+        }
+    }
+
+    private class Reader extends Thread {
+        private final Process mReaderProcess;
+        private final InputStream mStream;
+        private final boolean mStderr;
+
+        Reader(Process process, InputStream stream, boolean stderr) {
+            super(TAG + ":" + mShell + (stderr ? ":err" : ":out"));
+            mReaderProcess = process;
+            mStream = stream;
+            mStderr = stderr;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(mStream));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    onLine(mReaderProcess, line, mStderr);
+                }
+            } catch (IOException e) {
+                // shell went away
+            } finally {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+            onEnd(mReaderProcess);
+        }
+    }
+}
@@ -21,6 +21,7 @@ import static android.text.format.DateUtils.WEEK_IN_MILLIS;
 
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.DashPathEffect;
@@ -56,6 +57,13 @@ public class ChartNetworkSeriesView extends View {
 
     private NetworkStatsHistory mStats;
 
+    // Bounds of each bucket of mStats and the data used up to its end,
+    // computed once per bind.
+    private int mBucketCount;
+    private long[] mBucketStart;
+    private long[] mBucketEnd;
+    private long[] mCumulative;
+
     private Path mPathStroke;
     private Path mPathFill;
     private Path mPathEstimate;
@@ -70,6 +78,15 @@ public class ChartNetworkSeriesView extends View {
     private long mEndTime = Long.MIN_VALUE;
 
     private boolean mPathValid = false;
+
+    /**
+     * Coverage of {@link #mPathFill} and {@link #mPathStroke}, rendered once
+     * per path and then drawn in the primary or secondary color, so moving
+     * the primary range doesn't rasterize the paths again.
+     */
+    private Bitmap mFillMask;
+    private Bitmap mStrokeMask;
+    private boolean mMaskValid = false;
     private boolean mEstimateVisible = false;
 
     private long mMax;
@@ -136,10 +153,49 @@ public class ChartNetworkSeriesView extends View {
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
         mStats = stats;
+        computeCumulative();
         invalidatePath();
         invalidate();
     }
 
+    private void computeCumulative() {
+        final int size = mStats != null ? mStats.size() : 0;
+        if (mCumulative == null || mCumulative.length < size) {
+            mBucketStart = new long[size];
+            mBucketEnd = new long[size];
+            mCumulative = new long[size];
+        }
+
+        NetworkStatsHistory.Entry entry = null;
+        long totalData = 0;
+        for (int i = 0; i < size; i++) {
+            entry = mStats.getValues(i, entry);
+            mBucketStart[i] = entry.bucketStart;
+            mBucketEnd[i] = entry.bucketStart + entry.bucketDuration;
+            totalData += entry.rxBytes + entry.txBytes;
+            mCumulative[i] = totalData;
+        }
+        mBucketCount = size;
+    }
+
+    /**
+     * Return the last bucket in {@code [from, to]} that ends before the given
+     * time, or {@code from - 1} when there is none.
+     */
+    private int findLastBucketEndingBefore(long time, int from, int to) {
+        int lo = from;
+        int hi = to;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mBucketEnd[mid] < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return hi;
+    }
+
     public void setBounds(long start, long end) {
         mStart = start;
         mEnd = end;
@@ -157,13 +213,24 @@ public class ChartNetworkSeriesView extends View {
 
     public void invalidatePath() {
         mPathValid = false;
+        mMaskValid = false;
         mMax = 0;
         invalidate();
     }
 
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        mFillMask = null;
+        mStrokeMask = null;
+        mMaskValid = false;
+    }
+
     /**
      * Erase any existing {@link Path} and generate series outline based on
-     * currently bound {@link NetworkStatsHistory} data.
+     * currently bound {@link NetworkStatsHistory} data.  Buckets that end in
+     * the same pixel column are drawn as one segment, so the path has at most
+     * a few points per column however many buckets are visible.
      */
     private void generatePath() {
         if (LOGD) Log.d(TAG, "generatePath()");
@@ -173,16 +240,16 @@ public class ChartNetworkSeriesView extends View {
         mPathFill.reset();
         mPathEstimate.reset();
         mPathValid = true;
+        mMaskValid = false;
 
         // bail when not enough stats to render
-        if (mStats == null || mStats.size() < 2) {
+        if (mStats == null || mBucketCount < 2) {
             return;
         }
 
         final int width = getWidth();
         final int height = getHeight();
 
-        boolean started = false;
         float lastX = 0;
         float lastY = height;
         long lastTime = mHoriz.convertToValue(lastX);
@@ -198,39 +265,41 @@ public class ChartNetworkSeriesView extends View {
 
         NetworkStatsHistory.Entry entry = null;
 
-        final int start = mStats.getIndexBefore(mStart);
-        final int end = mStats.getIndexAfter(mEnd);
-        for (int i = start; i <= end; i++) {
-            entry = mStats.getValues(i, entry);
+        final int first = Math.max(mStats.getIndexBefore(mStart), 0);
+        final int last = Math.min(mStats.getIndexAfter(mEnd), mBucketCount - 1);
 
-            final long startTime = entry.bucketStart;
-            final long endTime = startTime + entry.bucketDuration;
+        // skip until we find first stats on screen
+        int i = findLastBucketEndingBefore(lastTime, first, last) + 1;
+        final long baseData = i > 0 ? mCumulative[i - 1] : 0;
 
+        while (i <= last) {
+            final long startTime = mBucketStart[i];
             final float startX = mHoriz.convertToPoint(startTime);
-            final float endX = mHoriz.convertToPoint(endTime);
-
-            // skip until we find first stats on screen
-            if (endX < 0) continue;
-
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
-
-            final float startY = lastY;
-            final float endY = mVert.convertToPoint(totalData);
 
             if (lastTime != startTime) {
                 // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
+                mPathStroke.lineTo(startX, lastY);
+                mPathFill.lineTo(startX, lastY);
             }
 
+            // fold in every following bucket ending in the same pixel column
+            final float columnEnd = (float) Math.floor(mHoriz.convertToPoint(mBucketEnd[i])) + 1;
+            final int j = Math.max(i,
+                    findLastBucketEndingBefore(mHoriz.convertToValue(columnEnd), i, last));
+
+            totalData = mCumulative[j] - baseData;
+
+            final float endX = mHoriz.convertToPoint(mBucketEnd[j]);
+            final float endY = mVert.convertToPoint(totalData);
+
             // always draw to end of current bucket
             mPathStroke.lineTo(endX, endY);
             mPathFill.lineTo(endX, endY);
 
             lastX = endX;
             lastY = endY;
-            lastTime = endTime;
+            lastTime = mBucketEnd[j];
+            i = j + 1;
         }
 
         // when data falls short, extend to requested end time
@@ -314,6 +383,38 @@ public class ChartNetworkSeriesView extends View {
         }
     }
 
+    /**
+     * Render the coverage of the series paths, unless already done for the
+     * current paths.
+     */
+    private void updateMasks() {
+        if (mMaskValid) return;
+        mMaskValid = true;
+
+        final int width = getWidth();
+        final int height = getHeight();
+        if (width <= 0 || height <= 0) {
+            mFillMask = null;
+            mStrokeMask = null;
+            return;
+        }
+
+        if (mFillMask == null) {
+            mFillMask = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+            mStrokeMask = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+        } else {
+            mFillMask.eraseColor(Color.TRANSPARENT);
+            mStrokeMask.eraseColor(Color.TRANSPARENT);
+        }
+        // full coverage; the color and alpha come from the paint drawing the mask
+        final Paint fill = new Paint(mPaintFill);
+        fill.setColor(Color.BLACK);
+        final Paint stroke = new Paint(mPaintStroke);
+        stroke.setColor(Color.BLACK);
+        new Canvas(mFillMask).drawPath(mPathFill, fill);
+        new Canvas(mStrokeMask).drawPath(mPathStroke, stroke);
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
         int save;
@@ -321,6 +422,7 @@ public class ChartNetworkSeriesView extends View {
         if (!mPathValid) {
             generatePath();
         }
+        updateMasks();
 
         final float primaryLeftPoint = mHoriz.convertToPoint(mPrimaryLeft);
         final float primaryRightPoint = mHoriz.convertToPoint(mPrimaryRight);
@@ -332,20 +434,23 @@ public class ChartNetworkSeriesView extends View {
             canvas.restoreToCount(save);
         }
 
+        if (mFillMask == null) return;
+
+        // alpha masks are drawn in the color of the paint
         save = canvas.save();
         canvas.clipRect(0, 0, primaryLeftPoint, getHeight());
-        canvas.drawPath(mPathFill, mPaintFillSecondary);
+        canvas.drawBitmap(mFillMask, 0, 0, mPaintFillSecondary);
         canvas.restoreToCount(save);
 
         save = canvas.save();
         canvas.clipRect(primaryRightPoint, 0, getWidth(), getHeight());
-        canvas.drawPath(mPathFill, mPaintFillSecondary);
+        canvas.drawBitmap(mFillMask, 0, 0, mPaintFillSecondary);
         canvas.restoreToCount(save);
 
         save = canvas.save();
         canvas.clipRect(primaryLeftPoint, 0, primaryRightPoint, getHeight());
-        canvas.drawPath(mPathFill, mPaintFill);
-        canvas.drawPath(mPathStroke, mPaintStroke);
+        canvas.drawBitmap(mFillMask, 0, 0, mPaintFill);
+        canvas.drawBitmap(mStrokeMask, 0, 0, mPaintStroke);
         canvas.restoreToCount(save);
 
     }